@@ -0,0 +1,148 @@
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ *
+ * Measures the bandwidth saved by the {@link MessageCompressor} against the
+ * CPU time it takes.
+ * <p>
+ * Runs sets of generated messages typical for the messenger through the
+ * compression and the encryption stages of the {@link MessengerEngine} and
+ * reports the bytes sent with and without compression, the time spent
+ * compressing, decompressing and encrypting a message:
+ *
+ * <pre>
+ * java -cp bin:bench CompressionBenchmark [threshold] [cipher]
+ * </pre>
+ *
+ */
+public class CompressionBenchmark {
+	private final static int MESSAGES = 2000;
+	private final static int ROUNDS = 10;
+	private final static String KEY = "benchmark key";
+
+	public static void main(String[] args) throws Exception {
+		int threshold = args.length > 0 ? Integer.parseInt(args[0]) : MessageCompressor.DEFAULT_THRESHOLD;
+		Cipher cipher = Cipher.valueOf(args.length > 1 ? args[1].toUpperCase() : Cipher.AES128_GCM.name());
+		CipherProvider provider = Crypto.getProvider(cipher);
+		MessageCompressor compressor = new MessageCompressor(threshold);
+
+		System.out.println("threshold " + threshold + " bytes, " + cipher);
+		System.out.printf("%-12s %10s %10s %7s %10s %10s %10s%n", "messages", "raw", "sent", "saved", "compress",
+				"inflate", "encrypt");
+		run("chat", chat(), compressor, provider);
+		run("json", json(), compressor, provider);
+		run("log", log(), compressor, provider);
+		run("random", random(), compressor, provider);
+	}
+
+	private static void run(String name, List<byte[]> messages, MessageCompressor compressor, CipherProvider provider)
+			throws Exception {
+		long raw = 0;
+		long sent = 0;
+		long compressTime = 0;
+		long inflateTime = 0;
+		long encryptTime = 0;
+		for (int round = 0; round < ROUNDS; round++) {
+			// The first rounds warm up the JIT
+			boolean measured = round >= ROUNDS / 2;
+			for (byte[] message : messages) {
+				long start = System.nanoTime();
+				byte[] compressed = compressor.compress(message);
+				long afterCompression = System.nanoTime();
+				byte[] encrypted = Crypto.encryptBytes(compressed != null ? compressed : message, KEY, provider);
+				long afterEncryption = System.nanoTime();
+				if (compressed != null) {
+					compressor.decompress(compressed, Integer.MAX_VALUE);
+				}
+				long afterDecompression = System.nanoTime();
+
+				if (measured) {
+					raw += Crypto.encryptBytes(message, KEY, provider).length;
+					sent += encrypted.length;
+					compressTime += afterCompression - start;
+					encryptTime += afterEncryption - afterCompression;
+					inflateTime += afterDecompression - afterEncryption;
+				}
+			}
+		}
+
+		long count = (long) messages.size() * (ROUNDS - ROUNDS / 2);
+		System.out.printf("%-12s %10d %10d %6.1f%% %8.2fus %8.2fus %8.2fus%n", name, raw / count * messages.size(),
+				sent / count * messages.size(), 100.0 * (raw - sent) / raw, compressTime / 1000.0 / count,
+				inflateTime / 1000.0 / count, encryptTime / 1000.0 / count);
+	}
+
+	private static List<byte[]> chat() {
+		String[] words = { "hi", "hello", "yes", "no", "ok", "thanks", "the", "server", "is", "down", "again", "can",
+				"you", "check", "deploy", "tomorrow", "meeting", "at", "ten", "sure", "let", "me", "know", "when",
+				"done", "build", "failed", "works", "now" };
+		Random random = new Random(1);
+		List<byte[]> messages = new ArrayList<byte[]>();
+		for (int i = 0; i < MESSAGES; i++) {
+			StringBuilder message = new StringBuilder();
+			int length = 1 + random.nextInt(30);
+			for (int j = 0; j < length; j++) {
+				message.append(words[random.nextInt(words.length)]).append(' ');
+			}
+			messages.add(message.toString().getBytes(StandardCharsets.UTF_8));
+		}
+		return messages;
+	}
+
+	private static List<byte[]> json() {
+		Random random = new Random(2);
+		List<byte[]> messages = new ArrayList<byte[]>();
+		for (int i = 0; i < MESSAGES; i++) {
+			StringBuilder message = new StringBuilder("{\"status\":\"ok\",\"data\":{\"items\":[");
+			int items = 1 + random.nextInt(10);
+			for (int j = 0; j < items; j++) {
+				message.append(j > 0 ? "," : "").append("{\"id\":").append(random.nextInt(100000))
+						.append(",\"name\":\"item-").append(random.nextInt(1000)).append("\",\"type\":\"")
+						.append(random.nextBoolean() ? "user" : "group").append("\",\"created_at\":\"2026-0")
+						.append(1 + random.nextInt(9)).append("-1").append(random.nextInt(10))
+						.append("T12:00:00Z\",\"active\":").append(random.nextBoolean()).append('}');
+			}
+			messages.add(message.append("]}}").toString().getBytes(StandardCharsets.UTF_8));
+		}
+		return messages;
+	}
+
+	private static List<byte[]> log() {
+		String[] levels = { "INFO", "WARN", "ERROR", "DEBUG" };
+		Random random = new Random(3);
+		List<byte[]> messages = new ArrayList<byte[]>();
+		for (int i = 0; i < MESSAGES; i++) {
+			StringBuilder message = new StringBuilder();
+			int lines = 1 + random.nextInt(8);
+			for (int j = 0; j < lines; j++) {
+				message.append("2026-10-17T12:").append(10 + random.nextInt(50)).append(':')
+						.append(10 + random.nextInt(50)).append(".123Z [main] ")
+						.append(levels[random.nextInt(levels.length)]).append(" SocketController - failed to connect to 10.0.")
+						.append(random.nextInt(256)).append('.').append(random.nextInt(256))
+						.append(", retry in 1000 ms\n");
+			}
+			if (random.nextInt(4) == 0) {
+				message.append("java.io.IOException: Connection refused\n")
+						.append("\tat java.base/sun.nio.ch.Net.connect0(Native Method)\n")
+						.append("\tat SocketController.connect(SocketController.java:94)\n")
+						.append("\tat java.base/java.lang.Thread.run(Thread.java:833)\n");
+			}
+			messages.add(message.toString().getBytes(StandardCharsets.UTF_8));
+		}
+		return messages;
+	}
+
+	private static List<byte[]> random() {
+		Random random = new Random(4);
+		List<byte[]> messages = new ArrayList<byte[]>();
+		for (int i = 0; i < MESSAGES; i++) {
+			byte[] message = new byte[64 + random.nextInt(1024)];
+			random.nextBytes(message);
+			messages.add(message);
+		}
+		return messages;
+	}
+}
@@ -0,0 +1,426 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ *
+ * Load generator and soak test of a messenger node.
+ * <p>
+ * Opens {@code connections} {@link SocketController}s to the node and sends
+ * messages of the given sizes and {@link Cipher} at a constant total rate, the
+ * node echoes every message back. By default the node is a {@link SelectorServer}
+ * started in the same process, so the test runs on localhost without any
+ * setup; {@code --node} runs only the node for a generator on another
+ * machine. The node listens on the port of the messenger, so the messenger
+ * must not run at the same time.
+ * <p>
+ * The messages are sent on a fixed schedule whether or not the node keeps up.
+ * Every message carries the time it was scheduled at, and its latency is
+ * measured from that time rather than from the time it was actually sent, so
+ * the time the senders fall behind a stalled node is counted instead of being
+ * hidden by the coordinated omission of the delayed messages. The latency
+ * measured from the actual send is reported next to it. The generator prints
+ * the progress every {@code report-interval} seconds and a summary at the end,
+ * and exits with 1 if any message was lost or failed:
+ *
+ * <pre>
+ * java -cp bin:bench LoadGenerator --connections=50 --rate=20000 --size=64-4096 --cipher=AES128 --duration=60
+ * java -cp bin:bench LoadGenerator --node
+ * java -cp bin:bench LoadGenerator --connect=10.0.0.2 --rate=5000 --size=exp:512
+ * </pre>
+ *
+ * Sizes are either fixed ({@code 256}), uniformly distributed between two
+ * bounds ({@code 64-4096}) or exponentially distributed with the given mean
+ * ({@code exp:512}). Messages are at least {@value #HEADER_SIZE} bytes.
+ *
+ */
+public class LoadGenerator {
+	/**
+	 * Size of the two timestamps at the start of every message.
+	 */
+	private final static int HEADER_SIZE = 16;
+	/**
+	 * Largest message sent with an exponential size distribution.
+	 */
+	private final static int MAX_SIZE = 1024 * 1024;
+	/**
+	 * Time to wait for the echoes of the last messages.
+	 */
+	private final static long DRAIN_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(10);
+	/**
+	 * Time to wait for a connection to negotiate the framed protocol.
+	 */
+	private final static long HANDSHAKE_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(5);
+	private final static double[] PERCENTILES = { 0.5, 0.9, 0.99, 0.999, 0.9999 };
+	private final static String[] PERCENTILE_NAMES = { "p50", "p90", "p99", "p99.9", "p99.99" };
+
+	private final static Set<String> OPTIONS = new HashSet<String>(Arrays.asList("connect", "connections", "rate",
+			"size", "cipher", "key", "duration", "warmup", "report-interval", "node"));
+	private final static String USAGE = "Usage: java LoadGenerator [--connect=address] [--connections=count]"
+			+ " [--rate=messages per second] [--size=bytes|min-max|exp:mean]"
+			+ " [--cipher=NONE|AES128|AES128_CTR|AES128_GCM] [--key=key] [--duration=seconds]"
+			+ " [--warmup=seconds] [--report-interval=seconds] | --node";
+
+	private final String address;
+	private final int connectionCount;
+	private final double rate;
+	private final String sizes;
+	private final Cipher cipher;
+	private final CipherProvider provider;
+	private final String key;
+	private final long durationNanos;
+	private final long warmupNanos;
+	private final long reportIntervalNanos;
+
+	/**
+	 * Latency from the time a message was scheduled at, corrected for
+	 * coordinated omission.
+	 */
+	private final LatencyHistogram latency = new LatencyHistogram("latency_seconds",
+			"Time from the scheduled send to the echo");
+	/**
+	 * Latency from the time a message was actually sent.
+	 */
+	private final LatencyHistogram serviceTime = new LatencyHistogram("service_time_seconds",
+			"Time from the actual send to the echo");
+	private final LongAdder sent = new LongAdder();
+	private final LongAdder received = new LongAdder();
+	private final LongAdder receivedBytes = new LongAdder();
+	private final LongAdder connectErrors = new LongAdder();
+	private final LongAdder sendErrors = new LongAdder();
+	private final LongAdder decryptErrors = new LongAdder();
+	private final LongAdder disconnects = new LongAdder();
+
+	/**
+	 * Start of the measurement, the messages scheduled before it warm up the
+	 * node and the generator.
+	 */
+	private long measurementStart;
+
+	private LoadGenerator(Properties configuration) {
+		address = configuration.getProperty("connect", "localhost");
+		connectionCount = Integer.parseInt(configuration.getProperty("connections", "10"));
+		rate = Double.parseDouble(configuration.getProperty("rate", "1000"));
+		sizes = configuration.getProperty("size", "256");
+		cipher = Cipher.valueOf(configuration.getProperty("cipher", Cipher.AES128.name()).toUpperCase());
+		provider = Crypto.getProvider(cipher);
+		key = configuration.getProperty("key", "load generator");
+		durationNanos = TimeUnit.SECONDS.toNanos(Long.parseLong(configuration.getProperty("duration", "30")));
+		warmupNanos = TimeUnit.SECONDS.toNanos(Long.parseLong(configuration.getProperty("warmup", "5")));
+		reportIntervalNanos = TimeUnit.SECONDS
+				.toNanos(Long.parseLong(configuration.getProperty("report-interval", "5")));
+		if (connectionCount <= 0 || rate <= 0 || durationNanos <= 0 || warmupNanos < 0 || reportIntervalNanos <= 0) {
+			throw new IllegalArgumentException("The counts, the rate and the times must be positive");
+		}
+		nextSize(new Random());
+	}
+
+	public static void main(String[] args) throws Exception {
+		Properties configuration = new Properties();
+		try {
+			for (String arg : args) {
+				int separator = arg.indexOf('=');
+				String name = separator < 0 ? arg.substring(2) : arg.substring(2, separator);
+				if (!arg.startsWith("--") || !OPTIONS.contains(name)) {
+					throw new IllegalArgumentException("Unknown argument " + arg);
+				}
+				configuration.setProperty(name, separator < 0 ? "" : arg.substring(separator + 1));
+			}
+			if (configuration.getProperty("node") != null) {
+				startNode();
+				Thread.currentThread().join();
+				return;
+			}
+
+			LoadGenerator generator = new LoadGenerator(configuration);
+			SelectorServer node = configuration.getProperty("connect") == null ? startNode() : null;
+			boolean passed = generator.run();
+			if (node != null) {
+				node.stop();
+			}
+			System.exit(passed ? 0 : 1);
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			System.err.println(USAGE);
+			System.exit(2);
+		}
+	}
+
+	/**
+	 * Starts a node echoing every received message back to its sender.
+	 *
+	 * @return the node
+	 * @throws IOException if the port of the messenger can't be bound
+	 */
+	private static SelectorServer startNode() throws IOException {
+		SelectorServer node = new SelectorServer(new ConnectionListener() {
+			@Override
+			public void onConnected(Connection connection) {
+			}
+
+			@Override
+			public void onMessage(Connection connection, byte[] message) {
+				try {
+					connection.send(message);
+				} catch (IOException e) {
+					connection.close();
+				}
+			}
+
+			@Override
+			public void onDisconnected(Connection connection) {
+			}
+		}, Runtime.getRuntime().availableProcessors());
+		node.start(SocketController.PORT);
+		return node;
+	}
+
+	/**
+	 * Runs the test and prints its results.
+	 *
+	 * @return true if every message was echoed without any error
+	 * @throws InterruptedException if the {@link Thread} is interrupted
+	 */
+	private boolean run() throws InterruptedException {
+		System.out.printf("%d connections to %s, %.0f messages/s of %s bytes, %s, %ds + %ds warmup%n",
+				connectionCount, address, rate, sizes, cipher, TimeUnit.NANOSECONDS.toSeconds(durationNanos),
+				TimeUnit.NANOSECONDS.toSeconds(warmupNanos));
+
+		List<SocketController> controllers = new ArrayList<SocketController>();
+		for (int i = 0; i < connectionCount; i++) {
+			SocketController controller = new SocketController();
+			if (controller.connect(address)) {
+				controllers.add(controller);
+			} else {
+				connectErrors.increment();
+			}
+		}
+		if (controllers.isEmpty()) {
+			System.out.println("No connection could be established");
+			return false;
+		}
+
+		List<Thread> receivers = new ArrayList<Thread>();
+		for (SocketController controller : controllers) {
+			Thread receiver = new Thread(() -> receive(controller), "Receiver");
+			receiver.setDaemon(true);
+			receiver.start();
+			receivers.add(receiver);
+		}
+		// The first messages wait for the protocol negotiation, which must not
+		// be counted in their latencies
+		long handshakeDeadline = System.nanoTime() + HANDSHAKE_TIMEOUT_NANOS;
+		for (SocketController controller : controllers) {
+			while (!controller.isFraming() && System.nanoTime() < handshakeDeadline) {
+				Thread.sleep(1);
+			}
+		}
+
+		// Every connection sends its share of the rate, the schedules are shifted
+		// so the messages of different connections don't come in bursts
+		long interval = (long) (TimeUnit.SECONDS.toNanos(1) * controllers.size() / rate);
+		long start = System.nanoTime();
+		measurementStart = start + warmupNanos;
+		long end = measurementStart + durationNanos;
+		List<Thread> senders = new ArrayList<Thread>();
+		for (int i = 0; i < controllers.size(); i++) {
+			SocketController controller = controllers.get(i);
+			long first = start + interval * i / controllers.size();
+			Thread sender = new Thread(() -> send(controller, first, interval, end), "Sender");
+			sender.setDaemon(true);
+			sender.start();
+			senders.add(sender);
+		}
+
+		long nextReport = start + reportIntervalNanos;
+		long reportedMessages = 0;
+		long reportedTime = start;
+		for (Thread sender : senders) {
+			while (sender.isAlive()) {
+				long now = System.nanoTime();
+				if (now >= nextReport) {
+					long messages = received.sum();
+					report(now - start, (messages - reportedMessages) * 1e9 / (now - reportedTime));
+					reportedMessages = messages;
+					reportedTime = now;
+					nextReport += reportIntervalNanos;
+				}
+				sender.join(Math.max(1, TimeUnit.NANOSECONDS.toMillis(nextReport - now)));
+			}
+		}
+
+		long drainDeadline = System.nanoTime() + DRAIN_TIMEOUT_NANOS;
+		while (received.sum() + decryptErrors.sum() < sent.sum() && System.nanoTime() < drainDeadline) {
+			Thread.sleep(10);
+		}
+		long finished = System.nanoTime();
+		for (SocketController controller : controllers) {
+			controller.setClientMode();
+		}
+		for (Thread receiver : receivers) {
+			receiver.join(1000);
+		}
+
+		return summarize(finished - measurementStart);
+	}
+
+	/**
+	 * Sends messages through the passed controller on a fixed schedule. A
+	 * message which is late is sent at once, the following ones keep their
+	 * schedule.
+	 *
+	 * @param controller to send through
+	 * @param first      time the first message is scheduled at
+	 * @param interval   between two scheduled messages in nanoseconds
+	 * @param end        time after which no more message is sent
+	 */
+	private void send(SocketController controller, long first, long interval, long end) {
+		Random random = ThreadLocalRandom.current();
+		for (long scheduled = first; scheduled < end; scheduled += interval) {
+			long now;
+			while ((now = System.nanoTime()) < scheduled) {
+				LockSupport.parkNanos(scheduled - now);
+			}
+
+			ByteBuffer message = ByteBuffer.allocate(nextSize(random));
+			message.putLong(scheduled).putLong(System.nanoTime());
+			try {
+				controller.send(Crypto.encryptBytes(message.array(), key, provider));
+				sent.increment();
+			} catch (IOException | UnsupportedOperationException e) {
+				sendErrors.increment();
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Receives the echoed messages until the passed controller is closed.
+	 *
+	 * @param controller to receive from
+	 */
+	private void receive(SocketController controller) {
+		try {
+			while (true) {
+				byte[] message = controller.receiveMessage();
+				long now = System.nanoTime();
+				byte[] data;
+				try {
+					data = Crypto.decryptBytes(message, key, provider);
+				} catch (IllegalArgumentException e) {
+					decryptErrors.increment();
+					continue;
+				}
+				if (data.length < HEADER_SIZE) {
+					decryptErrors.increment();
+					continue;
+				}
+
+				ByteBuffer header = ByteBuffer.wrap(data);
+				long scheduled = header.getLong();
+				long actual = header.getLong();
+				if (scheduled >= measurementStart) {
+					latency.record(now - scheduled);
+					serviceTime.record(now - actual);
+					receivedBytes.add(message.length);
+				}
+				received.increment();
+			}
+		} catch (IOException e) {
+			if (controller.getSocketStatus() != SocketStatus.DISCONNECTED) {
+				disconnects.increment();
+			}
+		}
+	}
+
+	/**
+	 * @param random generator of the sizes
+	 * @return size of the next message following the configured distribution
+	 * @throws IllegalArgumentException if the distribution is malformed
+	 */
+	private int nextSize(Random random) {
+		int size;
+		int separator = sizes.indexOf('-');
+		if (sizes.startsWith("exp:")) {
+			double mean = Double.parseDouble(sizes.substring(4));
+			size = (int) Math.min(MAX_SIZE, -mean * Math.log(1 - random.nextDouble()));
+		} else if (separator > 0) {
+			int min = Integer.parseInt(sizes.substring(0, separator));
+			int max = Integer.parseInt(sizes.substring(separator + 1));
+			if (max < min) {
+				throw new IllegalArgumentException("Malformed size " + sizes);
+			}
+			size = min + random.nextInt(max - min + 1);
+		} else {
+			size = Integer.parseInt(sizes);
+		}
+		return Math.max(HEADER_SIZE, size);
+	}
+
+	/**
+	 * Prints the progress of the test.
+	 *
+	 * @param elapsed time since the start in nanoseconds
+	 * @param rate    of the received messages per second since the last report
+	 */
+	private void report(long elapsed, double rate) {
+		LatencyHistogram.Snapshot snapshot = latency.snapshot();
+		System.out.printf("%5ds %10.0f msg/s  sent %d received %d  p50 %s p99 %s max %s  errors %d%n",
+				TimeUnit.NANOSECONDS.toSeconds(elapsed), rate, sent.sum(), received.sum(),
+				format(snapshot.getPercentile(0.5)), format(snapshot.getPercentile(0.99)),
+				format(snapshot.getMax()), errors());
+	}
+
+	/**
+	 * Prints the results of the test.
+	 *
+	 * @param measured duration of the measurement until the last echo in
+	 *                 nanoseconds
+	 * @return true if every message was echoed without any error
+	 */
+	private boolean summarize(long measured) {
+		LatencyHistogram.Snapshot corrected = latency.snapshot();
+		LatencyHistogram.Snapshot uncorrected = serviceTime.snapshot();
+		long lost = sent.sum() - received.sum() - decryptErrors.sum();
+		double seconds = measured / 1e9;
+
+		System.out.printf("throughput %.0f msg/s, %.2f MB/s echoed%n", corrected.getCount() / seconds,
+				receivedBytes.sum() / seconds / 1e6);
+		System.out.println(percentiles("latency", corrected));
+		System.out.println(percentiles("service time", uncorrected));
+		System.out.printf("sent %d received %d lost %d, errors: connect %d send %d decrypt %d disconnect %d%n",
+				sent.sum(), received.sum(), lost, connectErrors.sum(), sendErrors.sum(), decryptErrors.sum(),
+				disconnects.sum());
+		return lost == 0 && errors() == 0;
+	}
+
+	private long errors() {
+		return connectErrors.sum() + sendErrors.sum() + decryptErrors.sum() + disconnects.sum();
+	}
+
+	private static String percentiles(String name, LatencyHistogram.Snapshot snapshot) {
+		StringBuilder line = new StringBuilder(String.format("%-13s", name));
+		for (int i = 0; i < PERCENTILES.length; i++) {
+			line.append(' ').append(PERCENTILE_NAMES[i]).append(' ').append(format(snapshot.getPercentile(PERCENTILES[i])));
+		}
+		return line.append(" max ").append(format(snapshot.getMax())).toString();
+	}
+
+	/**
+	 * @param nanos duration in nanoseconds
+	 * @return the duration in milliseconds
+	 */
+	private static String format(long nanos) {
+		return String.format("%.3fms", nanos / 1e6);
+	}
+}
@@ -0,0 +1,64 @@
+package benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ *
+ * Measures the AES-128 block cipher of the messenger: encryption and
+ * decryption of payloads of several sizes through the {@code CipherProvider}
+ * methods, which take the schedule of the key from the cache, see
+ * {@link KeyScheduleBenchmark}.
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class AESBenchmark {
+	/**
+	 * Size of the payload in bytes.
+	 */
+	@Param({ "16", "256", "4096", "65536" })
+	private int size;
+
+	private Object aes;
+	private byte[] key;
+	private byte[] plaintext;
+	private byte[] ciphertext;
+
+	@Setup
+	public void setUp() throws Throwable {
+		Random random = new Random(1);
+		key = new byte[16];
+		random.nextBytes(key);
+		plaintext = new byte[size];
+		random.nextBytes(plaintext);
+		aes = (Object) Messenger.NEW_AES.invokeExact();
+		ciphertext = (byte[]) Messenger.AES_ENCRYPT.invokeExact(aes, plaintext, key);
+	}
+
+	@Benchmark
+	public byte[] encrypt() throws Throwable {
+		return (byte[]) Messenger.AES_ENCRYPT.invokeExact(aes, plaintext, key);
+	}
+
+	@Benchmark
+	public byte[] decrypt() throws Throwable {
+		return (byte[]) Messenger.AES_DECRYPT.invokeExact(aes, ciphertext, key);
+	}
+}
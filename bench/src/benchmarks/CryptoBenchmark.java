@@ -0,0 +1,72 @@
+package benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ *
+ * Measures the encryption of text messages as done by the messenger for every
+ * sent and received message: the conversion between the text and its bytes in
+ * the charset of {@code Crypto}, the conversion of the key and the cipher.
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CryptoBenchmark {
+	/**
+	 * Name of the {@code Cipher}.
+	 */
+	@Param({ "NONE", "AES128", "AES128_CTR", "AES128_GCM" })
+	private String cipherName;
+
+	/**
+	 * Length of the message in characters.
+	 */
+	@Param({ "16", "256", "4096" })
+	private int length;
+
+	private final String key = "benchmark key";
+	private Object cipher;
+	private String text;
+	private byte[] encrypted;
+
+	@Setup
+	public void setUp() throws Throwable {
+		// Mostly ASCII with some characters taking two or three bytes in UTF-8
+		String alphabet = "abcdefghijklmnopqrstuvwxyz ABCDEFGHIJKLMNOPQRSTUVWXYZ 0123456789 .,!? éüßłč €";
+		Random random = new Random(1);
+		StringBuilder builder = new StringBuilder(length);
+		for (int i = 0; i < length; i++) {
+			builder.append(alphabet.charAt(random.nextInt(alphabet.length())));
+		}
+		text = builder.toString();
+		cipher = Messenger.cipher(cipherName);
+		encrypted = (byte[]) Messenger.CRYPTO_ENCRYPT.invokeExact(text, key, cipher);
+	}
+
+	@Benchmark
+	public byte[] encrypt() throws Throwable {
+		return (byte[]) Messenger.CRYPTO_ENCRYPT.invokeExact(text, key, cipher);
+	}
+
+	@Benchmark
+	public String decrypt() throws Throwable {
+		return (String) Messenger.CRYPTO_DECRYPT.invokeExact(encrypted, key, cipher);
+	}
+}
@@ -0,0 +1,48 @@
+package benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ *
+ * Measures the expansion of an AES-128 key and the lookup of an already
+ * expanded key in the cache of {@code AESKeySchedule}, which the messenger
+ * does for every message.
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class KeyScheduleBenchmark {
+	private byte[] key;
+
+	@Setup
+	public void setUp() {
+		key = new byte[16];
+		new Random(1).nextBytes(key);
+	}
+
+	@Benchmark
+	public int[] expandKey() throws Throwable {
+		return (int[]) Messenger.AES_EXPAND_KEY.invokeExact(key);
+	}
+
+	@Benchmark
+	public Object cachedKeySchedule() throws Throwable {
+		return (Object) Messenger.KEY_SCHEDULE_FOR_KEY.invokeExact(key);
+	}
+}
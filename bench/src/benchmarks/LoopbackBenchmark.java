@@ -0,0 +1,136 @@
+package benchmarks;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ *
+ * Measures {@code SocketController.send} and {@code receiveMessage} over a
+ * loopback connection to a second controller of the same process, which echoes
+ * every message back.
+ * <p>
+ * The controllers listen on the fixed port of the messenger, so no other
+ * instance may be running at the same time.
+ *
+ */
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class LoopbackBenchmark {
+	/**
+	 * Number of messages sent before the echoes are read by {@link #throughput()}.
+	 */
+	private final static int BATCH = 64;
+
+	/**
+	 * Size of a message in bytes.
+	 */
+	@Param({ "16", "1024", "65536" })
+	private int size;
+
+	private Object client;
+	private Object server;
+	private Thread echo;
+	private byte[] message;
+
+	@Setup
+	public void setUp() throws Throwable {
+		message = new byte[size];
+		new Random(1).nextBytes(message);
+
+		server = (Object) Messenger.NEW_SOCKET_CONTROLLER.invokeExact();
+		echo = new Thread(this::echo, "Echo");
+		echo.start();
+
+		client = (Object) Messenger.NEW_SOCKET_CONTROLLER.invokeExact();
+		// The server binds its socket in the background
+		for (int attempt = 0;; attempt++) {
+			Thread.sleep(100);
+			if ((boolean) Messenger.SOCKET_CONNECT.invokeExact(client, "localhost")) {
+				break;
+			}
+			if (attempt == 50) {
+				throw new IOException("The echo server did not start");
+			}
+		}
+		// The first messages negotiate the framed protocol, only the following
+		// ones can be longer than 255 bytes
+		byte[] hello = new byte[1];
+		while (!(boolean) Messenger.SOCKET_IS_FRAMING.invokeExact(client)) {
+			Messenger.SOCKET_SEND.invokeExact(client, hello);
+			byte[] reply = (byte[]) Messenger.SOCKET_RECEIVE_MESSAGE.invokeExact(client);
+		}
+	}
+
+	/**
+	 * Accepts the connection of the client and echoes its messages until it
+	 * closes the connection.
+	 */
+	private void echo() {
+		try {
+			if (!(boolean) Messenger.SOCKET_START_SERVER.invokeExact(server)) {
+				return;
+			}
+			while (true) {
+				Messenger.SOCKET_SEND.invokeExact(server, (byte[]) Messenger.SOCKET_RECEIVE_MESSAGE.invokeExact(server));
+			}
+		} catch (IOException e) {
+			// The client has closed the connection
+		} catch (Throwable e) {
+			e.printStackTrace();
+		}
+	}
+
+	@TearDown
+	public void tearDown() throws Throwable {
+		Messenger.SOCKET_SET_CLIENT_MODE.invokeExact(client);
+		echo.join();
+		Messenger.SOCKET_SET_CLIENT_MODE.invokeExact(server);
+	}
+
+	/**
+	 * Latency of a message sent to the peer and echoed back.
+	 */
+	@Benchmark
+	@BenchmarkMode(Mode.SampleTime)
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	public byte[] roundTrip() throws Throwable {
+		Messenger.SOCKET_SEND.invokeExact(client, message);
+		return (byte[]) Messenger.SOCKET_RECEIVE_MESSAGE.invokeExact(client);
+	}
+
+	/**
+	 * Messages per second sent to the peer and echoed back, with up to
+	 * {@link #BATCH} messages in flight.
+	 */
+	@Benchmark
+	@BenchmarkMode(Mode.Throughput)
+	@OutputTimeUnit(TimeUnit.SECONDS)
+	@OperationsPerInvocation(BATCH)
+	public int throughput() throws Throwable {
+		for (int i = 0; i < BATCH; i++) {
+			Messenger.SOCKET_SEND.invokeExact(client, message);
+		}
+		int received = 0;
+		for (int i = 0; i < BATCH; i++) {
+			received += ((byte[]) Messenger.SOCKET_RECEIVE_MESSAGE.invokeExact(client)).length;
+		}
+		return received;
+	}
+}
@@ -0,0 +1,147 @@
+package benchmarks;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+
+/**
+ *
+ * Access to the classes of the messenger for the benchmarks.
+ * <p>
+ * The messenger lives in the default package, which can't be imported, and
+ * JMH refuses benchmarks in the default package, so the benchmarks call the
+ * messenger through method handles. The handles are constants the JIT
+ * compiler inlines, the calls cost as much as direct ones. Instances of the
+ * messenger classes are passed around as {@link Object}.
+ *
+ */
+final class Messenger {
+	private final static MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+
+	/**
+	 * {@code AES()}
+	 */
+	final static MethodHandle NEW_AES = constructor("AES", MethodType.methodType(void.class));
+	/**
+	 * {@code AES.encrypt(byte[], byte[])}
+	 */
+	final static MethodHandle AES_ENCRYPT = virtual("AES", "encrypt", byte[].class, byte[].class, byte[].class);
+	/**
+	 * {@code AES.decrypt(byte[], byte[])}
+	 */
+	final static MethodHandle AES_DECRYPT = virtual("AES", "decrypt", byte[].class, byte[].class, byte[].class);
+	/**
+	 * {@code AES.expandKey(byte[])}
+	 */
+	final static MethodHandle AES_EXPAND_KEY = method("AES", "expandKey", byte[].class);
+	/**
+	 * {@code AESKeySchedule.forKey(byte[])}
+	 */
+	final static MethodHandle KEY_SCHEDULE_FOR_KEY = method("AESKeySchedule", "forKey", byte[].class);
+	/**
+	 * {@code Crypto.encrypt(String, String, Cipher)}
+	 */
+	final static MethodHandle CRYPTO_ENCRYPT = method("Crypto", "encrypt", String.class, String.class,
+			type("Cipher"));
+	/**
+	 * {@code Crypto.decrypt(byte[], String, Cipher)}
+	 */
+	final static MethodHandle CRYPTO_DECRYPT = method("Crypto", "decrypt", byte[].class, String.class,
+			type("Cipher"));
+	/**
+	 * {@code SocketController()}
+	 */
+	final static MethodHandle NEW_SOCKET_CONTROLLER = constructor("SocketController",
+			MethodType.methodType(void.class));
+	/**
+	 * {@code SocketController.startServer()}
+	 */
+	final static MethodHandle SOCKET_START_SERVER = virtual("SocketController", "startServer", boolean.class);
+	/**
+	 * {@code SocketController.connect(String)}
+	 */
+	final static MethodHandle SOCKET_CONNECT = virtual("SocketController", "connect", boolean.class, String.class);
+	/**
+	 * {@code SocketController.send(byte[])}
+	 */
+	final static MethodHandle SOCKET_SEND = virtual("SocketController", "send", void.class, byte[].class);
+	/**
+	 * {@code SocketController.receiveMessage()}
+	 */
+	final static MethodHandle SOCKET_RECEIVE_MESSAGE = virtual("SocketController", "receiveMessage", byte[].class);
+	/**
+	 * {@code SocketController.isFraming()}
+	 */
+	final static MethodHandle SOCKET_IS_FRAMING = virtual("SocketController", "isFraming", boolean.class);
+	/**
+	 * {@code SocketController.setClientMode()}
+	 */
+	final static MethodHandle SOCKET_SET_CLIENT_MODE = virtual("SocketController", "setClientMode", void.class);
+
+	private Messenger() {
+	}
+
+	/**
+	 * @param name of a constant of the {@code Cipher} enum
+	 * @return the constant
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	static Object cipher(String name) {
+		return Enum.valueOf((Class<? extends Enum>) type("Cipher"), name);
+	}
+
+	private static Class<?> type(String name) {
+		try {
+			return Class.forName(name);
+		} catch (ClassNotFoundException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+
+	private static MethodHandle constructor(String className, MethodType type) {
+		try {
+			return erase(LOOKUP.findConstructor(type(className), type));
+		} catch (ReflectiveOperationException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+
+	private static MethodHandle virtual(String className, String name, Class<?> returnType, Class<?>... parameterTypes) {
+		try {
+			return erase(LOOKUP.findVirtual(type(className), name, MethodType.methodType(returnType, parameterTypes)));
+		} catch (ReflectiveOperationException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+
+	/**
+	 * Looks up a static method, package-private ones included.
+	 */
+	private static MethodHandle method(String className, String name, Class<?>... parameterTypes) {
+		try {
+			Method method = type(className).getDeclaredMethod(name, parameterTypes);
+			method.setAccessible(true);
+			return erase(LOOKUP.unreflect(method));
+		} catch (ReflectiveOperationException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+
+	/**
+	 * Replaces the types of the messenger in the type of the passed handle with
+	 * {@link Object}, so the benchmarks can call it with
+	 * {@link MethodHandle#invokeExact(Object...)}.
+	 */
+	private static MethodHandle erase(MethodHandle handle) {
+		MethodType type = handle.type().changeReturnType(erase(handle.type().returnType()));
+		for (int i = 0; i < type.parameterCount(); i++) {
+			type = type.changeParameterType(i, erase(type.parameterType(i)));
+		}
+		return handle.asType(type);
+	}
+
+	private static Class<?> erase(Class<?> type) {
+		return type.isPrimitive() || type.isArray() || type.getName().indexOf('.') >= 0 ? type : Object.class;
+	}
+}
@@ -1,6 +1,6 @@
-import java.util.ArrayList;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
-import java.util.List;
 
 /**
  * 
@@ -8,8 +8,17 @@ import java.util.List;
  * <ul>
  * <li>128 bits key</li>
  *</ul>
+ * <p>
+ * Each block is processed as four big-endian {@code int} columns. The
+ * SubBytes, ShiftRows and MixColumns steps of a round are combined into
+ * lookups in the precomputed {@link #TE0}-{@link #TE3} tables (and
+ * {@link #TD0}-{@link #TD3} for decryption), so a round costs sixteen table
+ * lookups and four XORs with the round key.
+ * <p>
+ * As a {@link CipherProvider} the data is encrypted block by block (ECB) and
+ * padded with zeros.
  */
-public class AES {
+public class AES implements CipherProvider {
 	/**
 	 * The constant number of rounds used for the encryption. Set for AES-128
 	 */
@@ -54,39 +63,143 @@ public class AES {
 	/**
 	 * Maximum size of the key used for encryption/decryption.
 	 */
-	private int MAX_KEY_SIZE = 128;
+	private final static int MAX_KEY_SIZE = 128;
+
+	/**
+	 * Size of a single block processed by the algorithm in bytes.
+	 */
+	final static int BLOCK_SIZE = 16;
+	/**
+	 * Number of bytes of the key used by AES-128. Longer keys are truncated,
+	 * shorter keys are padded with zeros.
+	 */
+	private final static int KEY_LENGTH = 16;
+	/**
+	 * Number of 32 bit words of the expanded key.
+	 */
+	private final static int EXPANDED_KEY_WORDS = 4 * (ROUNDS + 1);
+	/**
+	 * Round constants used by the key expansion, stored in the most significant
+	 * byte of the word.
+	 */
+	private final static int[] RCON = { 0x01000000, 0x02000000, 0x04000000, 0x08000000, 0x10000000, 0x20000000,
+			0x40000000, 0x80000000, 0x1b000000, 0x36000000 };
+
+	/**
+	 * Encryption T-table. Maps a byte {@code x} to the column
+	 * {@code (2*S[x], S[x], S[x], 3*S[x])} in the 2^8 Galois field, i.e. combines
+	 * the SubBytes and MixColumns steps for the first row of the state.
+	 */
+	private final static int[] TE0 = new int[256];
+	/**
+	 * {@link #TE0} rotated by 8 bits to the right, used for the second row.
+	 */
+	private final static int[] TE1 = new int[256];
+	/**
+	 * {@link #TE0} rotated by 16 bits to the right, used for the third row.
+	 */
+	private final static int[] TE2 = new int[256];
+	/**
+	 * {@link #TE0} rotated by 24 bits to the right, used for the fourth row.
+	 */
+	private final static int[] TE3 = new int[256];
+	/**
+	 * Decryption T-table. Maps a byte {@code x} to the column
+	 * {@code (14*Si[x], 9*Si[x], 13*Si[x], 11*Si[x])} where {@code Si} is the
+	 * {@link #S_BOX_INVERSE}.
+	 */
+	private final static int[] TD0 = new int[256];
+	/**
+	 * {@link #TD0} rotated by 8 bits to the right.
+	 */
+	private final static int[] TD1 = new int[256];
+	/**
+	 * {@link #TD0} rotated by 16 bits to the right.
+	 */
+	private final static int[] TD2 = new int[256];
+	/**
+	 * {@link #TD0} rotated by 24 bits to the right.
+	 */
+	private final static int[] TD3 = new int[256];
+
+	static {
+		for (int x = 0; x < 256; x++) {
+			int s = S_BOX[x];
+			int te = (galois256Multiply(s, 2) << 24) | (s << 16) | (s << 8) | galois256Multiply(s, 3);
+			TE0[x] = te;
+			TE1[x] = Integer.rotateRight(te, 8);
+			TE2[x] = Integer.rotateRight(te, 16);
+			TE3[x] = Integer.rotateRight(te, 24);
+
+			int si = S_BOX_INVERSE[x];
+			int td = (galois256Multiply(si, 14) << 24) | (galois256Multiply(si, 9) << 16)
+					| (galois256Multiply(si, 13) << 8) | galois256Multiply(si, 11);
+			TD0[x] = td;
+			TD1[x] = Integer.rotateRight(td, 8);
+			TD2[x] = Integer.rotateRight(td, 16);
+			TD3[x] = Integer.rotateRight(td, 24);
+		}
+	}
+
+	/**
+	 * Key schedule set by {@link #AES(byte[])}, null for an instance created with
+	 * {@link #AES()}.
+	 */
+	private final AESKeySchedule keySchedule;
+	/**
+	 * Block reused by the {@link ByteBuffer} operations when the data is not
+	 * backed by an accessible array.
+	 */
+	private final byte[] block = new byte[BLOCK_SIZE];
+
+	/**
+	 * Creates an instance without a key. Only the methods taking the key as a
+	 * parameter can be used.
+	 */
+	public AES() {
+		keySchedule = null;
+	}
+
+	/**
+	 * Creates an instance bound to the passed key. The key schedule is taken from
+	 * the cache of {@link AESKeySchedule} and used by all the methods operating on
+	 * caller-supplied buffers.
+	 * 
+	 * @param byteKey key to be used for encryption and decryption
+	 * @throws UnsupportedOperationException if the passed key is too large
+	 */
+	public AES(byte[] byteKey) {
+		this(scheduleFor(byteKey));
+	}
+
+	/**
+	 * Creates an instance bound to an already expanded key.
+	 * 
+	 * @param keySchedule to be used for encryption and decryption
+	 */
+	public AES(AESKeySchedule keySchedule) {
+		if (keySchedule == null) {
+			throw new NullPointerException("keySchedule");
+		}
+
+		this.keySchedule = keySchedule;
+	}
 
 	/**
 	 * Encrypts the passed data using AES-128 cipher.
+	 * <p>
+	 * The data is padded with zeros to a multiple of {@value #BLOCK_SIZE} bytes.
 	 * 
 	 * @param byteArray data to be encrypted
 	 * @param byteKey   key to be used for encryption
 	 * @return encrypted data as {@code array of bytes}
 	 * @throws UnsupportedOperationException if the passed key is too large
 	 */
+	@Override
 	public byte[] encrypt(byte[] byteArray, byte[] byteKey) {
-		if (byteKey.length > MAX_KEY_SIZE) {
-			throw new UnsupportedOperationException();
-		}
-
-		List<AESBlock> aesBlockList = splitIntoBlocks(byteArray);
-		AESKey aesKey = new AESKey(byteKey);
-
-		aesKey.expandKey();
-		for (AESBlock block : aesBlockList) {
-			block.addRoundKey(aesKey.getSubKey(0));
-			for (int i = 1; i <= ROUNDS - 1; i++) {
-				block.subBytes();
-				block.shiftRows();
-				block.mixColumns();
-				block.addRoundKey(aesKey.getSubKey(4 * i));
-			}
-			block.subBytes();
-			block.shiftRows();
-			block.addRoundKey(aesKey.getSubKey(4 * ROUNDS));
-		}
-
-		return collectBlocksToByteArray(aesBlockList);
+		byte[] result = new byte[paddedLength(byteArray.length)];
+		process(scheduleFor(byteKey).encryptionKey(), true, byteArray, 0, byteArray.length, result, 0);
+		return result;
 	}
 
 	/**
@@ -96,668 +209,415 @@ public class AES {
 	 * @param byteKey   key to use for decryption
 	 * @return decrypted data
 	 */
+	@Override
 	public byte[] decrypt(byte[] byteArray, byte[] byteKey) {
-		if (byteKey.length > MAX_KEY_SIZE) {
-			throw new UnsupportedOperationException();
-		}
+		byte[] result = new byte[paddedLength(byteArray.length)];
+		process(scheduleFor(byteKey).decryptionKey(), false, byteArray, 0, byteArray.length, result, 0);
+		return result;
+	}
 
-		List<AESBlock> aesBlockList = splitIntoBlocks(byteArray);
-		AESKey aesKey = new AESKey(byteKey);
-
-		aesKey.expandKey();
-		for (AESBlock block : aesBlockList) {
-			block.addRoundKey(aesKey.getSubKey(4 * ROUNDS));
-			block.shiftRowsInverse();
-			block.subBytesInverse();
-			for (int i = ROUNDS - 1; i >= 1; i--) {
-				block.addRoundKey(aesKey.getSubKey(4 * i));
-				block.mixColumnsInverse();
-				block.shiftRowsInverse();
-				block.subBytesInverse();
-			}
-			block.addRoundKey(aesKey.getSubKey(0));
+	/**
+	 * Decrypts the passed data in place if it is backed by an array and made of
+	 * whole blocks, as produced by {@link #encrypt(byte[], byte[])}.
+	 * 
+	 * @param data    to be decrypted, its position is moved to its limit
+	 * @param byteKey key to use for decryption
+	 * @return buffer holding the decrypted data
+	 * @throws UnsupportedOperationException if the passed key is too large
+	 */
+	@Override
+	public ByteBuffer decrypt(ByteBuffer data, byte[] byteKey) {
+		int len = data.remaining();
+		if (!data.hasArray() || len % BLOCK_SIZE != 0) {
+			return CipherProvider.super.decrypt(data, byteKey);
 		}
 
-		return collectBlocksToByteArray(aesBlockList);
+		ByteBuffer result = data.slice();
+		int off = data.arrayOffset() + data.position();
+		process(scheduleFor(byteKey).decryptionKey(), false, data.array(), off, len, data.array(), off);
+		data.position(data.limit());
+		return result;
 	}
 
 	/**
-	 * Split the passed array of bytes into separate blocks used by the AES
-	 * algorithm
+	 * Encrypts {@code len} bytes of {@code src} starting at {@code off} into
+	 * {@code dst} starting at {@code dstOff} with the key of this instance.
+	 * <p>
+	 * The data is padded with zeros to a multiple of {@value #BLOCK_SIZE} bytes,
+	 * so {@code dst} must have room for {@link #paddedLength(int)} bytes. The
+	 * arrays may be the same for in-place encryption as long as
+	 * {@code dstOff <= off}. Doesn't allocate any memory.
 	 * 
-	 * @param byteArray data to be split
-	 * @return {@link List} of blocks
-	 * @see AESBlock
-	 */
-	private List<AESBlock> splitIntoBlocks(byte[] byteArray) {
-		List<AESBlock> aesBlockList = new ArrayList<AESBlock>();
-		int i = 0;
-		while (i < byteArray.length) {
-			byte[] byteArrayPart = Arrays.copyOfRange(byteArray, i, i + 16);
-			AESBlock aesBlock = new AESBlock(byteArrayPart);
-			aesBlockList.add(aesBlock);
-			i += 16;
-		}
-		return aesBlockList;
+	 * @param src    array holding the data to be encrypted
+	 * @param off    offset of the data inside {@code src}
+	 * @param len    length of the data
+	 * @param dst    array receiving the encrypted data
+	 * @param dstOff offset inside {@code dst}
+	 * @return number of bytes written to {@code dst}
+	 * @throws IllegalStateException     if the instance has no key
+	 * @throws IndexOutOfBoundsException if any of the arrays is too short
+	 */
+	public int encrypt(byte[] src, int off, int len, byte[] dst, int dstOff) {
+		return process(requireKey().encryptionKey(), true, src, off, len, dst, dstOff);
 	}
 
 	/**
-	 * Collects separate blocks used by the AES algorithm to a unified array of
-	 * bytes.
+	 * Decrypts {@code len} bytes of {@code src} starting at {@code off} into
+	 * {@code dst} starting at {@code dstOff} with the key of this instance.
 	 * 
-	 * @param aesBlockList blocks to be combined
-	 * @return assembled array of bytes
-	 * @see AESBlock
-	 */
-	private byte[] collectBlocksToByteArray(List<AESBlock> aesBlockList) {
-		byte[] byteArray = new byte[0];
-
-		for (AESBlock block : aesBlockList) {
-			byte[] currentArray = byteArray;
-			byte[] arrayPart = block.toByteArray();
-			byteArray = Arrays.copyOf(currentArray, currentArray.length + arrayPart.length);
-			System.arraycopy(arrayPart, 0, byteArray, currentArray.length, arrayPart.length);
-		}
-
-		return byteArray;
+	 * @param src    array holding the data to be decrypted
+	 * @param off    offset of the data inside {@code src}
+	 * @param len    length of the data
+	 * @param dst    array receiving the decrypted data
+	 * @param dstOff offset inside {@code dst}
+	 * @return number of bytes written to {@code dst}
+	 * @throws IllegalStateException     if the instance has no key
+	 * @throws IndexOutOfBoundsException if any of the arrays is too short
+	 * @see #encrypt(byte[], int, int, byte[], int)
+	 */
+	public int decrypt(byte[] src, int off, int len, byte[] dst, int dstOff) {
+		return process(requireKey().decryptionKey(), false, src, off, len, dst, dstOff);
 	}
 
 	/**
-	 * Rotates the passed array of bytes by 1 position to the left.
+	 * Encrypts the remaining bytes of {@code src} into {@code dst} with the key of
+	 * this instance.
+	 * <p>
+	 * Works with both heap and direct buffers. The position of {@code src} is
+	 * moved to its limit and the position of {@code dst} is advanced by the
+	 * number of written bytes. Doesn't allocate any memory.
 	 * 
-	 * @param word to be rotated
-	 * @return word after rotation
+	 * @param src buffer holding the data to be encrypted
+	 * @param dst buffer receiving the encrypted data
+	 * @return number of bytes written to {@code dst}
+	 * @throws IllegalStateException   if the instance has no key
+	 * @throws BufferOverflowException if {@code dst} can't hold the padded data,
+	 *                                 neither buffer is modified in that case
+	 * @see #encrypt(byte[], int, int, byte[], int)
 	 */
-	public static byte[] rotWord(byte[] word) {
-		byte[] newWord = new byte[word.length];
-
-		for (int i = 0; i < word.length - 1; i++) {
-			newWord[i] = word[i + 1];
-		}
-		newWord[word.length - 1] = word[0];
-
-		return newWord;
+	public int encrypt(ByteBuffer src, ByteBuffer dst) {
+		return process(requireKey().encryptionKey(), true, src, dst);
 	}
 
 	/**
-	 * Rotates the passed array of bytes by 1 position to the right. Inverse of
-	 * {@link #rotWord(byte[])}.
+	 * Decrypts the remaining bytes of {@code src} into {@code dst} with the key of
+	 * this instance.
 	 * 
-	 * @param word to be rotated
-	 * @return word after rotation
+	 * @param src buffer holding the data to be decrypted
+	 * @param dst buffer receiving the decrypted data
+	 * @return number of bytes written to {@code dst}
+	 * @throws IllegalStateException   if the instance has no key
+	 * @throws BufferOverflowException if {@code dst} can't hold the data
+	 * @see #encrypt(ByteBuffer, ByteBuffer)
 	 */
-	public static byte[] rotWordInverse(byte[] word) {
-		byte[] newWord = new byte[word.length];
-
-		for (int i = 0; i < word.length - 1; i++) {
-			newWord[i + 1] = word[i];
-		}
-		newWord[0] = word[word.length - 1];
-
-		return newWord;
+	public int decrypt(ByteBuffer src, ByteBuffer dst) {
+		return process(requireKey().decryptionKey(), false, src, dst);
 	}
 
 	/**
-	 * Transposes the passed matrix.
-	 * 
-	 * @param matrix to be transposed
-	 * @return result of the operation
-	 */
-	private byte[][] transpose(byte[][] matrix) {
-		byte[][] transpose = new byte[matrix.length][matrix.length];
-		for (int i = 0; i < matrix.length; i++) {
-			for (int j = 0; j < matrix.length; j++) {
-				transpose[i][j] = matrix[j][i];
-			}
+	 * @return the {@link #keySchedule} of this instance
+	 * @throws IllegalStateException if the instance has no key
+	 */
+	private AESKeySchedule requireKey() {
+		if (keySchedule == null) {
+			throw new IllegalStateException("No key has been set for this instance");
 		}
-		return transpose;
+		return keySchedule;
 	}
 
 	/**
-	 * Calculates the XOR operation of the two given words.
-	 * <p>
-	 * Applies the XOR operator to each of the bytes of the given words. The words
-	 * are represented as arrays of bytes and must have equal size.
+	 * Gets the cached key schedule of the passed key.
 	 * 
-	 * @param word1
-	 * @param word2
-	 * @return result of the XOR operation
-	 */
-	private byte[] xor(byte[] word1, byte[] word2) {
-		assert word1.length == word2.length : "Both words must have equal length";
-		byte[] newWord = new byte[word1.length];
-		for (int i = 0; i < word1.length; i++) {
-			newWord[i] = (byte) (word1[i] ^ word2[i]);
+	 * @param byteKey raw key
+	 * @return the key schedule
+	 * @throws UnsupportedOperationException if the passed key is too large
+	 */
+	static AESKeySchedule scheduleFor(byte[] byteKey) {
+		if (byteKey.length > MAX_KEY_SIZE) {
+			throw new UnsupportedOperationException();
 		}
 
-		return newWord;
+		return AESKeySchedule.forKey(byteKey);
 	}
 
 	/**
+	 * Encrypts or decrypts the passed array range block by block. The last
+	 * partial block is copied to {@code dst} and padded with zeros there.
 	 * 
-	 * Internal class AESBlock used to simplify the implementation of the AES
-	 * algorithm by encapsulating each of its steps.
-	 * <p>
-	 * Each block is a {@value #MATRIX_SIZE} x {@value #MATRIX_SIZE} matrix storing
-	 * a portion of data in the column-major order.
-	 *
-	 */
-	private class AESBlock {
-		/**
-		 * Precalculated constants used for the multiplication operation inside a 2^8
-		 * Galois field.
-		 */
-		private final int[] GALOIS256_MULTIPLY_2 = { 0x00, 0x02, 0x04, 0x06, 0x08, 0x0a, 0x0c, 0x0e, 0x10, 0x12, 0x14,
-				0x16, 0x18, 0x1a, 0x1c, 0x1e, 0x20, 0x22, 0x24, 0x26, 0x28, 0x2a, 0x2c, 0x2e, 0x30, 0x32, 0x34, 0x36,
-				0x38, 0x3a, 0x3c, 0x3e, 0x40, 0x42, 0x44, 0x46, 0x48, 0x4a, 0x4c, 0x4e, 0x50, 0x52, 0x54, 0x56, 0x58,
-				0x5a, 0x5c, 0x5e, 0x60, 0x62, 0x64, 0x66, 0x68, 0x6a, 0x6c, 0x6e, 0x70, 0x72, 0x74, 0x76, 0x78, 0x7a,
-				0x7c, 0x7e, 0x80, 0x82, 0x84, 0x86, 0x88, 0x8a, 0x8c, 0x8e, 0x90, 0x92, 0x94, 0x96, 0x98, 0x9a, 0x9c,
-				0x9e, 0xa0, 0xa2, 0xa4, 0xa6, 0xa8, 0xaa, 0xac, 0xae, 0xb0, 0xb2, 0xb4, 0xb6, 0xb8, 0xba, 0xbc, 0xbe,
-				0xc0, 0xc2, 0xc4, 0xc6, 0xc8, 0xca, 0xcc, 0xce, 0xd0, 0xd2, 0xd4, 0xd6, 0xd8, 0xda, 0xdc, 0xde, 0xe0,
-				0xe2, 0xe4, 0xe6, 0xe8, 0xea, 0xec, 0xee, 0xf0, 0xf2, 0xf4, 0xf6, 0xf8, 0xfa, 0xfc, 0xfe, 0x1b, 0x19,
-				0x1f, 0x1d, 0x13, 0x11, 0x17, 0x15, 0x0b, 0x09, 0x0f, 0x0d, 0x03, 0x01, 0x07, 0x05, 0x3b, 0x39, 0x3f,
-				0x3d, 0x33, 0x31, 0x37, 0x35, 0x2b, 0x29, 0x2f, 0x2d, 0x23, 0x21, 0x27, 0x25, 0x5b, 0x59, 0x5f, 0x5d,
-				0x53, 0x51, 0x57, 0x55, 0x4b, 0x49, 0x4f, 0x4d, 0x43, 0x41, 0x47, 0x45, 0x7b, 0x79, 0x7f, 0x7d, 0x73,
-				0x71, 0x77, 0x75, 0x6b, 0x69, 0x6f, 0x6d, 0x63, 0x61, 0x67, 0x65, 0x9b, 0x99, 0x9f, 0x9d, 0x93, 0x91,
-				0x97, 0x95, 0x8b, 0x89, 0x8f, 0x8d, 0x83, 0x81, 0x87, 0x85, 0xbb, 0xb9, 0xbf, 0xbd, 0xb3, 0xb1, 0xb7,
-				0xb5, 0xab, 0xa9, 0xaf, 0xad, 0xa3, 0xa1, 0xa7, 0xa5, 0xdb, 0xd9, 0xdf, 0xdd, 0xd3, 0xd1, 0xd7, 0xd5,
-				0xcb, 0xc9, 0xcf, 0xcd, 0xc3, 0xc1, 0xc7, 0xc5, 0xfb, 0xf9, 0xff, 0xfd, 0xf3, 0xf1, 0xf7, 0xf5, 0xeb,
-				0xe9, 0xef, 0xed, 0xe3, 0xe1, 0xe7, 0xe5 };
-
-		/**
-		 * @see GALOIS256_MULTIPLY_2
-		 */
-		private final int[] GALOIS256_MULTIPLY_3 = { 0x00, 0x03, 0x06, 0x05, 0x0c, 0x0f, 0x0a, 0x09, 0x18, 0x1b, 0x1e,
-				0x1d, 0x14, 0x17, 0x12, 0x11, 0x30, 0x33, 0x36, 0x35, 0x3c, 0x3f, 0x3a, 0x39, 0x28, 0x2b, 0x2e, 0x2d,
-				0x24, 0x27, 0x22, 0x21, 0x60, 0x63, 0x66, 0x65, 0x6c, 0x6f, 0x6a, 0x69, 0x78, 0x7b, 0x7e, 0x7d, 0x74,
-				0x77, 0x72, 0x71, 0x50, 0x53, 0x56, 0x55, 0x5c, 0x5f, 0x5a, 0x59, 0x48, 0x4b, 0x4e, 0x4d, 0x44, 0x47,
-				0x42, 0x41, 0xc0, 0xc3, 0xc6, 0xc5, 0xcc, 0xcf, 0xca, 0xc9, 0xd8, 0xdb, 0xde, 0xdd, 0xd4, 0xd7, 0xd2,
-				0xd1, 0xf0, 0xf3, 0xf6, 0xf5, 0xfc, 0xff, 0xfa, 0xf9, 0xe8, 0xeb, 0xee, 0xed, 0xe4, 0xe7, 0xe2, 0xe1,
-				0xa0, 0xa3, 0xa6, 0xa5, 0xac, 0xaf, 0xaa, 0xa9, 0xb8, 0xbb, 0xbe, 0xbd, 0xb4, 0xb7, 0xb2, 0xb1, 0x90,
-				0x93, 0x96, 0x95, 0x9c, 0x9f, 0x9a, 0x99, 0x88, 0x8b, 0x8e, 0x8d, 0x84, 0x87, 0x82, 0x81, 0x9b, 0x98,
-				0x9d, 0x9e, 0x97, 0x94, 0x91, 0x92, 0x83, 0x80, 0x85, 0x86, 0x8f, 0x8c, 0x89, 0x8a, 0xab, 0xa8, 0xad,
-				0xae, 0xa7, 0xa4, 0xa1, 0xa2, 0xb3, 0xb0, 0xb5, 0xb6, 0xbf, 0xbc, 0xb9, 0xba, 0xfb, 0xf8, 0xfd, 0xfe,
-				0xf7, 0xf4, 0xf1, 0xf2, 0xe3, 0xe0, 0xe5, 0xe6, 0xef, 0xec, 0xe9, 0xea, 0xcb, 0xc8, 0xcd, 0xce, 0xc7,
-				0xc4, 0xc1, 0xc2, 0xd3, 0xd0, 0xd5, 0xd6, 0xdf, 0xdc, 0xd9, 0xda, 0x5b, 0x58, 0x5d, 0x5e, 0x57, 0x54,
-				0x51, 0x52, 0x43, 0x40, 0x45, 0x46, 0x4f, 0x4c, 0x49, 0x4a, 0x6b, 0x68, 0x6d, 0x6e, 0x67, 0x64, 0x61,
-				0x62, 0x73, 0x70, 0x75, 0x76, 0x7f, 0x7c, 0x79, 0x7a, 0x3b, 0x38, 0x3d, 0x3e, 0x37, 0x34, 0x31, 0x32,
-				0x23, 0x20, 0x25, 0x26, 0x2f, 0x2c, 0x29, 0x2a, 0x0b, 0x08, 0x0d, 0x0e, 0x07, 0x04, 0x01, 0x02, 0x13,
-				0x10, 0x15, 0x16, 0x1f, 0x1c, 0x19, 0x1a };
-		/**
-		 * @see GALOIS256_MULTIPLY_2
-		 */
-		private final int[] GALOIS256_MULTIPLY_9 = { 0x00, 0x09, 0x12, 0x1b, 0x24, 0x2d, 0x36, 0x3f, 0x48, 0x41, 0x5a,
-				0x53, 0x6c, 0x65, 0x7e, 0x77, 0x90, 0x99, 0x82, 0x8b, 0xb4, 0xbd, 0xa6, 0xaf, 0xd8, 0xd1, 0xca, 0xc3,
-				0xfc, 0xf5, 0xee, 0xe7, 0x3b, 0x32, 0x29, 0x20, 0x1f, 0x16, 0x0d, 0x04, 0x73, 0x7a, 0x61, 0x68, 0x57,
-				0x5e, 0x45, 0x4c, 0xab, 0xa2, 0xb9, 0xb0, 0x8f, 0x86, 0x9d, 0x94, 0xe3, 0xea, 0xf1, 0xf8, 0xc7, 0xce,
-				0xd5, 0xdc, 0x76, 0x7f, 0x64, 0x6d, 0x52, 0x5b, 0x40, 0x49, 0x3e, 0x37, 0x2c, 0x25, 0x1a, 0x13, 0x08,
-				0x01, 0xe6, 0xef, 0xf4, 0xfd, 0xc2, 0xcb, 0xd0, 0xd9, 0xae, 0xa7, 0xbc, 0xb5, 0x8a, 0x83, 0x98, 0x91,
-				0x4d, 0x44, 0x5f, 0x56, 0x69, 0x60, 0x7b, 0x72, 0x05, 0x0c, 0x17, 0x1e, 0x21, 0x28, 0x33, 0x3a, 0xdd,
-				0xd4, 0xcf, 0xc6, 0xf9, 0xf0, 0xeb, 0xe2, 0x95, 0x9c, 0x87, 0x8e, 0xb1, 0xb8, 0xa3, 0xaa, 0xec, 0xe5,
-				0xfe, 0xf7, 0xc8, 0xc1, 0xda, 0xd3, 0xa4, 0xad, 0xb6, 0xbf, 0x80, 0x89, 0x92, 0x9b, 0x7c, 0x75, 0x6e,
-				0x67, 0x58, 0x51, 0x4a, 0x43, 0x34, 0x3d, 0x26, 0x2f, 0x10, 0x19, 0x02, 0x0b, 0xd7, 0xde, 0xc5, 0xcc,
-				0xf3, 0xfa, 0xe1, 0xe8, 0x9f, 0x96, 0x8d, 0x84, 0xbb, 0xb2, 0xa9, 0xa0, 0x47, 0x4e, 0x55, 0x5c, 0x63,
-				0x6a, 0x71, 0x78, 0x0f, 0x06, 0x1d, 0x14, 0x2b, 0x22, 0x39, 0x30, 0x9a, 0x93, 0x88, 0x81, 0xbe, 0xb7,
-				0xac, 0xa5, 0xd2, 0xdb, 0xc0, 0xc9, 0xf6, 0xff, 0xe4, 0xed, 0x0a, 0x03, 0x18, 0x11, 0x2e, 0x27, 0x3c,
-				0x35, 0x42, 0x4b, 0x50, 0x59, 0x66, 0x6f, 0x74, 0x7d, 0xa1, 0xa8, 0xb3, 0xba, 0x85, 0x8c, 0x97, 0x9e,
-				0xe9, 0xe0, 0xfb, 0xf2, 0xcd, 0xc4, 0xdf, 0xd6, 0x31, 0x38, 0x23, 0x2a, 0x15, 0x1c, 0x07, 0x0e, 0x79,
-				0x70, 0x6b, 0x62, 0x5d, 0x54, 0x4f, 0x46 };
-		/**
-		 * @see GALOIS256_MULTIPLY_2
-		 */
-		private final int[] GALOIS256_MULTIPLY_11 = { 0x00, 0x0b, 0x16, 0x1d, 0x2c, 0x27, 0x3a, 0x31, 0x58, 0x53, 0x4e,
-				0x45, 0x74, 0x7f, 0x62, 0x69, 0xb0, 0xbb, 0xa6, 0xad, 0x9c, 0x97, 0x8a, 0x81, 0xe8, 0xe3, 0xfe, 0xf5,
-				0xc4, 0xcf, 0xd2, 0xd9, 0x7b, 0x70, 0x6d, 0x66, 0x57, 0x5c, 0x41, 0x4a, 0x23, 0x28, 0x35, 0x3e, 0x0f,
-				0x04, 0x19, 0x12, 0xcb, 0xc0, 0xdd, 0xd6, 0xe7, 0xec, 0xf1, 0xfa, 0x93, 0x98, 0x85, 0x8e, 0xbf, 0xb4,
-				0xa9, 0xa2, 0xf6, 0xfd, 0xe0, 0xeb, 0xda, 0xd1, 0xcc, 0xc7, 0xae, 0xa5, 0xb8, 0xb3, 0x82, 0x89, 0x94,
-				0x9f, 0x46, 0x4d, 0x50, 0x5b, 0x6a, 0x61, 0x7c, 0x77, 0x1e, 0x15, 0x08, 0x03, 0x32, 0x39, 0x24, 0x2f,
-				0x8d, 0x86, 0x9b, 0x90, 0xa1, 0xaa, 0xb7, 0xbc, 0xd5, 0xde, 0xc3, 0xc8, 0xf9, 0xf2, 0xef, 0xe4, 0x3d,
-				0x36, 0x2b, 0x20, 0x11, 0x1a, 0x07, 0x0c, 0x65, 0x6e, 0x73, 0x78, 0x49, 0x42, 0x5f, 0x54, 0xf7, 0xfc,
-				0xe1, 0xea, 0xdb, 0xd0, 0xcd, 0xc6, 0xaf, 0xa4, 0xb9, 0xb2, 0x83, 0x88, 0x95, 0x9e, 0x47, 0x4c, 0x51,
-				0x5a, 0x6b, 0x60, 0x7d, 0x76, 0x1f, 0x14, 0x09, 0x02, 0x33, 0x38, 0x25, 0x2e, 0x8c, 0x87, 0x9a, 0x91,
-				0xa0, 0xab, 0xb6, 0xbd, 0xd4, 0xdf, 0xc2, 0xc9, 0xf8, 0xf3, 0xee, 0xe5, 0x3c, 0x37, 0x2a, 0x21, 0x10,
-				0x1b, 0x06, 0x0d, 0x64, 0x6f, 0x72, 0x79, 0x48, 0x43, 0x5e, 0x55, 0x01, 0x0a, 0x17, 0x1c, 0x2d, 0x26,
-				0x3b, 0x30, 0x59, 0x52, 0x4f, 0x44, 0x75, 0x7e, 0x63, 0x68, 0xb1, 0xba, 0xa7, 0xac, 0x9d, 0x96, 0x8b,
-				0x80, 0xe9, 0xe2, 0xff, 0xf4, 0xc5, 0xce, 0xd3, 0xd8, 0x7a, 0x71, 0x6c, 0x67, 0x56, 0x5d, 0x40, 0x4b,
-				0x22, 0x29, 0x34, 0x3f, 0x0e, 0x05, 0x18, 0x13, 0xca, 0xc1, 0xdc, 0xd7, 0xe6, 0xed, 0xf0, 0xfb, 0x92,
-				0x99, 0x84, 0x8f, 0xbe, 0xb5, 0xa8, 0xa3 };
-		/**
-		 * @see GALOIS256_MULTIPLY_2
-		 */
-		private final int[] GALOIS256_MULTIPLY_13 = { 0x00, 0x0d, 0x1a, 0x17, 0x34, 0x39, 0x2e, 0x23, 0x68, 0x65, 0x72,
-				0x7f, 0x5c, 0x51, 0x46, 0x4b, 0xd0, 0xdd, 0xca, 0xc7, 0xe4, 0xe9, 0xfe, 0xf3, 0xb8, 0xb5, 0xa2, 0xaf,
-				0x8c, 0x81, 0x96, 0x9b, 0xbb, 0xb6, 0xa1, 0xac, 0x8f, 0x82, 0x95, 0x98, 0xd3, 0xde, 0xc9, 0xc4, 0xe7,
-				0xea, 0xfd, 0xf0, 0x6b, 0x66, 0x71, 0x7c, 0x5f, 0x52, 0x45, 0x48, 0x03, 0x0e, 0x19, 0x14, 0x37, 0x3a,
-				0x2d, 0x20, 0x6d, 0x60, 0x77, 0x7a, 0x59, 0x54, 0x43, 0x4e, 0x05, 0x08, 0x1f, 0x12, 0x31, 0x3c, 0x2b,
-				0x26, 0xbd, 0xb0, 0xa7, 0xaa, 0x89, 0x84, 0x93, 0x9e, 0xd5, 0xd8, 0xcf, 0xc2, 0xe1, 0xec, 0xfb, 0xf6,
-				0xd6, 0xdb, 0xcc, 0xc1, 0xe2, 0xef, 0xf8, 0xf5, 0xbe, 0xb3, 0xa4, 0xa9, 0x8a, 0x87, 0x90, 0x9d, 0x06,
-				0x0b, 0x1c, 0x11, 0x32, 0x3f, 0x28, 0x25, 0x6e, 0x63, 0x74, 0x79, 0x5a, 0x57, 0x40, 0x4d, 0xda, 0xd7,
-				0xc0, 0xcd, 0xee, 0xe3, 0xf4, 0xf9, 0xb2, 0xbf, 0xa8, 0xa5, 0x86, 0x8b, 0x9c, 0x91, 0x0a, 0x07, 0x10,
-				0x1d, 0x3e, 0x33, 0x24, 0x29, 0x62, 0x6f, 0x78, 0x75, 0x56, 0x5b, 0x4c, 0x41, 0x61, 0x6c, 0x7b, 0x76,
-				0x55, 0x58, 0x4f, 0x42, 0x09, 0x04, 0x13, 0x1e, 0x3d, 0x30, 0x27, 0x2a, 0xb1, 0xbc, 0xab, 0xa6, 0x85,
-				0x88, 0x9f, 0x92, 0xd9, 0xd4, 0xc3, 0xce, 0xed, 0xe0, 0xf7, 0xfa, 0xb7, 0xba, 0xad, 0xa0, 0x83, 0x8e,
-				0x99, 0x94, 0xdf, 0xd2, 0xc5, 0xc8, 0xeb, 0xe6, 0xf1, 0xfc, 0x67, 0x6a, 0x7d, 0x70, 0x53, 0x5e, 0x49,
-				0x44, 0x0f, 0x02, 0x15, 0x18, 0x3b, 0x36, 0x21, 0x2c, 0x0c, 0x01, 0x16, 0x1b, 0x38, 0x35, 0x22, 0x2f,
-				0x64, 0x69, 0x7e, 0x73, 0x50, 0x5d, 0x4a, 0x47, 0xdc, 0xd1, 0xc6, 0xcb, 0xe8, 0xe5, 0xf2, 0xff, 0xb4,
-				0xb9, 0xae, 0xa3, 0x80, 0x8d, 0x9a, 0x97 };
-		/**
-		 * @see GALOIS256_MULTIPLY_2
-		 */
-		private final int[] GALOIS256_MULTIPLY_14 = { 0x00, 0x0e, 0x1c, 0x12, 0x38, 0x36, 0x24, 0x2a, 0x70, 0x7e, 0x6c,
-				0x62, 0x48, 0x46, 0x54, 0x5a, 0xe0, 0xee, 0xfc, 0xf2, 0xd8, 0xd6, 0xc4, 0xca, 0x90, 0x9e, 0x8c, 0x82,
-				0xa8, 0xa6, 0xb4, 0xba, 0xdb, 0xd5, 0xc7, 0xc9, 0xe3, 0xed, 0xff, 0xf1, 0xab, 0xa5, 0xb7, 0xb9, 0x93,
-				0x9d, 0x8f, 0x81, 0x3b, 0x35, 0x27, 0x29, 0x03, 0x0d, 0x1f, 0x11, 0x4b, 0x45, 0x57, 0x59, 0x73, 0x7d,
-				0x6f, 0x61, 0xad, 0xa3, 0xb1, 0xbf, 0x95, 0x9b, 0x89, 0x87, 0xdd, 0xd3, 0xc1, 0xcf, 0xe5, 0xeb, 0xf9,
-				0xf7, 0x4d, 0x43, 0x51, 0x5f, 0x75, 0x7b, 0x69, 0x67, 0x3d, 0x33, 0x21, 0x2f, 0x05, 0x0b, 0x19, 0x17,
-				0x76, 0x78, 0x6a, 0x64, 0x4e, 0x40, 0x52, 0x5c, 0x06, 0x08, 0x1a, 0x14, 0x3e, 0x30, 0x22, 0x2c, 0x96,
-				0x98, 0x8a, 0x84, 0xae, 0xa0, 0xb2, 0xbc, 0xe6, 0xe8, 0xfa, 0xf4, 0xde, 0xd0, 0xc2, 0xcc, 0x41, 0x4f,
-				0x5d, 0x53, 0x79, 0x77, 0x65, 0x6b, 0x31, 0x3f, 0x2d, 0x23, 0x09, 0x07, 0x15, 0x1b, 0xa1, 0xaf, 0xbd,
-				0xb3, 0x99, 0x97, 0x85, 0x8b, 0xd1, 0xdf, 0xcd, 0xc3, 0xe9, 0xe7, 0xf5, 0xfb, 0x9a, 0x94, 0x86, 0x88,
-				0xa2, 0xac, 0xbe, 0xb0, 0xea, 0xe4, 0xf6, 0xf8, 0xd2, 0xdc, 0xce, 0xc0, 0x7a, 0x74, 0x66, 0x68, 0x42,
-				0x4c, 0x5e, 0x50, 0x0a, 0x04, 0x16, 0x18, 0x32, 0x3c, 0x2e, 0x20, 0xec, 0xe2, 0xf0, 0xfe, 0xd4, 0xda,
-				0xc8, 0xc6, 0x9c, 0x92, 0x80, 0x8e, 0xa4, 0xaa, 0xb8, 0xb6, 0x0c, 0x02, 0x10, 0x1e, 0x34, 0x3a, 0x28,
-				0x26, 0x7c, 0x72, 0x60, 0x6e, 0x44, 0x4a, 0x58, 0x56, 0x37, 0x39, 0x2b, 0x25, 0x0f, 0x01, 0x13, 0x1d,
-				0x47, 0x49, 0x5b, 0x55, 0x7f, 0x71, 0x63, 0x6d, 0xd7, 0xd9, 0xcb, 0xc5, 0xef, 0xe1, 0xf3, 0xfd, 0xa7,
-				0xa9, 0xbb, 0xb5, 0x9f, 0x91, 0x83, 0x8d };
-		/**
-		 * Preset matrix used for the MixColumns step of the algorithm.
-		 */
-		private final int[][] MIXCOLUMNS_MATRIX = { { 0x02, 0x03, 0x01, 0x01 }, { 0x01, 0x02, 0x03, 0x01 },
-				{ 0x01, 0x01, 0x02, 0x03 }, { 0x03, 0x01, 0x01, 0x02 } };
-		/**
-		 * Inverse of the {@link #MIXCOLUMNS_MATRIX}.
-		 */
-		private final int[][] MIXCOLUMNS_MATRIX_INVERSE = { { 0x0e, 0x0b, 0x0d, 0x09 }, { 0x09, 0x0e, 0x0b, 0x0d },
-				{ 0x0d, 0x09, 0x0e, 0x0b }, { 0x0b, 0x0d, 0x09, 0x0e } };
-		/**
-		 * Preset matrix size for the {@link AESBlock}.
-		 */
-		private static final int MATRIX_SIZE = 4;
-
-		/**
-		 * Matrix of the {@link AESBlock}.
-		 */
-		private byte[][] matrix = new byte[MATRIX_SIZE][MATRIX_SIZE];
-
-		/**
-		 * Packs the passed array into an {@link AESBlock}.
-		 * <p>
-		 * Packs the passed byte array into a 4x4 transposed matrix as required by the
-		 * AES algorithm. If the passed array is too long the excessive bits are
-		 * ignored. If the passed array is too short the missing bits are replaced with
-		 * zeros;
-		 * 
-		 * @param byteArray to be packed into the block
-		 */
-		public AESBlock(byte[] byteArray) {
-			for (int i = 0; i < MATRIX_SIZE * MATRIX_SIZE; i++) {
-				if (i < byteArray.length) {
-					matrix[i / MATRIX_SIZE][i % MATRIX_SIZE] = byteArray[i];
-				} else {
-					matrix[i / MATRIX_SIZE][i % MATRIX_SIZE] = 0x00;
-				}
-			}
-
-			matrix = transpose(matrix);
+	 * @return number of bytes written to {@code dst}
+	 */
+	private static int process(int[] roundKey, boolean encrypt, byte[] src, int off, int len, byte[] dst,
+			int dstOff) {
+		int paddedLength = paddedLength(len);
+		if (off < 0 || len < 0 || off > src.length - len || dstOff < 0 || dstOff > dst.length - paddedLength) {
+			throw new IndexOutOfBoundsException();
 		}
 
-		/**
-		 * The AddRoundKey step of the algorithm.
-		 * <p>
-		 * Combines the current block with the passed key matrix.
-		 * 
-		 * @param keyBlock array of bytes matrix of the used key
-		 */
-		private void addRoundKey(byte[][] keyBlock) {
-			System.out.println("addRoundKey");
-			printBlock();
-			for (int i = 0; i < MATRIX_SIZE; i++) {
-				for (int j = 0; j < MATRIX_SIZE; j++) {
-					matrix[i][j] = (byte) ((int) (matrix[i][j] ^ (int) keyBlock[j][i]));
-				}
-			}
-			System.out.println("-->");
-			printBlock();
+		int fullLength = len & -BLOCK_SIZE;
+		for (int i = 0; i < fullLength; i += BLOCK_SIZE) {
+			processBlock(roundKey, encrypt, src, off + i, dst, dstOff + i);
 		}
-
-		/**
-		 * The MixColumns step of the algorithm.
-		 * <p>
-		 * Performs the multiplication of each value of the underlying matrix with the
-		 * preset {@link #MIXCOLUMNS_MATRIX} inside the 2^8 Galois field.
-		 */
-		private void mixColumns() {
-			System.out.println("mixColumns");
-			printBlock();
-			byte[][] newMatrix = new byte[MATRIX_SIZE][MATRIX_SIZE];
-			for (int i = 0; i < MATRIX_SIZE; i++) {
-				for (int j = 0; j < MATRIX_SIZE; j++) {
-
-					newMatrix[i][j] = (byte) (galois256Multiply(matrix[0][j], MIXCOLUMNS_MATRIX[i][0])
-							^ galois256Multiply(matrix[1][j], MIXCOLUMNS_MATRIX[i][1])
-							^ galois256Multiply(matrix[2][j], MIXCOLUMNS_MATRIX[i][2])
-							^ galois256Multiply(matrix[3][j], MIXCOLUMNS_MATRIX[i][3]));
-				}
-			}
-			matrix = newMatrix;
-			System.out.println("-->");
-			printBlock();
+		if (fullLength < len) {
+			int lastBlock = dstOff + fullLength;
+			System.arraycopy(src, off + fullLength, dst, lastBlock, len - fullLength);
+			Arrays.fill(dst, lastBlock + len - fullLength, lastBlock + BLOCK_SIZE, (byte) 0);
+			processBlock(roundKey, encrypt, dst, lastBlock, dst, lastBlock);
 		}
 
-		/**
-		 * Inverse of the {@link #mixColumns()} step of the algorithm used for
-		 * decryption.
-		 */
-		private void mixColumnsInverse() {
-			System.out.println("mixColumnsInverse");
-			printBlock();
-			byte[][] newMatrix = new byte[MATRIX_SIZE][MATRIX_SIZE];
-			for (int i = 0; i < MATRIX_SIZE; i++) {
-				for (int j = 0; j < MATRIX_SIZE; j++) {
-
-					newMatrix[i][j] = (byte) (galois256Multiply(matrix[0][j], MIXCOLUMNS_MATRIX_INVERSE[i][0])
-							^ galois256Multiply(matrix[1][j], MIXCOLUMNS_MATRIX_INVERSE[i][1])
-							^ galois256Multiply(matrix[2][j], MIXCOLUMNS_MATRIX_INVERSE[i][2])
-							^ galois256Multiply(matrix[3][j], MIXCOLUMNS_MATRIX_INVERSE[i][3]));
-				}
-			}
-			matrix = newMatrix;
-			System.out.println("-->");
-			printBlock();
-		}
+		return paddedLength;
+	}
 
-		/**
-		 * Performs the ShiftRows step of the algorithm.
-		 * <p>
-		 * Shifts each word inside the passed block. The first row is left unchanged,
-		 * the second row is shifted by 1 position to the left, the third row is shifted
-		 * by 2 positions and the forth row is shifted by 3 positions.
-		 * 
-		 * @param block to each row of which the shift will be applied
-		 */
-		private void shiftRows() {
-			System.out.println("shiftRows");
-			printBlock();
-			for (int i = 1; i <= 3; i++) {
-				for (int j = 1; j <= i; j++) {
-					matrix[i] = rotWord(matrix[i]);
-				}
-			}
-			System.out.println("-->");
-			printBlock();
+	/**
+	 * Encrypts or decrypts the remaining bytes of {@code src} into {@code dst}.
+	 * Uses the backing arrays when both buffers have them, otherwise moves the
+	 * data through the {@link #block}.
+	 * 
+	 * @return number of bytes written to {@code dst}
+	 */
+	private int process(int[] roundKey, boolean encrypt, ByteBuffer src, ByteBuffer dst) {
+		int len = src.remaining();
+		int paddedLength = paddedLength(len);
+		if (dst.remaining() < paddedLength) {
+			throw new BufferOverflowException();
 		}
 
-		/**
-		 * Inverse of the {@link #shiftRows()} step of the algorithm.
-		 * <p>
-		 * The {@link #MIXCOLUMNS_MATRIX_INVERSE} matrix is used for this operation.
-		 */
-		private void shiftRowsInverse() {
-			System.out.println("shiftRowsInverse");
-			printBlock();
-			for (int i = 1; i <= 3; i++) {
-				for (int j = 1; j <= i; j++) {
-					matrix[i] = rotWordInverse(matrix[i]);
-				}
-			}
-			System.out.println("-->");
-			printBlock();
+		if (src.hasArray() && dst.hasArray()) {
+			process(roundKey, encrypt, src.array(), src.arrayOffset() + src.position(), len, dst.array(),
+					dst.arrayOffset() + dst.position());
+			src.position(src.limit());
+			dst.position(dst.position() + paddedLength);
+			return paddedLength;
 		}
 
-		/**
-		 * The SubBytes step of the algorithm.
-		 * <p>
-		 * Each byte of the underlying matrix is replaced with the appropriate byte from
-		 * the {@link #S_BOX}. The position of the replacing byte is determined by
-		 * interpreting the byte to be replaced as unsigned byte.
-		 */
-		private void subBytes() {
-			System.out.println("subBytes");
-			printBlock();
-			byte[][] newMatrix = new byte[MATRIX_SIZE][MATRIX_SIZE];
-			for (int i = 0; i < MATRIX_SIZE; i++) {
-				for (int j = 0; j < MATRIX_SIZE; j++) {
-					newMatrix[i][j] = (byte) S_BOX[matrix[i][j] & 0xFF];
-				}
-			}
-			matrix = newMatrix;
-			System.out.println("-->");
-			printBlock();
+		while (src.hasRemaining()) {
+			int blockLength = Math.min(src.remaining(), BLOCK_SIZE);
+			src.get(block, 0, blockLength);
+			Arrays.fill(block, blockLength, BLOCK_SIZE, (byte) 0);
+			processBlock(roundKey, encrypt, block, 0, block, 0);
+			dst.put(block);
 		}
 
-		/**
-		 * The inverse of {@link #subBytes()} step of the algorithm.
-		 * <p>
-		 * The {@link #S_BOX_INVERSE} is used for this operation.
-		 */
-		private void subBytesInverse() {
-			System.out.println("subBytesInverse");
-			printBlock();
-			byte[][] newMatrix = new byte[MATRIX_SIZE][MATRIX_SIZE];
-			for (int i = 0; i < MATRIX_SIZE; i++) {
-				for (int j = 0; j < MATRIX_SIZE; j++) {
-					newMatrix[i][j] = (byte) S_BOX_INVERSE[matrix[i][j] & 0xFF];
-				}
-			}
+		return paddedLength;
+	}
 
-			matrix = newMatrix;
-			System.out.println("-->");
-			printBlock();
+	/**
+	 * Encrypts or decrypts a single block.
+	 */
+	private static void processBlock(int[] roundKey, boolean encrypt, byte[] in, int inOff, byte[] out,
+			int outOff) {
+		if (encrypt) {
+			encryptBlock(roundKey, in, inOff, out, outOff);
+		} else {
+			decryptBlock(roundKey, in, inOff, out, outOff);
 		}
+	}
 
-		/**
-		 * Multiplication inside the 2^8 Galois field.
-		 * <p>
-		 * Uses precalculated values
-		 * <li>{@link #GALOIS256_MULTIPLY_2}</li>
-		 * <li>{@link #GALOIS256_MULTIPLY_3}</li>
-		 * <li>{@link #GALOIS256_MULTIPLY_9}</li>
-		 * <li>{@link #GALOIS256_MULTIPLY_11}</li>
-		 * <li>{@link #GALOIS256_MULTIPLY_13}</li>
-		 * <li>{@link #GALOIS256_MULTIPLY_14}</li> The value is interpreted as unsigned
-		 * byte.
-		 * 
-		 * @param value  first factor of the multiplication
-		 * @param factor second factor of the multiplication
-		 * @return product of the multiplication
-		 * @throws UnsupportedOperationException if the needed matrix with preset values
-		 *                                       is missing
-		 */
-		private int galois256Multiply(byte value, int factor) {
-			if (factor == 0) {
-				return 0;
-			}
-
-			if (factor == 1) {
-				return value;
-			}
-
-			if (factor == 2) {
-				return GALOIS256_MULTIPLY_2[value & 0xFF];
-			}
-
-			if (factor == 3) {
-				return GALOIS256_MULTIPLY_3[value & 0xFF];
-			}
-
-			if (factor == 9) {
-				return GALOIS256_MULTIPLY_9[value & 0xFF];
-			}
-
-			if (factor == 11) {
-				return GALOIS256_MULTIPLY_11[value & 0xFF];
-			}
-
-			if (factor == 13) {
-				return GALOIS256_MULTIPLY_13[value & 0xFF];
-			}
-
-			if (factor == 14) {
-				return GALOIS256_MULTIPLY_14[value & 0xFF];
-			}
+	/**
+	 * Rounds the passed length up to a multiple of {@value #BLOCK_SIZE}.
+	 * 
+	 * @param length of the data in bytes
+	 * @return length of the data after zero padding
+	 */
+	static int paddedLength(int length) {
+		return (length + BLOCK_SIZE - 1) & -BLOCK_SIZE;
+	}
 
-			throw new UnsupportedOperationException();
+	/**
+	 * Encrypts a single block.
+	 * <p>
+	 * Reads {@value #BLOCK_SIZE} bytes of {@code in} starting at {@code inOff} and
+	 * writes the result to {@code out} starting at {@code outOff}. Both arrays may
+	 * be the same, even with overlapping ranges.
+	 * 
+	 * @param roundKey expanded encryption key
+	 * @param in       array holding the plain block
+	 * @param inOff    offset of the block inside {@code in}
+	 * @param out      array receiving the encrypted block
+	 * @param outOff   offset of the block inside {@code out}
+	 */
+	static void encryptBlock(int[] roundKey, byte[] in, int inOff, byte[] out, int outOff) {
+		int s0 = getInt(in, inOff) ^ roundKey[0];
+		int s1 = getInt(in, inOff + 4) ^ roundKey[1];
+		int s2 = getInt(in, inOff + 8) ^ roundKey[2];
+		int s3 = getInt(in, inOff + 12) ^ roundKey[3];
+
+		int k = 4;
+		for (int round = 1; round < ROUNDS; round++) {
+			int t0 = TE0[s0 >>> 24] ^ TE1[(s1 >>> 16) & 0xFF] ^ TE2[(s2 >>> 8) & 0xFF] ^ TE3[s3 & 0xFF] ^ roundKey[k];
+			int t1 = TE0[s1 >>> 24] ^ TE1[(s2 >>> 16) & 0xFF] ^ TE2[(s3 >>> 8) & 0xFF] ^ TE3[s0 & 0xFF]
+					^ roundKey[k + 1];
+			int t2 = TE0[s2 >>> 24] ^ TE1[(s3 >>> 16) & 0xFF] ^ TE2[(s0 >>> 8) & 0xFF] ^ TE3[s1 & 0xFF]
+					^ roundKey[k + 2];
+			int t3 = TE0[s3 >>> 24] ^ TE1[(s0 >>> 16) & 0xFF] ^ TE2[(s1 >>> 8) & 0xFF] ^ TE3[s2 & 0xFF]
+					^ roundKey[k + 3];
+			s0 = t0;
+			s1 = t1;
+			s2 = t2;
+			s3 = t3;
+			k += 4;
 		}
 
-		/**
-		 * Unpacks the underlying matrix into a byte array
-		 * <p>
-		 * Transposes the underlying matrix and unpacks it back into a byte array of
-		 * size 16.
-		 * 
-		 * @return array of bytes
-		 */
-		public byte[] toByteArray() {
-			byte[] byteArray = new byte[MATRIX_SIZE * MATRIX_SIZE];
-			matrix = transpose(matrix);
-
-			for (int i = 0; i < MATRIX_SIZE; i++) {
-				for (int j = 0; j < MATRIX_SIZE; j++) {
-					byteArray[MATRIX_SIZE * i + j] = matrix[i][j];
-				}
-			}
+		// The last round has no MixColumns step
+		putInt(out, outOff, subShift(S_BOX, s0, s1, s2, s3) ^ roundKey[k]);
+		putInt(out, outOff + 4, subShift(S_BOX, s1, s2, s3, s0) ^ roundKey[k + 1]);
+		putInt(out, outOff + 8, subShift(S_BOX, s2, s3, s0, s1) ^ roundKey[k + 2]);
+		putInt(out, outOff + 12, subShift(S_BOX, s3, s0, s1, s2) ^ roundKey[k + 3]);
+	}
 
-			return byteArray;
+	/**
+	 * Decrypts a single block using the equivalent inverse cipher.
+	 * 
+	 * @param roundKey expanded decryption key as returned by
+	 *                 {@link #invertKey(int[])}
+	 * @param in       array holding the encrypted block
+	 * @param inOff    offset of the block inside {@code in}
+	 * @param out      array receiving the decrypted block
+	 * @param outOff   offset of the block inside {@code out}
+	 * @see #encryptBlock(int[], byte[], int, byte[], int)
+	 */
+	static void decryptBlock(int[] roundKey, byte[] in, int inOff, byte[] out, int outOff) {
+		int s0 = getInt(in, inOff) ^ roundKey[0];
+		int s1 = getInt(in, inOff + 4) ^ roundKey[1];
+		int s2 = getInt(in, inOff + 8) ^ roundKey[2];
+		int s3 = getInt(in, inOff + 12) ^ roundKey[3];
+
+		int k = 4;
+		for (int round = 1; round < ROUNDS; round++) {
+			int t0 = TD0[s0 >>> 24] ^ TD1[(s3 >>> 16) & 0xFF] ^ TD2[(s2 >>> 8) & 0xFF] ^ TD3[s1 & 0xFF] ^ roundKey[k];
+			int t1 = TD0[s1 >>> 24] ^ TD1[(s0 >>> 16) & 0xFF] ^ TD2[(s3 >>> 8) & 0xFF] ^ TD3[s2 & 0xFF]
+					^ roundKey[k + 1];
+			int t2 = TD0[s2 >>> 24] ^ TD1[(s1 >>> 16) & 0xFF] ^ TD2[(s0 >>> 8) & 0xFF] ^ TD3[s3 & 0xFF]
+					^ roundKey[k + 2];
+			int t3 = TD0[s3 >>> 24] ^ TD1[(s2 >>> 16) & 0xFF] ^ TD2[(s1 >>> 8) & 0xFF] ^ TD3[s0 & 0xFF]
+					^ roundKey[k + 3];
+			s0 = t0;
+			s1 = t1;
+			s2 = t2;
+			s3 = t3;
+			k += 4;
 		}
 
-		/**
-		 * Prints the block to the standard output.
-		 * <p>
-		 * For debugging purposes only.
-		 */
-		public void printBlock() {
-			for (int i = 0; i < MATRIX_SIZE; i++) {
-				for (int j = 0; j < MATRIX_SIZE; j++) {
-					System.out.print(String.format("%02X", matrix[i][j]) + " ");
-				}
-				System.out.println();
-			}
-		}
+		putInt(out, outOff, subShift(S_BOX_INVERSE, s0, s3, s2, s1) ^ roundKey[k]);
+		putInt(out, outOff + 4, subShift(S_BOX_INVERSE, s1, s0, s3, s2) ^ roundKey[k + 1]);
+		putInt(out, outOff + 8, subShift(S_BOX_INVERSE, s2, s1, s0, s3) ^ roundKey[k + 2]);
+		putInt(out, outOff + 12, subShift(S_BOX_INVERSE, s3, s2, s1, s0) ^ roundKey[k + 3]);
 	}
 
 	/**
+	 * Combined SubBytes and ShiftRows steps of the last round for a single
+	 * column. Takes the n-th byte of the n-th passed word.
 	 * 
-	 * Internal class AESKey used to represent the key for the AES algorithm.
+	 * @param box substitution box to be used
+	 * @return substituted column
+	 */
+	private static int subShift(int[] box, int w0, int w1, int w2, int w3) {
+		return (box[w0 >>> 24] << 24) | (box[(w1 >>> 16) & 0xFF] << 16) | (box[(w2 >>> 8) & 0xFF] << 8)
+				| box[w3 & 0xFF];
+	}
+
+	/**
+	 * ExpandKey step of the AES algorithm.
 	 * <p>
-	 * Only calculates the expanded key on {@link #expandKey()} call. Can only
-	 * represent 128 bit keys.
-	 *
-	 */
-	private class AESKey {
-		private byte[][] expandedKey;
-		private byte[] initialKey;
-
-		/**
-		 * Extends and sets the {@link #initialKey}
-		 * <p>
-		 * Extends the passed raw key to the size of 128 bits by filling the missing
-		 * part with zeroes and initializes the {@link #initialKey} field.
-		 * 
-		 * @param rawKey original key
-		 */
-		public AESKey(byte[] rawKey) {
-			byte[] adjustedKey = new byte[MAX_KEY_SIZE];
-			for (int i = 0; i < rawKey.length; i++) {
-				adjustedKey[i] = rawKey[i];
-			}
+	 * Only the first {@value #KEY_LENGTH} bytes of the passed key are used, a
+	 * shorter key is padded with zeros.
+	 * 
+	 * @param rawKey original key
+	 * @return {@value #EXPANDED_KEY_WORDS} words of the expanded encryption key
+	 */
+	static int[] expandKey(byte[] rawKey) {
+		byte[] adjustedKey = new byte[KEY_LENGTH];
+		System.arraycopy(rawKey, 0, adjustedKey, 0, Math.min(rawKey.length, KEY_LENGTH));
 
-			this.initialKey = adjustedKey;
+		int[] roundKey = new int[EXPANDED_KEY_WORDS];
+		for (int i = 0; i < 4; i++) {
+			roundKey[i] = getInt(adjustedKey, 4 * i);
 		}
-
-		/**
-		 * ExpandKey step of the AES algorithm. Fills the {@link expandedKey} matrix.
-		 */
-		public void expandKey() {
-			// Calculate the rcon constant
-			final byte[][] rcon = new byte[ROUNDS + 1][4];
-			for (int i = 1; i <= ROUNDS; i++) {
-				byte firstByte;
-				if (i == 1) {
-					firstByte = 0x01;
-				} else {
-					if ((rcon[i - 1][0] & 0xFF) < 0x80) {
-						firstByte = (byte) (2 * rcon[i - 1][0]);
-					} else {
-						firstByte = (byte) ((2 * rcon[i - 1][0]) ^ 0x1B);
-					}
-				}
-
-				rcon[i] = new byte[] { firstByte, 0x0, 0x0, 0x0 };
-			}
-
-			// Constants for calculation of a 128 bit key
-			final int N = 4;
-			final int R = 11;
-			byte[][] k = new byte[N][4];
-			for (int i = 0; i < 4; i++) {
-				for (int j = 0; j < 4; j++) {
-					k[i][j] = initialKey[4 * i + j];
-				}
+		for (int i = 4; i < EXPANDED_KEY_WORDS; i++) {
+			int word = roundKey[i - 1];
+			if (i % 4 == 0) {
+				word = subWord(Integer.rotateLeft(word, 8)) ^ RCON[i / 4 - 1];
 			}
+			roundKey[i] = roundKey[i - 4] ^ word;
+		}
 
-			expandedKey = new byte[4 * R][4];
-
-			for (int i = 0; i < expandedKey.length; i++) {
-				if (i < N) {
-					expandedKey[i] = k[i];
-				} else {
-					if (i >= N && i % N == 0) {
-						expandedKey[i] = xor(xor(expandedKey[i - N], subWord(rotWord(expandedKey[i - 1]))),
-								rcon[i / N]);
-					} else {
-						expandedKey[i] = xor(expandedKey[i - N], expandedKey[i - 1]);
+		return roundKey;
+	}
 
-					}
+	/**
+	 * Turns an expanded encryption key into the key used by the equivalent
+	 * inverse cipher.
+	 * <p>
+	 * Reverses the order of the round keys and applies InvMixColumns to all of
+	 * them except the first and the last one.
+	 * 
+	 * @param roundKey expanded encryption key
+	 * @return expanded decryption key
+	 */
+	static int[] invertKey(int[] roundKey) {
+		int[] inverseKey = new int[EXPANDED_KEY_WORDS];
+		for (int round = 0; round <= ROUNDS; round++) {
+			for (int j = 0; j < 4; j++) {
+				int word = roundKey[4 * (ROUNDS - round) + j];
+				if (round > 0 && round < ROUNDS) {
+					// S_BOX cancels the S_BOX_INVERSE contained in the TD tables
+					word = TD0[S_BOX[word >>> 24]] ^ TD1[S_BOX[(word >>> 16) & 0xFF]]
+							^ TD2[S_BOX[(word >>> 8) & 0xFF]] ^ TD3[S_BOX[word & 0xFF]];
 				}
+				inverseKey[4 * round + j] = word;
 			}
-
-			printKey();
 		}
 
-		/**
-		 * Substitutes each byte of the passed word using {@link #S_BOX}.
-		 * 
-		 * @param word to be processed
-		 * @return word with replaced bytes
-		 */
-		private byte[] subWord(byte[] word) {
-			byte[] newWord = new byte[word.length];
-			for (int i = 0; i < word.length; i++) {
-				newWord[i] = (byte) S_BOX[word[i] & 0xFF];
-			}
+		return inverseKey;
+	}
 
-			return newWord;
-		}
+	/**
+	 * Substitutes each byte of the passed word using {@link #S_BOX}.
+	 * 
+	 * @param word to be processed
+	 * @return word with replaced bytes
+	 */
+	private static int subWord(int word) {
+		return subShift(S_BOX, word, word, word, word);
+	}
 
-		/**
-		 * Prints the contents of the key.
-		 * <p>
-		 * For debugging purposes only.
-		 */
-		public void printKey() {
-			for (int g = 0; g < expandedKey.length; g = g + 4) {
-				for (int i = g; i < g + 4; i++) {
-					for (int j = 0; j < 4; j++) {
-						System.out.print(String.format("%02X", expandedKey[i][j]) + " ");
-					}
-					System.out.println();
-				}
-				System.out.println("-------------------------------");
+	/**
+	 * Multiplication inside the 2^8 Galois field. Only used to build the T-tables.
+	 * 
+	 * @param value  first factor of the multiplication, interpreted as unsigned
+	 *               byte
+	 * @param factor second factor of the multiplication
+	 * @return product of the multiplication
+	 */
+	private static int galois256Multiply(int value, int factor) {
+		int product = 0;
+		int a = value & 0xFF;
+		for (int b = factor; b != 0; b >>>= 1) {
+			if ((b & 1) != 0) {
+				product ^= a;
+			}
+			a <<= 1;
+			if ((a & 0x100) != 0) {
+				a ^= 0x11B;
 			}
 		}
+		return product;
+	}
 
-		/**
-		 * Gets the key block at the passed index.
-		 * <p>
-		 * Key block is a 4x4 matrix built from 4 byte words at indices {@code index} to
-		 * {@code index+4}
-		 * 
-		 * @param index
-		 * @return
-		 */
-		public byte[][] getSubKey(int index) {
-			return new byte[][] { expandedKey[index], expandedKey[index + 1], expandedKey[index + 2],
-					expandedKey[index + 3] };
-		}
+	/**
+	 * Reads a big-endian word from the passed array.
+	 */
+	private static int getInt(byte[] array, int offset) {
+		return (array[offset] << 24) | ((array[offset + 1] & 0xFF) << 16) | ((array[offset + 2] & 0xFF) << 8)
+				| (array[offset + 3] & 0xFF);
+	}
+
+	/**
+	 * Writes the passed word to the array in big-endian order.
+	 */
+	private static void putInt(byte[] array, int offset, int word) {
+		array[offset] = (byte) (word >>> 24);
+		array[offset + 1] = (byte) (word >>> 16);
+		array[offset + 2] = (byte) (word >>> 8);
+		array[offset + 3] = (byte) word;
 	}
 }
@@ -0,0 +1,259 @@
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ *
+ * Implements the counter (CTR) mode of operation on top of {@link AES}.
+ * <p>
+ * The keystream is made by encrypting the counter blocks
+ * {@code nonce || counter}, where the nonce takes the first
+ * {@value #NONCE_SIZE} bytes and the big-endian block counter the last 4
+ * bytes, starting from zero. The data is XORed with the keystream, so the
+ * ciphertext has the same length as the plaintext and encryption and
+ * decryption are the same operation.
+ * <p>
+ * Every block of the keystream can be computed independently. Data longer than
+ * the {@link #setParallelThreshold(int) parallel threshold} is therefore split
+ * into chunks of {@value #CHUNK_SIZE} bytes processed in parallel on a
+ * {@link ForkJoinPool}.
+ */
+public class AESCounterMode implements CipherProvider {
+	/**
+	 * Size of the nonce carried in front of every encrypted message.
+	 */
+	public final static int NONCE_SIZE = 12;
+	/**
+	 * Number of bytes processed by a single parallel task. Multiple of
+	 * {@link AES#BLOCK_SIZE}.
+	 */
+	private final static int CHUNK_SIZE = 64 * 1024;
+
+	/**
+	 * Source of the nonces.
+	 */
+	private final static SecureRandom random = new SecureRandom();
+
+	/**
+	 * Minimal length of the data in bytes to be processed in parallel.
+	 */
+	private static volatile int parallelThreshold = 256 * 1024;
+	/**
+	 * {@link ForkJoinPool} used for the parallel processing.
+	 */
+	private static volatile ForkJoinPool pool = ForkJoinPool.commonPool();
+
+	/**
+	 * Encrypts the passed data with a fresh random nonce.
+	 *
+	 * @param byteArray data to be encrypted
+	 * @param byteKey   key to be used for encryption
+	 * @return the nonce followed by the encrypted data
+	 * @throws UnsupportedOperationException if the passed key is too large
+	 */
+	@Override
+	public byte[] encrypt(byte[] byteArray, byte[] byteKey) {
+		AESKeySchedule keySchedule = AES.scheduleFor(byteKey);
+
+		byte[] result = new byte[NONCE_SIZE + byteArray.length];
+		byte[] nonce = new byte[NONCE_SIZE];
+		random.nextBytes(nonce);
+		System.arraycopy(nonce, 0, result, 0, NONCE_SIZE);
+		process(keySchedule, nonce, byteArray, 0, byteArray.length, result, NONCE_SIZE);
+
+		return result;
+	}
+
+	/**
+	 * Decrypts a message produced by {@link #encrypt(byte[], byte[])}.
+	 *
+	 * @param byteArray the nonce followed by the encrypted data
+	 * @param byteKey   key to use for decryption
+	 * @return decrypted data
+	 * @throws IllegalArgumentException      if the message is too short to hold
+	 *                                       the nonce
+	 * @throws UnsupportedOperationException if the passed key is too large
+	 */
+	@Override
+	public byte[] decrypt(byte[] byteArray, byte[] byteKey) {
+		if (byteArray.length < NONCE_SIZE) {
+			throw new IllegalArgumentException("The message doesn't contain a nonce");
+		}
+		AESKeySchedule keySchedule = AES.scheduleFor(byteKey);
+
+		byte[] nonce = new byte[NONCE_SIZE];
+		System.arraycopy(byteArray, 0, nonce, 0, NONCE_SIZE);
+		byte[] result = new byte[byteArray.length - NONCE_SIZE];
+		process(keySchedule, nonce, byteArray, NONCE_SIZE, result.length, result, 0);
+
+		return result;
+	}
+
+	/**
+	 * Decrypts a message produced by {@link #encrypt(byte[], byte[])} in place
+	 * if it is backed by an array.
+	 *
+	 * @param data    the nonce followed by the encrypted data, its position is
+	 *                moved to its limit
+	 * @param byteKey key to use for decryption
+	 * @return buffer holding the decrypted data
+	 * @throws IllegalArgumentException      if the message is too short to hold
+	 *                                       the nonce
+	 * @throws UnsupportedOperationException if the passed key is too large
+	 */
+	@Override
+	public ByteBuffer decrypt(ByteBuffer data, byte[] byteKey) {
+		if (!data.hasArray()) {
+			return CipherProvider.super.decrypt(data, byteKey);
+		}
+		if (data.remaining() < NONCE_SIZE) {
+			throw new IllegalArgumentException("The message doesn't contain a nonce");
+		}
+		AESKeySchedule keySchedule = AES.scheduleFor(byteKey);
+
+		byte[] nonce = new byte[NONCE_SIZE];
+		data.get(nonce);
+		ByteBuffer result = data.slice();
+		int off = data.arrayOffset() + data.position();
+		process(keySchedule, nonce, data.array(), off, result.remaining(), data.array(), off);
+		data.position(data.limit());
+
+		return result;
+	}
+
+	/**
+	 * XORs {@code len} bytes of {@code src} starting at {@code off} with the
+	 * keystream and writes the result to {@code dst} starting at {@code dstOff}.
+	 * The arrays may be the same if the ranges are either equal or don't
+	 * overlap.
+	 *
+	 * @param keySchedule key used to generate the keystream
+	 * @param nonce       {@value #NONCE_SIZE} bytes long nonce
+	 * @param src         array holding the input data
+	 * @param off         offset of the data inside {@code src}
+	 * @param len         length of the data
+	 * @param dst         array receiving the output
+	 * @param dstOff      offset inside {@code dst}
+	 */
+	public static void process(AESKeySchedule keySchedule, byte[] nonce, byte[] src, int off, int len, byte[] dst,
+			int dstOff) {
+		if (nonce.length != NONCE_SIZE) {
+			throw new IllegalArgumentException("The nonce must be " + NONCE_SIZE + " bytes long");
+		}
+		if (off < 0 || len < 0 || off > src.length - len || dstOff < 0 || dstOff > dst.length - len) {
+			throw new IndexOutOfBoundsException();
+		}
+
+		if (len >= parallelThreshold && pool.getParallelism() > 1) {
+			pool.invoke(new KeystreamTask(keySchedule.encryptionKey(), nonce, src, off, dst, dstOff, 0, len));
+		} else {
+			xorKeystream(keySchedule.encryptionKey(), nonce, src, off, dst, dstOff, 0, len);
+		}
+	}
+
+	/**
+	 * XORs the range {@code [from, to)} of the data with the keystream. The range
+	 * is relative to {@code off} and {@code dstOff}, {@code from} must be a
+	 * multiple of {@link AES#BLOCK_SIZE}.
+	 */
+	private static void xorKeystream(int[] roundKey, byte[] nonce, byte[] src, int off, byte[] dst, int dstOff,
+			int from, int to) {
+		byte[] counterBlock = new byte[AES.BLOCK_SIZE];
+		byte[] keystream = new byte[AES.BLOCK_SIZE];
+		System.arraycopy(nonce, 0, counterBlock, 0, NONCE_SIZE);
+
+		int counter = from / AES.BLOCK_SIZE;
+		for (int i = from; i < to; i += AES.BLOCK_SIZE) {
+			counterBlock[12] = (byte) (counter >>> 24);
+			counterBlock[13] = (byte) (counter >>> 16);
+			counterBlock[14] = (byte) (counter >>> 8);
+			counterBlock[15] = (byte) counter;
+			counter++;
+
+			AES.encryptBlock(roundKey, counterBlock, 0, keystream, 0);
+			int blockLength = Math.min(AES.BLOCK_SIZE, to - i);
+			for (int j = 0; j < blockLength; j++) {
+				dst[dstOff + i + j] = (byte) (src[off + i + j] ^ keystream[j]);
+			}
+		}
+	}
+
+	/**
+	 * Sets the minimal length of the data to be processed in parallel.
+	 *
+	 * @param threshold length in bytes, {@link Integer#MAX_VALUE} disables the
+	 *                  parallel processing
+	 */
+	public static void setParallelThreshold(int threshold) {
+		if (threshold < 0) {
+			throw new IllegalArgumentException("threshold");
+		}
+		parallelThreshold = threshold;
+	}
+
+	/**
+	 * @return the minimal length of the data to be processed in parallel
+	 */
+	public static int getParallelThreshold() {
+		return parallelThreshold;
+	}
+
+	/**
+	 * Sets the {@link ForkJoinPool} used for the parallel processing. The common
+	 * pool is used by default.
+	 *
+	 * @param forkJoinPool to be used
+	 */
+	public static void setPool(ForkJoinPool forkJoinPool) {
+		if (forkJoinPool == null) {
+			throw new NullPointerException("forkJoinPool");
+		}
+		pool = forkJoinPool;
+	}
+
+	/**
+	 *
+	 * Splits its range of the data in halves until it's not longer than
+	 * {@value #CHUNK_SIZE} bytes and XORs it with the keystream.
+	 *
+	 */
+	private static class KeystreamTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final int[] roundKey;
+		private final byte[] nonce;
+		private final byte[] src;
+		private final int off;
+		private final byte[] dst;
+		private final int dstOff;
+		private final int from;
+		private final int to;
+
+		KeystreamTask(int[] roundKey, byte[] nonce, byte[] src, int off, byte[] dst, int dstOff, int from, int to) {
+			this.roundKey = roundKey;
+			this.nonce = nonce;
+			this.src = src;
+			this.off = off;
+			this.dst = dst;
+			this.dstOff = dstOff;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from <= CHUNK_SIZE) {
+				xorKeystream(roundKey, nonce, src, off, dst, dstOff, from, to);
+				return;
+			}
+
+			int middle = from + ((to - from) / 2 / CHUNK_SIZE) * CHUNK_SIZE;
+			if (middle == from) {
+				middle += CHUNK_SIZE;
+			}
+			invokeAll(new KeystreamTask(roundKey, nonce, src, off, dst, dstOff, from, middle),
+					new KeystreamTask(roundKey, nonce, src, off, dst, dstOff, middle, to));
+		}
+	}
+}
@@ -0,0 +1,104 @@
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ *
+ * Immutable expanded AES-128 key.
+ * <p>
+ * Holds the round keys of the cipher and the round keys of the equivalent
+ * inverse cipher, so that a key only has to be expanded once no matter how many
+ * messages are encrypted or decrypted with it. Instances are obtained with
+ * {@link #forKey(byte[])}, which keeps the most recently used schedules in a
+ * small LRU cache.
+ *
+ * @see AES
+ */
+public final class AESKeySchedule {
+	/**
+	 * Maximum number of schedules kept by the cache.
+	 */
+	private final static int CACHE_CAPACITY = 16;
+
+	/**
+	 * Recently used schedules keyed by the raw key bytes, ordered from the least
+	 * to the most recently accessed.
+	 */
+	private final static Map<ByteBuffer, AESKeySchedule> cache = new LinkedHashMap<ByteBuffer, AESKeySchedule>(
+			CACHE_CAPACITY, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<ByteBuffer, AESKeySchedule> eldest) {
+			return size() > CACHE_CAPACITY;
+		}
+	};
+
+	/**
+	 * Round keys of the cipher.
+	 */
+	private final int[] encryptionKey;
+	/**
+	 * Round keys of the equivalent inverse cipher.
+	 */
+	private final int[] decryptionKey;
+
+	/**
+	 * Expands the passed key.
+	 *
+	 * @param rawKey original key
+	 */
+	private AESKeySchedule(byte[] rawKey) {
+		encryptionKey = AES.expandKey(rawKey);
+		decryptionKey = AES.invertKey(encryptionKey);
+	}
+
+	/**
+	 * Gets the schedule of the passed key, expanding the key only if it isn't
+	 * cached yet.
+	 *
+	 * @param rawKey original key, only the first 16 bytes are used
+	 * @return schedule of the key
+	 */
+	public static AESKeySchedule forKey(byte[] rawKey) {
+		synchronized (cache) {
+			AESKeySchedule keySchedule = cache.get(ByteBuffer.wrap(rawKey));
+			if (keySchedule != null) {
+				return keySchedule;
+			}
+		}
+
+		// Expanded outside of the lock, a concurrent expansion of the same key is
+		// harmless
+		byte[] keyCopy = rawKey.clone();
+		AESKeySchedule keySchedule = new AESKeySchedule(keyCopy);
+		synchronized (cache) {
+			cache.put(ByteBuffer.wrap(keyCopy), keySchedule);
+		}
+
+		return keySchedule;
+	}
+
+	/**
+	 * Removes all the schedules from the cache.
+	 */
+	public static void clearCache() {
+		synchronized (cache) {
+			cache.clear();
+		}
+	}
+
+	/**
+	 * @return round keys of the cipher, must not be modified
+	 */
+	int[] encryptionKey() {
+		return encryptionKey;
+	}
+
+	/**
+	 * @return round keys of the equivalent inverse cipher, must not be modified
+	 */
+	int[] decryptionKey() {
+		return decryptionKey;
+	}
+}
@@ -0,0 +1,26 @@
+/**
+ *
+ * What a {@link SocketWriter} does with a message sent while its queue is
+ * above the high watermark, see
+ * {@link ConnectionOptions#setHighWatermark(long)}.
+ *
+ */
+public enum BackpressurePolicy {
+	/**
+	 * The sender waits until the queue has drained to the low watermark.
+	 */
+	BLOCK,
+
+	/**
+	 * The oldest queued messages are dropped until the queue is back to the low
+	 * watermark, their futures fail with a
+	 * {@link java.util.concurrent.CancellationException}.
+	 */
+	DROP_OLDEST,
+
+	/**
+	 * The message is not queued, its future fails with a
+	 * {@link java.util.concurrent.RejectedExecutionException}.
+	 */
+	REJECT
+}
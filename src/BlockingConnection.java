@@ -0,0 +1,348 @@
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ *
+ * A blocking {@link Connection} to a single peer of a
+ * {@link ThreadPerConnectionServer}.
+ * <p>
+ * The connection is run by its own {@link Thread}, which blocks reading the
+ * socket. {@link #send(byte[])} writes from the calling {@link Thread} and
+ * blocks until the socket has accepted the data. As a write may block, the
+ * connection doesn't ping an idle peer itself, it answers the pings of the
+ * peer and applies the idle timeout once the peer has sent one.
+ * <p>
+ * Messages sent right after connecting wait until the peer has announced the
+ * framed protocol, or until it turned out not to support it, so that they
+ * aren't refused by mistake. The messages sent by the {@link Thread} of the
+ * connection itself, i.e. by the listener, can't wait for the data it reads:
+ * they're held back and written by that {@link Thread} once the protocol is
+ * known.
+ *
+ */
+class BlockingConnection extends Connection implements Runnable {
+	/**
+	 * Size of the buffer the received data is read into. Kept small, idle
+	 * connections are expected to outnumber the busy ones.
+	 */
+	private final static int READ_BUFFER_SIZE = 2048;
+	/**
+	 * Size of the buffer joining the frame headers with their payloads.
+	 */
+	private final static int WRITE_BUFFER_SIZE = 512;
+
+	private final ThreadPerConnectionServer server;
+	private final Socket socket;
+	private final FrameDecoder decoder;
+
+	/**
+	 * Guards the {@link #outputStream} so that the frames of different messages
+	 * don't interleave. The connection may run on a virtual {@link Thread},
+	 * which would stay pinned to its carrier while blocked in a monitor.
+	 */
+	private final ReentrantLock writeLock = new ReentrantLock();
+	/**
+	 * Signalled once the protocol is {@link #negotiated}.
+	 */
+	private final Condition negotiation = writeLock.newCondition();
+	private final OutputStream outputStream;
+	/**
+	 * Indicates that the peer supports the framed protocol, guarded by the
+	 * {@link #writeLock}.
+	 */
+	private boolean framing;
+	/**
+	 * Indicates that the protocol used with the peer is known, or has been
+	 * given up waiting for. Written holding the {@link #writeLock}, the
+	 * {@link #negotiation} is signalled once it is set.
+	 */
+	private volatile boolean negotiated;
+	/**
+	 * Time the connection was established.
+	 */
+	private final long connectedNanos = System.nanoTime();
+	/**
+	 * {@link Thread} receiving the data of the peer, null before it started.
+	 */
+	private volatile Thread receiver;
+	/**
+	 * Messages sent by the {@link #receiver} before the protocol was
+	 * {@link #negotiated}, only used by the {@link #receiver}.
+	 */
+	private final List<byte[]> held = new ArrayList<byte[]>();
+	/**
+	 * Indicates that the connection has been closed. Not guarded by the
+	 * {@link #writeLock}, closing the socket unblocks a pending write.
+	 */
+	private final AtomicBoolean closed = new AtomicBoolean();
+
+	/**
+	 * @param server which accepted or opened the connection
+	 * @param socket of the connection, connected
+	 * @throws IOException if the streams of the socket can't be obtained
+	 */
+	BlockingConnection(ThreadPerConnectionServer server, Socket socket) throws IOException {
+		super(String.valueOf(socket.getInetAddress()), server.getListener(), server.getMaxMessageSize(),
+				server.getConnectionOptions(), false);
+		this.server = server;
+		this.socket = socket;
+		this.decoder = new FrameDecoder(server.getMaxMessageSize(), this::startFraming, BufferPool.DEFAULT);
+		this.outputStream = new BufferedOutputStream(socket.getOutputStream(), WRITE_BUFFER_SIZE);
+		setSocketStatus(SocketStatus.SERVERMODE);
+	}
+
+	/**
+	 * Announces support of the framed protocol and receives the data of the peer
+	 * until the connection is closed.
+	 */
+	@Override
+	public void run() {
+		receiver = Thread.currentThread();
+		try {
+			getListener().onConnected(this);
+			write(ByteBuffer.wrap(new byte[] { Frame.HELLO }));
+			idleMonitor.start();
+
+			InputStream inputStream = socket.getInputStream();
+			byte[] buffer = new byte[READ_BUFFER_SIZE];
+			// A peer not announcing anything in time ends the negotiation
+			boolean negotiating = true;
+			socket.setSoTimeout((int) Frame.NEGOTIATION_TIMEOUT_MILLIS);
+			while (true) {
+				int count;
+				try {
+					count = inputStream.read(buffer);
+				} catch (SocketTimeoutException e) {
+					count = 0;
+					writeLock.lock();
+					try {
+						negotiated();
+					} finally {
+						writeLock.unlock();
+					}
+				}
+				if (count < 0) {
+					break;
+				}
+
+				if (count > 0) {
+					idleMonitor.read();
+					ByteBuffer data = ByteBuffer.wrap(buffer, 0, count);
+					Frame frame;
+					while ((frame = decoder.decode(data)) != null) {
+						receiveFrame(frame);
+					}
+				}
+				if (negotiating && decoder.isLegacyPeer()) {
+					writeLock.lock();
+					try {
+						negotiated();
+					} finally {
+						writeLock.unlock();
+					}
+				}
+				if (negotiating && negotiated) {
+					negotiating = false;
+					socket.setSoTimeout(0);
+					writeHeld();
+				}
+			}
+		} catch (IOException e) {
+			// The connection has been closed or failed
+		} finally {
+			close();
+			decoder.release();
+			releaseReceiveBuffers();
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * Blocks until the socket has accepted the whole message.
+	 *
+	 * @throws IOException if the connection is closed, in case of socket errors
+	 *                     or if the peer only supports the original protocol
+	 *                     and the message is longer than
+	 *                     {@value Frame#LEGACY_MAX_MESSAGE_SIZE} bytes
+	 */
+	@Override
+	public void send(byte[] message) throws IOException {
+		writeLock.lock();
+		try {
+			if (Thread.currentThread() != receiver) {
+				awaitNegotiation();
+			} else if (!negotiated || !held.isEmpty()) {
+				// Written in order after the held back ones
+				held.add(message);
+				return;
+			}
+			if (!framing && message.length > Frame.LEGACY_MAX_MESSAGE_SIZE) {
+				throw new IOException("The peer doesn't support messages longer than "
+						+ Frame.LEGACY_MAX_MESSAGE_SIZE + " bytes");
+			}
+			write(Frame.encodeMessage(message, framing, server.getMaxFrameSize()));
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	/**
+	 * Waits until the protocol used with the peer is known, at most
+	 * {@value Frame#NEGOTIATION_TIMEOUT_MILLIS} milliseconds after connecting.
+	 * Called holding the {@link #writeLock}.
+	 *
+	 * @throws IOException if the {@link Thread} is interrupted
+	 */
+	private void awaitNegotiation() throws IOException {
+		long deadline = connectedNanos + TimeUnit.MILLISECONDS.toNanos(Frame.NEGOTIATION_TIMEOUT_MILLIS);
+		long remaining;
+		try {
+			while (!negotiated && !closed.get() && (remaining = deadline - System.nanoTime()) > 0) {
+				negotiation.awaitNanos(remaining);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for the protocol negotiation", e);
+		}
+		// Later messages don't wait for a peer which never announces it
+		negotiated();
+	}
+
+	/**
+	 * Writes the messages held back by the {@link #receiver} until the protocol
+	 * was known. The ones too long for a peer only supporting the original
+	 * protocol are discarded, see {@link Metrics#MESSAGES_REJECTED}.
+	 *
+	 * @throws IOException if the connection is closed or in case of socket
+	 *                     errors
+	 */
+	private void writeHeld() throws IOException {
+		writeLock.lock();
+		try {
+			for (byte[] message : held) {
+				if (!framing && message.length > Frame.LEGACY_MAX_MESSAGE_SIZE) {
+					Metrics.MESSAGES_REJECTED.increment();
+				} else {
+					write(Frame.encodeMessage(message, framing, server.getMaxFrameSize()));
+				}
+			}
+			held.clear();
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	/**
+	 * Records that the protocol used with the peer is known and wakes up the
+	 * messages waiting for it. Called holding the {@link #writeLock}.
+	 */
+	private void negotiated() {
+		negotiated = true;
+		negotiation.signalAll();
+	}
+
+	/**
+	 * Switches the sent data to the framed protocol after the peer announced its
+	 * support.
+	 */
+	private void startFraming() {
+		writeLock.lock();
+		try {
+			try {
+				write(ByteBuffer.wrap(new byte[] { Frame.HELLO, Frame.VERSION }));
+				framing = true;
+				negotiated();
+			} catch (IOException e) {
+				close();
+			}
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * Only used to answer the pings of the peer, blocks like
+	 * {@link #send(byte[])}.
+	 */
+	@Override
+	boolean sendHeartbeat(int type, byte[] payload) {
+		writeLock.lock();
+		try {
+			if (!framing) {
+				return false;
+			}
+			try {
+				write(Frame.header(type, 0, payload.length), ByteBuffer.wrap(payload));
+				return true;
+			} catch (IOException e) {
+				// The receiving Thread closes the connection
+				return false;
+			}
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	@Override
+	void idle() {
+		try {
+			// Fails the pending read, the receiving Thread closes the connection
+			socket.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Writes the passed heap buffers to the socket.
+	 *
+	 * @throws IOException if the connection is closed or in case of socket errors
+	 */
+	private void write(ByteBuffer... data) throws IOException {
+		writeLock.lock();
+		try {
+			if (closed.get()) {
+				throw new IOException("The connection is closed");
+			}
+			for (ByteBuffer buffer : data) {
+				outputStream.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+			}
+			outputStream.flush();
+		} finally {
+			writeLock.unlock();
+		}
+		idleMonitor.written();
+	}
+
+	@Override
+	public void close() {
+		if (!closed.compareAndSet(false, true)) {
+			return;
+		}
+		idleMonitor.stop();
+		setSocketStatus(SocketStatus.DISCONNECTED);
+
+		try {
+			socket.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+
+		server.removeConnection(this);
+		getListener().onDisconnected(this);
+	}
+}
@@ -0,0 +1,273 @@
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.Deque;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ *
+ * Pool of reusable {@link ByteBuffer}s in power of two size classes.
+ * <p>
+ * A buffer is acquired from the smallest size class holding the requested
+ * capacity and returned to it once its last reference has been released, see
+ * {@link PooledBuffer}. Each size class keeps at most
+ * {@value #MAX_POOLED_BYTES_PER_CLASS} bytes of released buffers, the others
+ * are left to the garbage collector. Requests larger than the largest size
+ * class are allocated without pooling.
+ * <p>
+ * The {@link #DEFAULT} pool holds heap buffers, which both the socket streams
+ * and the {@link CipherProvider}s work on directly. Pools of direct buffers
+ * suit data which is only moved between channels.
+ * <p>
+ * The leak detection reports the buffers collected by the garbage collector
+ * without having been released, together with the stack trace of their
+ * acquisition. Capturing the stack traces is costly, so it is meant for
+ * debugging only.
+ *
+ * @see Metrics#BUFFER_POOL_HITS
+ */
+public class BufferPool {
+	/**
+	 * Size of the smallest size class in bytes.
+	 */
+	public final static int MIN_BUFFER_SIZE = 256;
+	/**
+	 * Size of the largest size class in bytes.
+	 */
+	public final static int MAX_BUFFER_SIZE = 1024 * 1024;
+	/**
+	 * Maximum number of bytes of the released buffers kept by a size class.
+	 */
+	private final static int MAX_POOLED_BYTES_PER_CLASS = 1024 * 1024;
+
+	/**
+	 * Pool shared by the socket and the cipher layers.
+	 */
+	public final static BufferPool DEFAULT = new BufferPool(false);
+
+	/**
+	 * Number of bytes kept by all the pools.
+	 */
+	private final static AtomicLong pooledBytes = new AtomicLong();
+
+	private static volatile boolean leakDetection;
+	/**
+	 * Records of the buffers acquired while the leak detection was enabled and
+	 * not released yet.
+	 */
+	private final static Set<LeakRecord> leaks = ConcurrentHashMap.newKeySet();
+	private final static ReferenceQueue<PooledBuffer> collected = new ReferenceQueue<PooledBuffer>();
+
+	private final boolean direct;
+	private final SizeClass[] sizeClasses;
+
+	/**
+	 * @param direct true to pool direct buffers, false for heap buffers
+	 */
+	public BufferPool(boolean direct) {
+		this.direct = direct;
+		int count = Integer.numberOfTrailingZeros(MAX_BUFFER_SIZE) - Integer.numberOfTrailingZeros(MIN_BUFFER_SIZE)
+				+ 1;
+		sizeClasses = new SizeClass[count];
+		for (int i = 0; i < count; i++) {
+			sizeClasses[i] = new SizeClass(MIN_BUFFER_SIZE << i);
+		}
+	}
+
+	/**
+	 * Acquires a buffer of at least the passed capacity. The position of the
+	 * buffer is 0 and its limit the requested capacity.
+	 *
+	 * @param capacity in bytes
+	 * @return the buffer, to be released by the caller
+	 */
+	public PooledBuffer acquire(int capacity) {
+		if (capacity < 0) {
+			throw new IllegalArgumentException("capacity");
+		}
+		if (leakDetection) {
+			reportLeaks();
+		}
+
+		int index = sizeClassOf(capacity);
+		ByteBuffer buffer = null;
+		if (index >= 0) {
+			SizeClass sizeClass = sizeClasses[index];
+			buffer = sizeClass.buffers.pollFirst();
+			if (buffer != null) {
+				sizeClass.count.decrementAndGet();
+				pooledBytes.addAndGet(-sizeClass.size);
+			}
+		}
+		if (buffer != null) {
+			Metrics.BUFFER_POOL_HITS.increment();
+		} else {
+			Metrics.BUFFER_POOL_MISSES.increment();
+			int size = index >= 0 ? sizeClasses[index].size : capacity;
+			buffer = direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+		}
+		buffer.clear().limit(capacity);
+
+		PooledBuffer pooled = new PooledBuffer(this, buffer, index);
+		if (leakDetection) {
+			pooled.leak = new LeakRecord(pooled);
+			leaks.add(pooled.leak);
+		}
+		return pooled;
+	}
+
+	/**
+	 * Appends the remaining bytes of the passed data to a buffer of this pool.
+	 * The data is written at the position of the buffer, which is replaced by a
+	 * larger one holding a copy of its content if it is too small.
+	 *
+	 * @param target buffer to append to, null to acquire a new one
+	 * @param data   to be appended, its position is moved to its limit
+	 * @return the buffer holding the data, positioned after it
+	 */
+	public PooledBuffer append(PooledBuffer target, ByteBuffer data) {
+		if (target == null) {
+			target = acquire(Math.max(MIN_BUFFER_SIZE, 2 * data.remaining()));
+		} else if (target.buffer().capacity() - target.buffer().position() < data.remaining()) {
+			ByteBuffer content = target.buffer();
+			PooledBuffer larger = acquire(Math.max(2 * content.capacity(), content.position() + data.remaining()));
+			content.flip();
+			larger.buffer().put(content);
+			target.release();
+			target = larger;
+		}
+
+		ByteBuffer buffer = target.buffer();
+		buffer.limit(buffer.capacity());
+		buffer.put(data);
+		return target;
+	}
+
+	/**
+	 * Returns a buffer whose last reference has been released to its size
+	 * class.
+	 *
+	 * @param pooled the released buffer
+	 */
+	void recycle(PooledBuffer pooled) {
+		if (pooled.leak != null) {
+			leaks.remove(pooled.leak);
+			pooled.leak.clear();
+		}
+		if (pooled.sizeClass < 0) {
+			return;
+		}
+
+		SizeClass sizeClass = sizeClasses[pooled.sizeClass];
+		if (sizeClass.count.incrementAndGet() > sizeClass.maxCount) {
+			sizeClass.count.decrementAndGet();
+			return;
+		}
+		pooledBytes.addAndGet(sizeClass.size);
+		// Reused first while still in the CPU caches
+		sizeClass.buffers.addFirst(pooled.unwrap());
+	}
+
+	/**
+	 * @param capacity in bytes
+	 * @return index of the smallest size class holding the capacity, -1 if it
+	 *         is larger than {@link #MAX_BUFFER_SIZE}
+	 */
+	private static int sizeClassOf(int capacity) {
+		if (capacity > MAX_BUFFER_SIZE) {
+			return -1;
+		}
+		if (capacity <= MIN_BUFFER_SIZE) {
+			return 0;
+		}
+		return 32 - Integer.numberOfLeadingZeros(capacity - 1) - Integer.numberOfTrailingZeros(MIN_BUFFER_SIZE);
+	}
+
+	/**
+	 * Reports the buffers collected without having been released.
+	 */
+	private static void reportLeaks() {
+		LeakRecord leak;
+		while ((leak = (LeakRecord) collected.poll()) != null) {
+			if (leaks.remove(leak)) {
+				Metrics.BUFFER_LEAKS.increment();
+				leak.allocation.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * @return true if the buffers collected without having been released are
+	 *         reported
+	 */
+	public static boolean isLeakDetection() {
+		return leakDetection;
+	}
+
+	/**
+	 * Enables or disables the leak detection of all the pools. Only the buffers
+	 * acquired while it is enabled are tracked.
+	 *
+	 * @param leakDetection true to report the buffers collected without having
+	 *                      been released
+	 */
+	public static void setLeakDetection(boolean leakDetection) {
+		BufferPool.leakDetection = leakDetection;
+	}
+
+	/**
+	 * @return number of bytes of the released buffers kept by all the pools
+	 */
+	public static long getPooledBytes() {
+		return pooledBytes.get();
+	}
+
+	/**
+	 * @return true if the pool holds direct buffers
+	 */
+	public boolean isDirect() {
+		return direct;
+	}
+
+	/**
+	 *
+	 * Released buffers of a single size.
+	 *
+	 */
+	private static class SizeClass {
+		final int size;
+		final int maxCount;
+		final Deque<ByteBuffer> buffers = new ConcurrentLinkedDeque<ByteBuffer>();
+		/**
+		 * Number of the {@link #buffers}, which the deque doesn't count in
+		 * constant time.
+		 */
+		final AtomicInteger count = new AtomicInteger();
+
+		SizeClass(int size) {
+			this.size = size;
+			this.maxCount = Math.max(2, MAX_POOLED_BYTES_PER_CLASS / size);
+		}
+	}
+
+	/**
+	 *
+	 * Allocation trace of a buffer tracked by the leak detection. Enqueued once
+	 * the buffer has been collected.
+	 *
+	 */
+	static class LeakRecord extends WeakReference<PooledBuffer> {
+		private final Throwable allocation;
+
+		LeakRecord(PooledBuffer buffer) {
+			super(buffer, collected);
+			int capacity = buffer.unwrap().capacity();
+			allocation = new IllegalStateException(
+					"A pooled buffer of " + capacity + " bytes was not released before being collected, acquired at");
+		}
+	}
+}
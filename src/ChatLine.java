@@ -0,0 +1,36 @@
+/**
+ * 
+ * A line of the chat history.
+ * <p>
+ * Only the displayed text and its {@link Style} are kept, the nodes displaying
+ * the lines are created by {@link ChatLineCell} for the visible rows only.
+ *
+ */
+public class ChatLine {
+	private final String text;
+	private final Style style;
+
+	/**
+	 * @param line   the message
+	 * @param sender username that the line is related to
+	 * @param style  {@link Style} of the message
+	 */
+	public ChatLine(String line, String sender, Style style) {
+		this.text = sender + " : " + line;
+		this.style = style;
+	}
+
+	/**
+	 * @return the displayed text
+	 */
+	public String getText() {
+		return text;
+	}
+
+	/**
+	 * @return {@link Style} of the message
+	 */
+	public Style getStyle() {
+		return style;
+	}
+}
@@ -0,0 +1,41 @@
+import javafx.scene.control.ListCell;
+import javafx.scene.paint.Color;
+
+/**
+ * 
+ * Row of the chat history. The cells are reused while scrolling, each one
+ * displays whichever {@link ChatLine} is currently assigned to it.
+ *
+ */
+public class ChatLineCell extends ListCell<ChatLine> {
+
+	public ChatLineCell() {
+		setWrapText(true);
+		// Let the cell take the width of the list instead of the width of its text,
+		// so that long lines wrap
+		setPrefWidth(0);
+	}
+
+	@Override
+	protected void updateItem(ChatLine item, boolean empty) {
+		super.updateItem(item, empty);
+
+		if (empty || item == null) {
+			setText(null);
+			return;
+		}
+
+		setText(item.getText());
+		switch (item.getStyle()) {
+		case USER:
+			setTextFill(Color.BLUE);
+			break;
+		case PARTNER:
+			setTextFill(Color.RED);
+			break;
+		default:
+			setTextFill(Color.BLACK);
+			break;
+		}
+	}
+}
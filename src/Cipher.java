@@ -4,6 +4,8 @@
  * <ul>
  * <li>{@link Cipher#NONE}</li>
  * <li>{@link Cipher#AES128}</li>
+ * <li>{@link Cipher#AES128_CTR}</li>
+ * <li>{@link Cipher#AES128_GCM}</li>
  * </ul>
  */
 public enum Cipher {
@@ -14,5 +16,19 @@ public enum Cipher {
 	/**
 	 * Advanced Encryption Standard, 128 bits key size
 	 */
-	AES128;
+	AES128,
+	/**
+	 * Advanced Encryption Standard, 128 bits key size, in counter mode. Every
+	 * message carries its own nonce.
+	 * 
+	 * @see AESCounterMode
+	 */
+	AES128_CTR,
+	/**
+	 * Advanced Encryption Standard, 128 bits key size, in Galois/Counter Mode.
+	 * Authenticates the messages, runs on the JCA implementation.
+	 * 
+	 * @see AESGCM
+	 */
+	AES128_GCM;
 }
\ No newline at end of file
@@ -0,0 +1,56 @@
+import java.nio.ByteBuffer;
+
+/**
+ * 
+ * Implementation of a {@link Cipher} used by {@link Crypto}.
+ * <p>
+ * A provider turns a message into its encrypted form and back using a raw
+ * {@code array of bytes} key. Whatever the cipher needs besides the key, e.g. a
+ * nonce or an authentication tag, must be carried inside the encrypted message.
+ * Implementations must be thread-safe, the same instance is used for all the
+ * messages of a session in both directions.
+ * 
+ * @see Crypto#setProvider(Cipher, CipherProvider)
+ */
+public interface CipherProvider {
+	/**
+	 * Encrypts the passed data.
+	 * 
+	 * @param byteArray data to be encrypted
+	 * @param byteKey   key to be used for encryption
+	 * @return encrypted data
+	 * @throws UnsupportedOperationException if the passed key is not supported
+	 */
+	byte[] encrypt(byte[] byteArray, byte[] byteKey);
+
+	/**
+	 * Decrypts data produced by {@link #encrypt(byte[], byte[])}.
+	 * 
+	 * @param byteArray data to be decrypted
+	 * @param byteKey   key to use for decryption
+	 * @return decrypted data
+	 * @throws IllegalArgumentException      if the data is malformed or fails the
+	 *                                       authentication
+	 * @throws UnsupportedOperationException if the passed key is not supported
+	 */
+	byte[] decrypt(byte[] byteArray, byte[] byteKey);
+
+	/**
+	 * Decrypts the remaining bytes of the passed buffer, in place if the
+	 * provider supports it. Copies the data into an array passed to
+	 * {@link #decrypt(byte[], byte[])} by default.
+	 * 
+	 * @param data    to be decrypted, its position is moved to its limit
+	 * @param byteKey key to use for decryption
+	 * @return buffer holding the decrypted data between its position and its
+	 *         limit, may share the content of {@code data}
+	 * @throws IllegalArgumentException      if the data is malformed or fails the
+	 *                                       authentication
+	 * @throws UnsupportedOperationException if the passed key is not supported
+	 */
+	default ByteBuffer decrypt(ByteBuffer data, byte[] byteKey) {
+		byte[] array = new byte[data.remaining()];
+		data.get(array);
+		return ByteBuffer.wrap(decrypt(array, byteKey));
+	}
+}
@@ -0,0 +1,197 @@
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ *
+ * A connection to a single peer of a multi-peer server.
+ * <p>
+ * Holds the state shared by all the ways of handling the I/O of a connection,
+ * e.g. the assembly of split messages. The received messages and the
+ * connection events are passed to the {@link ConnectionListener} of the
+ * server. {@link #send(byte[])} and {@link #close()} may be called from any
+ * {@link Thread}. The heartbeats of the peer are answered and an
+ * {@link IdleMonitor} closes the connection once nothing has been received for
+ * the idle timeout.
+ *
+ * @see SelectorServer
+ * @see ThreadPerConnectionServer
+ */
+public abstract class Connection {
+	/**
+	 * Source of the connection identifiers.
+	 */
+	private final static AtomicLong ids = new AtomicLong();
+
+	private final long id;
+	private final String partnerAddress;
+	private final ConnectionListener listener;
+	/**
+	 * Maximum size of a received message.
+	 */
+	private final int maxMessageSize;
+	/**
+	 * Heartbeats and idle detection of the connection.
+	 */
+	final IdleMonitor idleMonitor;
+	/**
+	 * Parts of the message being received, only used by the receiving
+	 * {@link Thread}.
+	 */
+	private PooledBuffer partialMessage;
+
+	private volatile SocketStatus socketStatus = SocketStatus.DISCONNECTED;
+
+	/**
+	 * @param partnerAddress address of the peer as {@link String}
+	 * @param listener       receiving the events of the connection
+	 * @param maxMessageSize maximum size of a received message
+	 * @param options        of the connection
+	 * @param pings          true if the connection pings an idle peer, its
+	 *                       {@link #sendHeartbeat(int, byte[])} must not block
+	 */
+	Connection(String partnerAddress, ConnectionListener listener, int maxMessageSize, ConnectionOptions options,
+			boolean pings) {
+		this.id = ids.incrementAndGet();
+		this.partnerAddress = partnerAddress;
+		this.listener = listener;
+		this.maxMessageSize = maxMessageSize;
+		this.idleMonitor = new IdleMonitor(options, pings ? payload -> sendHeartbeat(Frame.TYPE_PING, payload) : null,
+				this::idle);
+	}
+
+	/**
+	 * Sends the passed message to the peer. Messages longer than the maximum
+	 * frame size are split into several frames.
+	 *
+	 * @param message to be sent
+	 * @throws IOException if the connection is closed or in case of socket
+	 *                     errors
+	 */
+	public abstract void send(byte[] message) throws IOException;
+
+	/**
+	 * Closes the connection. Can be called more than once and from any
+	 * {@link Thread}, the {@link ConnectionListener} is notified only once.
+	 */
+	public abstract void close();
+
+	/**
+	 * Sends a {@link Frame#TYPE_PING} or {@link Frame#TYPE_PONG} frame. Pings
+	 * are sent by the timer {@link Thread} of the {@link IdleMonitor}.
+	 *
+	 * @param type    of the frame
+	 * @param payload of the frame
+	 * @return false if the peer doesn't support the framed protocol or the
+	 *         connection is closed
+	 */
+	abstract boolean sendHeartbeat(int type, byte[] payload);
+
+	/**
+	 * Closes the connection once nothing has been received for the idle
+	 * timeout. Called by the timer {@link Thread}, must not block.
+	 */
+	abstract void idle();
+
+	/**
+	 * Processes a received frame. Heartbeats are answered, other frames than
+	 * {@link Frame#TYPE_MESSAGE} are skipped, the parts of a split message are
+	 * assembled in a buffer of the {@link BufferPool#DEFAULT} pool and the whole
+	 * message is passed to the {@link ConnectionListener}. Releases the frame.
+	 *
+	 * @param frame the received frame
+	 * @throws IOException if the message is longer than the maximum message size
+	 */
+	void receiveFrame(Frame frame) throws IOException {
+		try {
+			if (frame.isHeartbeat()) {
+				byte[] pong = idleMonitor.heartbeatReceived(frame);
+				if (pong != null) {
+					sendHeartbeat(Frame.TYPE_PONG, pong);
+				}
+				return;
+			}
+			if (frame.getType() != Frame.TYPE_MESSAGE) {
+				return;
+			}
+
+			if (partialMessage == null && !frame.hasMore()) {
+				listener.onMessage(this, frame.getPayloadBuffer(), frame.getFlags());
+				return;
+			}
+
+			int size = partialMessage == null ? 0 : partialMessage.buffer().position();
+			if (size + frame.getPayloadLength() > maxMessageSize) {
+				throw new IOException("Message exceeds the limit of " + maxMessageSize + " bytes");
+			}
+			partialMessage = BufferPool.DEFAULT.append(partialMessage, frame.getPayloadBuffer());
+		} finally {
+			frame.release();
+		}
+
+		if (!frame.hasMore()) {
+			PooledBuffer message = partialMessage;
+			partialMessage = null;
+			try {
+				message.buffer().flip();
+				listener.onMessage(this, message.buffer(), frame.getFlags());
+			} finally {
+				message.release();
+			}
+		}
+	}
+
+	/**
+	 * Releases the pooled buffer of a partially received message. Called by the
+	 * receiving {@link Thread} once the connection has been closed.
+	 */
+	void releaseReceiveBuffers() {
+		if (partialMessage != null) {
+			partialMessage.release();
+			partialMessage = null;
+		}
+	}
+
+	/**
+	 * @return the {@link ConnectionListener} receiving the events of the
+	 *         connection
+	 */
+	ConnectionListener getListener() {
+		return listener;
+	}
+
+	/**
+	 * @return maximum size in bytes of a received message
+	 */
+	int getMaxMessageSize() {
+		return maxMessageSize;
+	}
+
+	/**
+	 * @param socketStatus the new {@link SocketStatus} of the connection
+	 */
+	void setSocketStatus(SocketStatus socketStatus) {
+		this.socketStatus = socketStatus;
+	}
+
+	/**
+	 * @return identifier of the connection, unique within the process
+	 */
+	public long getId() {
+		return id;
+	}
+
+	/**
+	 * @return address of the peer as {@link String}
+	 */
+	public String getPartnerAddress() {
+		return partnerAddress;
+	}
+
+	/**
+	 * @return {@link SocketStatus#SERVERMODE} while the connection is open,
+	 *         {@link SocketStatus#DISCONNECTED} otherwise
+	 */
+	public SocketStatus getSocketStatus() {
+		return socketStatus;
+	}
+}
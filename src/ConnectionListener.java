@@ -0,0 +1,72 @@
+import java.nio.ByteBuffer;
+
+/**
+ *
+ * Receives the events of the connections handled by a {@link SelectorServer}
+ * or a {@link ThreadPerConnectionServer}.
+ * <p>
+ * The methods are called on the {@link Thread} doing the I/O of the
+ * connection. With a {@link SelectorServer} that is an event loop shared by
+ * many connections, so the methods must return quickly and hand any long
+ * running work, e.g. decryption of large messages, over to another
+ * {@link Thread}.
+ *
+ */
+public interface ConnectionListener {
+	/**
+	 * Called once a new peer has connected.
+	 *
+	 * @param connection to the peer
+	 */
+	void onConnected(Connection connection);
+
+	/**
+	 * Called for every message received from a peer.
+	 *
+	 * @param connection the message was received from
+	 * @param message    the whole message as sent by the peer, still encrypted
+	 * @see Crypto#decrypt(byte[], String, CipherProvider)
+	 */
+	void onMessage(Connection connection, byte[] message);
+
+	/**
+	 * Called for every message received from a peer together with the flags of
+	 * its last frame, e.g. {@link Frame#FLAG_COMPRESSED}. Passes the message to
+	 * {@link #onMessage(Connection, byte[])} by default.
+	 *
+	 * @param connection the message was received from
+	 * @param message    the whole message as sent by the peer, still encrypted
+	 * @param flags      of the last frame of the message, 0 for messages
+	 *                   received using the original protocol
+	 */
+	default void onMessage(Connection connection, byte[] message, int flags) {
+		onMessage(connection, message);
+	}
+
+	/**
+	 * Called for every message received from a peer, see
+	 * {@link #onMessage(Connection, byte[], int)}. The message is held by a
+	 * pooled buffer which is only valid during the call and may be modified,
+	 * e.g. decrypted in place. Copies the message into an array passed to
+	 * {@link #onMessage(Connection, byte[], int)} by default.
+	 *
+	 * @param connection the message was received from
+	 * @param message    the whole message between the position and the limit of
+	 *                   the buffer, still encrypted
+	 * @param flags      of the last frame of the message, 0 for messages
+	 *                   received using the original protocol
+	 * @see Crypto#decrypt(ByteBuffer, String, CipherProvider)
+	 */
+	default void onMessage(Connection connection, ByteBuffer message, int flags) {
+		byte[] array = new byte[message.remaining()];
+		message.get(array);
+		onMessage(connection, array, flags);
+	}
+
+	/**
+	 * Called once a connection has been closed by either side.
+	 *
+	 * @param connection which has been closed
+	 */
+	void onDisconnected(Connection connection);
+}
@@ -0,0 +1,349 @@
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.function.Function;
+
+/**
+ *
+ * Configurable options of a connection to a peer.
+ * <p>
+ * The options are applied when a connection is established, changing them
+ * doesn't affect the current connection. Buffer sizes of zero keep the
+ * defaults of the operating system.
+ *
+ * @see SocketController#setConnectionOptions(ConnectionOptions)
+ */
+public class ConnectionOptions {
+	/**
+	 * Value of the {@code TCP_NODELAY} option. Enabled by default as the
+	 * {@link SocketWriter} already coalesces small writes.
+	 */
+	private boolean tcpNoDelay = true;
+	/**
+	 * Value of the {@code SO_SNDBUF} option, zero for the system default.
+	 */
+	private int sendBufferSize = 0;
+	/**
+	 * Value of the {@code SO_RCVBUF} option, zero for the system default.
+	 */
+	private int receiveBufferSize = 0;
+	/**
+	 * Capacity of the direct buffer used by the {@link SocketWriter}. A full
+	 * buffer is written to the socket at once.
+	 */
+	private int writeBufferSize = 64 * 1024;
+	/**
+	 * Time the {@link SocketWriter} waits for more data before writing a
+	 * partially filled buffer, zero writes as soon as there is nothing more to
+	 * send.
+	 */
+	private long flushDelayMicros = 0;
+	/**
+	 * Time in milliseconds to wait for a connection to be established.
+	 */
+	private int connectTimeoutMillis = 5000;
+	/**
+	 * Number of bytes of queued messages above which the
+	 * {@link #backpressurePolicy} applies to the sent messages.
+	 */
+	private long highWatermark = 1024 * 1024;
+	/**
+	 * Number of bytes of queued messages the queue has to drain to once the
+	 * {@link #highWatermark} has been exceeded.
+	 */
+	private long lowWatermark = 256 * 1024;
+	/**
+	 * What is done with the messages sent above the {@link #highWatermark}.
+	 */
+	private BackpressurePolicy backpressurePolicy = BackpressurePolicy.BLOCK;
+	/**
+	 * Time in milliseconds without sending anything after which a ping is sent,
+	 * zero disables the pings. See {@link IdleMonitor}.
+	 */
+	private long heartbeatIntervalMillis = 30000;
+	/**
+	 * Time in milliseconds without receiving anything after which the connection
+	 * is closed, zero disables the timeout. Only applies once the peer has sent
+	 * a heartbeat.
+	 */
+	private long idleTimeoutMillis = 90000;
+
+	/**
+	 * Reads the options from startup parameters named {@code tcp-nodelay}
+	 * ({@code true} or {@code false}), {@code send-buffer},
+	 * {@code receive-buffer} and {@code write-buffer} (bytes),
+	 * {@code flush-delay} (microseconds), {@code connect-timeout}
+	 * (milliseconds), {@code send-queue-high} and {@code send-queue-low} (bytes),
+	 * {@code send-queue-policy}, {@code heartbeat-interval} and
+	 * {@code idle-timeout} (milliseconds). Missing parameters keep the defaults.
+	 *
+	 * @param parameters returning the value of the named parameter, null if it
+	 *                   is missing
+	 * @return the options
+	 * @throws IllegalArgumentException if a value is not valid
+	 */
+	public static ConnectionOptions fromParameters(Function<String, String> parameters) {
+		ConnectionOptions options = new ConnectionOptions();
+		String value;
+		if ((value = parameters.apply("tcp-nodelay")) != null) {
+			options.setTcpNoDelay(Boolean.parseBoolean(value.trim()));
+		}
+		if ((value = parameters.apply("send-buffer")) != null) {
+			options.setSendBufferSize(Integer.parseInt(value));
+		}
+		if ((value = parameters.apply("receive-buffer")) != null) {
+			options.setReceiveBufferSize(Integer.parseInt(value));
+		}
+		if ((value = parameters.apply("write-buffer")) != null) {
+			options.setWriteBufferSize(Integer.parseInt(value));
+		}
+		if ((value = parameters.apply("flush-delay")) != null) {
+			options.setFlushDelayMicros(Long.parseLong(value));
+		}
+		if ((value = parameters.apply("connect-timeout")) != null) {
+			options.setConnectTimeoutMillis(Integer.parseInt(value));
+		}
+		if ((value = parameters.apply("send-queue-high")) != null) {
+			options.setHighWatermark(Long.parseLong(value));
+		}
+		if ((value = parameters.apply("send-queue-low")) != null) {
+			options.setLowWatermark(Long.parseLong(value));
+		}
+		if (options.getLowWatermark() > options.getHighWatermark()) {
+			throw new IllegalArgumentException("send-queue-low exceeds send-queue-high");
+		}
+		if ((value = parameters.apply("send-queue-policy")) != null) {
+			options.setBackpressurePolicy(BackpressurePolicy.valueOf(value.trim().toUpperCase()));
+		}
+		if ((value = parameters.apply("heartbeat-interval")) != null) {
+			options.setHeartbeatIntervalMillis(Long.parseLong(value));
+		}
+		if ((value = parameters.apply("idle-timeout")) != null) {
+			options.setIdleTimeoutMillis(Long.parseLong(value));
+		}
+		return options;
+	}
+
+	/**
+	 * Applies the socket level options to the passed {@link Socket}. Must be
+	 * called before the socket is connected for the buffer sizes to take full
+	 * effect.
+	 *
+	 * @param socket to be configured
+	 * @throws SocketException if an option can't be set
+	 */
+	void applyTo(Socket socket) throws SocketException {
+		socket.setTcpNoDelay(tcpNoDelay);
+		if (sendBufferSize > 0) {
+			socket.setSendBufferSize(sendBufferSize);
+		}
+		if (receiveBufferSize > 0) {
+			socket.setReceiveBufferSize(receiveBufferSize);
+		}
+	}
+
+	/**
+	 * @return the value of the {@code TCP_NODELAY} option
+	 */
+	public boolean isTcpNoDelay() {
+		return tcpNoDelay;
+	}
+
+	/**
+	 * @param tcpNoDelay the value of the {@code TCP_NODELAY} option
+	 */
+	public void setTcpNoDelay(boolean tcpNoDelay) {
+		this.tcpNoDelay = tcpNoDelay;
+	}
+
+	/**
+	 * @return the value of the {@code SO_SNDBUF} option, zero for the system
+	 *         default
+	 */
+	public int getSendBufferSize() {
+		return sendBufferSize;
+	}
+
+	/**
+	 * @param sendBufferSize the value of the {@code SO_SNDBUF} option, zero for
+	 *                       the system default
+	 */
+	public void setSendBufferSize(int sendBufferSize) {
+		if (sendBufferSize < 0) {
+			throw new IllegalArgumentException("sendBufferSize");
+		}
+		this.sendBufferSize = sendBufferSize;
+	}
+
+	/**
+	 * @return the value of the {@code SO_RCVBUF} option, zero for the system
+	 *         default
+	 */
+	public int getReceiveBufferSize() {
+		return receiveBufferSize;
+	}
+
+	/**
+	 * @param receiveBufferSize the value of the {@code SO_RCVBUF} option, zero
+	 *                          for the system default
+	 */
+	public void setReceiveBufferSize(int receiveBufferSize) {
+		if (receiveBufferSize < 0) {
+			throw new IllegalArgumentException("receiveBufferSize");
+		}
+		this.receiveBufferSize = receiveBufferSize;
+	}
+
+	/**
+	 * @return the capacity of the write buffer in bytes
+	 */
+	public int getWriteBufferSize() {
+		return writeBufferSize;
+	}
+
+	/**
+	 * @param writeBufferSize the capacity of the write buffer in bytes
+	 */
+	public void setWriteBufferSize(int writeBufferSize) {
+		if (writeBufferSize <= 0) {
+			throw new IllegalArgumentException("writeBufferSize");
+		}
+		this.writeBufferSize = writeBufferSize;
+	}
+
+	/**
+	 * @return the time to wait for more data before writing a partially filled
+	 *         buffer in microseconds
+	 */
+	public long getFlushDelayMicros() {
+		return flushDelayMicros;
+	}
+
+	/**
+	 * @param flushDelayMicros the time to wait for more data before writing a
+	 *                         partially filled buffer in microseconds
+	 */
+	public void setFlushDelayMicros(long flushDelayMicros) {
+		if (flushDelayMicros < 0) {
+			throw new IllegalArgumentException("flushDelayMicros");
+		}
+		this.flushDelayMicros = flushDelayMicros;
+	}
+
+	/**
+	 * @return the time to wait for a connection to be established in
+	 *         milliseconds
+	 */
+	public int getConnectTimeoutMillis() {
+		return connectTimeoutMillis;
+	}
+
+	/**
+	 * @param connectTimeoutMillis the time to wait for a connection to be
+	 *                             established in milliseconds, zero waits as
+	 *                             long as the operating system does
+	 */
+	public void setConnectTimeoutMillis(int connectTimeoutMillis) {
+		if (connectTimeoutMillis < 0) {
+			throw new IllegalArgumentException("connectTimeoutMillis");
+		}
+		this.connectTimeoutMillis = connectTimeoutMillis;
+	}
+
+	/**
+	 * @return the number of bytes of queued messages above which the
+	 *         {@link BackpressurePolicy} applies
+	 */
+	public long getHighWatermark() {
+		return highWatermark;
+	}
+
+	/**
+	 * @param highWatermark the number of bytes of queued messages above which
+	 *                      the {@link BackpressurePolicy} applies
+	 */
+	public void setHighWatermark(long highWatermark) {
+		if (highWatermark <= 0) {
+			throw new IllegalArgumentException("highWatermark");
+		}
+		this.highWatermark = highWatermark;
+	}
+
+	/**
+	 * @return the number of bytes of queued messages the queue has to drain to
+	 *         once the high watermark has been exceeded
+	 */
+	public long getLowWatermark() {
+		return lowWatermark;
+	}
+
+	/**
+	 * @param lowWatermark the number of bytes of queued messages the queue has
+	 *                     to drain to once the high watermark has been exceeded,
+	 *                     not greater than the high watermark
+	 */
+	public void setLowWatermark(long lowWatermark) {
+		if (lowWatermark < 0) {
+			throw new IllegalArgumentException("lowWatermark");
+		}
+		this.lowWatermark = lowWatermark;
+	}
+
+	/**
+	 * @return what is done with the messages sent above the high watermark
+	 */
+	public BackpressurePolicy getBackpressurePolicy() {
+		return backpressurePolicy;
+	}
+
+	/**
+	 * @param backpressurePolicy what is done with the messages sent above the
+	 *                           high watermark
+	 */
+	public void setBackpressurePolicy(BackpressurePolicy backpressurePolicy) {
+		if (backpressurePolicy == null) {
+			throw new NullPointerException("backpressurePolicy");
+		}
+		this.backpressurePolicy = backpressurePolicy;
+	}
+
+	/**
+	 * @return the time without sending anything after which a ping is sent in
+	 *         milliseconds, zero if the pings are disabled
+	 */
+	public long getHeartbeatIntervalMillis() {
+		return heartbeatIntervalMillis;
+	}
+
+	/**
+	 * @param heartbeatIntervalMillis the time without sending anything after
+	 *                                which a ping is sent in milliseconds, zero
+	 *                                disables the pings
+	 */
+	public void setHeartbeatIntervalMillis(long heartbeatIntervalMillis) {
+		if (heartbeatIntervalMillis < 0) {
+			throw new IllegalArgumentException("heartbeatIntervalMillis");
+		}
+		this.heartbeatIntervalMillis = heartbeatIntervalMillis;
+	}
+
+	/**
+	 * @return the time without receiving anything after which the connection is
+	 *         closed in milliseconds, zero if the timeout is disabled
+	 */
+	public long getIdleTimeoutMillis() {
+		return idleTimeoutMillis;
+	}
+
+	/**
+	 * @param idleTimeoutMillis the time without receiving anything after which
+	 *                          the connection is closed in milliseconds, zero
+	 *                          disables the timeout. Should exceed the
+	 *                          heartbeat interval of the peer.
+	 */
+	public void setIdleTimeoutMillis(long idleTimeoutMillis) {
+		if (idleTimeoutMillis < 0) {
+			throw new IllegalArgumentException("idleTimeoutMillis");
+		}
+		this.idleTimeoutMillis = idleTimeoutMillis;
+	}
+}
@@ -0,0 +1,58 @@
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ *
+ * A monotonically increasing count, e.g. of the sent bytes.
+ * <p>
+ * Backed by a {@link LongAdder}, so threads incrementing the counter at the
+ * same time don't contend on a single memory location.
+ *
+ */
+public class Counter extends Metric {
+	private final LongAdder count = new LongAdder();
+
+	/**
+	 * @param name of the counter, ending with {@code _total}
+	 * @param help description of the counter
+	 */
+	public Counter(String name, String help) {
+		super(name, help);
+	}
+
+	/**
+	 * Adds one to the count.
+	 */
+	public void increment() {
+		count.increment();
+	}
+
+	/**
+	 * @param value to be added to the count, not negative
+	 */
+	public void add(long value) {
+		count.add(value);
+	}
+
+	/**
+	 * @return the current count
+	 */
+	public long get() {
+		return count.sum();
+	}
+
+	@Override
+	void format(StringBuilder out) {
+		out.append(getName()).append(' ').append(get()).append('\n');
+	}
+
+	@Override
+	void collect(Map<String, Object> attributes) {
+		attributes.put(getName(), get());
+	}
+
+	@Override
+	String getType() {
+		return "counter";
+	}
+}
@@ -1,4 +1,7 @@
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
+import java.util.EnumMap;
+import java.util.Map;
 
 /**
  * The Crypto class provides static methods for encryption and decryption of
@@ -6,7 +9,9 @@ import java.nio.charset.Charset;
  * <p>
  * The encryption/decryption is done using one of the supported Ciphers and the
  * passed {@link String} key. Messages are converted from {@link String} to
- * {@code array of bytes} and back using the {@link #charset}.
+ * {@code array of bytes} and back using the {@link #charset}. Each
+ * {@link Cipher} is implemented by a {@link CipherProvider}, which can be
+ * replaced with {@link #setProvider(Cipher, CipherProvider)}.
  * 
  * @see Cipher
  *
@@ -18,6 +23,24 @@ public class Crypto {
 	 */
 	private static Charset charset = Charset.forName("UTF-8");
 
+	/**
+	 * The {@link CipherProvider} implementing each of the supported
+	 * {@link Cipher}s. {@link Cipher#NONE} has no provider.
+	 */
+	private static final Map<Cipher, CipherProvider> providers = new EnumMap<Cipher, CipherProvider>(Cipher.class);
+
+	static {
+		providers.put(Cipher.AES128, new AES());
+		providers.put(Cipher.AES128_CTR, new AESCounterMode());
+		providers.put(Cipher.AES128_GCM, new AESGCM());
+	}
+
+	/**
+	 * The most recently used key, so that the key of a session isn't converted
+	 * to bytes for every message.
+	 */
+	private static volatile KeyBytes lastKey;
+
 	/**
 	 * Encrypts the passed text using the passed {@link Cipher} and {@link String}
 	 * key. Text is interpreted using the current {@link #charset}.
@@ -29,15 +52,36 @@ public class Crypto {
 	 * @see Cipher
 	 */
 	public static byte[] encrypt(String text, String key, Cipher cipher) {
-		byte[] byteArray = text.getBytes(charset);
-		byte[] byteKey = key.getBytes(charset);
-
-		switch (cipher) {
-		case AES128:
-			byteArray = new AES().encrypt(byteArray, byteKey);
-			break;
-		default:
-			//
+		return encrypt(text, key, getProvider(cipher));
+	}
+
+	/**
+	 * Encrypts the passed text using the passed {@link CipherProvider} and
+	 * {@link String} key. Text is interpreted using the current {@link #charset}.
+	 * 
+	 * @param text     to be encrypted
+	 * @param key      to be used for encryption
+	 * @param provider to encrypt with, null to leave the text unencrypted
+	 * @return encrypted text as {@code array of bytes}
+	 */
+	public static byte[] encrypt(String text, String key, CipherProvider provider) {
+		return encryptBytes(text.getBytes(charset), key, provider);
+	}
+
+	/**
+	 * Encrypts the passed {@code array of bytes} using the passed
+	 * {@link CipherProvider} and {@link String} key.
+	 * 
+	 * @param byteArray message to be encrypted
+	 * @param key       to be used for encryption
+	 * @param provider  to encrypt with, null to leave the message unencrypted
+	 * @return encrypted message
+	 */
+	public static byte[] encryptBytes(byte[] byteArray, String key, CipherProvider provider) {
+		if (provider != null) {
+			long start = System.nanoTime();
+			byteArray = provider.encrypt(byteArray, getKeyBytes(key));
+			Metrics.ENCRYPT_TIME.recordSince(start);
 		}
 
 		return byteArray;
@@ -52,18 +96,141 @@ public class Crypto {
 	 * @param key       to use for decryption
 	 * @param cipher    to use for decryption
 	 * @return decrypted text as {@code String}
+	 * @throws IllegalArgumentException if the message is malformed
 	 */
 	public static String decrypt(byte[] byteArray, String key, Cipher cipher) {
-		byte[] byteKey = key.getBytes(charset);
-
-		switch (cipher) {
-		case AES128:
-			byteArray = new AES().decrypt(byteArray, byteKey);
-			break;
-		default:
-			//
+		return decrypt(byteArray, key, getProvider(cipher));
+	}
+
+	/**
+	 * Decrypts the passed {@code array of bytes} using the passed
+	 * {@link CipherProvider} and {@link String} key. The resulting
+	 * {@code array of bytes} message is interpreted as text using
+	 * {@link #charset}.
+	 * 
+	 * @param byteArray message to be decrypted
+	 * @param key       to use for decryption
+	 * @param provider  to use for decryption, null if the message isn't encrypted
+	 * @return decrypted text as {@code String}
+	 * @throws IllegalArgumentException if the message is malformed
+	 */
+	public static String decrypt(byte[] byteArray, String key, CipherProvider provider) {
+		return new String(decryptBytes(byteArray, key, provider), charset);
+	}
+
+	/**
+	 * Decrypts the passed {@code array of bytes} using the passed
+	 * {@link CipherProvider} and {@link String} key.
+	 * 
+	 * @param byteArray message to be decrypted
+	 * @param key       to use for decryption
+	 * @param provider  to use for decryption, null if the message isn't encrypted
+	 * @return decrypted message
+	 * @throws IllegalArgumentException if the message is malformed
+	 */
+	public static byte[] decryptBytes(byte[] byteArray, String key, CipherProvider provider) {
+		if (provider != null) {
+			long start = System.nanoTime();
+			byteArray = provider.decrypt(byteArray, getKeyBytes(key));
+			Metrics.DECRYPT_TIME.recordSince(start);
 		}
 
-		return new String(byteArray, charset);
+		return byteArray;
+	}
+
+	/**
+	 * Decrypts the remaining bytes of the passed buffer using the passed
+	 * {@link CipherProvider} and {@link String} key. The providers of this
+	 * package decrypt a buffer backed by an array in place.
+	 * 
+	 * @param message  to be decrypted, its position is moved to its limit
+	 * @param key      to use for decryption
+	 * @param provider to use for decryption, null if the message isn't encrypted
+	 * @return buffer holding the decrypted message between its position and its
+	 *         limit, may share the content of {@code message}
+	 * @throws IllegalArgumentException if the message is malformed
+	 */
+	public static ByteBuffer decrypt(ByteBuffer message, String key, CipherProvider provider) {
+		if (provider == null) {
+			ByteBuffer result = message.slice();
+			message.position(message.limit());
+			return result;
+		}
+
+		long start = System.nanoTime();
+		ByteBuffer result = provider.decrypt(message, getKeyBytes(key));
+		Metrics.DECRYPT_TIME.recordSince(start);
+		return result;
+	}
+
+	/**
+	 * Converts a key to bytes using the {@link #charset}. The conversion of the
+	 * most recently used key is cached.
+	 * 
+	 * @param key to be converted
+	 * @return the key as {@code array of bytes}, must not be modified
+	 */
+	static byte[] getKeyBytes(String key) {
+		KeyBytes cached = lastKey;
+		if (cached == null || !cached.key.equals(key)) {
+			cached = new KeyBytes(key);
+			lastKey = cached;
+		}
+		return cached.bytes;
+	}
+
+	/**
+	 * @return the {@link Charset} used for {@link String} to
+	 *         {@code array of bytes} and back conversions
+	 */
+	public static Charset getCharset() {
+		return charset;
+	}
+
+	/**
+	 * @param cipher whose implementation is requested
+	 * @return the {@link CipherProvider} currently used for the passed
+	 *         {@link Cipher}, null for {@link Cipher#NONE}
+	 */
+	public static CipherProvider getProvider(Cipher cipher) {
+		synchronized (providers) {
+			return providers.get(cipher);
+		}
+	}
+
+	/**
+	 * Replaces the implementation of the passed {@link Cipher}. Sessions keep the
+	 * provider picked when they selected the cipher, so only the sessions
+	 * selecting it after the call are affected.
+	 * 
+	 * @param cipher   to be implemented
+	 * @param provider implementation of the cipher
+	 */
+	public static void setProvider(Cipher cipher, CipherProvider provider) {
+		if (cipher == Cipher.NONE) {
+			throw new IllegalArgumentException("Cipher.NONE can't have a provider");
+		}
+		if (provider == null) {
+			throw new NullPointerException("provider");
+		}
+
+		synchronized (providers) {
+			providers.put(cipher, provider);
+		}
+	}
+
+	/**
+	 * 
+	 * A key together with its conversion to bytes.
+	 *
+	 */
+	private static class KeyBytes {
+		final String key;
+		final byte[] bytes;
+
+		KeyBytes(String key) {
+			this.key = key;
+			this.bytes = key.getBytes(charset);
+		}
 	}
 }
@@ -0,0 +1,22 @@
+/**
+ *
+ * How a {@link MessengerEngine} handles the messages a connection failure may
+ * have lost, see {@link MessengerEngine#setDeliveryGuarantee(DeliveryGuarantee)}.
+ * <p>
+ * In both cases the messages sent while the engine reconnects are queued and
+ * sent once it has reconnected.
+ *
+ */
+public enum DeliveryGuarantee {
+	/**
+	 * A message is handed to the socket at most once. Messages written before
+	 * the connection failed may have been lost, they are not sent again.
+	 */
+	AT_MOST_ONCE,
+
+	/**
+	 * Messages not acknowledged by the peer when the connection fails are sent
+	 * again on the next connection, so the peer may receive some of them twice.
+	 */
+	AT_LEAST_ONCE
+}
@@ -0,0 +1,162 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ *
+ * A {@link Thread} multiplexing many non-blocking connections with a single
+ * {@link Selector}.
+ * <p>
+ * All the operations on the registered channels run on the loop
+ * {@link Thread}, other threads pass work to it with
+ * {@link #execute(Runnable)}.
+ *
+ * @see SelectorServer
+ */
+class EventLoop {
+	/**
+	 * Maximum number of buffers passed to a single gathering write.
+	 */
+	final static int MAX_GATHER = 64;
+
+	private final Selector selector;
+	private final Thread thread;
+	/**
+	 * Work passed to the loop {@link Thread}.
+	 */
+	private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+	/**
+	 * Buffer the data of all the connections of the loop is read into before it
+	 * is decoded.
+	 */
+	final ByteBuffer readBuffer = ByteBuffer.allocateDirect(64 * 1024);
+	/**
+	 * Array reused by the gathering writes of all the connections of the loop.
+	 */
+	final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+
+	private volatile boolean running = true;
+
+	/**
+	 * Opens the {@link Selector} and starts the loop {@link Thread}.
+	 *
+	 * @param name of the {@link Thread}
+	 * @throws IOException if the {@link Selector} can't be opened
+	 */
+	EventLoop(String name) throws IOException {
+		selector = Selector.open();
+		thread = new Thread(this::run, name);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * @return the {@link Selector} of the loop
+	 */
+	Selector selector() {
+		return selector;
+	}
+
+	/**
+	 * Runs the passed task on the loop {@link Thread}.
+	 *
+	 * @param task to be run
+	 */
+	void execute(Runnable task) {
+		tasks.add(task);
+		if (Thread.currentThread() != thread) {
+			selector.wakeup();
+		}
+	}
+
+	/**
+	 * @return true if called from the loop {@link Thread}
+	 */
+	boolean inEventLoop() {
+		return Thread.currentThread() == thread;
+	}
+
+	/**
+	 * Stops the loop and closes the {@link Selector}. Doesn't close the
+	 * registered channels.
+	 */
+	void stop() {
+		running = false;
+		selector.wakeup();
+	}
+
+	/**
+	 * The loop of the {@link Thread}.
+	 */
+	private void run() {
+		try {
+			while (running) {
+				// Work queued by the loop itself didn't wake the selector up
+				if (tasks.isEmpty()) {
+					selector.select();
+				} else {
+					selector.selectNow();
+				}
+				runTasks();
+
+				Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+				while (iterator.hasNext()) {
+					SelectionKey key = iterator.next();
+					iterator.remove();
+					if (!key.isValid()) {
+						continue;
+					}
+
+					Object attachment = key.attachment();
+					if (attachment instanceof SelectorConnection) {
+						SelectorConnection connection = (SelectorConnection) attachment;
+						try {
+							if (key.isReadable()) {
+								connection.handleRead();
+							}
+							if (key.isValid() && key.isWritable()) {
+								connection.flush();
+							}
+						} catch (RuntimeException e) {
+							// Only the failing connection is lost, not the whole loop
+							e.printStackTrace();
+							connection.close();
+						}
+					} else if (attachment instanceof SelectorServer && key.isAcceptable()) {
+						try {
+							((SelectorServer) attachment).accept();
+						} catch (RuntimeException e) {
+							e.printStackTrace();
+						}
+					}
+				}
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			try {
+				selector.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Runs the work passed to the loop {@link Thread}.
+	 */
+	private void runTasks() {
+		Runnable task;
+		while ((task = tasks.poll()) != null) {
+			try {
+				task.run();
+			} catch (RuntimeException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+}
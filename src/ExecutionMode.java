@@ -0,0 +1,116 @@
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ *
+ * Kinds of {@link Thread}s running the blocking I/O of the connections.
+ * <p>
+ * Selected at startup, e.g. by the {@code --execution-mode} parameter of
+ * {@link SimpleMessenger} and {@link MessengerDaemon}.
+ *
+ * @see ThreadPerConnectionServer
+ */
+public enum ExecutionMode {
+	/**
+	 * Every connection is handled by its own platform {@link Thread}.
+	 */
+	PLATFORM,
+
+	/**
+	 * Every connection is handled by its own virtual {@link Thread}. Requires
+	 * Java 21 or later. A blocked virtual thread doesn't hold an OS thread, so
+	 * tens of thousands of idle connections cost little memory.
+	 */
+	VIRTUAL;
+
+	/**
+	 * Creates a {@link ThreadFactory} of the mode. The created threads are
+	 * daemons named by the passed prefix followed by a sequence number.
+	 *
+	 * @param prefix of the names of the threads
+	 * @return the {@link ThreadFactory}
+	 * @throws UnsupportedOperationException if the mode is not supported by the
+	 *                                       running Java version
+	 */
+	ThreadFactory threadFactory(String prefix) {
+		if (this == VIRTUAL) {
+			return virtualThreadFactory(prefix);
+		}
+
+		AtomicLong count = new AtomicLong();
+		return task -> {
+			Thread thread = new Thread(task, prefix + "-" + count.getAndIncrement());
+			thread.setDaemon(true);
+			return thread;
+		};
+	}
+
+	/**
+	 * @return true if the mode is supported by the running Java version
+	 */
+	public boolean isSupported() {
+		try {
+			threadFactory("Probe");
+			return true;
+		} catch (UnsupportedOperationException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Parses the value of a startup parameter.
+	 *
+	 * @param value name of the mode, case insensitive
+	 * @return the {@link ExecutionMode}
+	 * @throws IllegalArgumentException if there is no such mode
+	 */
+	public static ExecutionMode parse(String value) {
+		return valueOf(value.trim().toUpperCase());
+	}
+
+	/**
+	 * Reads the {@link ExecutionMode} selected by a startup parameter. Falls back
+	 * to {@link #PLATFORM} if the parameter is missing or if the selected mode is
+	 * unknown or not supported.
+	 *
+	 * @param value of the parameter, may be null
+	 * @return the selected {@link ExecutionMode}
+	 */
+	public static ExecutionMode fromParameter(String value) {
+		if (value == null) {
+			return PLATFORM;
+		}
+
+		try {
+			ExecutionMode executionMode = parse(value);
+			if (executionMode.isSupported()) {
+				return executionMode;
+			}
+			System.err.println("Execution mode " + executionMode + " is not supported, using " + PLATFORM);
+		} catch (IllegalArgumentException e) {
+			System.err.println("Unknown execution mode " + value + ", using " + PLATFORM);
+		}
+		return PLATFORM;
+	}
+
+	/**
+	 * Obtains {@code Thread.ofVirtual().name(prefix + "-", 0).factory()}. The
+	 * program targets Java 8, so the API is looked up at run time.
+	 */
+	private static ThreadFactory virtualThreadFactory(String prefix) {
+		try {
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+			Method name = builderClass.getMethod("name", String.class, long.class);
+			builder = name.invoke(builder, prefix + "-", 0L);
+			return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+		} catch (NoSuchMethodException | ClassNotFoundException | IllegalAccessException e) {
+			throw new UnsupportedOperationException("Virtual threads require Java 21 or later", e);
+		} catch (InvocationTargetException e) {
+			// Java 19 and 20 only allow virtual threads with --enable-preview
+			throw new UnsupportedOperationException("Virtual threads are not enabled", e.getCause());
+		}
+	}
+}
@@ -0,0 +1,197 @@
+import java.nio.file.Path;
+
+/**
+ *
+ * A file sent to or received from the peer, see {@link FileTransferController}.
+ *
+ */
+public class FileTransfer {
+	private final FileTransferController controller;
+	private final long id;
+	private final boolean outgoing;
+	private final String name;
+	private final long size;
+
+	/**
+	 * Sent file, or the received file once it's complete.
+	 */
+	private volatile Path path;
+	/**
+	 * Offset the transfer has started or resumed from.
+	 */
+	private volatile long offset;
+	/**
+	 * Number of bytes of the file sent or received so far, including the offset.
+	 */
+	private volatile long transferred;
+	/**
+	 * Current state, guarded by the transfer.
+	 */
+	private TransferState state = TransferState.WAITING;
+	private volatile String failure;
+	/**
+	 * Time of the last progress report, see
+	 * {@link MessengerListener#onFileTransfer(FileTransfer)}.
+	 */
+	private long reportedNanos;
+
+	/**
+	 * @param controller running the transfer
+	 * @param id         identifier of the transfer given by the sender
+	 * @param outgoing   true if the file is sent to the peer
+	 * @param name       of the file without any directory
+	 * @param size       of the file in bytes
+	 * @param path       of the sent file, null for received files
+	 */
+	FileTransfer(FileTransferController controller, long id, boolean outgoing, String name, long size, Path path) {
+		this.controller = controller;
+		this.id = id;
+		this.outgoing = outgoing;
+		this.name = name;
+		this.size = size;
+		this.path = path;
+	}
+
+	/**
+	 * Cancels the transfer. A received file keeps its partial content.
+	 */
+	public void cancel() {
+		controller.cancel(this);
+	}
+
+	/**
+	 * Moves the transfer from {@link TransferState#WAITING} to
+	 * {@link TransferState#RUNNING}.
+	 *
+	 * @param offset the transfer starts from
+	 * @return false if the transfer has already ended
+	 */
+	synchronized boolean start(long offset) {
+		if (state != TransferState.WAITING) {
+			return false;
+		}
+		this.offset = offset;
+		this.transferred = offset;
+		state = TransferState.RUNNING;
+		return true;
+	}
+
+	/**
+	 * Ends the transfer.
+	 *
+	 * @param state   {@link TransferState#COMPLETED} or
+	 *                {@link TransferState#FAILED}
+	 * @param failure reason of the failure, null on completion
+	 * @return false if the transfer had already ended
+	 */
+	synchronized boolean finish(TransferState state, String failure) {
+		if (this.state == TransferState.COMPLETED || this.state == TransferState.FAILED) {
+			return false;
+		}
+		this.failure = failure;
+		this.state = state;
+		notifyAll();
+		return true;
+	}
+
+	/**
+	 * @param count number of bytes sent or received
+	 */
+	void addTransferred(long count) {
+		transferred += count;
+	}
+
+	/**
+	 * @param path of the complete received file
+	 */
+	void setPath(Path path) {
+		this.path = path;
+	}
+
+	/**
+	 * Checks whether a progress report is due.
+	 *
+	 * @param now      current value of {@link System#nanoTime()}
+	 * @param interval minimum time between two reports in nanoseconds
+	 * @return true if the progress is to be reported
+	 */
+	synchronized boolean reportDue(long now, long interval) {
+		if (now - reportedNanos < interval) {
+			return false;
+		}
+		reportedNanos = now;
+		return true;
+	}
+
+	/**
+	 * @return identifier of the transfer given by the sender
+	 */
+	public long getId() {
+		return id;
+	}
+
+	/**
+	 * @return true if the file is sent to the peer, false if it's received
+	 */
+	public boolean isOutgoing() {
+		return outgoing;
+	}
+
+	/**
+	 * @return name of the file without any directory
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return size of the file in bytes
+	 */
+	public long getSize() {
+		return size;
+	}
+
+	/**
+	 * @return the sent file, or the received file once it's complete, null
+	 *         before
+	 */
+	public Path getPath() {
+		return path;
+	}
+
+	/**
+	 * @return offset the transfer has started or resumed from
+	 */
+	public long getOffset() {
+		return offset;
+	}
+
+	/**
+	 * @return number of bytes sent or received so far, including the offset
+	 */
+	public long getTransferred() {
+		return transferred;
+	}
+
+	/**
+	 * @return part of the file transferred so far, from 0 to 1
+	 */
+	public double getProgress() {
+		return size == 0 ? 1 : (double) transferred / size;
+	}
+
+	/**
+	 * @return the current {@link TransferState}
+	 */
+	public synchronized TransferState getState() {
+		return state;
+	}
+
+	/**
+	 * @return reason of the failure, null unless the state is
+	 *         {@link TransferState#FAILED}
+	 */
+	public String getFailure() {
+		return failure;
+	}
+}
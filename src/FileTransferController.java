@@ -0,0 +1,685 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ *
+ * Sends and receives files over the connection of a {@link SocketController}.
+ * <p>
+ * The sender offers a file by a {@link Frame#TYPE_FILE_OFFER} frame holding
+ * its size and encrypted name. The receiver answers by a
+ * {@link Frame#TYPE_FILE_ACCEPT} frame holding the offset to start from, which
+ * is the length of the partial file left by an earlier attempt, or declines by
+ * a {@link Frame#TYPE_FILE_REJECT} frame. The file then follows in
+ * {@link Frame#TYPE_FILE_DATA} frames of {@value #CHUNK_SIZE} bytes, each
+ * holding the identifier of the transfer, the offset of the chunk, its length
+ * and the chunk encrypted on its own:
+ *
+ * <pre>
+ * long id, long offset, int length, chunk
+ * </pre>
+ *
+ * The length is the one of the chunk before its encryption, as a block cipher
+ * pads the chunk. The name of an offered file is preceded by its length the
+ * same way. The receiver confirms a completely written file by a
+ * {@link Frame#TYPE_FILE_COMPLETE} frame, the sender only reports the
+ * transfer completed once confirmed.
+ *
+ * A {@link Thread} per sent file queues the chunks to the {@link SocketWriter}
+ * of the connection, at most {@value #MAX_CHUNKS_IN_FLIGHT} at a time, so the
+ * messages sent meanwhile only wait for the chunks already queued. Without a
+ * cipher the chunks are written straight from the file by
+ * {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)}.
+ * With a cipher the {@link Thread} reads and encrypts the next chunk while the
+ * writer sends the previous ones.
+ * <p>
+ * Received files are written to the download directory with the
+ * {@value #PART_SUFFIX} suffix, which is removed once they're complete. They're
+ * declined without a download directory, if they exceed the maximum file size
+ * or if the disk lacks the space for them.
+ *
+ */
+public class FileTransferController {
+	/**
+	 * Size of the chunks of a file.
+	 */
+	final static int CHUNK_SIZE = 64 * 1024;
+	/**
+	 * Maximum number of chunks of a file queued to the {@link SocketWriter}.
+	 */
+	private final static int MAX_CHUNKS_IN_FLIGHT = 4;
+	/**
+	 * Minimum time between two progress reports of a transfer.
+	 */
+	private final static long PROGRESS_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(200);
+	private final static String PART_SUFFIX = ".part";
+	/**
+	 * Default maximum size of a received file in bytes.
+	 */
+	public final static long DEFAULT_MAX_FILE_SIZE = 1024L * 1024 * 1024;
+	/**
+	 * Size of the identifier, the offset and the length preceding the content
+	 * of the frames.
+	 */
+	private final static int PREFIX_SIZE = 20;
+
+	private final SocketController socketController;
+	private final ExecutionMode executionMode;
+	private final MessengerListener listener;
+
+	private final AtomicLong nextId = new AtomicLong();
+	private final Map<Long, Outgoing> outgoing = new ConcurrentHashMap<Long, Outgoing>();
+	private final Map<Long, Incoming> incoming = new ConcurrentHashMap<Long, Incoming>();
+	/**
+	 * Buffers the sent chunks are read into before their encryption.
+	 */
+	private final BlockingQueue<byte[]> bufferPool = new ArrayBlockingQueue<byte[]>(MAX_CHUNKS_IN_FLIGHT);
+	/**
+	 * Directory the received files are written to, null to decline them.
+	 */
+	private volatile Path downloadDirectory;
+	/**
+	 * Maximum size of a received file in bytes.
+	 */
+	private volatile long maxFileSize = DEFAULT_MAX_FILE_SIZE;
+
+	/**
+	 * @param socketController connection the files are sent over
+	 * @param executionMode    kind of the {@link Thread}s sending the files
+	 * @param listener         receiving the progress of the transfers
+	 */
+	public FileTransferController(SocketController socketController, ExecutionMode executionMode,
+			MessengerListener listener) {
+		this.socketController = socketController;
+		this.executionMode = executionMode;
+		this.listener = listener;
+	}
+
+	/**
+	 * Offers the passed file to the peer and sends it once the peer accepts it.
+	 *
+	 * @param path     of the file
+	 * @param provider to encrypt the file with, null to send it unencrypted
+	 * @param key      to encrypt the file with
+	 * @return the transfer
+	 * @throws IOException if the file can't be read or the peer doesn't support
+	 *                     the framed protocol
+	 */
+	public FileTransfer send(Path path, CipherProvider provider, String key) throws IOException {
+		if (!socketController.isFraming()) {
+			throw new IOException("The peer doesn't support file transfers");
+		}
+
+		long id = nextId.getAndIncrement();
+		FileTransfer transfer = new FileTransfer(this, id, true, path.getFileName().toString(), Files.size(path),
+				path);
+		Outgoing out = new Outgoing(transfer, provider, key);
+		outgoing.put(id, out);
+		byte[] name = transfer.getName().getBytes(StandardCharsets.UTF_8);
+		try {
+			socketController.sendFrame(Frame.TYPE_FILE_OFFER, prefix(id, transfer.getSize(), name.length),
+					Crypto.encryptBytes(name, key, provider), null);
+		} catch (IOException e) {
+			outgoing.remove(id);
+			throw e;
+		}
+
+		listener.onFileTransfer(transfer);
+		out.thread = executionMode.threadFactory("FileSender").newThread(() -> run(out));
+		out.thread.start();
+		return transfer;
+	}
+
+	/**
+	 * The loop of the {@link Thread} sending a file.
+	 */
+	private void run(Outgoing out) {
+		FileTransfer transfer = out.transfer;
+		try (FileChannel file = FileChannel.open(transfer.getPath(), StandardOpenOption.READ)) {
+			try {
+				long position = out.awaitAccept();
+				if (!transfer.start(position)) {
+					return;
+				}
+				listener.onFileTransfer(transfer);
+
+				while (position < transfer.getSize() && transfer.getState() == TransferState.RUNNING) {
+					out.window.acquire();
+					int count = (int) Math.min(CHUNK_SIZE, transfer.getSize() - position);
+					Runnable onWritten = () -> {
+						transfer.addTransferred(count);
+						out.window.release();
+					};
+					byte[] prefix = prefix(transfer.getId(), position, count);
+					if (out.provider == null) {
+						socketController.sendFrame(Frame.TYPE_FILE_DATA, prefix, file, position, count, onWritten);
+					} else {
+						socketController.sendFrame(Frame.TYPE_FILE_DATA, prefix, readChunk(file, position, count, out),
+								onWritten);
+					}
+					position += count;
+					report(transfer);
+				}
+			} finally {
+				awaitWritten(out);
+			}
+
+			// The peer may still decline the file, e.g. if it fails to write it
+			if (out.awaitCompletion() && transfer.finish(TransferState.COMPLETED, null)) {
+				listener.onFileTransfer(transfer);
+			}
+		} catch (IOException e) {
+			fail(transfer, e.getMessage());
+			cancelOutgoing(out);
+		} catch (InterruptedException e) {
+			// Interrupted by disconnected()
+			fail(transfer, "Disconnected");
+		} finally {
+			outgoing.remove(transfer.getId());
+		}
+	}
+
+	/**
+	 * Blocks until the queued chunks of the passed file have been written, as
+	 * they still read the file, or until the connection is closed.
+	 */
+	private static void awaitWritten(Outgoing out) {
+		while (!out.disconnected) {
+			try {
+				if (out.window.tryAcquire(MAX_CHUNKS_IN_FLIGHT, 100, TimeUnit.MILLISECONDS)) {
+					return;
+				}
+			} catch (InterruptedException e) {
+				// Interrupted by disconnected()
+			}
+		}
+	}
+
+	/**
+	 * Reads a chunk of the sent file and encrypts it.
+	 */
+	private byte[] readChunk(FileChannel file, long position, int count, Outgoing out) throws IOException {
+		byte[] buffer = bufferPool.poll();
+		if (buffer == null) {
+			buffer = new byte[CHUNK_SIZE];
+		}
+		try {
+			ByteBuffer chunk = ByteBuffer.wrap(buffer, 0, count);
+			while (chunk.hasRemaining()) {
+				if (file.read(chunk, position + chunk.position()) < 0) {
+					throw new IOException("The file has been truncated");
+				}
+			}
+			return Crypto.encryptBytes(count == buffer.length ? buffer : Arrays.copyOf(buffer, count), out.key,
+					out.provider);
+		} finally {
+			bufferPool.offer(buffer);
+		}
+	}
+
+	/**
+	 * Passes a frame of a file transfer received from the peer.
+	 *
+	 * @param frame    the received frame
+	 * @param provider to decrypt the frame with, null if it isn't encrypted
+	 * @param key      to decrypt the frame with
+	 */
+	public void handleFrame(Frame frame, CipherProvider provider, String key) {
+		byte[] payload = frame.getPayload();
+		if (payload.length < PREFIX_SIZE) {
+			return;
+		}
+		ByteBuffer prefix = ByteBuffer.wrap(payload);
+		long id = prefix.getLong();
+		long value = prefix.getLong();
+		int length = prefix.getInt();
+
+		switch (frame.getType()) {
+		case Frame.TYPE_FILE_OFFER:
+			receiveOffer(id, value, Arrays.copyOfRange(payload, PREFIX_SIZE, payload.length), length, provider,
+					key);
+			break;
+		case Frame.TYPE_FILE_ACCEPT:
+			Outgoing out = outgoing.get(id);
+			if (out != null) {
+				out.accept(value);
+			}
+			break;
+		case Frame.TYPE_FILE_DATA:
+			receiveChunk(id, value, payload, length, provider, key);
+			break;
+		case Frame.TYPE_FILE_COMPLETE:
+			out = outgoing.get(id);
+			if (out != null) {
+				out.complete();
+			}
+			break;
+		case Frame.TYPE_FILE_REJECT:
+			out = outgoing.get(id);
+			if (out != null) {
+				fail(out.transfer, "Declined by the peer");
+			}
+			break;
+		case Frame.TYPE_FILE_CANCEL:
+			Incoming in = incoming.remove(id);
+			if (in != null) {
+				in.close();
+				fail(in.transfer, "Cancelled by the peer");
+			}
+			break;
+		default:
+			break;
+		}
+	}
+
+	/**
+	 * Accepts an offered file if there is a download directory, the file isn't
+	 * larger than the maximum file size and fits on the disk, resuming a partial
+	 * file of the same name.
+	 */
+	private void receiveOffer(long id, long size, byte[] encryptedName, int nameLength, CipherProvider provider,
+			String key) {
+		Path directory = downloadDirectory;
+		String name;
+		try {
+			byte[] decryptedName = Crypto.decryptBytes(encryptedName, key, provider);
+			if (nameLength < 0 || nameLength > decryptedName.length) {
+				throw new IllegalArgumentException("Malformed file name");
+			}
+			name = sanitize(new String(decryptedName, 0, nameLength, StandardCharsets.UTF_8));
+		} catch (IllegalArgumentException e) {
+			reject(id);
+			return;
+		}
+		FileTransfer transfer = new FileTransfer(this, id, false, name, size, null);
+		if (directory == null) {
+			reject(id);
+			fail(transfer, "File transfers are disabled");
+			return;
+		}
+		if (size < 0 || size > maxFileSize) {
+			reject(id);
+			fail(transfer, "The file exceeds the limit of " + maxFileSize + " bytes");
+			return;
+		}
+
+		try {
+			Files.createDirectories(directory);
+			Path partPath = directory.resolve(name + PART_SUFFIX);
+			for (Incoming in : incoming.values()) {
+				if (in.partPath.equals(partPath)) {
+					throw new IOException("A file of the same name is being received");
+				}
+			}
+			long partial = Files.exists(partPath) ? Math.min(Files.size(partPath), size) : 0;
+			if (Files.getFileStore(directory).getUsableSpace() < size - partial) {
+				throw new IOException("Not enough disk space for " + size + " bytes");
+			}
+			FileChannel file = FileChannel.open(partPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+			long offset = file.size();
+			if (offset > size) {
+				file.truncate(0);
+				offset = 0;
+			}
+			Incoming in = new Incoming(transfer, file, partPath);
+			incoming.put(id, in);
+			transfer.start(offset);
+			socketController.sendFrame(Frame.TYPE_FILE_ACCEPT, prefix(id, offset), null, null);
+			listener.onFileTransfer(transfer);
+			if (offset == size) {
+				complete(in);
+			}
+		} catch (IOException e) {
+			Incoming in = incoming.remove(id);
+			if (in != null) {
+				in.close();
+			}
+			reject(id);
+			fail(transfer, e.getMessage());
+		}
+	}
+
+	/**
+	 * Writes a received chunk to the partial file, without the padding of the
+	 * cipher.
+	 */
+	private void receiveChunk(long id, long offset, byte[] payload, int length, CipherProvider provider,
+			String key) {
+		Incoming in = incoming.get(id);
+		if (in == null) {
+			// Cancelled, the chunks queued meanwhile are dropped
+			return;
+		}
+
+		FileTransfer transfer = in.transfer;
+		try {
+			ByteBuffer chunk;
+			if (provider == null) {
+				chunk = ByteBuffer.wrap(payload, PREFIX_SIZE, payload.length - PREFIX_SIZE);
+			} else {
+				chunk = ByteBuffer
+						.wrap(Crypto.decryptBytes(Arrays.copyOfRange(payload, PREFIX_SIZE, payload.length), key, provider));
+			}
+			if (length < 0 || length > chunk.remaining()) {
+				throw new IOException("Malformed chunk at " + offset);
+			}
+			chunk.limit(chunk.position() + length);
+			if (offset != transfer.getTransferred() || offset + chunk.remaining() > transfer.getSize()) {
+				throw new IOException("Unexpected chunk at " + offset);
+			}
+
+			int count = chunk.remaining();
+			while (chunk.hasRemaining()) {
+				in.file.write(chunk, offset + count - chunk.remaining());
+			}
+			transfer.addTransferred(count);
+			if (transfer.getTransferred() == transfer.getSize()) {
+				complete(in);
+			} else {
+				report(transfer);
+			}
+		} catch (IOException | IllegalArgumentException e) {
+			incoming.remove(id);
+			in.close();
+			reject(id);
+			fail(transfer, e instanceof IllegalArgumentException ? "Failed to decrypt the file" : e.getMessage());
+		}
+	}
+
+	/**
+	 * Renames a completely received file.
+	 */
+	private void complete(Incoming in) throws IOException {
+		incoming.remove(in.transfer.getId());
+		in.file.force(false);
+		in.close();
+		String name = in.transfer.getName();
+		Path path = in.partPath.resolveSibling(name);
+		for (int i = 1; Files.exists(path); i++) {
+			int dot = name.lastIndexOf('.');
+			path = in.partPath.resolveSibling(dot > 0 ? name.substring(0, dot) + " (" + i + ")" + name.substring(dot)
+					: name + " (" + i + ")");
+		}
+		Files.move(in.partPath, path);
+		in.transfer.setPath(path);
+		confirm(in.transfer.getId());
+		if (in.transfer.finish(TransferState.COMPLETED, null)) {
+			listener.onFileTransfer(in.transfer);
+		}
+	}
+
+	/**
+	 * Cancels the passed transfer, see {@link FileTransfer#cancel()}.
+	 *
+	 * @param transfer to be cancelled
+	 */
+	void cancel(FileTransfer transfer) {
+		if (transfer.isOutgoing()) {
+			Outgoing out = outgoing.get(transfer.getId());
+			if (out != null && fail(transfer, "Cancelled")) {
+				cancelOutgoing(out);
+			}
+		} else {
+			Incoming in = incoming.remove(transfer.getId());
+			if (in != null) {
+				in.close();
+				reject(transfer.getId());
+				fail(transfer, "Cancelled");
+			}
+		}
+	}
+
+	/**
+	 * Fails all the transfers after the connection has been closed. Received
+	 * files keep their partial content.
+	 */
+	public void disconnected() {
+		for (Incoming in : incoming.values()) {
+			incoming.remove(in.transfer.getId());
+			in.close();
+			fail(in.transfer, "Disconnected");
+		}
+		for (Outgoing out : outgoing.values()) {
+			out.disconnected = true;
+			fail(out.transfer, "Disconnected");
+			if (out.thread != null) {
+				out.thread.interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Tells the peer that a sent file is cancelled.
+	 */
+	private void cancelOutgoing(Outgoing out) {
+		try {
+			socketController.sendFrame(Frame.TYPE_FILE_CANCEL, prefix(out.transfer.getId(), 0), null, null);
+		} catch (IOException e) {
+			// The connection is closed, so is the transfer
+		}
+	}
+
+	/**
+	 * Tells the peer that a received file has been written completely.
+	 */
+	private void confirm(long id) {
+		try {
+			socketController.sendFrame(Frame.TYPE_FILE_COMPLETE, prefix(id, 0), null, null);
+		} catch (IOException e) {
+			// The connection is closed, the sender fails the transfer
+		}
+	}
+
+	/**
+	 * Tells the peer that a received file is declined.
+	 */
+	private void reject(long id) {
+		try {
+			socketController.sendFrame(Frame.TYPE_FILE_REJECT, prefix(id, 0), null, null);
+		} catch (IOException e) {
+			// The connection is closed, so is the transfer
+		}
+	}
+
+	/**
+	 * Ends the passed transfer as failed and reports it.
+	 *
+	 * @return false if the transfer had already ended
+	 */
+	private boolean fail(FileTransfer transfer, String failure) {
+		if (!transfer.finish(TransferState.FAILED, failure)) {
+			return false;
+		}
+		listener.onFileTransfer(transfer);
+		return true;
+	}
+
+	/**
+	 * Reports the progress of the passed transfer unless it was reported
+	 * recently.
+	 */
+	private void report(FileTransfer transfer) {
+		if (transfer.reportDue(System.nanoTime(), PROGRESS_INTERVAL_NANOS)) {
+			listener.onFileTransfer(transfer);
+		}
+	}
+
+	/**
+	 * @return the identifier and the offset preceding the content of a frame
+	 *         without content
+	 */
+	private static byte[] prefix(long id, long value) {
+		return prefix(id, value, 0);
+	}
+
+	/**
+	 * @return the identifier, the offset and the length of the content before
+	 *         its encryption preceding the content of a frame
+	 */
+	private static byte[] prefix(long id, long value, int length) {
+		return ByteBuffer.allocate(PREFIX_SIZE).putLong(id).putLong(value).putInt(length).array();
+	}
+
+	/**
+	 * @return the passed file name without any directory or reserved character
+	 */
+	private static String sanitize(String name) {
+		name = name.replaceAll("[\\\\/:*?\"<>|\\p{Cntrl}]", "_").trim();
+		if (name.isEmpty() || name.equals(".") || name.equals("..")) {
+			return "file";
+		}
+		return name;
+	}
+
+	/**
+	 * @param downloadDirectory directory the received files are written to, null
+	 *                          to decline them
+	 */
+	public void setDownloadDirectory(Path downloadDirectory) {
+		this.downloadDirectory = downloadDirectory;
+	}
+
+	/**
+	 * @return directory the received files are written to, null if they're
+	 *         declined
+	 */
+	public Path getDownloadDirectory() {
+		return downloadDirectory;
+	}
+
+	/**
+	 * @param maxFileSize maximum size of a received file in bytes, larger files
+	 *                    are declined
+	 */
+	public void setMaxFileSize(long maxFileSize) {
+		if (maxFileSize < 0) {
+			throw new IllegalArgumentException("maxFileSize");
+		}
+		this.maxFileSize = maxFileSize;
+	}
+
+	/**
+	 * @return maximum size of a received file in bytes
+	 */
+	public long getMaxFileSize() {
+		return maxFileSize;
+	}
+
+	/**
+	 *
+	 * A file sent to the peer.
+	 *
+	 */
+	private static class Outgoing {
+		final FileTransfer transfer;
+		final CipherProvider provider;
+		final String key;
+		/**
+		 * Permits for the chunks queued to the {@link SocketWriter}.
+		 */
+		final Semaphore window = new Semaphore(MAX_CHUNKS_IN_FLIGHT);
+		volatile Thread thread;
+		/**
+		 * Indicates that the connection has been closed, the queued chunks won't
+		 * be written.
+		 */
+		volatile boolean disconnected;
+		/**
+		 * Offset accepted by the peer, guarded by the transfer.
+		 */
+		private long acceptedOffset = -1;
+		/**
+		 * Indicates that the peer has written the whole file, guarded by the
+		 * transfer.
+		 */
+		private boolean completed;
+
+		Outgoing(FileTransfer transfer, CipherProvider provider, String key) {
+			this.transfer = transfer;
+			this.provider = provider;
+			this.key = key;
+		}
+
+		void accept(long offset) {
+			synchronized (transfer) {
+				acceptedOffset = offset;
+				transfer.notifyAll();
+			}
+		}
+
+		void complete() {
+			synchronized (transfer) {
+				completed = true;
+				transfer.notifyAll();
+			}
+		}
+
+		/**
+		 * Blocks until the peer confirms that it has written the whole file or
+		 * the transfer ends.
+		 *
+		 * @return true if the peer has confirmed
+		 */
+		boolean awaitCompletion() throws InterruptedException {
+			synchronized (transfer) {
+				while (!completed && transfer.getState() == TransferState.RUNNING) {
+					transfer.wait();
+				}
+				return completed;
+			}
+		}
+
+		/**
+		 * Blocks until the peer accepts the file or the transfer ends.
+		 *
+		 * @return the accepted offset, -1 if the transfer has ended
+		 */
+		long awaitAccept() throws InterruptedException {
+			synchronized (transfer) {
+				while (acceptedOffset < 0 && transfer.getState() == TransferState.WAITING) {
+					transfer.wait();
+				}
+				return transfer.getState() == TransferState.WAITING
+						? Math.max(0, Math.min(acceptedOffset, transfer.getSize()))
+						: -1;
+			}
+		}
+	}
+
+	/**
+	 *
+	 * A file received from the peer.
+	 *
+	 */
+	private static class Incoming {
+		final FileTransfer transfer;
+		final FileChannel file;
+		final Path partPath;
+
+		Incoming(FileTransfer transfer, FileChannel file, Path partPath) {
+			this.transfer = transfer;
+			this.file = file;
+			this.partPath = partPath;
+		}
+
+		void close() {
+			try {
+				file.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+}
@@ -0,0 +1,475 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ *
+ * A single frame of the framed wire protocol.
+ * <p>
+ * Every frame starts with a header made of
+ * <ul>
+ * <li>the frame type, 1 byte</li>
+ * <li>the flags, 1 byte</li>
+ * <li>the length of the payload, unsigned varint of 1 to 5 bytes</li>
+ * </ul>
+ * followed by the payload. A message longer than the maximum frame size is
+ * split into several {@link #TYPE_MESSAGE} frames, all but the last one having
+ * the {@link #FLAG_MORE} flag set. The frames of a message compressed before
+ * its encryption have the {@link #FLAG_COMPRESSED} flag set. Files are sent
+ * in chunks by {@link #TYPE_FILE_DATA} frames, which may come between the
+ * messages.
+ * <p>
+ * The protocol is negotiated on top of the original one, which sends every
+ * message as a single length byte followed by at most 255 bytes of data. A
+ * zero length byte is ignored by the original protocol, so every peer sends a
+ * {@link #HELLO} byte right after the connection is established. Once a peer
+ * has received a {@link #HELLO} it sends a {@link #HELLO} followed by the
+ * {@link #VERSION} byte to announce that all its following data is framed.
+ *
+ * @see SocketController
+ */
+public class Frame {
+	/**
+	 * Version of the framed protocol.
+	 */
+	public final static byte VERSION = 2;
+	/**
+	 * Byte announcing support of the framed protocol, read as an empty message by
+	 * the original protocol.
+	 */
+	public final static byte HELLO = 0x00;
+
+	/**
+	 * Maximum length of a message in the original protocol.
+	 */
+	public final static int LEGACY_MAX_MESSAGE_SIZE = 255;
+	/**
+	 * Maximum time in milliseconds a sender waits for the peer to announce the
+	 * framed protocol before falling back to the original protocol.
+	 */
+	public final static long NEGOTIATION_TIMEOUT_MILLIS = 2000;
+
+	/**
+	 * Frame carrying a message or a part of it.
+	 */
+	public final static int TYPE_MESSAGE = 0x01;
+
+	/**
+	 * Frame offering a file to the peer, see {@link FileTransferController}.
+	 */
+	public final static int TYPE_FILE_OFFER = 0x02;
+
+	/**
+	 * Frame accepting an offered file from the given offset.
+	 */
+	public final static int TYPE_FILE_ACCEPT = 0x03;
+
+	/**
+	 * Frame carrying a chunk of a file.
+	 */
+	public final static int TYPE_FILE_DATA = 0x04;
+
+	/**
+	 * Frame by which the receiver of a file declines or aborts the transfer.
+	 */
+	public final static int TYPE_FILE_REJECT = 0x05;
+
+	/**
+	 * Frame by which the sender of a file aborts the transfer.
+	 */
+	public final static int TYPE_FILE_CANCEL = 0x06;
+
+	/**
+	 * Frame acknowledging the messages received on the connection, its payload
+	 * is their number as 8 bytes. Sent by the {@link MessengerEngine}, see
+	 * {@link DeliveryGuarantee#AT_LEAST_ONCE}.
+	 */
+	public final static int TYPE_MESSAGE_ACK = 0x07;
+
+	/**
+	 * Frame checking that the peer is alive, answered by a {@link #TYPE_PONG}
+	 * frame with the same payload, see {@link IdleMonitor}.
+	 */
+	public final static int TYPE_PING = 0x08;
+
+	/**
+	 * Frame answering a {@link #TYPE_PING} frame.
+	 */
+	public final static int TYPE_PONG = 0x09;
+
+	/**
+	 * Frame by which the receiver of a file confirms that it has been written
+	 * completely.
+	 */
+	public final static int TYPE_FILE_COMPLETE = 0x0A;
+
+	/**
+	 * Set on every frame of a split message except the last one.
+	 */
+	public final static int FLAG_MORE = 0x01;
+
+	/**
+	 * Set on every frame of a message compressed by a {@link MessageCompressor}.
+	 */
+	public final static int FLAG_COMPRESSED = 0x02;
+
+	/**
+	 * Maximum size of the header in bytes.
+	 */
+	public final static int MAX_HEADER_SIZE = 2 + 5;
+
+	private final int type;
+	private final int flags;
+	private final byte[] payload;
+	/**
+	 * Pooled buffer holding the payload instead of the {@link #payload} array,
+	 * null if the payload is an array.
+	 */
+	private final PooledBuffer buffer;
+
+	/**
+	 * @param type    of the frame
+	 * @param flags   of the frame
+	 * @param payload of the frame
+	 */
+	public Frame(int type, int flags, byte[] payload) {
+		this.type = type;
+		this.flags = flags;
+		this.payload = payload;
+		this.buffer = null;
+	}
+
+	/**
+	 * Creates a frame owning a reference to a pooled buffer, which is released
+	 * by {@link #release()}.
+	 *
+	 * @param type   of the frame
+	 * @param flags  of the frame
+	 * @param buffer holding the payload from 0 to its limit
+	 */
+	public Frame(int type, int flags, PooledBuffer buffer) {
+		this.type = type;
+		this.flags = flags;
+		this.payload = null;
+		this.buffer = buffer;
+	}
+
+	/**
+	 * Reads a frame from the passed stream. Blocks until the whole frame has been
+	 * read.
+	 *
+	 * @param is             stream to read from
+	 * @param maxPayloadSize maximum accepted length of the payload
+	 * @return the frame
+	 * @throws EOFException if the stream ends
+	 * @throws IOException  if the payload is too long or the stream fails
+	 */
+	public static Frame read(InputStream is, int maxPayloadSize) throws IOException {
+		return read(is, maxPayloadSize, null);
+	}
+
+	/**
+	 * Reads a frame from the passed stream. Blocks until the whole frame has been
+	 * read. The payload of a {@link #TYPE_MESSAGE} frame is read into a buffer of
+	 * the passed pool, the caller has to {@link #release()} the frame.
+	 *
+	 * @param is             stream to read from
+	 * @param maxPayloadSize maximum accepted length of the payload
+	 * @param pool           holding the payloads of the messages, null to read
+	 *                       all the payloads into arrays
+	 * @return the frame
+	 * @throws EOFException if the stream ends
+	 * @throws IOException  if the payload is too long or the stream fails
+	 */
+	public static Frame read(InputStream is, int maxPayloadSize, BufferPool pool) throws IOException {
+		int type = readByte(is);
+		int flags = readByte(is);
+		int length = readVarint(is);
+		if (length > maxPayloadSize) {
+			throw new IOException("Frame of " + length + " bytes exceeds the limit of " + maxPayloadSize);
+		}
+
+		if (pool != null && type == TYPE_MESSAGE) {
+			return new Frame(type, flags, readPooled(is, length, pool));
+		}
+		byte[] payload = new byte[length];
+		readFully(is, payload, 0, length);
+		return new Frame(type, flags, payload);
+	}
+
+	/**
+	 * Writes the header of a frame to the passed array.
+	 *
+	 * @param header array of at least {@value #MAX_HEADER_SIZE} bytes
+	 * @param type   of the frame
+	 * @param flags  of the frame
+	 * @param length of the payload
+	 * @return length of the header in bytes
+	 */
+	public static int writeHeader(byte[] header, int type, int flags, int length) {
+		header[0] = (byte) type;
+		header[1] = (byte) flags;
+		return 2 + writeVarint(header, 2, length);
+	}
+
+	/**
+	 * Creates the header of a frame.
+	 *
+	 * @param type   of the frame
+	 * @param flags  of the frame
+	 * @param length of the payload
+	 * @return buffer holding the header
+	 */
+	public static ByteBuffer header(int type, int flags, int length) {
+		byte[] header = new byte[MAX_HEADER_SIZE];
+		return ByteBuffer.wrap(header, 0, writeHeader(header, type, flags, length));
+	}
+
+	/**
+	 * Encodes a message for sending.
+	 * <p>
+	 * Returns the frames of the message as pairs of header and payload buffers.
+	 * The payload buffers wrap the passed array. If the peer doesn't support the
+	 * framed protocol the message is preceded by a single length byte, an empty
+	 * message is not sent at all.
+	 *
+	 * @param message      to be encoded
+	 * @param framing      true if the peer supports the framed protocol
+	 * @param maxFrameSize maximum size of a frame payload
+	 * @return buffers to be written in the given order
+	 * @throws IllegalArgumentException if the peer doesn't support the framed
+	 *                                  protocol and the message is longer than
+	 *                                  {@value #LEGACY_MAX_MESSAGE_SIZE} bytes
+	 */
+	public static ByteBuffer[] encodeMessage(byte[] message, boolean framing, int maxFrameSize) {
+		return encodeMessage(message, 0, framing, maxFrameSize);
+	}
+
+	/**
+	 * Encodes a message for sending, see
+	 * {@link #encodeMessage(byte[], boolean, int)}. The passed flags are set on
+	 * every frame of the message, they're lost if the peer doesn't support the
+	 * framed protocol.
+	 *
+	 * @param message      to be encoded
+	 * @param flags        of the message, {@link #FLAG_MORE} is set as needed
+	 * @param framing      true if the peer supports the framed protocol
+	 * @param maxFrameSize maximum size of a frame payload
+	 * @return buffers to be written in the given order
+	 * @throws IllegalArgumentException if the peer doesn't support the framed
+	 *                                  protocol and the message is longer than
+	 *                                  {@value #LEGACY_MAX_MESSAGE_SIZE} bytes
+	 */
+	public static ByteBuffer[] encodeMessage(byte[] message, int flags, boolean framing, int maxFrameSize) {
+		if (!framing) {
+			if (message.length > LEGACY_MAX_MESSAGE_SIZE) {
+				throw new IllegalArgumentException(
+						"The original protocol doesn't support messages longer than " + LEGACY_MAX_MESSAGE_SIZE + " bytes");
+			}
+			// An empty message would be taken for a HELLO
+			if (message.length == 0) {
+				return new ByteBuffer[0];
+			}
+			return new ByteBuffer[] { ByteBuffer.wrap(new byte[] { (byte) message.length }), ByteBuffer.wrap(message) };
+		}
+
+		int frames = Math.max(1, (message.length + maxFrameSize - 1) / maxFrameSize);
+		ByteBuffer[] buffers = new ByteBuffer[2 * frames];
+		int offset = 0;
+		for (int i = 0; i < frames; i++) {
+			int length = Math.min(maxFrameSize, message.length - offset);
+			buffers[2 * i] = header(TYPE_MESSAGE, i < frames - 1 ? flags | FLAG_MORE : flags, length);
+			buffers[2 * i + 1] = ByteBuffer.wrap(message, offset, length);
+			offset += length;
+		}
+
+		return buffers;
+	}
+
+	/**
+	 * Encodes a non-negative value as unsigned varint, 7 bits per byte starting
+	 * with the least significant ones.
+	 *
+	 * @param array  to write to
+	 * @param offset of the varint inside {@code array}
+	 * @param value  to be encoded
+	 * @return number of written bytes
+	 */
+	public static int writeVarint(byte[] array, int offset, int value) {
+		int i = offset;
+		while ((value & ~0x7F) != 0) {
+			array[i++] = (byte) ((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		array[i++] = (byte) value;
+		return i - offset;
+	}
+
+	/**
+	 * Reads a varint written by {@link #writeVarint(byte[], int, int)}.
+	 *
+	 * @param is stream to read from
+	 * @return the decoded value
+	 * @throws IOException if the varint is malformed or the stream fails
+	 */
+	public static int readVarint(InputStream is) throws IOException {
+		int value = 0;
+		for (int shift = 0; shift < 32; shift += 7) {
+			int b = readByte(is);
+			value |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				if (value < 0) {
+					throw new IOException("Malformed varint");
+				}
+				return value;
+			}
+		}
+		throw new IOException("Malformed varint");
+	}
+
+	/**
+	 * Reads a single byte.
+	 *
+	 * @param is stream to read from
+	 * @return the byte as unsigned value
+	 * @throws EOFException if the stream ends
+	 */
+	public static int readByte(InputStream is) throws IOException {
+		int b = is.read();
+		if (b < 0) {
+			throw new EOFException();
+		}
+		return b;
+	}
+
+	/**
+	 * Reads exactly {@code length} bytes into a buffer of the passed pool.
+	 *
+	 * @param is     stream to read from
+	 * @param length number of bytes
+	 * @param pool   to acquire the buffer from
+	 * @return the buffer holding the bytes from 0 to its limit
+	 * @throws EOFException if the stream ends before all the bytes have been read
+	 */
+	public static PooledBuffer readPooled(InputStream is, int length, BufferPool pool) throws IOException {
+		PooledBuffer pooled = pool.acquire(length);
+		try {
+			ByteBuffer buffer = pooled.buffer();
+			if (buffer.hasArray()) {
+				readFully(is, buffer.array(), buffer.arrayOffset(), length);
+			} else {
+				byte[] chunk = new byte[Math.min(length, 8 * 1024)];
+				while (buffer.hasRemaining()) {
+					int count = Math.min(buffer.remaining(), chunk.length);
+					readFully(is, chunk, 0, count);
+					buffer.put(chunk, 0, count);
+				}
+				buffer.flip();
+			}
+			return pooled;
+		} catch (IOException e) {
+			pooled.release();
+			throw e;
+		}
+	}
+
+	/**
+	 * Reads exactly {@code length} bytes, unlike {@link InputStream#read(byte[])}
+	 * which may return fewer.
+	 *
+	 * @throws EOFException if the stream ends before all the bytes have been read
+	 */
+	public static void readFully(InputStream is, byte[] array, int offset, int length) throws IOException {
+		while (length > 0) {
+			int read = is.read(array, offset, length);
+			if (read < 0) {
+				throw new EOFException();
+			}
+			offset += read;
+			length -= read;
+		}
+	}
+
+	/**
+	 * @return the type of the frame
+	 */
+	public int getType() {
+		return type;
+	}
+
+	/**
+	 * @return the flags of the frame
+	 */
+	public int getFlags() {
+		return flags;
+	}
+
+	/**
+	 * @return true if the frame is followed by another part of the same message
+	 */
+	public boolean hasMore() {
+		return (flags & FLAG_MORE) != 0;
+	}
+
+	/**
+	 * @return true if the {@link #FLAG_COMPRESSED} flag is set
+	 */
+	public boolean isCompressed() {
+		return (flags & FLAG_COMPRESSED) != 0;
+	}
+
+	/**
+	 * @return true if the frame is a {@link #TYPE_PING} or {@link #TYPE_PONG}
+	 *         frame
+	 */
+	public boolean isHeartbeat() {
+		return type == TYPE_PING || type == TYPE_PONG;
+	}
+
+	/**
+	 * @return the payload of the frame, a copy if it is held by a pooled buffer
+	 * @see #getPayloadBuffer()
+	 */
+	public byte[] getPayload() {
+		if (buffer == null) {
+			return payload;
+		}
+		ByteBuffer data = getPayloadBuffer();
+		byte[] copy = new byte[data.remaining()];
+		data.get(copy);
+		return copy;
+	}
+
+	/**
+	 * Gives access to the payload without copying it. The payload may be
+	 * modified in place, e.g. decrypted.
+	 *
+	 * @return buffer holding the payload between its position and its limit
+	 */
+	public ByteBuffer getPayloadBuffer() {
+		if (buffer == null) {
+			return ByteBuffer.wrap(payload);
+		}
+		ByteBuffer data = buffer.buffer().duplicate();
+		data.position(0);
+		return data;
+	}
+
+	/**
+	 * @return length of the payload in bytes
+	 */
+	public int getPayloadLength() {
+		return buffer == null ? payload.length : buffer.buffer().limit();
+	}
+
+	/**
+	 * Releases the pooled buffer holding the payload, if any. The payload must
+	 * not be used afterwards.
+	 */
+	public void release() {
+		if (buffer != null) {
+			buffer.release();
+		}
+	}
+}
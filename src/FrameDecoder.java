@@ -0,0 +1,216 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ *
+ * Incremental decoder of the data received from a peer.
+ * <p>
+ * Counterpart of {@link SocketController#receiveFrame()} for non-blocking
+ * connections: the data is passed in as it arrives, in pieces of any size, and
+ * whole frames come out. Handles the negotiation of the framed protocol
+ * described in {@link Frame}, messages of peers using the original protocol
+ * are returned as single {@link Frame#TYPE_MESSAGE} frames.
+ * <p>
+ * With a {@link BufferPool} the payloads of the messages are copied straight
+ * from the received data into pooled buffers, the returned frames have to be
+ * released.
+ *
+ */
+public class FrameDecoder {
+	/**
+	 * Parts of the data the decoder can expect next.
+	 */
+	private enum State {
+		LEGACY_LENGTH, VERSION, TYPE, FLAGS, LENGTH, PAYLOAD
+	}
+
+	/**
+	 * Maximum accepted length of a frame payload.
+	 */
+	private final int maxPayloadSize;
+	/**
+	 * Called once the peer has announced support of the framed protocol.
+	 */
+	private final Runnable helloHandler;
+	/**
+	 * Pool holding the payloads of the messages, null to use arrays.
+	 */
+	private final BufferPool pool;
+
+	private State state = State.LEGACY_LENGTH;
+	/**
+	 * Indicates that the peer has announced support of the framed protocol.
+	 */
+	private boolean peerHello;
+	/**
+	 * Indicates that all the following data is framed.
+	 */
+	private boolean peerFraming;
+	/**
+	 * Indicates that the peer sent a message of the original protocol before
+	 * any {@link Frame#HELLO}, so it doesn't support the framed protocol.
+	 */
+	private boolean legacyPeer;
+
+	private int type;
+	private int flags;
+	private int length;
+	private int lengthShift;
+	private byte[] payload;
+	/**
+	 * Pooled buffer receiving the payload instead of the {@link #payload}
+	 * array.
+	 */
+	private PooledBuffer pooledPayload;
+	private int payloadLength;
+	private int payloadPosition;
+
+	/**
+	 * @param maxPayloadSize maximum accepted length of a frame payload
+	 * @param helloHandler   called once the peer has announced support of the
+	 *                       framed protocol, should answer by switching the sent
+	 *                       data to the framed protocol
+	 */
+	public FrameDecoder(int maxPayloadSize, Runnable helloHandler) {
+		this(maxPayloadSize, helloHandler, null);
+	}
+
+	/**
+	 * @param maxPayloadSize maximum accepted length of a frame payload
+	 * @param helloHandler   called once the peer has announced support of the
+	 *                       framed protocol, should answer by switching the sent
+	 *                       data to the framed protocol
+	 * @param pool           holding the payloads of the messages, null to use
+	 *                       arrays
+	 */
+	public FrameDecoder(int maxPayloadSize, Runnable helloHandler, BufferPool pool) {
+		this.maxPayloadSize = maxPayloadSize;
+		this.helloHandler = helloHandler;
+		this.pool = pool;
+	}
+
+	/**
+	 * Consumes the passed data until a whole frame has been decoded or the data
+	 * runs out.
+	 *
+	 * @param in received data, its position is advanced past the consumed bytes
+	 * @return the decoded frame, null if more data is needed
+	 * @throws IOException if the data is malformed
+	 */
+	public Frame decode(ByteBuffer in) throws IOException {
+		while (in.hasRemaining()) {
+			switch (state) {
+			case LEGACY_LENGTH:
+				int messageLength = in.get() & 0xFF;
+				if (messageLength != Frame.HELLO) {
+					if (!peerHello) {
+						legacyPeer = true;
+					}
+					type = Frame.TYPE_MESSAGE;
+					flags = 0;
+					startPayload(messageLength);
+				} else if (!peerHello) {
+					peerHello = true;
+					helloHandler.run();
+				} else {
+					state = State.VERSION;
+				}
+				break;
+			case VERSION:
+				int version = in.get() & 0xFF;
+				if (version != Frame.VERSION) {
+					throw new IOException("Unsupported protocol version " + version);
+				}
+				peerFraming = true;
+				state = State.TYPE;
+				break;
+			case TYPE:
+				type = in.get() & 0xFF;
+				state = State.FLAGS;
+				break;
+			case FLAGS:
+				flags = in.get() & 0xFF;
+				length = 0;
+				lengthShift = 0;
+				state = State.LENGTH;
+				break;
+			case LENGTH:
+				int b = in.get() & 0xFF;
+				length |= (b & 0x7F) << lengthShift;
+				lengthShift += 7;
+				if ((b & 0x80) == 0) {
+					if (length < 0 || length > maxPayloadSize) {
+						throw new IOException("Frame of " + length + " bytes exceeds the limit of " + maxPayloadSize);
+					}
+					startPayload(length);
+				} else if (lengthShift >= 32) {
+					throw new IOException("Malformed varint");
+				}
+				break;
+			case PAYLOAD:
+				int count = Math.min(in.remaining(), payloadLength - payloadPosition);
+				if (pooledPayload != null) {
+					int limit = in.limit();
+					in.limit(in.position() + count);
+					pooledPayload.buffer().put(in);
+					in.limit(limit);
+				} else {
+					in.get(payload, payloadPosition, count);
+				}
+				payloadPosition += count;
+				break;
+			}
+
+			if (state == State.PAYLOAD && payloadPosition == payloadLength) {
+				Frame frame;
+				if (pooledPayload != null) {
+					pooledPayload.buffer().flip();
+					frame = new Frame(type, flags, pooledPayload);
+					pooledPayload = null;
+				} else {
+					frame = new Frame(type, flags, payload);
+					payload = null;
+				}
+				state = peerFraming ? State.TYPE : State.LEGACY_LENGTH;
+				return frame;
+			}
+		}
+
+		return null;
+	}
+
+	/**
+	 * @return true if the peer sent a message of the original protocol before
+	 *         announcing the framed protocol, so it only supports the original
+	 *         one
+	 */
+	public boolean isLegacyPeer() {
+		return legacyPeer;
+	}
+
+	/**
+	 * Releases the pooled buffer of a partially received payload. Called by the
+	 * decoding {@link Thread} once the connection has been closed.
+	 */
+	public void release() {
+		if (pooledPayload != null) {
+			pooledPayload.release();
+			pooledPayload = null;
+		}
+	}
+
+	/**
+	 * Prepares the array or the pooled buffer for a payload of the passed
+	 * length.
+	 */
+	private void startPayload(int payloadLength) {
+		if (pool != null && type == Frame.TYPE_MESSAGE) {
+			pooledPayload = pool.acquire(payloadLength);
+		} else {
+			payload = new byte[payloadLength];
+		}
+		this.payloadLength = payloadLength;
+		payloadPosition = 0;
+		state = State.PAYLOAD;
+	}
+}
@@ -0,0 +1,46 @@
+import java.util.Map;
+import java.util.function.LongSupplier;
+
+/**
+ *
+ * A value which goes up and down, e.g. the length of a queue.
+ * <p>
+ * The value is only read when the metrics are collected, so keeping it up to
+ * date doesn't cost anything on the measured path.
+ *
+ */
+public class Gauge extends Metric {
+	private final LongSupplier value;
+
+	/**
+	 * @param name  of the gauge
+	 * @param help  description of the gauge
+	 * @param value supplying the current value
+	 */
+	public Gauge(String name, String help, LongSupplier value) {
+		super(name, help);
+		this.value = value;
+	}
+
+	/**
+	 * @return the current value
+	 */
+	public long get() {
+		return value.getAsLong();
+	}
+
+	@Override
+	void format(StringBuilder out) {
+		out.append(getName()).append(' ').append(get()).append('\n');
+	}
+
+	@Override
+	void collect(Map<String, Object> attributes) {
+		attributes.put(getName(), get());
+	}
+
+	@Override
+	String getType() {
+		return "gauge";
+	}
+}
@@ -0,0 +1,230 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ *
+ * Timer running the timeouts of many connections with a single {@link Thread}.
+ * <p>
+ * The timeouts are kept in a hashed timing wheel: a ring of buckets, one of
+ * which is visited per tick. A timeout is put in the bucket its deadline falls
+ * in together with the number of full turns of the wheel still to wait, so
+ * adding and cancelling a timeout take constant time and a tick only visits
+ * the timeouts of a single bucket, however many are pending. Timeouts expire
+ * up to a tick late.
+ * <p>
+ * The tasks of the expired timeouts are run by the timer {@link Thread} and
+ * must not block, e.g. they pass the actual work to the thread owning the
+ * connection.
+ *
+ * @see IdleMonitor
+ */
+public class HashedWheelTimer {
+	private final long tickNanos;
+	/**
+	 * Buckets of the wheel, only used by the timer {@link Thread}.
+	 */
+	private final List<List<Timeout>> wheel;
+	/**
+	 * Mask of the index of the bucket of a tick, the number of buckets is a
+	 * power of two.
+	 */
+	private final int mask;
+	/**
+	 * Timeouts added since the last tick, moved into the wheel by the timer
+	 * {@link Thread}.
+	 */
+	private final Queue<Timeout> added = new ConcurrentLinkedQueue<Timeout>();
+	/**
+	 * Number of timeouts neither expired nor cancelled.
+	 */
+	private final AtomicInteger pending = new AtomicInteger();
+	private final long startNanos = System.nanoTime();
+	private final Thread thread;
+	/**
+	 * Number of the next tick, only used by the timer {@link Thread}.
+	 */
+	private long tick;
+
+	private volatile boolean running = true;
+
+	/**
+	 * Starts the timer {@link Thread}.
+	 *
+	 * @param name       of the {@link Thread}
+	 * @param tickMillis duration of a tick in milliseconds, the precision of
+	 *                   the timer
+	 * @param wheelSize  number of buckets, rounded up to a power of two
+	 */
+	public HashedWheelTimer(String name, long tickMillis, int wheelSize) {
+		if (tickMillis <= 0) {
+			throw new IllegalArgumentException("tickMillis");
+		}
+		if (wheelSize <= 0 || wheelSize > 1 << 20) {
+			throw new IllegalArgumentException("wheelSize");
+		}
+		tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+		int bucketCount = Integer.bitCount(wheelSize) == 1 ? wheelSize : Integer.highestOneBit(wheelSize) << 1;
+		wheel = new ArrayList<List<Timeout>>(bucketCount);
+		for (int i = 0; i < bucketCount; i++) {
+			wheel.add(new ArrayList<Timeout>());
+		}
+		mask = bucketCount - 1;
+
+		thread = new Thread(this::run, name);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Schedules the passed task.
+	 *
+	 * @param task        run by the timer {@link Thread} once the delay has
+	 *                    elapsed, must not block
+	 * @param delayMillis in milliseconds
+	 * @return the timeout, which may be cancelled
+	 * @throws IllegalStateException if the timer has been stopped
+	 */
+	public Timeout newTimeout(Runnable task, long delayMillis) {
+		if (!running) {
+			throw new IllegalStateException("The timer has been stopped");
+		}
+
+		Timeout timeout = new Timeout(task,
+				System.nanoTime() - startNanos + TimeUnit.MILLISECONDS.toNanos(Math.max(0, delayMillis)));
+		pending.incrementAndGet();
+		added.add(timeout);
+		return timeout;
+	}
+
+	/**
+	 * Stops the timer, the pending timeouts never expire.
+	 */
+	public void stop() {
+		running = false;
+		LockSupport.unpark(thread);
+	}
+
+	/**
+	 * @return number of the timeouts neither expired nor cancelled
+	 */
+	public int getPendingCount() {
+		return pending.get();
+	}
+
+	/**
+	 * The loop of the timer {@link Thread}.
+	 */
+	private void run() {
+		while (running) {
+			long deadline = tickNanos * (tick + 1);
+			long delay;
+			while (running && (delay = startNanos + deadline - System.nanoTime()) > 0) {
+				LockSupport.parkNanos(this, delay);
+			}
+
+			transferAdded();
+			expire(wheel.get((int) (tick & mask)));
+			tick++;
+		}
+	}
+
+	/**
+	 * Moves the timeouts added since the last tick into their buckets.
+	 */
+	private void transferAdded() {
+		Timeout timeout;
+		while ((timeout = added.poll()) != null) {
+			if (timeout.state.get() != Timeout.WAITING) {
+				continue;
+			}
+			// A deadline already passed expires on the current tick
+			long deadlineTick = Math.max(timeout.deadline / tickNanos, tick);
+			timeout.remainingRounds = (deadlineTick - tick) / wheel.size();
+			wheel.get((int) (deadlineTick & mask)).add(timeout);
+		}
+	}
+
+	/**
+	 * Runs the expired timeouts of a bucket and removes them together with the
+	 * cancelled ones.
+	 *
+	 * @param bucket to be visited
+	 */
+	private void expire(List<Timeout> bucket) {
+		int kept = 0;
+		for (int i = 0; i < bucket.size(); i++) {
+			Timeout timeout = bucket.get(i);
+			if (timeout.state.get() != Timeout.WAITING) {
+				continue;
+			}
+			if (timeout.remainingRounds > 0) {
+				timeout.remainingRounds--;
+				bucket.set(kept++, timeout);
+				continue;
+			}
+			if (timeout.state.compareAndSet(Timeout.WAITING, Timeout.EXPIRED)) {
+				pending.decrementAndGet();
+				try {
+					timeout.task.run();
+				} catch (RuntimeException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+		bucket.subList(kept, bucket.size()).clear();
+	}
+
+	/**
+	 *
+	 * A task scheduled by {@link HashedWheelTimer#newTimeout(Runnable, long)}.
+	 *
+	 */
+	public class Timeout {
+		private final static int WAITING = 0;
+		private final static int CANCELLED = 1;
+		private final static int EXPIRED = 2;
+
+		private final Runnable task;
+		/**
+		 * Time the timeout expires, relative to the start of the timer.
+		 */
+		private final long deadline;
+		private final AtomicInteger state = new AtomicInteger(WAITING);
+		/**
+		 * Number of turns of the wheel before the timeout expires, only used by
+		 * the timer {@link Thread}.
+		 */
+		private long remainingRounds;
+
+		private Timeout(Runnable task, long deadline) {
+			this.task = task;
+			this.deadline = deadline;
+		}
+
+		/**
+		 * Prevents the task from running. A cancelled timeout stays in its bucket
+		 * until the wheel visits it.
+		 *
+		 * @return false if the timeout has already expired or been cancelled
+		 */
+		public boolean cancel() {
+			if (!state.compareAndSet(WAITING, CANCELLED)) {
+				return false;
+			}
+			pending.decrementAndGet();
+			return true;
+		}
+
+		/**
+		 * @return true if the task has been run
+		 */
+		public boolean isExpired() {
+			return state.get() == EXPIRED;
+		}
+	}
+}
@@ -0,0 +1,242 @@
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ *
+ * Heartbeats and idle detection of a single connection.
+ * <p>
+ * Once nothing has been sent or nothing has been received for the heartbeat
+ * interval of the {@link ConnectionOptions} a {@link Frame#TYPE_PING} frame is
+ * sent, which the peer answers with a {@link Frame#TYPE_PONG} frame. Pinging on
+ * received silence keeps a connection which only sends alive even if the peer
+ * doesn't ping on its own. Once nothing has been received for the idle timeout
+ * the connection is considered dead, e.g. half-open after the peer vanished,
+ * and closed. Peers of the first versions of the framed protocol ignore the
+ * pings, so the idle timeout only applies once the peer has sent a heartbeat
+ * frame: a ping is sent as soon as the connection is framed to find out.
+ * <p>
+ * All the monitors share a single {@link HashedWheelTimer} and every monitor
+ * has at most one pending timeout, which checks both the reads and the writes.
+ * Reads and writes only record the time, the timeout is rescheduled when it
+ * expires.
+ *
+ */
+class IdleMonitor {
+	/**
+	 * Precision of the heartbeats and the idle timeouts in milliseconds.
+	 */
+	private final static long TICK_MILLIS = 100;
+	/**
+	 * Timer of all the connections of the process.
+	 */
+	private final static HashedWheelTimer TIMER = new HashedWheelTimer("IdleTimer", TICK_MILLIS, 512);
+
+	private final long heartbeatIntervalNanos;
+	private final long idleTimeoutNanos;
+	/**
+	 * Sends a {@link Frame#TYPE_PING} frame with the passed payload, must not
+	 * block. Null if the connection doesn't send heartbeats on its own.
+	 */
+	private final PingSender ping;
+	/**
+	 * Closes the connection, must not block.
+	 */
+	private final Runnable timeout;
+
+	private volatile long lastRead = System.nanoTime();
+	private volatile long lastWrite = System.nanoTime();
+	private volatile long lastPing = System.nanoTime();
+	/**
+	 * Indicates that the peer has sent a heartbeat frame, which arms the idle
+	 * timeout.
+	 */
+	private volatile boolean peerHeartbeats;
+	private volatile boolean stopped;
+	/**
+	 * The pending check, guarded by the monitor.
+	 */
+	private HashedWheelTimer.Timeout check;
+
+	/**
+	 * @param options of the connection
+	 * @param ping    sending a {@link Frame#TYPE_PING} frame if the connection
+	 *                is framed, must not block. Null if the connection only
+	 *                answers the pings of the peer.
+	 * @param timeout closing the connection, must not block
+	 */
+	IdleMonitor(ConnectionOptions options, PingSender ping, Runnable timeout) {
+		this.heartbeatIntervalNanos = ping == null ? 0
+				: TimeUnit.MILLISECONDS.toNanos(options.getHeartbeatIntervalMillis());
+		this.idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(options.getIdleTimeoutMillis());
+		this.ping = ping;
+		this.timeout = timeout;
+	}
+
+	/**
+	 * Starts monitoring the connection.
+	 */
+	void start() {
+		schedule(System.nanoTime());
+	}
+
+	/**
+	 * Stops monitoring the connection once it has been closed.
+	 */
+	synchronized void stop() {
+		stopped = true;
+		if (check != null) {
+			check.cancel();
+			check = null;
+		}
+	}
+
+	/**
+	 * Records that data has been received.
+	 */
+	void read() {
+		lastRead = System.nanoTime();
+	}
+
+	/**
+	 * Records that data has been queued to be sent.
+	 */
+	void written() {
+		lastWrite = System.nanoTime();
+	}
+
+	/**
+	 * Sends a ping right after the connection became framed, so the idle timeout
+	 * is armed early if the peer answers.
+	 */
+	void framed() {
+		if (ping != null && heartbeatIntervalNanos > 0 && !stopped) {
+			sendPing();
+		}
+	}
+
+	/**
+	 * Handles a received {@link Frame#TYPE_PING} or {@link Frame#TYPE_PONG}
+	 * frame. Records the round trip time of a pong answering one of the pings of
+	 * the monitor.
+	 *
+	 * @param frame the heartbeat frame
+	 * @return payload of the {@link Frame#TYPE_PONG} frame answering a ping,
+	 *         null if the frame is a pong
+	 */
+	byte[] heartbeatReceived(Frame frame) {
+		if (!peerHeartbeats) {
+			peerHeartbeats = true;
+			// The idle timeout may be due before the pending check
+			schedule(System.nanoTime());
+		}
+		if (frame.getType() == Frame.TYPE_PING) {
+			return frame.getPayload();
+		}
+
+		byte[] payload = frame.getPayload();
+		if (payload.length == 8) {
+			long sent = ByteBuffer.wrap(payload).getLong();
+			long elapsed = System.nanoTime() - sent;
+			// Ignores pongs not echoing a ping of this process
+			if (elapsed >= 0 && elapsed < TimeUnit.MINUTES.toNanos(10)) {
+				Metrics.HEARTBEAT_RTT.record(elapsed);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Sends a {@link Frame#TYPE_PING} frame carrying the current time.
+	 */
+	private void sendPing() {
+		long now = System.nanoTime();
+		// Not retried before the next interval if the connection isn't framed
+		lastWrite = now;
+		lastPing = now;
+		if (ping.send(ByteBuffer.allocate(8).putLong(now).array())) {
+			Metrics.HEARTBEATS_SENT.increment();
+		}
+	}
+
+	/**
+	 * Checks the connection. Runs on the timer {@link Thread}.
+	 */
+	private void check() {
+		if (stopped) {
+			return;
+		}
+
+		long now = System.nanoTime();
+		if (idleTimeoutNanos > 0 && peerHeartbeats && now - lastRead >= idleTimeoutNanos) {
+			stop();
+			Metrics.IDLE_TIMEOUTS.increment();
+			timeout.run();
+			return;
+		}
+		if (heartbeatIntervalNanos > 0 && now - lastPing >= heartbeatIntervalNanos
+				&& now - Math.min(lastRead, lastWrite) >= heartbeatIntervalNanos) {
+			sendPing();
+		}
+		schedule(now);
+	}
+
+	/**
+	 * Replaces the pending check by one at the earliest time the connection may
+	 * become idle.
+	 *
+	 * @param now current time in nanoseconds
+	 */
+	private synchronized void schedule(long now) {
+		long next = Long.MAX_VALUE;
+		if (heartbeatIntervalNanos > 0) {
+			// At most one ping per interval while nothing is received
+			next = Math.min(next,
+					Math.max(lastPing, Math.min(lastRead, lastWrite)) + heartbeatIntervalNanos);
+		}
+		if (idleTimeoutNanos > 0 && peerHeartbeats) {
+			next = Math.min(next, lastRead + idleTimeoutNanos);
+		}
+		if (check != null) {
+			check.cancel();
+			check = null;
+		}
+		if (stopped || next == Long.MAX_VALUE) {
+			return;
+		}
+		check = TIMER.newTimeout(this::check, TimeUnit.NANOSECONDS.toMillis(Math.max(0, next - now)));
+	}
+
+	/**
+	 * Schedules a task on the timer shared by the monitors, e.g. the end of the
+	 * protocol negotiation of a connection.
+	 *
+	 * @param task        to be run on the timer {@link Thread}, must not block
+	 * @param delayMillis delay in milliseconds
+	 * @return the pending timeout, to be cancelled if no longer needed
+	 */
+	static HashedWheelTimer.Timeout newTimeout(Runnable task, long delayMillis) {
+		return TIMER.newTimeout(task, delayMillis);
+	}
+
+	/**
+	 * @return number of the pending checks of all the monitors
+	 */
+	static int getPendingCount() {
+		return TIMER.getPendingCount();
+	}
+
+	/**
+	 *
+	 * Sends the pings of an {@link IdleMonitor}.
+	 *
+	 */
+	interface PingSender {
+		/**
+		 * Queues a {@link Frame#TYPE_PING} frame, must not block.
+		 *
+		 * @param payload of the frame
+		 * @return false if the connection isn't framed yet or closed
+		 */
+		boolean send(byte[] payload);
+	}
+}
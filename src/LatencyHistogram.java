@@ -0,0 +1,214 @@
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ *
+ * Distribution of durations measured in nanoseconds, e.g. of the encryption of
+ * a message.
+ * <p>
+ * Like an HDR histogram, the values are counted in buckets of a log-linear
+ * layout: every power of two is split into {@value #SUB_BUCKETS} buckets of
+ * equal width, so a percentile is reported within 1/{@value #SUB_BUCKETS} of
+ * its value from a nanosecond up to hours. Every bucket is a {@link LongAdder}
+ * and recording a value doesn't allocate or lock.
+ *
+ */
+public class LatencyHistogram extends Metric {
+	/**
+	 * Percentiles reported by {@link #format(StringBuilder)} and
+	 * {@link #collect(Map)}.
+	 */
+	private final static double[] PERCENTILES = { 0.5, 0.9, 0.99, 0.999 };
+	/**
+	 * Suffixes of the JMX attributes of the {@link #PERCENTILES}.
+	 */
+	private final static String[] PERCENTILE_NAMES = { "_p50", "_p90", "_p99", "_p999" };
+	private final static int SUB_BUCKET_BITS = 4;
+	private final static int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	/**
+	 * Exponent of the largest power of two counted in its own buckets, larger
+	 * values are counted in the last bucket.
+	 */
+	private final static int MAX_EXPONENT = 44;
+	private final static int BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+	private final static double NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+	private final LongAdder[] counts = new LongAdder[BUCKETS];
+	private final LongAdder sum = new LongAdder();
+	private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+	/**
+	 * @param name of the histogram, ending with {@code _seconds}
+	 * @param help description of the histogram
+	 */
+	public LatencyHistogram(String name, String help) {
+		super(name, help);
+		for (int i = 0; i < BUCKETS; i++) {
+			counts[i] = new LongAdder();
+		}
+	}
+
+	/**
+	 * Records a duration.
+	 *
+	 * @param nanos duration in nanoseconds, negative values are counted as 0
+	 */
+	public void record(long nanos) {
+		if (nanos < 0) {
+			nanos = 0;
+		}
+		counts[bucket(nanos)].increment();
+		sum.add(nanos);
+		max.accumulate(nanos);
+	}
+
+	/**
+	 * Records the time elapsed since the passed start.
+	 *
+	 * @param startNanos value of {@link System#nanoTime()} at the start
+	 */
+	public void recordSince(long startNanos) {
+		record(System.nanoTime() - startNanos);
+	}
+
+	/**
+	 * @param value in nanoseconds, not negative
+	 * @return index of the bucket counting the value
+	 */
+	private static int bucket(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) value;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		if (exponent > MAX_EXPONENT) {
+			return BUCKETS - 1;
+		}
+		int shift = exponent - SUB_BUCKET_BITS;
+		return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+	}
+
+	/**
+	 * @param bucket index of a bucket
+	 * @return largest value counted in the bucket
+	 */
+	private static long highestValue(int bucket) {
+		if (bucket < SUB_BUCKETS) {
+			return bucket;
+		}
+		int shift = bucket / SUB_BUCKETS - 1;
+		long lowest = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+		return lowest + (1L << shift) - 1;
+	}
+
+	/**
+	 * Copies the current counts. Values recorded while the copy is made may be
+	 * missing from it.
+	 *
+	 * @return the copy
+	 */
+	public Snapshot snapshot() {
+		long[] copy = new long[BUCKETS];
+		long count = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			copy[i] = counts[i].sum();
+			count += copy[i];
+		}
+		return new Snapshot(copy, count, sum.sum(), max.get());
+	}
+
+	@Override
+	void format(StringBuilder out) {
+		Snapshot snapshot = snapshot();
+		for (double percentile : PERCENTILES) {
+			out.append(getName()).append("{quantile=\"").append(percentile).append("\"} ")
+					.append(snapshot.getPercentile(percentile) / NANOS_PER_SECOND).append('\n');
+		}
+		out.append(getName()).append("_sum ").append(snapshot.getSum() / NANOS_PER_SECOND).append('\n');
+		out.append(getName()).append("_count ").append(snapshot.getCount()).append('\n');
+		// Not part of a summary, so reported as a gauge of its own
+		out.append("# TYPE ").append(getName()).append("_max gauge\n");
+		out.append(getName()).append("_max ").append(snapshot.getMax() / NANOS_PER_SECOND).append('\n');
+	}
+
+	@Override
+	void collect(Map<String, Object> attributes) {
+		Snapshot snapshot = snapshot();
+		attributes.put(getName() + "_count", snapshot.getCount());
+		attributes.put(getName() + "_mean", snapshot.getMean() / NANOS_PER_SECOND);
+		for (int i = 0; i < PERCENTILES.length; i++) {
+			attributes.put(getName() + PERCENTILE_NAMES[i], snapshot.getPercentile(PERCENTILES[i]) / NANOS_PER_SECOND);
+		}
+		attributes.put(getName() + "_max", snapshot.getMax() / NANOS_PER_SECOND);
+	}
+
+	@Override
+	String getType() {
+		return "summary";
+	}
+
+	/**
+	 *
+	 * The counts of a {@link LatencyHistogram} at a point in time.
+	 *
+	 */
+	public static class Snapshot {
+		private final long[] counts;
+		private final long count;
+		private final long sum;
+		private final long max;
+
+		Snapshot(long[] counts, long count, long sum, long max) {
+			this.counts = counts;
+			this.count = count;
+			this.sum = sum;
+			this.max = max;
+		}
+
+		/**
+		 * @param percentile from 0 to 1
+		 * @return value in nanoseconds not exceeded by the passed part of the
+		 *         recorded values, 0 if there is none
+		 */
+		public long getPercentile(double percentile) {
+			long rank = (long) Math.ceil(percentile * count);
+			long seen = 0;
+			for (int i = 0; i < counts.length; i++) {
+				seen += counts[i];
+				if (seen >= rank && seen > 0) {
+					return Math.min(highestValue(i), max);
+				}
+			}
+			return max;
+		}
+
+		/**
+		 * @return number of recorded values
+		 */
+		public long getCount() {
+			return count;
+		}
+
+		/**
+		 * @return sum of the recorded values in nanoseconds
+		 */
+		public long getSum() {
+			return sum;
+		}
+
+		/**
+		 * @return mean of the recorded values in nanoseconds, 0 if there is none
+		 */
+		public double getMean() {
+			return count == 0 ? 0 : (double) sum / count;
+		}
+
+		/**
+		 * @return largest recorded value in nanoseconds
+		 */
+		public long getMax() {
+			return max;
+		}
+	}
+}
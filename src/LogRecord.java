@@ -0,0 +1,108 @@
+import java.nio.charset.StandardCharsets;
+
+/**
+ *
+ * A message stored in the {@link MessageLog}.
+ *
+ */
+public class LogRecord {
+	private final long timestamp;
+	private final String peer;
+	private final Style style;
+	private final Cipher cipher;
+	private final boolean compressed;
+	private final byte[] payload;
+
+	/**
+	 * @param timestamp time the message was sent or received, in milliseconds
+	 *                  since the epoch
+	 * @param peer      address of the peer the message was exchanged with
+	 * @param style     {@link Style#USER} for sent, {@link Style#PARTNER} for
+	 *                  received messages
+	 * @param cipher    the message was encrypted with, null if the payload is
+	 *                  the plain text
+	 * @param payload   the message as stored
+	 */
+	public LogRecord(long timestamp, String peer, Style style, Cipher cipher, byte[] payload) {
+		this(timestamp, peer, style, cipher, false, payload);
+	}
+
+	/**
+	 * @param timestamp  time the message was sent or received, in milliseconds
+	 *                   since the epoch
+	 * @param peer       address of the peer the message was exchanged with
+	 * @param style      {@link Style#USER} for sent, {@link Style#PARTNER} for
+	 *                   received messages
+	 * @param cipher     the message was encrypted with, null if the payload is
+	 *                   the plain text
+	 * @param compressed true if the message was compressed by a
+	 *                   {@link MessageCompressor} before its encryption
+	 * @param payload    the message as stored
+	 */
+	public LogRecord(long timestamp, String peer, Style style, Cipher cipher, boolean compressed, byte[] payload) {
+		this.timestamp = timestamp;
+		this.peer = peer == null ? "" : peer;
+		this.style = style;
+		this.cipher = cipher;
+		this.compressed = compressed;
+		this.payload = payload;
+	}
+
+	/**
+	 * Creates a record holding the plain text of a message.
+	 *
+	 * @param timestamp time the message was sent or received
+	 * @param peer      address of the peer
+	 * @param style     of the message
+	 * @param text      of the message
+	 * @return the record
+	 */
+	public static LogRecord plaintext(long timestamp, String peer, Style style, String text) {
+		return new LogRecord(timestamp, peer, style, null, text.getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * @return time the message was sent or received, in milliseconds since the
+	 *         epoch
+	 */
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	/**
+	 * @return address of the peer the message was exchanged with
+	 */
+	public String getPeer() {
+		return peer;
+	}
+
+	/**
+	 * @return {@link Style} of the message
+	 */
+	public Style getStyle() {
+		return style;
+	}
+
+	/**
+	 * @return the {@link Cipher} the payload is encrypted with, null if the
+	 *         payload is the plain text
+	 */
+	public Cipher getCipher() {
+		return cipher;
+	}
+
+	/**
+	 * @return true if the decrypted payload has to be decompressed by a
+	 *         {@link MessageCompressor}
+	 */
+	public boolean isCompressed() {
+		return compressed;
+	}
+
+	/**
+	 * @return the message as stored
+	 */
+	public byte[] getPayload() {
+		return payload;
+	}
+}
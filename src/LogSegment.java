@@ -0,0 +1,383 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ *
+ * A segment file of the {@link MessageLog} together with its sparse index.
+ * <p>
+ * The segment file is created at its full size and mapped into memory, the
+ * records are appended to the mapping one after another:
+ *
+ * <pre>
+ * int length, int CRC-32 of the body, body:
+ *     long timestamp, byte style (highest bit set if compressed),
+ *     byte cipher (-1 for plain text),
+ *     short peer length, peer (UTF-8), payload
+ * </pre>
+ *
+ * A length of zero marks the end of the records. The index file holds the
+ * position of every {@link #INDEX_INTERVAL}-th record as an {@code int}, so
+ * any record is found by reading a single index entry and skipping less than
+ * {@link #INDEX_INTERVAL} records.
+ *
+ */
+class LogSegment {
+	/**
+	 * Identifies a segment file, "SMLG".
+	 */
+	private final static int MAGIC = 0x534D4C47;
+	private final static int VERSION = 1;
+	private final static int HEADER_SIZE = 8;
+	private final static int RECORD_HEADER_SIZE = 8;
+	/**
+	 * Size of the fixed part of a record body.
+	 */
+	private final static int BODY_FIXED_SIZE = 12;
+	/**
+	 * Bit of the style byte marking a compressed payload.
+	 */
+	private final static int COMPRESSED = 0x80;
+	/**
+	 * Number of records per index entry.
+	 */
+	final static int INDEX_INTERVAL = 64;
+
+	private final long baseSequence;
+	private final FileChannel channel;
+	private final FileChannel indexChannel;
+	/**
+	 * Mapping of the whole segment file, null for read-only segments.
+	 */
+	private final MappedByteBuffer buffer;
+	private final CRC32 crc = new CRC32();
+	private final ByteBuffer indexEntry = ByteBuffer.allocate(4);
+
+	/**
+	 * Number of records in the segment.
+	 */
+	private int recordCount;
+	/**
+	 * Position following the last record.
+	 */
+	private int endPosition = HEADER_SIZE;
+
+	private LogSegment(long baseSequence, FileChannel channel, FileChannel indexChannel, MappedByteBuffer buffer) {
+		this.baseSequence = baseSequence;
+		this.channel = channel;
+		this.indexChannel = indexChannel;
+		this.buffer = buffer;
+	}
+
+	/**
+	 * Opens the segment for appending, creates it if it doesn't exist. Recovers
+	 * the end of the records and the index entries possibly lost by a crash.
+	 *
+	 * @param path         of the segment file
+	 * @param indexPath    of the index file
+	 * @param baseSequence sequence number of the first record of the segment
+	 * @param size         of the segment file if it's created
+	 * @return the segment
+	 * @throws IOException if the files can't be opened or aren't segment files
+	 */
+	static LogSegment openForAppend(Path path, Path indexPath, long baseSequence, int size) throws IOException {
+		FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+		FileChannel indexChannel = FileChannel.open(indexPath, StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+		try {
+			boolean created = channel.size() == 0;
+			int mappedSize = (int) Math.max(channel.size(), size);
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, mappedSize);
+			LogSegment segment = new LogSegment(baseSequence, channel, indexChannel, buffer);
+			if (created) {
+				buffer.putInt(0, MAGIC);
+				buffer.putInt(4, VERSION);
+				indexChannel.truncate(0);
+			} else {
+				segment.checkHeader();
+				segment.recover();
+			}
+			return segment;
+		} catch (IOException | RuntimeException e) {
+			channel.close();
+			indexChannel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Opens a full segment for reading.
+	 *
+	 * @param path         of the segment file
+	 * @param indexPath    of the index file
+	 * @param baseSequence sequence number of the first record of the segment
+	 * @return the segment
+	 * @throws IOException if the files can't be opened
+	 */
+	static LogSegment openForRead(Path path, Path indexPath, long baseSequence) throws IOException {
+		FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+		FileChannel indexChannel;
+		try {
+			indexChannel = FileChannel.open(indexPath, StandardOpenOption.READ);
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+		return new LogSegment(baseSequence, channel, indexChannel, null);
+	}
+
+	/**
+	 * Checks the header of an existing segment file.
+	 */
+	private void checkHeader() throws IOException {
+		if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+			throw new IOException("Not a message log segment");
+		}
+	}
+
+	/**
+	 * Finds the end of the records starting at the last index entry, restores
+	 * the index entries following it and clears any partially written record.
+	 */
+	private void recover() throws IOException {
+		int entries = (int) (indexChannel.size() / 4);
+		int position = HEADER_SIZE;
+		int count = 0;
+		// The index may be ahead of the records written to the disk
+		while (entries > 0) {
+			int candidate = readIndexEntry(entries - 1);
+			if (candidate >= HEADER_SIZE && candidate < buffer.capacity() && recordLength(candidate) > 0) {
+				position = candidate;
+				count = (entries - 1) * INDEX_INTERVAL;
+				break;
+			}
+			entries--;
+		}
+		indexChannel.truncate(4L * entries);
+
+		int length;
+		while ((length = recordLength(position)) > 0) {
+			if (count % INDEX_INTERVAL == 0 && count / INDEX_INTERVAL >= entries) {
+				writeIndexEntry(count / INDEX_INTERVAL, position);
+			}
+			position += RECORD_HEADER_SIZE + length;
+			count++;
+		}
+		recordCount = count;
+		endPosition = position;
+
+		if (length < 0) {
+			// Clear the torn record, appended records must not be followed by garbage
+			for (int i = position; i < buffer.capacity(); i++) {
+				buffer.put(i, (byte) 0);
+			}
+		}
+	}
+
+	/**
+	 * @return length of the body of the valid record at the passed position, 0
+	 *         at the end of the records, -1 if the record is damaged
+	 */
+	private int recordLength(int position) {
+		if (position + RECORD_HEADER_SIZE > buffer.capacity()) {
+			return 0;
+		}
+		int length = buffer.getInt(position);
+		if (length == 0) {
+			return 0;
+		}
+		if (length < BODY_FIXED_SIZE || length > buffer.capacity() - position - RECORD_HEADER_SIZE) {
+			return -1;
+		}
+
+		ByteBuffer body = buffer.duplicate();
+		body.limit(position + RECORD_HEADER_SIZE + length).position(position + RECORD_HEADER_SIZE);
+		crc.reset();
+		crc.update(body);
+		return (int) crc.getValue() == buffer.getInt(position + 4) ? length : -1;
+	}
+
+	/**
+	 * Appends the passed record to the mapping.
+	 *
+	 * @param record to be appended
+	 * @return false if the record doesn't fit into the segment
+	 * @throws IOException if the index can't be written
+	 */
+	boolean append(LogRecord record) throws IOException {
+		byte[] peer = record.getPeer().getBytes(StandardCharsets.UTF_8);
+		if (peer.length > Short.MAX_VALUE) {
+			throw new IllegalArgumentException("Peer address too long");
+		}
+		int length = BODY_FIXED_SIZE + peer.length + record.getPayload().length;
+		if ((long) endPosition + RECORD_HEADER_SIZE + length > buffer.capacity()) {
+			return false;
+		}
+
+		if (recordCount % INDEX_INTERVAL == 0) {
+			writeIndexEntry(recordCount / INDEX_INTERVAL, endPosition);
+		}
+
+		int bodyPosition = endPosition + RECORD_HEADER_SIZE;
+		buffer.position(bodyPosition);
+		buffer.putLong(record.getTimestamp());
+		buffer.put((byte) (record.getStyle().ordinal() | (record.isCompressed() ? COMPRESSED : 0)));
+		buffer.put(record.getCipher() == null ? -1 : (byte) record.getCipher().ordinal());
+		buffer.putShort((short) peer.length);
+		buffer.put(peer);
+		buffer.put(record.getPayload());
+
+		ByteBuffer body = buffer.duplicate();
+		body.limit(bodyPosition + length).position(bodyPosition);
+		crc.reset();
+		crc.update(body);
+		buffer.putInt(endPosition + 4, (int) crc.getValue());
+		buffer.putInt(endPosition, length);
+
+		endPosition = bodyPosition + length;
+		recordCount++;
+		return true;
+	}
+
+	/**
+	 * Reads the records of the passed sequence numbers.
+	 *
+	 * @param from  sequence number of the first record
+	 * @param count maximum number of records to read
+	 * @param out   list the records are added to
+	 * @return number of records read, less than requested at the end of the
+	 *         segment
+	 * @throws IOException if the segment can't be read
+	 */
+	int read(long from, int count, List<LogRecord> out) throws IOException {
+		int first = (int) (from - baseSequence);
+		int entry = first / INDEX_INTERVAL;
+		if (entry >= indexChannel.size() / 4) {
+			return 0;
+		}
+		int position = readIndexEntry(entry);
+
+		ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+		int skip = first % INDEX_INTERVAL;
+		int read = 0;
+		while (read < count) {
+			header.clear();
+			if (readFully(header, position) < RECORD_HEADER_SIZE) {
+				break;
+			}
+			int length = header.getInt(0);
+			if (length <= 0) {
+				break;
+			}
+			if (skip > 0) {
+				skip--;
+			} else {
+				ByteBuffer body = ByteBuffer.allocate(length);
+				if (readFully(body, position + RECORD_HEADER_SIZE) < length) {
+					break;
+				}
+				body.flip();
+				out.add(decode(body));
+				read++;
+			}
+			position += RECORD_HEADER_SIZE + length;
+		}
+		return read;
+	}
+
+	/**
+	 * Decodes the body of a record.
+	 */
+	private static LogRecord decode(ByteBuffer body) {
+		long timestamp = body.getLong();
+		int style = body.get() & 0xFF;
+		int cipher = body.get();
+		byte[] peer = new byte[body.getShort()];
+		body.get(peer);
+		byte[] payload = new byte[body.remaining()];
+		body.get(payload);
+		return new LogRecord(timestamp, new String(peer, StandardCharsets.UTF_8),
+				Style.values()[style & ~COMPRESSED], cipher < 0 ? null : Cipher.values()[cipher],
+				(style & COMPRESSED) != 0, payload);
+	}
+
+	/**
+	 * Reads from the segment file until the buffer is full or the file ends.
+	 *
+	 * @return number of bytes read
+	 */
+	private int readFully(ByteBuffer destination, long position) throws IOException {
+		int total = 0;
+		while (destination.hasRemaining()) {
+			int count = channel.read(destination, position + total);
+			if (count < 0) {
+				break;
+			}
+			total += count;
+		}
+		return total;
+	}
+
+	private int readIndexEntry(int entry) throws IOException {
+		indexEntry.clear();
+		while (indexEntry.hasRemaining()) {
+			if (indexChannel.read(indexEntry, 4L * entry + indexEntry.position()) < 0) {
+				throw new IOException("Truncated index");
+			}
+		}
+		return indexEntry.getInt(0);
+	}
+
+	private void writeIndexEntry(int entry, int position) throws IOException {
+		indexEntry.clear();
+		indexEntry.putInt(0, position);
+		long offset = 4L * entry;
+		while (indexEntry.hasRemaining()) {
+			indexChannel.write(indexEntry, offset + indexEntry.position());
+		}
+	}
+
+	/**
+	 * Flushes the appended records and the index to the disk.
+	 *
+	 * @throws IOException if the index can't be flushed
+	 */
+	void force() throws IOException {
+		buffer.force();
+		indexChannel.force(false);
+	}
+
+	/**
+	 * Closes the files of the segment. Records appended after the last
+	 * {@link #force()} are written to the disk by the operating system.
+	 */
+	void close() {
+		try {
+			channel.close();
+			indexChannel.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * @return sequence number of the first record of the segment
+	 */
+	long getBaseSequence() {
+		return baseSequence;
+	}
+
+	/**
+	 * @return number of records in the segment
+	 */
+	int getRecordCount() {
+		return recordCount;
+	}
+}
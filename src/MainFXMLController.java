@@ -1,18 +1,34 @@
+import java.io.File;
 import java.io.IOException;
-
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javafx.animation.AnimationTimer;
 import javafx.application.Platform;
+import javafx.collections.ObservableList;
 import javafx.event.ActionEvent;
 import javafx.fxml.FXML;
 import javafx.scene.control.Button;
+import javafx.scene.control.ListView;
 import javafx.scene.control.RadioButton;
 import javafx.scene.control.TextArea;
 import javafx.scene.control.TextField;
 import javafx.scene.layout.Pane;
-import javafx.scene.paint.Color;
-import javafx.scene.text.Text;
-import javafx.scene.text.TextFlow;
+import javafx.stage.FileChooser;
 
-public class MainFXMLController {
+public class MainFXMLController implements MessengerListener {
 
 	@FXML
 	private TextField TextField_SendInput;
@@ -21,7 +37,7 @@ public class MainFXMLController {
 	private TextArea TextArea_Key;
 
 	@FXML
-	private TextFlow TextFlow_History;
+	private ListView<ChatLine> ListView_History;
 
 	@FXML
 	private Button Button_Connect;
@@ -35,6 +51,9 @@ public class MainFXMLController {
 	@FXML
 	private Button Button_Send;
 
+	@FXML
+	private Button Button_SendFile;
+
 	@FXML
 	private Button Button_Disconnect;
 
@@ -50,6 +69,15 @@ public class MainFXMLController {
 	@FXML
 	private RadioButton RadioButton_CipherAES128;
 
+	@FXML
+	private RadioButton RadioButton_CipherAES128CTR;
+
+	@FXML
+	private RadioButton RadioButton_CipherAES128GCM;
+
+	@FXML
+	private TextField TextField_Search;
+
 	/**
 	 * Name displayed next to this user's messages.
 	 */
@@ -60,34 +88,121 @@ public class MainFXMLController {
 	private final String systemUsername = "System";
 
 	/**
-	 * The instance of {@link SocketController} class used for communication.
+	 * Maximum number of received lines waiting to be displayed. Once it is
+	 * reached the {@link Thread} of the engine blocks and stops reading the
+	 * socket until the GUI catches up.
 	 */
-	private SocketController socketController;
+	private final static int PENDING_LINES_CAPACITY = 10000;
 	/**
-	 * The instance of {@link Thread} used for listening to incoming messages.
+	 * Maximum number of lines added to the chat box in a single pulse.
 	 */
-	private Thread socketListenerThread;
+	private final static int MAX_LINES_PER_PULSE = 1000;
+	/**
+	 * Maximum number of lines kept in the chat history, the oldest lines are
+	 * removed first.
+	 */
+	private final static int MAX_HISTORY_LINES = 10000;
+	/**
+	 * Number of lines of the {@link MessageLog} displayed on startup.
+	 */
+	private final static int REPLAYED_LINES = 1000;
+	/**
+	 * Maximum number of messages displayed for a search.
+	 */
+	private final static int MAX_SEARCH_RESULTS = 100;
+	/**
+	 * Number of steps in which the progress of a file transfer is printed.
+	 */
+	private final static int PROGRESS_STEPS = 4;
+	/**
+	 * Format of the time displayed next to the found messages.
+	 */
+	private final static DateTimeFormatter SEARCH_TIME_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm")
+			.withZone(ZoneId.systemDefault());
 
 	/**
-	 * {@link Cipher} used for encryption/decryption of sent/received messages.
+	 * The instance of {@link MessengerEngine} used for communication.
+	 */
+	private MessengerEngine engine;
+	/**
+	 * Last progress step printed for each running file transfer.
+	 */
+	private final Map<FileTransfer, Integer> printedProgress = new ConcurrentHashMap<FileTransfer, Integer>();
+	/**
+	 * Lines posted by the {@link Thread} of the engine, drained once per pulse by
+	 * the {@link #pendingLinesTimer}.
+	 */
+	private final BlockingQueue<ChatLine> pendingLines = new ArrayBlockingQueue<ChatLine>(PENDING_LINES_CAPACITY);
+	/**
+	 * Time the oldest of the {@link #pendingLines} was posted at, 0 if there is
+	 * none, see {@link Metrics#UI_DISPATCH_LAG}.
+	 */
+	private final AtomicLong pendingSince = new AtomicLong();
+	/**
+	 * Adds the {@link #pendingLines} to the chat box on every pulse.
 	 */
-	private Cipher currentCipher = Cipher.AES128;
+	private final AnimationTimer pendingLinesTimer = new AnimationTimer() {
+		@Override
+		public void handle(long now) {
+			drainPendingLines(MAX_LINES_PER_PULSE);
+		}
+	};
 
 	/**
-	 * Tries to establish a connection by the address read from the GUI
+	 * Tries to establish a connection by the address read from the GUI. The
+	 * connection is established by a background {@link Thread}, so an
+	 * unreachable peer doesn't freeze the GUI.
 	 * 
 	 * @param event the {@link ActionEvent} sent by the GUI
 	 */
 	@FXML
 	void Button_ConnectAction(ActionEvent event) {
-		socketController.setClientMode();
-		boolean success = socketController.connect(TextField_Connect.getText());
-		if (success) {
-			postLine("Connected to " + socketController.getPartnerAddress(), systemUsername, Style.SYSTEM);
-			updateUI(true);
-		} else {
-			postLine("Failed to connect to " + TextField_Connect.getText(), systemUsername, Style.SYSTEM);
+		String address = TextField_Connect.getText();
+		TextField_Connect.setDisable(true);
+		Button_Connect.setDisable(true);
+		RadioButton_ClientMode.setDisable(true);
+		RadioButton_ServerMode.setDisable(true);
+		Thread connector = new Thread(() -> {
+			engine.setClientMode();
+			boolean success = engine.connect(address);
+			Platform.runLater(() -> {
+				if (success) {
+					postLine("Connected to " + engine.getPartnerAddress(), systemUsername, Style.SYSTEM);
+				} else {
+					postLine("Failed to connect to " + address, systemUsername, Style.SYSTEM);
+				}
+				updateUI(success);
+			});
+		}, "Connect");
+		connector.setDaemon(true);
+		connector.start();
+	}
+
+	/**
+	 * Searches the message history for the query read from the GUI and prints
+	 * the newest matching messages.
+	 * 
+	 * @param event the {@link ActionEvent} sent by the GUI
+	 */
+	@FXML
+	void Button_SearchAction(ActionEvent event) {
+		String query = TextField_Search.getText().trim();
+		if (query.isEmpty()) {
+			return;
+		}
+
+		List<ChatLine> lines = new ArrayList<ChatLine>();
+		try {
+			List<LogRecord> records = engine.searchHistory(query, MAX_SEARCH_RESULTS);
+			lines.add(new ChatLine(records.size() + " messages found for " + query, systemUsername, Style.SYSTEM));
+			for (LogRecord record : records) {
+				lines.add(toChatLine(record, true));
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			lines.add(new ChatLine("Failed to search the message history.", systemUsername, Style.SYSTEM));
 		}
+		addLines(lines);
 	}
 
 	/**
@@ -98,9 +213,9 @@ public class MainFXMLController {
 	@FXML
 	void Button_DisconnectAction(ActionEvent event) {
 		if (RadioButton_ServerMode.isSelected()) {
-			socketController.setServerMode();
+			engine.setServerMode();
 		} else {
-			socketController.setClientMode();
+			engine.setClientMode();
 		}
 		updateUI(false);
 	}
@@ -115,20 +230,53 @@ public class MainFXMLController {
 	void Button_SendAction(ActionEvent event) {
 		if (!TextField_SendInput.getText().isEmpty()) {
 			String text = TextField_SendInput.getText();
-			String key = TextArea_Key.getText();
-			try {
-				socketController.send(Crypto.encrypt(text, key, currentCipher));
-				postLine(TextField_SendInput.getText(), myUsername, Style.USER);
-			} catch (UnsupportedOperationException e) {
-				postLine("Encryption failed, the message was not sent.", systemUsername, Style.SYSTEM);
-			} catch (IOException e) {
-				postLine("Failed to send the message.", systemUsername, Style.SYSTEM);
-				e.printStackTrace();
-			}
+			// Sent in the background so a stalled peer doesn't freeze the GUI
+			engine.sendAsync(text).whenComplete((result, e) -> {
+				if (e != null) {
+					Platform.runLater(() -> postLine(sendFailure(e), systemUsername, Style.SYSTEM));
+				}
+			});
+			postLine(text, myUsername, Style.USER);
 			TextField_SendInput.clear();
 		}
 	}
 
+	/**
+	 * @param e the failure of {@link MessengerEngine#sendAsync(String)}
+	 * @return line telling the user why a message was not sent
+	 */
+	private String sendFailure(Throwable e) {
+		Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+		if (cause instanceof UnsupportedOperationException) {
+			return "Encryption failed, the message was not sent.";
+		} else if (cause instanceof RejectedExecutionException) {
+			return "The peer is not keeping up, the message was not sent.";
+		} else if (cause instanceof CancellationException) {
+			return "The peer is not keeping up, a queued message was dropped.";
+		}
+		cause.printStackTrace();
+		return "Failed to send the message.";
+	}
+
+	/**
+	 * Lets the user pick a file and offers it to the connected peer
+	 * 
+	 * @param event the {@link ActionEvent} sent by the GUI
+	 */
+	@FXML
+	void Button_SendFileAction(ActionEvent event) {
+		File file = new FileChooser().showOpenDialog(Pane_root.getScene().getWindow());
+		if (file == null) {
+			return;
+		}
+
+		try {
+			engine.sendFile(file.toPath());
+		} catch (IOException e) {
+			postLine("Failed to send " + file.getName() + ": " + e.getMessage(), systemUsername, Style.SYSTEM);
+		}
+	}
+
 	/**
 	 * Sets client mode and updates the GUI
 	 * 
@@ -136,7 +284,7 @@ public class MainFXMLController {
 	 */
 	@FXML
 	void RadioButton_ClientModeAction(ActionEvent event) {
-		socketController.setClientMode();
+		engine.setClientMode();
 		RadioButton_ServerMode.setSelected(false);
 
 		updateUI(false);
@@ -148,9 +296,7 @@ public class MainFXMLController {
 	 */
 	@FXML
 	void RadioButton_CipherNoneAction(ActionEvent event) {
-		RadioButton_CipherAES128.setSelected(false);
-		TextArea_Key.setDisable(true);
-		currentCipher = Cipher.NONE;
+		selectCipher(Cipher.NONE);
 	}
 
 	/**
@@ -160,9 +306,27 @@ public class MainFXMLController {
 	 */
 	@FXML
 	void RadioButton_CipherAES128Action(ActionEvent event) {
-		RadioButton_CipherNone.setSelected(false);
-		TextArea_Key.setDisable(false);
-		currentCipher = Cipher.AES128;
+		selectCipher(Cipher.AES128);
+	}
+
+	/**
+	 * Sets the currently used {@link Cipher} to {@link Cipher#AES128_CTR}.
+	 * 
+	 * @param event the {@link ActionEvent} sent by the GUI
+	 */
+	@FXML
+	void RadioButton_CipherAES128CTRAction(ActionEvent event) {
+		selectCipher(Cipher.AES128_CTR);
+	}
+
+	/**
+	 * Sets the currently used {@link Cipher} to {@link Cipher#AES128_GCM}.
+	 * 
+	 * @param event the {@link ActionEvent} sent by the GUI
+	 */
+	@FXML
+	void RadioButton_CipherAES128GCMAction(ActionEvent event) {
+		selectCipher(Cipher.AES128_GCM);
 	}
 
 	/**
@@ -172,7 +336,7 @@ public class MainFXMLController {
 	 */
 	@FXML
 	void RadioButton_ServerModeAction(ActionEvent event) {
-		socketController.setServerMode();
+		engine.setServerMode();
 		RadioButton_ClientMode.setSelected(false);
 
 		updateUI(false);
@@ -184,67 +348,175 @@ public class MainFXMLController {
 	public void initialize() {
 		TextField_Connect.setText("localhost");
 		TextArea_Key.setWrapText(true);
+		ListView_History.setCellFactory(listView -> new ChatLineCell());
 		RadioButton_ClientMode.setSelected(true);
-		RadioButton_CipherAES128.setSelected(true);
 		updateUI(false);
+		pendingLinesTimer.start();
 	}
 
 	/**
-	 * Creates a {@link Thread} to handle the server side of the program and updates
-	 * the GUI accordingly.
+	 * Connects the GUI to the passed {@link MessengerEngine}. The GUI must be
+	 * registered as the {@link MessengerListener} of the engine.
 	 * 
-	 * @param socketController the instance of {@link SocketController} to be used
-	 */
-	public void startServerSideThread(SocketController socketController) {
-		this.socketController = socketController;
-		socketListenerThread = new Thread(() -> {
-			while (true) {
-				try {
-					Thread.sleep(1000);
-
-					if (socketController.getSocketStatus() == SocketStatus.STARTINGSERVER) {
-						socketController.startServer();
-						if (socketController.getSocketStatus() == SocketStatus.SERVERMODE) {
-							Platform.runLater(() -> {
-								postLine(socketController.getPartnerAddress() + " connected", systemUsername,
-										Style.SYSTEM);
-								updateUI(true);
-							});
-						}
-					}
-
-					if (socketController.getSocketStatus() == SocketStatus.SERVERMODE
-							|| socketController.getSocketStatus() == SocketStatus.CLIENTMODE) {
-						try {
-							byte[] receivedMessage = socketController.receiveMessage();
-							if (receivedMessage != null) {
-								String stringKey = TextArea_Key.getText();
-								String message = Crypto.decrypt(receivedMessage, stringKey, currentCipher);
-								Platform.runLater(() -> {
-									postLine(message, socketController.getPartnerAddress(), Style.PARTNER);
-								});
-							}
-						} catch (IOException e) {
-							socketController.setServerMode();
-							Platform.runLater(() -> {
-								postLine(socketController.getPartnerAddress() + " disconnected", systemUsername,
-										Style.SYSTEM);
-								updateUI(false);
-							});
-
-						}
-					}
-
-					System.out.println("Running : " + socketController.getSocketStatus().toString());
-
-				} catch (InterruptedException e) {
-					e.printStackTrace();
-				}
+	 * @param engine the instance of {@link MessengerEngine} to be used
+	 */
+	public void setEngine(MessengerEngine engine) {
+		this.engine = engine;
+		engine.setKey(TextArea_Key.getText());
+		TextArea_Key.textProperty().addListener((observable, oldValue, newValue) -> engine.setKey(newValue));
+		selectCipher(Cipher.AES128);
+		replayHistory();
+	}
+
+	/**
+	 * Displays the last messages of the {@link MessageLog} of the engine.
+	 */
+	private void replayHistory() {
+		List<ChatLine> lines = new ArrayList<ChatLine>();
+		try {
+			for (LogRecord record : engine.readHistory(REPLAYED_LINES)) {
+				lines.add(toChatLine(record, false));
 			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			lines.add(new ChatLine("Failed to read the message history.", systemUsername, Style.SYSTEM));
+		}
+		if (!lines.isEmpty()) {
+			addLines(lines);
+		}
+	}
 
-		});
+	/**
+	 * Converts a logged message to a line of the chat box.
+	 * 
+	 * @param record   of the message
+	 * @param showTime whether the time of the message is displayed
+	 * @return the line
+	 */
+	private ChatLine toChatLine(LogRecord record, boolean showTime) {
+		String sender = record.getStyle() == Style.USER ? myUsername : record.getPeer();
+		if (showTime) {
+			sender = SEARCH_TIME_FORMAT.format(Instant.ofEpochMilli(record.getTimestamp())) + " " + sender;
+		}
+		try {
+			return new ChatLine(engine.readText(record), sender, record.getStyle());
+		} catch (IllegalArgumentException e) {
+			return new ChatLine("Failed to decrypt a logged message.", systemUsername, Style.SYSTEM);
+		}
+	}
 
-		socketListenerThread.start();
+	@Override
+	public void onConnected(String partnerAddress) {
+		postPendingLine(partnerAddress + " connected", systemUsername, Style.SYSTEM);
+		Platform.runLater(() -> updateUI(true));
+	}
+
+	@Override
+	public void onMessage(String partnerAddress, String message) {
+		postPendingLine(message, partnerAddress, Style.PARTNER);
+	}
+
+	@Override
+	public void onDecryptionFailed(String partnerAddress) {
+		postPendingLine("Failed to decrypt a received message.", systemUsername, Style.SYSTEM);
+	}
+
+	@Override
+	public void onFileTransfer(FileTransfer transfer) {
+		String line;
+		String name = transfer.getName();
+		switch (transfer.getState()) {
+		case WAITING:
+			line = "Offering " + name + " (" + transfer.getSize() + " bytes)";
+			break;
+		case RUNNING:
+			int step = (int) (transfer.getProgress() * PROGRESS_STEPS);
+			Integer printed = printedProgress.put(transfer, step);
+			if (printed != null && printed == step) {
+				return;
+			}
+			if (printed == null && transfer.getOffset() > 0) {
+				line = (transfer.isOutgoing() ? "Resuming sending " : "Resuming receiving ") + name + " at "
+						+ transfer.getOffset() + " bytes";
+			} else {
+				line = (transfer.isOutgoing() ? "Sending " : "Receiving ") + name + ": "
+						+ Math.round(100 * transfer.getProgress()) + "%";
+			}
+			break;
+		case COMPLETED:
+			printedProgress.remove(transfer);
+			line = transfer.isOutgoing() ? "Sent " + name : "Received " + transfer.getPath();
+			break;
+		default:
+			printedProgress.remove(transfer);
+			line = "Transfer of " + name + " failed: " + transfer.getFailure();
+			break;
+		}
+		postPendingLine(line, systemUsername, Style.SYSTEM);
+	}
+
+	@Override
+	public void onDisconnected(String partnerAddress) {
+		postPendingLine(partnerAddress + " disconnected", systemUsername, Style.SYSTEM);
+		Platform.runLater(() -> updateUI(false));
+	}
+
+	@Override
+	public void onReconnecting(String address, int attempt, long delayMillis) {
+		postPendingLine("Reconnecting to " + address + " in " + delayMillis + " ms (attempt " + attempt + ")",
+				systemUsername, Style.SYSTEM);
+	}
+
+	/**
+	 * Queues the passed line to be printed on the next pulse. Called by the
+	 * {@link Thread} of the engine, blocks while the queue is full.
+	 * 
+	 * @param line   line to be printed
+	 * @param sender username that the line is related to
+	 * @param style  {@link Style} of the message
+	 */
+	private void postPendingLine(String line, String sender, Style style) {
+		try {
+			pendingLines.put(new ChatLine(line, sender, style));
+			pendingSince.compareAndSet(0, System.nanoTime());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Prints the queued lines to the main chat box as a single change.
+	 * 
+	 * @param maxLines maximum number of lines to be printed
+	 */
+	private void drainPendingLines(int maxLines) {
+		List<ChatLine> lines = new ArrayList<ChatLine>();
+		pendingLines.drainTo(lines, maxLines);
+		long since = pendingSince.getAndSet(0);
+		if (!pendingLines.isEmpty()) {
+			pendingSince.compareAndSet(0, System.nanoTime());
+		}
+		if (!lines.isEmpty()) {
+			if (since != 0) {
+				Metrics.UI_DISPATCH_LAG.recordSince(since);
+			}
+			addLines(lines);
+		}
+	}
+
+	/**
+	 * Appends the passed lines to the chat history, removes the oldest lines
+	 * over {@link #MAX_HISTORY_LINES} and scrolls to the last line.
+	 * 
+	 * @param lines to be appended
+	 */
+	private void addLines(List<ChatLine> lines) {
+		ObservableList<ChatLine> history = ListView_History.getItems();
+		history.addAll(lines);
+		if (history.size() > MAX_HISTORY_LINES) {
+			history.remove(0, history.size() - MAX_HISTORY_LINES);
+		}
+		ListView_History.scrollTo(history.size() - 1);
 	}
 
 	/**
@@ -255,18 +527,24 @@ public class MainFXMLController {
 	 * @param style  {@link Style} of the message
 	 */
 	private void postLine(String line, String sender, Style style) {
-		Text text = new Text(sender + " : " + line + '\n');
-		switch (style) {
-		case USER:
-			text.setFill(Color.BLUE);
-			break;
-		case PARTNER:
-			text.setFill(Color.RED);
-			break;
-		default:
-			break;
-		}
-		TextFlow_History.getChildren().add(text);
+		// Keep the order of the lines received before
+		drainPendingLines(PENDING_LINES_CAPACITY);
+		addLines(Collections.singletonList(new ChatLine(line, sender, style)));
+	}
+
+	/**
+	 * Selects the passed {@link Cipher} in the GUI and picks its
+	 * {@link CipherProvider} for the following messages.
+	 * 
+	 * @param cipher to be used
+	 */
+	private void selectCipher(Cipher cipher) {
+		RadioButton_CipherNone.setSelected(cipher == Cipher.NONE);
+		RadioButton_CipherAES128.setSelected(cipher == Cipher.AES128);
+		RadioButton_CipherAES128CTR.setSelected(cipher == Cipher.AES128_CTR);
+		RadioButton_CipherAES128GCM.setSelected(cipher == Cipher.AES128_GCM);
+		TextArea_Key.setDisable(cipher == Cipher.NONE);
+		engine.setCipher(cipher);
 	}
 
 	/**
@@ -286,6 +564,7 @@ public class MainFXMLController {
 			RadioButton_ServerMode.setDisable(true);
 			TextField_SendInput.setDisable(false);
 			Button_Send.setDisable(false);
+			Button_SendFile.setDisable(false);
 		} else {
 			if (RadioButton_ServerMode.isSelected()) {
 				TextField_Connect.setDisable(true);
@@ -300,6 +579,7 @@ public class MainFXMLController {
 			RadioButton_ServerMode.setDisable(false);
 			TextField_SendInput.setDisable(true);
 			Button_Send.setDisable(true);
+			Button_SendFile.setDisable(true);
 		}
 	}
 
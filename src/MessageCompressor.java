@@ -0,0 +1,195 @@
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ *
+ * Compression stage applied to the messages before their encryption.
+ * <p>
+ * Holds a {@link Deflater} and an {@link Inflater} reused for all the messages
+ * of a connection, created on first use and released by {@link #close()}, so
+ * every connection should have its own compressor. Every message is compressed on its own with a preset
+ * dictionary of strings common in chat, JSON and log lines, so even short
+ * messages compress well and a message which can't be decrypted doesn't
+ * affect the following ones. Messages shorter than the threshold or not
+ * getting any shorter are sent as they are, compressed messages are marked
+ * with {@link Frame#FLAG_COMPRESSED}.
+ *
+ */
+public class MessageCompressor {
+	/**
+	 * Default minimum size in bytes of a compressed message.
+	 */
+	public final static int DEFAULT_THRESHOLD = 128;
+
+	/**
+	 * Preset dictionary, the most common strings come last as they're encoded
+	 * with the shortest distances.
+	 */
+	private final static byte[] DICTIONARY = ("https://www. http://localhost:8080/api/v1/ .html .json .xml .com .org "
+			+ "Caused by: java.lang.NullPointerException java.lang.IllegalStateException java.io.IOException "
+			+ "\tat java.base/java.lang.Thread.run(Thread.java:\tat org.\tat com.\tat java.util. "
+			+ "Exception in thread \"main\" Traceback (most recent call last): File \"line "
+			+ "2024-01-01T00:00:00.000Z 2025- 2026- UTC [main] [INFO] [WARN] [ERROR] [DEBUG] TRACE "
+			+ "INFO WARN ERROR DEBUG FATAL localhost 127.0.0.1 failed to connect timeout retry success "
+			+ "\"status\":\"ok\",\"error\":null,\"code\":200,\"data\":{\"items\":[{\"name\":\"value\":"
+			+ "\"created_at\":\"updated_at\":\"timestamp\":\"message\":\"level\":\"user\":\"type\":"
+			+ "\"id\":\"true,\"false,\"null,\"}]}, {\"\": \"\"}\r\n"
+			+ "could you please can we let me know thank you thanks ok yes no what when where why how "
+			+ "is are was were have has had not this that with from for and the you to of in it ")
+					.getBytes(StandardCharsets.UTF_8);
+
+	private final Object deflaterLock = new Object();
+	private final Object inflaterLock = new Object();
+	/**
+	 * Guarded by {@link #deflaterLock}, null until the first compressed message.
+	 */
+	private Deflater deflater;
+	/**
+	 * Guarded by {@link #inflaterLock}, null until the first decompressed
+	 * message.
+	 */
+	private Inflater inflater;
+	private volatile boolean closed;
+	/**
+	 * Messages shorter than this aren't compressed, 0 disables compression.
+	 */
+	private volatile int threshold;
+
+	/**
+	 * Creates a compressor with the {@link #DEFAULT_THRESHOLD}.
+	 */
+	public MessageCompressor() {
+		this(DEFAULT_THRESHOLD);
+	}
+
+	/**
+	 * @param threshold minimum size in bytes of a compressed message, 0 disables
+	 *                  compression
+	 */
+	public MessageCompressor(int threshold) {
+		setThreshold(threshold);
+	}
+
+	/**
+	 * Compresses the passed message if it's long enough and gets shorter.
+	 *
+	 * @param message to be compressed
+	 * @return the compressed message, null if it's to be sent uncompressed or the
+	 *         compressor is closed
+	 */
+	public byte[] compress(byte[] message) {
+		int threshold = this.threshold;
+		if (threshold == 0 || message.length < threshold) {
+			return null;
+		}
+
+		synchronized (deflaterLock) {
+			if (closed) {
+				return null;
+			}
+			if (deflater == null) {
+				deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+			}
+			deflater.reset();
+			deflater.setDictionary(DICTIONARY);
+			deflater.setInput(message);
+			deflater.finish();
+			// A compressed message as long as the original one isn't worth it
+			byte[] compressed = new byte[message.length];
+			int length = 0;
+			while (!deflater.finished() && length < compressed.length) {
+				length += deflater.deflate(compressed, length, compressed.length - length);
+			}
+			if (!deflater.finished()) {
+				return null;
+			}
+			return Arrays.copyOf(compressed, length);
+		}
+	}
+
+	/**
+	 * Decompresses a message compressed by {@link #compress(byte[])}.
+	 *
+	 * @param message to be decompressed
+	 * @param maxSize maximum size of the decompressed message
+	 * @return the decompressed message
+	 * @throws DataFormatException if the message is malformed, decompresses to
+	 *                             more than {@code maxSize} bytes or the
+	 *                             compressor is closed
+	 */
+	public byte[] decompress(byte[] message, int maxSize) throws DataFormatException {
+		synchronized (inflaterLock) {
+			if (closed) {
+				throw new DataFormatException("The compressor is closed");
+			}
+			if (inflater == null) {
+				inflater = new Inflater();
+			}
+			inflater.reset();
+			inflater.setInput(message);
+			byte[] decompressed = new byte[Math.min(maxSize, Math.max(64, 4 * message.length))];
+			int length = 0;
+			while (!inflater.finished()) {
+				if (length == decompressed.length) {
+					if (length == maxSize) {
+						throw new DataFormatException("Message exceeds the limit of " + maxSize + " bytes");
+					}
+					decompressed = Arrays.copyOf(decompressed, (int) Math.min(maxSize, 2L * length));
+				}
+				int count = inflater.inflate(decompressed, length, decompressed.length - length);
+				if (count == 0) {
+					if (inflater.needsDictionary()) {
+						inflater.setDictionary(DICTIONARY);
+					} else if (inflater.needsInput()) {
+						throw new DataFormatException("Truncated message");
+					}
+				}
+				length += count;
+			}
+			return Arrays.copyOf(decompressed, length);
+		}
+	}
+
+	/**
+	 * Releases the native memory of the {@link Deflater} and the {@link Inflater}.
+	 * The following messages are sent uncompressed and the compressed ones can't
+	 * be decompressed anymore.
+	 */
+	public void close() {
+		closed = true;
+		synchronized (deflaterLock) {
+			if (deflater != null) {
+				deflater.end();
+				deflater = null;
+			}
+		}
+		synchronized (inflaterLock) {
+			if (inflater != null) {
+				inflater.end();
+				inflater = null;
+			}
+		}
+	}
+
+	/**
+	 * @return minimum size in bytes of a compressed message, 0 if compression is
+	 *         disabled
+	 */
+	public int getThreshold() {
+		return threshold;
+	}
+
+	/**
+	 * @param threshold minimum size in bytes of a compressed message, 0 disables
+	 *                  compression
+	 */
+	public void setThreshold(int threshold) {
+		if (threshold < 0) {
+			throw new IllegalArgumentException("threshold");
+		}
+		this.threshold = threshold;
+	}
+}
@@ -0,0 +1,446 @@
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ *
+ * Persistent, append-only log of the sent and received messages.
+ * <p>
+ * The log is a directory of {@link LogSegment}s named by the sequence number
+ * of their first record. Records are appended to the memory mapping of the
+ * newest segment, a new segment is started once it is full and the oldest
+ * segments are deleted according to the retention rules of the
+ * {@link MessageLogOptions}.
+ * <p>
+ * Appending doesn't wait for the disk. A committer {@link Thread} flushes the
+ * records appended within the commit delay together, callers needing
+ * durability wait with {@link #awaitCommit(long)}. The last records are read
+ * through the sparse index of the segments, so {@link #readLast(int)} takes
+ * the same time whatever the size of the log.
+ * <p>
+ * The text of the messages stored as plain text is added to a
+ * {@link SearchIndex} kept next to the segments, see {@link #search(String, int)}.
+ * The index is saved by the committer once a segment is full, so appending
+ * never waits for it.
+ *
+ */
+public class MessageLog implements AutoCloseable {
+	private final static String SEGMENT_SUFFIX = ".log";
+	private final static String INDEX_SUFFIX = ".idx";
+	private final static String SEARCH_INDEX_FILE = "search.idx";
+	/**
+	 * Number of records read at once while indexing the log.
+	 */
+	private final static int INDEXING_BATCH_SIZE = 1024;
+
+	private final Path directory;
+	private final int segmentSize;
+	private final int maxSegments;
+	private final long retentionMillis;
+	private final long commitDelayMillis;
+	private final StoragePolicy storagePolicy;
+
+	/**
+	 * Base sequence numbers of the segments, guarded by the log.
+	 */
+	private final TreeMap<Long, Path> segments = new TreeMap<Long, Path>();
+	/**
+	 * Segment records are appended to, guarded by the log.
+	 */
+	private LogSegment activeSegment;
+	/**
+	 * Sequence number of the next appended record, guarded by the log.
+	 */
+	private long nextSequence;
+	/**
+	 * All the records before this sequence number are on the disk, guarded by
+	 * the log.
+	 */
+	private long committedSequence;
+	private boolean open = true;
+	/**
+	 * Indicates that the {@link SearchIndex} is to be saved by the committer,
+	 * guarded by the log.
+	 */
+	private boolean searchIndexDirty;
+
+	private final Thread committer;
+	private SearchIndex searchIndex;
+
+	private MessageLog(Path directory, MessageLogOptions options) {
+		this.directory = directory;
+		this.segmentSize = options.getSegmentSize();
+		this.maxSegments = options.getMaxSegments();
+		this.retentionMillis = options.getRetentionMillis();
+		this.commitDelayMillis = options.getCommitDelayMillis();
+		this.storagePolicy = options.getStoragePolicy();
+		this.committer = new Thread(this::commit, "MessageLogCommitter");
+		this.committer.setDaemon(true);
+	}
+
+	/**
+	 * Opens the log in the passed directory, creates it if it doesn't exist.
+	 *
+	 * @param directory of the log
+	 * @param options   of the log
+	 * @return the open log
+	 * @throws IOException if the log can't be opened
+	 */
+	public static MessageLog open(Path directory, MessageLogOptions options) throws IOException {
+		Files.createDirectories(directory);
+		MessageLog log = new MessageLog(directory, options);
+		log.load();
+		log.committer.start();
+		return log;
+	}
+
+	/**
+	 * Finds the segments, opens the newest one and applies the retention rules.
+	 */
+	private synchronized void load() throws IOException {
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + SEGMENT_SUFFIX)) {
+			for (Path path : stream) {
+				String name = path.getFileName().toString();
+				try {
+					segments.put(Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length())), path);
+				} catch (NumberFormatException e) {
+					// Not a segment
+				}
+			}
+		}
+
+		long baseSequence = segments.isEmpty() ? 0 : segments.lastKey();
+		activeSegment = openSegment(baseSequence);
+		nextSequence = baseSequence + activeSegment.getRecordCount();
+		committedSequence = nextSequence;
+		applyRetention();
+		loadSearchIndex();
+	}
+
+	/**
+	 * Loads the {@link SearchIndex} and indexes the records appended after it
+	 * was saved.
+	 */
+	private void loadSearchIndex() throws IOException {
+		searchIndex = SearchIndex.load(directory.resolve(SEARCH_INDEX_FILE));
+		if (searchIndex.getNextSequence() > nextSequence) {
+			// The index doesn't belong to these segments
+			searchIndex.clear();
+		}
+
+		long sequence = Math.max(searchIndex.getNextSequence(), getFirstSequence());
+		while (sequence < nextSequence) {
+			for (LogRecord record : read(sequence, INDEXING_BATCH_SIZE)) {
+				searchIndex.add(sequence++, textOf(record));
+			}
+		}
+	}
+
+	/**
+	 * @return text of the record, null if it's encrypted
+	 */
+	private static String textOf(LogRecord record) {
+		return record.getCipher() == null ? new String(record.getPayload(), StandardCharsets.UTF_8) : null;
+	}
+
+	/**
+	 * Opens the segment with the passed base sequence number for appending.
+	 */
+	private LogSegment openSegment(long baseSequence) throws IOException {
+		Path path = segmentPath(baseSequence, SEGMENT_SUFFIX);
+		LogSegment segment = LogSegment.openForAppend(path, segmentPath(baseSequence, INDEX_SUFFIX), baseSequence,
+				segmentSize);
+		segments.put(baseSequence, path);
+		return segment;
+	}
+
+	private Path segmentPath(long baseSequence, String suffix) {
+		return directory.resolve(String.format("%020d%s", baseSequence, suffix));
+	}
+
+	/**
+	 * Appends the passed record. The record is on the disk once the following
+	 * commit is done.
+	 *
+	 * @param record to be appended
+	 * @return sequence number of the record
+	 * @throws IOException              if the log can't be written
+	 * @throws IllegalArgumentException if the record is larger than a segment
+	 */
+	public synchronized long append(LogRecord record) throws IOException {
+		if (!open) {
+			throw new IOException("The log is closed");
+		}
+
+		if (!activeSegment.append(record)) {
+			if (activeSegment.getRecordCount() == 0) {
+				throw new IllegalArgumentException("Record larger than a segment");
+			}
+			roll();
+			if (!activeSegment.append(record)) {
+				throw new IllegalArgumentException("Record larger than a segment");
+			}
+		}
+
+		searchIndex.add(nextSequence, textOf(record));
+		notifyAll();
+		return nextSequence++;
+	}
+
+	/**
+	 * Closes the full segment and starts a new one.
+	 */
+	private void roll() throws IOException {
+		activeSegment.force();
+		activeSegment.close();
+		committedSequence = nextSequence;
+		activeSegment = openSegment(nextSequence);
+		applyRetention();
+		searchIndexDirty = true;
+	}
+
+	/**
+	 * Saves the {@link SearchIndex} without the records deleted by the retention
+	 * rules. Records may be appended meanwhile.
+	 *
+	 * @param firstSequence sequence number of the oldest kept record
+	 */
+	private void saveSearchIndex(long firstSequence) {
+		try {
+			searchIndex.save(firstSequence);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Deletes the oldest segments over the maximum count or older than the
+	 * retention time. The active segment is always kept.
+	 */
+	private void applyRetention() {
+		long now = System.currentTimeMillis();
+		while (segments.size() > 1) {
+			Map.Entry<Long, Path> oldest = segments.firstEntry();
+			boolean expired;
+			try {
+				expired = retentionMillis > 0
+						&& now - Files.getLastModifiedTime(oldest.getValue()).toMillis() > retentionMillis;
+			} catch (IOException e) {
+				expired = true;
+			}
+			if (!expired && (maxSegments == 0 || segments.size() <= maxSegments)) {
+				break;
+			}
+
+			segments.pollFirstEntry();
+			try {
+				Files.deleteIfExists(oldest.getValue());
+				Files.deleteIfExists(segmentPath(oldest.getKey(), INDEX_SUFFIX));
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * The loop of the committer {@link Thread}. Waits for appended records,
+	 * waits the commit delay for more of them and flushes them all at once.
+	 */
+	private void commit() {
+		try {
+			while (true) {
+				synchronized (this) {
+					while (open && committedSequence == nextSequence) {
+						wait();
+					}
+					if (!open) {
+						return;
+					}
+				}
+				if (commitDelayMillis > 0) {
+					Thread.sleep(commitDelayMillis);
+				}
+
+				LogSegment segment;
+				long sequence;
+				synchronized (this) {
+					if (!open) {
+						return;
+					}
+					segment = activeSegment;
+					sequence = nextSequence;
+				}
+				try {
+					segment.force();
+				} catch (ClosedChannelException e) {
+					// The segment has been rolled over, which flushed it
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+				long firstSequence = -1;
+				synchronized (this) {
+					committedSequence = Math.max(committedSequence, sequence);
+					notifyAll();
+					if (searchIndexDirty) {
+						searchIndexDirty = false;
+						firstSequence = getFirstSequence();
+					}
+				}
+				if (firstSequence >= 0) {
+					saveSearchIndex(firstSequence);
+				}
+			}
+		} catch (InterruptedException e) {
+			// Stopped by close()
+		}
+	}
+
+	/**
+	 * Blocks the current {@link Thread} until the record of the passed sequence
+	 * number is on the disk.
+	 *
+	 * @param sequence of the record
+	 * @throws InterruptedException if the {@link Thread} is interrupted while
+	 *                              waiting
+	 * @throws IOException          if the log has been closed
+	 */
+	public synchronized void awaitCommit(long sequence) throws InterruptedException, IOException {
+		while (committedSequence <= sequence) {
+			if (!open) {
+				throw new IOException("The log is closed");
+			}
+			wait();
+		}
+	}
+
+	/**
+	 * Reads the last records of the log.
+	 *
+	 * @param count maximum number of records to read
+	 * @return the records, oldest first
+	 * @throws IOException if the log can't be read
+	 */
+	public synchronized List<LogRecord> readLast(int count) throws IOException {
+		long from = Math.max(getFirstSequence(), nextSequence - count);
+		return read(from, (int) (nextSequence - from));
+	}
+
+	/**
+	 * Reads the records starting at the passed sequence number.
+	 *
+	 * @param from  sequence number of the first record
+	 * @param count maximum number of records to read
+	 * @return the records, oldest first
+	 * @throws IOException if the log can't be read
+	 */
+	public synchronized List<LogRecord> read(long from, int count) throws IOException {
+		from = Math.max(from, getFirstSequence());
+		count = (int) Math.min(count, Math.max(0, nextSequence - from));
+		if (count == 0) {
+			return Collections.emptyList();
+		}
+
+		List<LogRecord> records = new ArrayList<LogRecord>(count);
+		Long baseSequence = segments.floorKey(from);
+		while (baseSequence != null && records.size() < count) {
+			int remaining = count - records.size();
+			long position = from + records.size();
+			if (baseSequence == activeSegment.getBaseSequence()) {
+				activeSegment.read(position, remaining, records);
+			} else {
+				LogSegment segment = LogSegment.openForRead(segments.get(baseSequence),
+						segmentPath(baseSequence, INDEX_SUFFIX), baseSequence);
+				try {
+					segment.read(position, remaining, records);
+				} finally {
+					segment.close();
+				}
+			}
+			baseSequence = segments.higherKey(baseSequence);
+		}
+		return records;
+	}
+
+	/**
+	 * Finds the records matching the passed query. Only records stored as plain
+	 * text are found.
+	 *
+	 * @param query see {@link SearchIndex}
+	 * @param limit maximum number of returned records
+	 * @return the newest matching records, oldest first
+	 * @throws IOException if the log can't be read
+	 */
+	public synchronized List<LogRecord> search(String query, int limit) throws IOException {
+		List<LogRecord> records = new ArrayList<LogRecord>();
+		for (long sequence : searchIndex.search(query, limit)) {
+			// Records deleted since the index was saved are still indexed
+			if (sequence >= getFirstSequence()) {
+				records.addAll(read(sequence, 1));
+			}
+		}
+		return records;
+	}
+
+	/**
+	 * @return sequence number of the oldest kept record
+	 */
+	public synchronized long getFirstSequence() {
+		return segments.firstKey();
+	}
+
+	/**
+	 * @return sequence number of the next appended record
+	 */
+	public synchronized long getNextSequence() {
+		return nextSequence;
+	}
+
+	/**
+	 * @return form in which the messages are to be stored
+	 */
+	public StoragePolicy getStoragePolicy() {
+		return storagePolicy;
+	}
+
+	/**
+	 * Flushes the appended records and closes the log.
+	 */
+	@Override
+	public void close() {
+		synchronized (this) {
+			if (!open) {
+				return;
+			}
+			open = false;
+			notifyAll();
+		}
+		committer.interrupt();
+		try {
+			committer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		long firstSequence;
+		synchronized (this) {
+			try {
+				activeSegment.force();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			activeSegment.close();
+			committedSequence = nextSequence;
+			firstSequence = getFirstSequence();
+			notifyAll();
+		}
+		saveSearchIndex(firstSequence);
+	}
+}
@@ -0,0 +1,160 @@
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ *
+ * Configurable options of a {@link MessageLog}.
+ * <p>
+ * The options are read when the log is opened, changing them afterwards
+ * doesn't affect an open log. Limits of zero disable the corresponding
+ * retention rule.
+ *
+ * @see MessageLog#open(java.nio.file.Path, MessageLogOptions)
+ */
+public class MessageLogOptions {
+	/**
+	 * Size of a segment file. A record which doesn't fit into the current
+	 * segment starts a new one.
+	 */
+	private int segmentSize = 32 * 1024 * 1024;
+	/**
+	 * Maximum number of kept segments including the current one, zero keeps all
+	 * of them.
+	 */
+	private int maxSegments = 0;
+	/**
+	 * Time in milliseconds after which a full segment is deleted, zero keeps the
+	 * segments forever.
+	 */
+	private long retentionMillis = 0;
+	/**
+	 * Time in milliseconds the committer waits for more records before flushing
+	 * them to the disk together.
+	 */
+	private long commitDelayMillis = 10;
+	/**
+	 * Form in which the messages are stored. Plain text by default so that the
+	 * history can be replayed whatever key is currently set.
+	 */
+	private StoragePolicy storagePolicy = StoragePolicy.PLAINTEXT;
+
+	/**
+	 * Reads the options from startup parameters named {@code log-segment-size}
+	 * (bytes), {@code log-max-segments}, {@code log-retention-hours},
+	 * {@code log-commit-delay} (milliseconds) and {@code log-policy}. Missing
+	 * parameters keep the defaults.
+	 *
+	 * @param parameters returning the value of the named parameter, null if it
+	 *                   is missing
+	 * @return the options
+	 * @throws IllegalArgumentException if a value is not valid
+	 */
+	public static MessageLogOptions fromParameters(Function<String, String> parameters) {
+		MessageLogOptions options = new MessageLogOptions();
+		String value;
+		if ((value = parameters.apply("log-segment-size")) != null) {
+			options.setSegmentSize(Integer.parseInt(value));
+		}
+		if ((value = parameters.apply("log-max-segments")) != null) {
+			options.setMaxSegments(Integer.parseInt(value));
+		}
+		if ((value = parameters.apply("log-retention-hours")) != null) {
+			options.setRetentionMillis(TimeUnit.HOURS.toMillis(Long.parseLong(value)));
+		}
+		if ((value = parameters.apply("log-commit-delay")) != null) {
+			options.setCommitDelayMillis(Long.parseLong(value));
+		}
+		if ((value = parameters.apply("log-policy")) != null) {
+			options.setStoragePolicy(StoragePolicy.valueOf(value.trim().toUpperCase()));
+		}
+		return options;
+	}
+
+	/**
+	 * @return size of a segment file in bytes
+	 */
+	public int getSegmentSize() {
+		return segmentSize;
+	}
+
+	/**
+	 * @param segmentSize size of a segment file in bytes
+	 */
+	public void setSegmentSize(int segmentSize) {
+		if (segmentSize < 4096) {
+			throw new IllegalArgumentException("segmentSize");
+		}
+		this.segmentSize = segmentSize;
+	}
+
+	/**
+	 * @return maximum number of kept segments, zero for no limit
+	 */
+	public int getMaxSegments() {
+		return maxSegments;
+	}
+
+	/**
+	 * @param maxSegments maximum number of kept segments, zero for no limit
+	 */
+	public void setMaxSegments(int maxSegments) {
+		if (maxSegments < 0) {
+			throw new IllegalArgumentException("maxSegments");
+		}
+		this.maxSegments = maxSegments;
+	}
+
+	/**
+	 * @return time in milliseconds after which a full segment is deleted, zero
+	 *         for no limit
+	 */
+	public long getRetentionMillis() {
+		return retentionMillis;
+	}
+
+	/**
+	 * @param retentionMillis time in milliseconds after which a full segment is
+	 *                        deleted, zero for no limit
+	 */
+	public void setRetentionMillis(long retentionMillis) {
+		if (retentionMillis < 0) {
+			throw new IllegalArgumentException("retentionMillis");
+		}
+		this.retentionMillis = retentionMillis;
+	}
+
+	/**
+	 * @return time in milliseconds the committer batches records for
+	 */
+	public long getCommitDelayMillis() {
+		return commitDelayMillis;
+	}
+
+	/**
+	 * @param commitDelayMillis time in milliseconds the committer batches
+	 *                          records for, zero flushes as soon as possible
+	 */
+	public void setCommitDelayMillis(long commitDelayMillis) {
+		if (commitDelayMillis < 0) {
+			throw new IllegalArgumentException("commitDelayMillis");
+		}
+		this.commitDelayMillis = commitDelayMillis;
+	}
+
+	/**
+	 * @return form in which the messages are stored
+	 */
+	public StoragePolicy getStoragePolicy() {
+		return storagePolicy;
+	}
+
+	/**
+	 * @param storagePolicy form in which the messages are stored
+	 */
+	public void setStoragePolicy(StoragePolicy storagePolicy) {
+		if (storagePolicy == null) {
+			throw new NullPointerException("storagePolicy");
+		}
+		this.storagePolicy = storagePolicy;
+	}
+}
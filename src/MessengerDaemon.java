@@ -0,0 +1,501 @@
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ *
+ * Headless entry point running a {@link MessengerEngine} as a service, e.g. on
+ * relay nodes without a display. Doesn't load the JavaFX toolkit.
+ * <p>
+ * Configured by {@code --name=value} arguments or by a properties file passed
+ * as {@code --config=path}, arguments override the file:
+ * <ul>
+ * <li>{@code mode} - {@code server} (default), {@code client} or {@code hub}
+ * to run a {@link RoomHub}</li>
+ * <li>{@code server} - {@code single} (default) to serve one peer at a time
+ * with a {@link MessengerEngine}, {@code selector} to serve any number of
+ * peers on a {@link SelectorServer} or {@code threads} to serve them on a
+ * {@link ThreadPerConnectionServer}. The peers of the last two form a
+ * {@link PeerGroup}: lines of the standard input are sent to all of them,
+ * files and the message log are not supported.</li>
+ * <li>{@code connect} - address of the server, required in client mode. A
+ * comma separated list of addresses is tried in turn.</li>
+ * <li>{@code reconnect} - {@code true} to reconnect once the connection fails
+ * in client mode, see
+ * {@link ReconnectPolicy#fromParameters(java.util.function.Function)} for the
+ * options of the reconnection</li>
+ * <li>{@code delivery} - one of {@link DeliveryGuarantee},
+ * {@link DeliveryGuarantee#AT_MOST_ONCE} by default</li>
+ * <li>{@code cipher} - one of {@link Cipher}, {@link Cipher#AES128} by
+ * default</li>
+ * <li>{@code key} or {@code key-file} - the key, or a file holding it</li>
+ * <li>{@code execution-mode} - one of {@link ExecutionMode}, the kind of the
+ * {@link Thread}s of the engine, or of the connections of a {@code threads}
+ * server</li>
+ * <li>{@code compression-threshold} - minimum size in bytes of a compressed
+ * message, 0 disables compression, see {@link MessageCompressor}</li>
+ * <li>{@code download-dir} - directory the files sent by the peer are written
+ * to, they're declined by default</li>
+ * <li>{@code max-file-size} - maximum size in bytes of a received file, see
+ * {@link FileTransferController#DEFAULT_MAX_FILE_SIZE}</li>
+ * <li>{@code log-dir} - directory of the {@link MessageLog}, the messages are
+ * not persisted by default. See
+ * {@link MessageLogOptions#fromParameters(java.util.function.Function)} for the
+ * options of the log.</li>
+ * <li>{@code send-queue-high}, {@code send-queue-low} and
+ * {@code send-queue-policy} - watermarks in bytes and {@link BackpressurePolicy}
+ * of the send queue, see
+ * {@link ConnectionOptions#fromParameters(java.util.function.Function)}, which
+ * also reads the {@code connect-timeout} in milliseconds</li>
+ * <li>{@code tcp-nodelay}, {@code send-buffer}, {@code receive-buffer},
+ * {@code write-buffer} and {@code flush-delay} - the {@code TCP_NODELAY}
+ * option, the sizes in bytes of the socket buffers and of the buffer of the
+ * {@link SocketWriter}, and the time in microseconds it waits for more data,
+ * see {@link ConnectionOptions}</li>
+ * <li>{@code heartbeat-interval} and {@code idle-timeout} - time in
+ * milliseconds without sending anything after which the peer is pinged, and
+ * without receiving anything after which the connection is closed, see
+ * {@link IdleMonitor}. Also applied to the members in hub mode.</li>
+ * <li>{@code metrics-port} - port the {@link MetricsServer} serves the
+ * {@link Metrics} on, they're only exposed over JMX by default</li>
+ * <li>{@code metrics-address} - address the {@link MetricsServer} listens on,
+ * the loopback address by default</li>
+ * <li>{@code buffer-leak-detection} - {@code true} to report the pooled buffers
+ * which are never released, see {@link BufferPool}. Meant for debugging.</li>
+ * <li>{@code rooms} - properties file of the names and keys of the rooms,
+ * required in hub mode. All the rooms use the {@code cipher}.</li>
+ * <li>{@code member-queue-bytes} - maximum number of bytes queued for a member
+ * of a room, see {@link RoomHub#setMaxQueuedBytes(long)}</li>
+ * <li>{@code overflow-policy} - one of {@link OverflowPolicy}, applied to the
+ * members exceeding the {@code member-queue-bytes}</li>
+ * </ul>
+ * Received messages and connection events are printed to the standard output,
+ * every line of the standard input is sent to the connected peer. Lines
+ * starting with {@code /search } search the {@link MessageLog} instead, see
+ * {@link SearchIndex} for the syntax of the query, and lines starting with
+ * {@code /send } send the file of the given path.
+ *
+ */
+public class MessengerDaemon implements MessengerListener {
+	/**
+	 * Name displayed next to the system's messages.
+	 */
+	private final static String SYSTEM_USERNAME = "System";
+	/**
+	 * Prefix of the lines of the standard input searching the message history.
+	 */
+	private final static String SEARCH_COMMAND = "/search ";
+	/**
+	 * Prefix of the lines of the standard input sending a file.
+	 */
+	private final static String SEND_FILE_COMMAND = "/send ";
+	/**
+	 * Maximum number of messages printed for a search.
+	 */
+	private final static int MAX_SEARCH_RESULTS = 100;
+
+	/**
+	 * Names of the accepted options.
+	 */
+	private final static Set<String> OPTIONS = new HashSet<String>(
+			Arrays.asList("config", "mode", "server", "connect", "cipher", "key", "key-file", "execution-mode",
+					"log-dir", "log-segment-size", "log-max-segments", "log-retention-hours", "log-commit-delay",
+					"log-policy", "compression-threshold", "download-dir", "max-file-size", "metrics-port",
+					"metrics-address", "rooms", "member-queue-bytes", "overflow-policy", "send-queue-high",
+					"send-queue-low", "send-queue-policy", "connect-timeout", "tcp-nodelay", "send-buffer",
+					"receive-buffer", "write-buffer", "flush-delay", "reconnect", "reconnect-initial-delay",
+					"reconnect-max-delay", "reconnect-attempts", "delivery", "heartbeat-interval", "idle-timeout",
+					"buffer-leak-detection"));
+
+	private final static String USAGE = "Usage: java MessengerDaemon [--config=file] [--mode=server|client|hub]"
+			+ " [--server=single|selector|threads] [--connect=address[,address...]] [--reconnect=true|false]"
+			+ " [--reconnect-initial-delay=milliseconds]"
+			+ " [--reconnect-max-delay=milliseconds] [--reconnect-attempts=count] [--connect-timeout=milliseconds]"
+			+ " [--delivery=at_most_once|at_least_once] [--cipher=NONE|AES128|AES128_CTR|AES128_GCM] [--key=key|--key-file=file]"
+			+ " [--execution-mode=platform|virtual] [--log-dir=directory] [--log-policy=plaintext|ciphertext]"
+			+ " [--log-segment-size=bytes] [--log-max-segments=count] [--log-retention-hours=hours]"
+			+ " [--log-commit-delay=milliseconds] [--compression-threshold=bytes] [--download-dir=directory]"
+			+ " [--max-file-size=bytes]"
+			+ " [--send-queue-high=bytes] [--send-queue-low=bytes] [--send-queue-policy=block|drop_oldest|reject]"
+			+ " [--tcp-nodelay=true|false] [--send-buffer=bytes] [--receive-buffer=bytes] [--write-buffer=bytes]"
+			+ " [--flush-delay=microseconds]"
+			+ " [--heartbeat-interval=milliseconds] [--idle-timeout=milliseconds] [--buffer-leak-detection=true|false]"
+			+ " [--metrics-port=port] [--metrics-address=address] [--rooms=file] [--member-queue-bytes=bytes] [--overflow-policy=drop|disconnect]";
+
+	public static void main(String[] args) {
+		Properties configuration;
+		try {
+			configuration = readConfiguration(args);
+		} catch (IllegalArgumentException | IOException e) {
+			System.err.println(e.getMessage());
+			System.err.println(USAGE);
+			System.exit(2);
+			return;
+		}
+
+		try {
+			new MessengerDaemon().run(configuration);
+		} catch (IllegalArgumentException | IOException e) {
+			System.err.println(e.getMessage());
+			System.exit(1);
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Reads the configuration from the passed arguments and the configuration
+	 * file they name.
+	 *
+	 * @param args the arguments of the program
+	 * @return the configuration
+	 * @throws IllegalArgumentException if an argument is not recognized
+	 * @throws IOException              if the configuration file can't be read
+	 */
+	static Properties readConfiguration(String[] args) throws IOException {
+		Properties arguments = new Properties();
+		for (String arg : args) {
+			int separator = arg.indexOf('=');
+			if (!arg.startsWith("--") || separator < 0 || !OPTIONS.contains(arg.substring(2, separator))) {
+				throw new IllegalArgumentException("Unknown argument " + arg);
+			}
+			arguments.setProperty(arg.substring(2, separator), arg.substring(separator + 1));
+		}
+
+		Properties configuration = new Properties();
+		String file = arguments.getProperty("config");
+		if (file != null) {
+			try (InputStream in = new FileInputStream(file)) {
+				configuration.load(in);
+			}
+		}
+		configuration.putAll(arguments);
+		return configuration;
+	}
+
+	/**
+	 * Starts the {@link MessengerEngine} and sends the lines of the standard input
+	 * until the engine stops.
+	 *
+	 * @param configuration of the daemon
+	 * @throws IllegalArgumentException if the configuration is not valid
+	 * @throws IOException              if the key file can't be read or the
+	 *                                  connection fails
+	 * @throws InterruptedException     if the {@link Thread} is interrupted
+	 */
+	private void run(Properties configuration) throws IOException, InterruptedException {
+		String mode = configuration.getProperty("mode", "server");
+		if (!mode.equals("server") && !mode.equals("client") && !mode.equals("hub")) {
+			throw new IllegalArgumentException("Unknown mode " + mode);
+		}
+		BufferPool.setLeakDetection(Boolean.parseBoolean(configuration.getProperty("buffer-leak-detection")));
+		String address = configuration.getProperty("connect");
+		if (mode.equals("client") && address == null) {
+			throw new IllegalArgumentException("Client mode requires --connect=address");
+		}
+		Cipher cipher = Cipher.valueOf(configuration.getProperty("cipher", Cipher.AES128.name()).toUpperCase());
+		String key = configuration.getProperty("key", "");
+		if (configuration.getProperty("key-file") != null) {
+			byte[] bytes = Files.readAllBytes(Paths.get(configuration.getProperty("key-file")));
+			key = new String(bytes, StandardCharsets.UTF_8).trim();
+		}
+
+		String server = configuration.getProperty("server", "single");
+		if (!server.equals("single") && !server.equals("selector") && !server.equals("threads")) {
+			throw new IllegalArgumentException("Unknown server " + server);
+		}
+
+		if (mode.equals("hub")) {
+			runHub(configuration, cipher);
+			return;
+		}
+		if (mode.equals("server") && !server.equals("single")) {
+			runServer(configuration, server, cipher, key);
+			return;
+		}
+
+		SocketController socketController = new SocketController();
+		socketController.setConnectionOptions(ConnectionOptions.fromParameters(configuration::getProperty));
+		MessengerEngine engine = new MessengerEngine(socketController,
+				ExecutionMode.fromParameter(configuration.getProperty("execution-mode")), this);
+		engine.setCipher(cipher);
+		engine.setKey(key);
+		engine.setReconnectPolicy(ReconnectPolicy.fromParameters(configuration::getProperty));
+		if (configuration.getProperty("delivery") != null) {
+			engine.setDeliveryGuarantee(DeliveryGuarantee.valueOf(configuration.getProperty("delivery").toUpperCase()));
+		}
+		if (configuration.getProperty("compression-threshold") != null) {
+			engine.setCompressionThreshold(Integer.parseInt(configuration.getProperty("compression-threshold")));
+		}
+		if (configuration.getProperty("download-dir") != null) {
+			engine.setDownloadDirectory(Paths.get(configuration.getProperty("download-dir")));
+		}
+		if (configuration.getProperty("max-file-size") != null) {
+			engine.setMaxFileSize(Long.parseLong(configuration.getProperty("max-file-size")));
+		}
+		if (configuration.getProperty("log-dir") != null) {
+			engine.setMessageLog(MessageLog.open(Paths.get(configuration.getProperty("log-dir")),
+					MessageLogOptions.fromParameters(configuration::getProperty)));
+		}
+		startMetrics(configuration);
+		engine.start();
+		Runtime.getRuntime().addShutdownHook(new Thread(engine::shutdown));
+
+		if (mode.equals("server")) {
+			engine.setServerMode();
+			postLine("Listening to incoming connections", SYSTEM_USERNAME);
+		} else if (engine.connect(address)) {
+			postLine("Connected to " + engine.getPartnerAddress(), SYSTEM_USERNAME);
+		} else {
+			throw new IOException("Failed to connect to " + address);
+		}
+
+		BufferedReader reader = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+		String line;
+		while ((line = reader.readLine()) != null) {
+			if (line.isEmpty()) {
+				continue;
+			}
+			if (line.startsWith(SEARCH_COMMAND)) {
+				search(engine, line.substring(SEARCH_COMMAND.length()));
+				continue;
+			}
+			SocketStatus socketStatus = engine.getSocketStatus();
+			boolean connected = socketStatus == SocketStatus.SERVERMODE || socketStatus == SocketStatus.CLIENTMODE;
+			// Messages are queued while reconnecting, files are not
+			if (!connected && !(engine.isReconnecting() && !line.startsWith(SEND_FILE_COMMAND))) {
+				postLine("Not connected, the message was not sent.", SYSTEM_USERNAME);
+				continue;
+			}
+			if (line.startsWith(SEND_FILE_COMMAND)) {
+				String path = line.substring(SEND_FILE_COMMAND.length()).trim();
+				try {
+					engine.sendFile(Paths.get(path));
+				} catch (IOException | InvalidPathException e) {
+					postLine("Failed to send " + path + ": " + e.getMessage(), SYSTEM_USERNAME);
+				}
+				continue;
+			}
+			try {
+				engine.send(line);
+			} catch (UnsupportedOperationException e) {
+				postLine("Encryption failed, the message was not sent.", SYSTEM_USERNAME);
+			} catch (IOException | RejectedExecutionException e) {
+				postLine("Failed to send the message.", SYSTEM_USERNAME);
+			}
+		}
+
+		// Keep serving after the standard input has been closed
+		engine.join();
+	}
+
+	/**
+	 * Runs a {@link SelectorServer} or a {@link ThreadPerConnectionServer}
+	 * serving a {@link PeerGroup} and sends the lines of the standard input to
+	 * all the peers, until the process is stopped.
+	 *
+	 * @param configuration of the daemon
+	 * @param server        {@code selector} or {@code threads}
+	 * @param cipher        used by all the peers
+	 * @param key           shared by all the peers
+	 * @throws IllegalArgumentException if the configuration is not valid
+	 * @throws IOException              if the port can't be bound
+	 * @throws InterruptedException     if the {@link Thread} is interrupted
+	 */
+	private void runServer(Properties configuration, String server, Cipher cipher, String key)
+			throws IOException, InterruptedException {
+		ConnectionOptions connectionOptions = ConnectionOptions.fromParameters(configuration::getProperty);
+		PeerGroup peers = new PeerGroup(this, cipher, key);
+		startMetrics(configuration);
+		if (server.equals("threads")) {
+			ThreadPerConnectionServer threadServer = new ThreadPerConnectionServer(peers,
+					ExecutionMode.fromParameter(configuration.getProperty("execution-mode")));
+			threadServer.setConnectionOptions(connectionOptions);
+			threadServer.start(SocketController.PORT);
+			Runtime.getRuntime().addShutdownHook(new Thread(threadServer::stop));
+		} else {
+			SelectorServer selectorServer = new SelectorServer(peers, Runtime.getRuntime().availableProcessors());
+			selectorServer.setConnectionOptions(connectionOptions);
+			selectorServer.start(SocketController.PORT);
+			Runtime.getRuntime().addShutdownHook(new Thread(selectorServer::stop));
+		}
+		postLine("Listening to incoming connections of any number of peers", SYSTEM_USERNAME);
+
+		BufferedReader reader = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+		String line;
+		while ((line = reader.readLine()) != null) {
+			if (line.isEmpty()) {
+				continue;
+			}
+			if (line.startsWith(SEARCH_COMMAND) || line.startsWith(SEND_FILE_COMMAND)) {
+				postLine("Only supported by the single peer server.", SYSTEM_USERNAME);
+				continue;
+			}
+			try {
+				if (peers.send(line) == 0) {
+					postLine("Not connected, the message was not sent.", SYSTEM_USERNAME);
+				}
+			} catch (UnsupportedOperationException e) {
+				postLine("Encryption failed, the message was not sent.", SYSTEM_USERNAME);
+			}
+		}
+
+		// Keep serving after the standard input has been closed
+		Thread.currentThread().join();
+	}
+
+	/**
+	 * Runs a {@link RoomHub} with the configured rooms until the process is
+	 * stopped.
+	 *
+	 * @param configuration of the daemon
+	 * @param cipher        used by all the rooms
+	 * @throws IllegalArgumentException if the configuration is not valid
+	 * @throws IOException              if the rooms file can't be read or the
+	 *                                  port can't be bound
+	 * @throws InterruptedException     if the {@link Thread} is interrupted
+	 */
+	private void runHub(Properties configuration, Cipher cipher) throws IOException, InterruptedException {
+		String file = configuration.getProperty("rooms");
+		if (file == null) {
+			throw new IllegalArgumentException("Hub mode requires --rooms=file");
+		}
+		Properties rooms = new Properties();
+		try (InputStream in = new FileInputStream(file)) {
+			rooms.load(in);
+		}
+		if (rooms.isEmpty()) {
+			throw new IllegalArgumentException("No room defined in " + file);
+		}
+
+		RoomHub hub = new RoomHub(Runtime.getRuntime().availableProcessors());
+		hub.setConnectionOptions(ConnectionOptions.fromParameters(configuration::getProperty));
+		for (String name : rooms.stringPropertyNames()) {
+			hub.createRoom(name, cipher, rooms.getProperty(name));
+		}
+		if (configuration.getProperty("member-queue-bytes") != null) {
+			hub.setMaxQueuedBytes(Long.parseLong(configuration.getProperty("member-queue-bytes")));
+		}
+		if (configuration.getProperty("overflow-policy") != null) {
+			hub.setOverflowPolicy(OverflowPolicy.valueOf(configuration.getProperty("overflow-policy").toUpperCase()));
+		}
+		startMetrics(configuration);
+		hub.start(SocketController.PORT);
+		Runtime.getRuntime().addShutdownHook(new Thread(hub::stop));
+		postLine("Hub listening with rooms " + String.join(", ", rooms.stringPropertyNames()), SYSTEM_USERNAME);
+
+		// Serve until the process is stopped
+		Thread.currentThread().join();
+	}
+
+	/**
+	 * Exposes the {@link Metrics} over JMX, and over HTTP if a port is
+	 * configured.
+	 *
+	 * @param configuration of the daemon
+	 * @throws IOException if the port of the {@link MetricsServer} can't be bound
+	 */
+	private static void startMetrics(Properties configuration) throws IOException {
+		Metrics.registerMBean();
+		if (configuration.getProperty("metrics-port") != null) {
+			MetricsServer metricsServer = new MetricsServer(configuration.getProperty("metrics-address"),
+					Integer.parseInt(configuration.getProperty("metrics-port")));
+			metricsServer.start();
+			Runtime.getRuntime().addShutdownHook(new Thread(metricsServer::stop));
+		}
+	}
+
+	/**
+	 * Prints the newest logged messages matching the passed query.
+	 *
+	 * @param engine the log of which is searched
+	 * @param query  see {@link SearchIndex}
+	 */
+	private void search(MessengerEngine engine, String query) {
+		try {
+			List<LogRecord> records = engine.searchHistory(query, MAX_SEARCH_RESULTS);
+			postLine(records.size() + " messages found for " + query, SYSTEM_USERNAME);
+			for (LogRecord record : records) {
+				String sender = Instant.ofEpochMilli(record.getTimestamp()) + " "
+						+ (record.getStyle() == Style.USER ? "You" : record.getPeer());
+				try {
+					postLine(engine.readText(record), sender);
+				} catch (IllegalArgumentException e) {
+					postLine("Failed to decrypt a logged message.", SYSTEM_USERNAME);
+				}
+			}
+		} catch (IOException e) {
+			postLine("Failed to search the message history.", SYSTEM_USERNAME);
+		}
+	}
+
+	@Override
+	public void onConnected(String partnerAddress) {
+		postLine(partnerAddress + " connected", SYSTEM_USERNAME);
+	}
+
+	@Override
+	public void onMessage(String partnerAddress, String message) {
+		postLine(message, partnerAddress);
+	}
+
+	@Override
+	public void onDecryptionFailed(String partnerAddress) {
+		postLine("Failed to decrypt a received message.", SYSTEM_USERNAME);
+	}
+
+	@Override
+	public void onFileTransfer(FileTransfer transfer) {
+		String direction = transfer.isOutgoing() ? "Sending " : "Receiving ";
+		switch (transfer.getState()) {
+		case WAITING:
+			postLine("Offering " + transfer.getName() + " (" + transfer.getSize() + " bytes)", SYSTEM_USERNAME);
+			break;
+		case RUNNING:
+			postLine(direction + transfer.getName() + ": " + transfer.getTransferred() + " of " + transfer.getSize()
+					+ " bytes", SYSTEM_USERNAME);
+			break;
+		case COMPLETED:
+			postLine(transfer.isOutgoing() ? "Sent " + transfer.getName() : "Received " + transfer.getPath(),
+					SYSTEM_USERNAME);
+			break;
+		default:
+			postLine("Transfer of " + transfer.getName() + " failed: " + transfer.getFailure(), SYSTEM_USERNAME);
+			break;
+		}
+	}
+
+	@Override
+	public void onDisconnected(String partnerAddress) {
+		postLine(partnerAddress + " disconnected", SYSTEM_USERNAME);
+	}
+
+	@Override
+	public void onReconnecting(String address, int attempt, long delayMillis) {
+		postLine("Reconnecting to " + address + " in " + delayMillis + " ms (attempt " + attempt + ")",
+				SYSTEM_USERNAME);
+	}
+
+	/**
+	 * Prints the passed line to the standard output.
+	 *
+	 * @param line   line to be printed
+	 * @param sender username that the line is related to
+	 */
+	private void postLine(String line, String sender) {
+		System.out.println(sender + " : " + line);
+	}
+}
@@ -0,0 +1,856 @@
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.zip.DataFormatException;
+
+/**
+ *
+ * Core of the messenger, independent of any user interface.
+ * <p>
+ * Runs a {@link SocketController} together with the encryption of the sent
+ * and the decryption of the received messages. A {@link Thread} of the engine
+ * sleeps until the {@link SocketStatus} changes, then either listens to
+ * incoming connections or receives the messages of the connected peer and
+ * passes them to the {@link MessengerListener}. The sent and received messages
+ * are written to the {@link MessageLog} if one is set. Messages longer than
+ * the threshold of the {@link MessageCompressor} are compressed before their
+ * encryption if the peer supports the framed protocol. Files are sent and
+ * received alongside the messages by a {@link FileTransferController}. Used
+ * both by the GUI
+ * and by the headless {@link MessengerDaemon}.
+ * <p>
+ * In client mode the engine reconnects according to its
+ * {@link ReconnectPolicy} once the connection fails, trying every address
+ * passed to {@link #connect(String)} in turn. Messages sent meanwhile are
+ * queued in the {@link Outbox} and sent once reconnected. The peer
+ * acknowledges the received messages with {@link Frame#TYPE_MESSAGE_ACK}
+ * frames, which lets the {@link DeliveryGuarantee#AT_LEAST_ONCE} guarantee
+ * send the unacknowledged messages again on the next connection.
+ *
+ */
+public class MessengerEngine {
+	/**
+	 * Time in milliseconds to wait before listening again after the server failed
+	 * to start.
+	 */
+	private final static long SERVER_RETRY_DELAY = 1000;
+	/**
+	 * Maximum number of sent messages kept until the peer acknowledges them.
+	 */
+	private final static int MAX_UNACKNOWLEDGED = 1024;
+
+	private final SocketController socketController;
+	private final ExecutionMode executionMode;
+	private final MessengerListener listener;
+
+	/**
+	 * The {@link Thread} listening to incoming connections and messages.
+	 */
+	private Thread socketListenerThread;
+	private volatile boolean running;
+
+	/**
+	 * {@link CipherProvider} used for encryption/decryption of sent/received
+	 * messages, null for {@link Cipher#NONE}.
+	 */
+	private volatile CipherProvider currentProvider = Crypto.getProvider(Cipher.AES128);
+	/**
+	 * {@link Cipher} of the {@link #currentProvider}.
+	 */
+	private volatile Cipher currentCipher = Cipher.AES128;
+	/**
+	 * Log the messages are written to, null if they aren't persisted.
+	 */
+	private volatile MessageLog messageLog;
+	/**
+	 * Compression stage of the messages. The engine handles a single connection
+	 * at a time, so the instance is reused by all of them and closed by
+	 * {@link #shutdown()}.
+	 */
+	private final MessageCompressor compressor = new MessageCompressor();
+	private final FileTransferController fileTransfers;
+	/**
+	 * Encrypts and queues the messages of {@link #sendAsync(String)} one at a
+	 * time, so they keep their order and the callers never wait for a full send
+	 * queue.
+	 */
+	private final ExecutorService sender;
+	private final Outbox outbox = new Outbox();
+	/**
+	 * Reconnection after a failed connection in client mode, null to switch to
+	 * server mode instead.
+	 */
+	private volatile ReconnectPolicy reconnectPolicy;
+	private volatile DeliveryGuarantee deliveryGuarantee = DeliveryGuarantee.AT_MOST_ONCE;
+	/**
+	 * Addresses of the last {@link #connect(String)} to be reconnected to, null
+	 * if the engine isn't connected in client mode or shouldn't reconnect.
+	 */
+	private volatile List<String> addresses;
+	/**
+	 * True while the engine waits to reconnect, the sent messages are queued
+	 * meanwhile.
+	 */
+	private volatile boolean reconnecting;
+	/**
+	 * Notified to cancel the wait before the next attempt to reconnect.
+	 */
+	private final Object reconnectLock = new Object();
+	/**
+	 * Held while connecting, so an attempt to reconnect never overlaps with a
+	 * connection requested by the user.
+	 */
+	private final Object connectLock = new Object();
+	/**
+	 * Key used for encryption/decryption of sent/received messages.
+	 */
+	private volatile String key = "";
+
+	/**
+	 * @param socketController the instance of {@link SocketController} to be used
+	 * @param executionMode    kind of the {@link Thread} of the engine
+	 * @param listener         receiving the events of the engine
+	 */
+	public MessengerEngine(SocketController socketController, ExecutionMode executionMode,
+			MessengerListener listener) {
+		if (listener == null) {
+			throw new NullPointerException("listener");
+		}
+		this.socketController = socketController;
+		this.executionMode = executionMode;
+		this.listener = listener;
+		this.fileTransfers = new FileTransferController(socketController, executionMode, listener);
+		this.sender = Executors.newSingleThreadExecutor(executionMode.threadFactory("Sender"));
+		socketController.setFrameHandler(frame -> {
+			if (frame.getType() == Frame.TYPE_MESSAGE_ACK && frame.getPayload().length >= 8) {
+				outbox.acknowledged(ByteBuffer.wrap(frame.getPayload()).getLong());
+			} else {
+				fileTransfers.handleFrame(frame, currentProvider, key);
+			}
+		});
+	}
+
+	/**
+	 * Starts the {@link Thread} of the engine.
+	 */
+	public synchronized void start() {
+		if (socketListenerThread != null) {
+			throw new IllegalStateException("The engine has already been started");
+		}
+
+		running = true;
+		socketListenerThread = executionMode.threadFactory("SocketListener").newThread(this::run);
+		socketListenerThread.start();
+	}
+
+	/**
+	 * The loop of the {@link Thread} of the engine.
+	 */
+	private void run() {
+		try {
+			while (running) {
+				SocketStatus socketStatus = socketController.getSocketStatus();
+				switch (socketStatus) {
+				case STARTINGSERVER:
+					if (socketController.startServer()) {
+						connected();
+						listener.onConnected(socketController.getPartnerAddress());
+					} else if (running) {
+						// Don't retry a failing server before the mode changes or the delay elapses
+						socketController.awaitSocketStatusChange(SocketStatus.STARTINGSERVER, SERVER_RETRY_DELAY);
+					}
+					break;
+				case SERVERMODE:
+				case CLIENTMODE:
+					receiveMessages(socketStatus);
+					break;
+				default:
+					socketController.awaitSocketStatusChange(socketStatus, 0);
+					break;
+				}
+			}
+		} catch (InterruptedException e) {
+			// Interrupted by shutdown()
+		}
+	}
+
+	/**
+	 * Receives the messages from the connected peer and passes them to the
+	 * {@link MessengerListener} until the connection is closed.
+	 *
+	 * @param socketStatus the {@link SocketStatus} of the connection
+	 */
+	private void receiveMessages(SocketStatus socketStatus) {
+		long receivedCount = 0;
+		try {
+			while (true) {
+				Frame frame = socketController.receiveMessageFrame(BufferPool.DEFAULT);
+				try {
+					receivedCount++;
+					// Acknowledges a burst of messages once, older peers ignore the frame
+					if (socketController.isFraming() && !socketController.hasPendingInput()) {
+						socketController.sendFrame(Frame.TYPE_MESSAGE_ACK,
+								ByteBuffer.allocate(8).putLong(receivedCount).array(), null, null);
+					}
+					// Copied before the decryption in place only if the log keeps it
+					byte[] receivedMessage = logsCiphertext() ? frame.getPayload() : null;
+					try {
+						Cipher cipher = currentCipher;
+						String message = decode(frame.getPayloadBuffer(), frame.isCompressed(), key, currentProvider);
+						log(Style.PARTNER, cipher, frame.isCompressed(), message, receivedMessage);
+						listener.onMessage(socketController.getPartnerAddress(), message);
+					} catch (IllegalArgumentException e) {
+						Metrics.DECRYPTION_FAILURES.increment();
+						listener.onDecryptionFailed(socketController.getPartnerAddress());
+					}
+				} finally {
+					frame.release();
+				}
+			}
+		} catch (IOException e) {
+			fileTransfers.disconnected();
+			if (!running) {
+				return;
+			}
+			List<String> addresses = this.addresses;
+			// The status has already been changed if the connection was closed locally
+			if (socketController.getSocketStatus() == socketStatus) {
+				if (socketStatus == SocketStatus.CLIENTMODE && addresses != null && reconnectPolicy != null) {
+					// Queue the following messages rather than failing them
+					reconnecting = true;
+					socketController.closeCurrentSocket();
+					listener.onDisconnected(socketController.getPartnerAddress());
+					reconnect(addresses);
+					return;
+				}
+				socketController.setServerMode();
+			}
+			listener.onDisconnected(socketController.getPartnerAddress());
+		}
+	}
+
+	/**
+	 * Tries to reconnect to the passed addresses according to the
+	 * {@link ReconnectPolicy} until a connection is established, the policy
+	 * gives up or the user changes the mode. Switches to server mode once the
+	 * policy gives up.
+	 *
+	 * @param addresses to be reconnected to
+	 */
+	private void reconnect(List<String> addresses) {
+		reconnecting = true;
+		for (int attempt = 0;; attempt++) {
+			ReconnectPolicy policy = reconnectPolicy;
+			if (policy == null || (policy.getMaxAttempts() > 0 && attempt >= policy.getMaxAttempts())) {
+				break;
+			}
+
+			long delay = policy.getDelayMillis(attempt);
+			listener.onReconnecting(addresses.get(0), attempt + 1, delay);
+			try {
+				long deadline = System.currentTimeMillis() + delay;
+				synchronized (reconnectLock) {
+					long remaining;
+					while (running && this.addresses == addresses
+							&& (remaining = deadline - System.currentTimeMillis()) > 0) {
+						reconnectLock.wait(remaining);
+					}
+				}
+			} catch (InterruptedException e) {
+				// Interrupted by shutdown()
+				Thread.currentThread().interrupt();
+				return;
+			}
+
+			synchronized (connectLock) {
+				if (!running || this.addresses != addresses) {
+					// Cancelled by the user, who picked another mode
+					return;
+				}
+				Metrics.RECONNECT_ATTEMPTS.increment();
+				if (!connectAny(addresses)) {
+					continue;
+				}
+			}
+			// Outside of the lock, a slow listener mustn't hold up connect()
+			listener.onConnected(socketController.getPartnerAddress());
+			return;
+		}
+
+		synchronized (connectLock) {
+			if (!running || this.addresses != addresses) {
+				return;
+			}
+			this.addresses = null;
+			reconnecting = false;
+			failQueued(new IOException("Could not reconnect to " + addresses.get(0)));
+			socketController.setServerMode();
+		}
+	}
+
+	/**
+	 * Cancels a running attempt to reconnect and the following ones.
+	 */
+	private void cancelReconnect() {
+		synchronized (reconnectLock) {
+			addresses = null;
+			reconnectLock.notifyAll();
+		}
+		if (reconnecting) {
+			reconnecting = false;
+			// Aborts a connection in progress
+			socketController.closeCurrentSocket();
+			failQueued(new IOException("Reconnection cancelled"));
+		}
+	}
+
+	/**
+	 * Tries to connect to the passed addresses in turn.
+	 *
+	 * @param addresses to be connected to
+	 * @return true once a connection has been established
+	 */
+	private boolean connectAny(List<String> addresses) {
+		for (String address : addresses) {
+			if (socketController.connect(address)) {
+				connected();
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Prepares the {@link Outbox} for a new connection and sends the queued
+	 * messages.
+	 */
+	private void connected() {
+		int queued = outbox.connected(deliveryGuarantee == DeliveryGuarantee.AT_LEAST_ONCE);
+		reconnecting = false;
+		if (queued > 0) {
+			try {
+				sender.execute(this::flushOutbox);
+			} catch (RejectedExecutionException e) {
+				// The engine has been shut down
+			}
+		}
+	}
+
+	/**
+	 * Fails the messages waiting for a connection.
+	 *
+	 * @param e the failure
+	 */
+	private void failQueued(IOException e) {
+		for (Outbox.PendingMessage message : outbox.clear()) {
+			message.fail(e);
+		}
+	}
+
+	/**
+	 * Tries to establish a connection to a peer waiting in server mode.
+	 * <p>
+	 * The address may be a comma separated list of addresses, which are tried
+	 * in turn. The same addresses are reconnected to once the connection fails
+	 * if a {@link ReconnectPolicy} is set.
+	 *
+	 * @param address to be connected to
+	 * @return true if the connection was successfully established, false otherwise
+	 */
+	public boolean connect(String address) {
+		List<String> addresses = Arrays.asList(address.trim().split("\\s*,\\s*"));
+		cancelReconnect();
+		synchronized (connectLock) {
+			if (!connectAny(addresses)) {
+				return false;
+			}
+			this.addresses = addresses;
+			return true;
+		}
+	}
+
+	/**
+	 * Encrypts the passed text and sends it to the connected peer, or queues it
+	 * while the engine reconnects.
+	 *
+	 * @param text to be sent
+	 * @throws IOException                   in case of socket errors
+	 * @throws UnsupportedOperationException if the text can't be encrypted with
+	 *                                       the current key
+	 */
+	public void send(String text) throws IOException {
+		Outbox.PendingMessage message = new Outbox.PendingMessage(text);
+		submit(message);
+		try {
+			message.accepted.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while sending");
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			} else if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			throw new IOException(cause.getMessage(), cause);
+		}
+	}
+
+	/**
+	 * Encrypts the passed text and sends it to the connected peer without
+	 * blocking the caller, e.g. the JavaFX application {@link Thread}. The text
+	 * is encrypted and queued by a {@link Thread} of the engine, which waits
+	 * for a full send queue if the {@link BackpressurePolicy} is
+	 * {@link BackpressurePolicy#BLOCK}. Messages are sent in the order of the
+	 * calls.
+	 *
+	 * @param text to be sent
+	 * @return future completed once the message has been written to the socket,
+	 *         which may only happen after reconnecting. Fails with the
+	 *         exceptions of {@link #send(String)} and
+	 *         {@link SocketController#sendAsync(byte[], int)}, a
+	 *         {@link RejectedExecutionException} if the messages queued while
+	 *         reconnecting exceed the limit of the {@link ReconnectPolicy}.
+	 */
+	public CompletableFuture<Void> sendAsync(String text) {
+		Outbox.PendingMessage message = new Outbox.PendingMessage(text);
+		submit(message);
+		return message.written;
+	}
+
+	/**
+	 * Hands a message to the sender {@link Thread}.
+	 *
+	 * @param message to be sent
+	 */
+	private void submit(Outbox.PendingMessage message) {
+		try {
+			sender.execute(() -> dispatch(message));
+		} catch (RejectedExecutionException e) {
+			message.fail(new IOException("The engine has been shut down"));
+		}
+	}
+
+	/**
+	 * Sends a message after the queued ones, or queues it while reconnecting.
+	 * Only called by the sender {@link Thread}.
+	 *
+	 * @param message to be sent
+	 */
+	private void dispatch(Outbox.PendingMessage message) {
+		if (reconnecting) {
+			queue(message);
+			return;
+		}
+		flushOutbox();
+		transmit(message);
+	}
+
+	/**
+	 * Queues a message until the engine has reconnected.
+	 *
+	 * @param message to be queued
+	 */
+	private void queue(Outbox.PendingMessage message) {
+		ReconnectPolicy policy = reconnectPolicy;
+		if (outbox.offer(message, policy == null ? 0 : policy.getMaxQueuedMessages())) {
+			message.accepted.complete(null);
+		} else {
+			message.fail(new RejectedExecutionException("Too many messages waiting for the connection"));
+		}
+	}
+
+	/**
+	 * Sends the messages queued while reconnecting and, with
+	 * {@link DeliveryGuarantee#AT_LEAST_ONCE}, the ones the previous peer didn't
+	 * acknowledge. Only called by the sender {@link Thread}.
+	 */
+	private void flushOutbox() {
+		Outbox.PendingMessage message;
+		while (!reconnecting && (message = outbox.poll()) != null) {
+			Metrics.MESSAGES_REPLAYED.increment();
+			transmit(message);
+		}
+	}
+
+	/**
+	 * Encrypts a message and queues it to the {@link SocketController}. Only
+	 * called by the sender {@link Thread}.
+	 *
+	 * @param message to be sent
+	 */
+	private void transmit(Outbox.PendingMessage message) {
+		Cipher cipher = currentCipher;
+		byte[] data = message.text.getBytes(Crypto.getCharset());
+		// The flag marking compressed messages is lost without framing
+		byte[] compressed = socketController.isFraming() ? compressor.compress(data) : null;
+		byte[] encrypted;
+		try {
+			encrypted = Crypto.encryptBytes(compressed != null ? compressed : data, key, currentProvider);
+		} catch (RuntimeException e) {
+			message.fail(e);
+			return;
+		}
+
+		boolean atLeastOnce = deliveryGuarantee == DeliveryGuarantee.AT_LEAST_ONCE;
+		if (atLeastOnce) {
+			// Numbered before the acknowledgement may arrive, forgetting a message
+			// the writer refuses or drops gives its number back
+			outbox.sent(message, MAX_UNACKNOWLEDGED);
+		}
+		CompletableFuture<Void> written = socketController.sendAsync(encrypted,
+				compressed != null ? Frame.FLAG_COMPRESSED : 0);
+		if (written.isCompletedExceptionally()) {
+			outbox.forget(message);
+			Throwable cause = unwrap(written);
+			if (cause instanceof IOException && reconnecting) {
+				// The connection failed meanwhile
+				queue(message);
+			} else {
+				message.fail(cause);
+			}
+			return;
+		}
+
+		message.accepted.complete(null);
+		if (!message.logged) {
+			message.logged = true;
+			log(Style.USER, cipher, compressed != null, message.text, encrypted);
+		}
+		written.whenComplete((result, e) -> {
+			if (e == null) {
+				message.written.complete(null);
+			} else if (!(atLeastOnce && e instanceof IOException)) {
+				outbox.forget(message);
+				message.written.completeExceptionally(e);
+			}
+			// Otherwise sent again on the next connection unless acknowledged
+		});
+	}
+
+	/**
+	 * @param future which failed
+	 * @return the failure of the future
+	 */
+	private static Throwable unwrap(CompletableFuture<Void> future) {
+		try {
+			future.join();
+			throw new IllegalStateException("The future has not failed");
+		} catch (CompletionException e) {
+			return e.getCause();
+		}
+	}
+
+	/**
+	 * Offers the passed file to the connected peer, which receives it if it has
+	 * a download directory. The file is encrypted with the current cipher and
+	 * key.
+	 *
+	 * @param path of the file
+	 * @return the transfer, its progress is passed to the
+	 *         {@link MessengerListener}
+	 * @throws IOException if the file can't be read or the peer doesn't support
+	 *                     file transfers
+	 */
+	public FileTransfer sendFile(Path path) throws IOException {
+		return fileTransfers.send(path, currentProvider, key);
+	}
+
+	/**
+	 * Decrypts a message and decompresses it if needed.
+	 *
+	 * @param message    to be decoded
+	 * @param compressed true if the message was compressed before encryption
+	 * @param key        to use for decryption
+	 * @param provider   to use for decryption, null if the message isn't
+	 *                   encrypted
+	 * @return text of the message
+	 * @throws IllegalArgumentException if the message is malformed
+	 */
+	private String decode(byte[] message, boolean compressed, String key, CipherProvider provider) {
+		byte[] data = Crypto.decryptBytes(message, key, provider);
+		if (compressed) {
+			try {
+				data = compressor.decompress(data, socketController.getMaxMessageSize());
+			} catch (DataFormatException e) {
+				// Most likely decrypted with a wrong key
+				throw new IllegalArgumentException(e);
+			}
+		}
+		return new String(data, Crypto.getCharset());
+	}
+
+	/**
+	 * Decrypts a message in place and decompresses it if needed, see
+	 * {@link #decode(byte[], boolean, String, CipherProvider)}. Only the
+	 * decoding of the text copies the decrypted data.
+	 *
+	 * @param message    to be decoded, overwritten by the decryption
+	 * @param compressed true if the message was compressed before encryption
+	 * @param key        to use for decryption
+	 * @param provider   to use for decryption, null if the message isn't
+	 *                   encrypted
+	 * @return text of the message
+	 * @throws IllegalArgumentException if the message is malformed
+	 */
+	private String decode(ByteBuffer message, boolean compressed, String key, CipherProvider provider) {
+		ByteBuffer data = Crypto.decrypt(message, key, provider);
+		if (compressed || !data.hasArray()) {
+			byte[] array = new byte[data.remaining()];
+			data.get(array);
+			return compressed ? decode(array, true, null, null) : new String(array, Crypto.getCharset());
+		}
+		return new String(data.array(), data.arrayOffset() + data.position(), data.remaining(), Crypto.getCharset());
+	}
+
+	/**
+	 * @return true if the {@link MessageLog} keeps the messages as sent over the
+	 *         network
+	 */
+	private boolean logsCiphertext() {
+		MessageLog log = messageLog;
+		return log != null && log.getStoragePolicy() != StoragePolicy.PLAINTEXT;
+	}
+
+	/**
+	 * Writes a sent or received message to the {@link MessageLog} in the form
+	 * selected by its {@link StoragePolicy}. Failures don't affect the delivery
+	 * of the message.
+	 *
+	 * @param style   {@link Style#USER} for sent, {@link Style#PARTNER} for
+	 *                received messages
+	 * @param cipher     the message was encrypted with
+	 * @param compressed true if the message was compressed before encryption
+	 * @param text       of the message
+	 * @param message    the message as sent over the network, null if only
+	 *                   the text is kept
+	 */
+	private void log(Style style, Cipher cipher, boolean compressed, String text, byte[] message) {
+		MessageLog log = messageLog;
+		// A received message isn't kept if the log was opened while decoding it
+		if (log == null || (message == null && log.getStoragePolicy() != StoragePolicy.PLAINTEXT)) {
+			return;
+		}
+
+		long timestamp = System.currentTimeMillis();
+		String peer = socketController.getPartnerAddress();
+		LogRecord record = log.getStoragePolicy() == StoragePolicy.PLAINTEXT
+				? LogRecord.plaintext(timestamp, peer, style, text)
+				: new LogRecord(timestamp, peer, style, cipher, compressed, message);
+		try {
+			log.append(record);
+		} catch (IOException | IllegalArgumentException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Reads the last messages of the {@link MessageLog}.
+	 *
+	 * @param count maximum number of messages
+	 * @return the messages, oldest first, empty if there is no log
+	 * @throws IOException if the log can't be read
+	 */
+	public List<LogRecord> readHistory(int count) throws IOException {
+		MessageLog log = messageLog;
+		if (log == null) {
+			return Collections.emptyList();
+		}
+		return log.readLast(count);
+	}
+
+	/**
+	 * Finds the logged messages matching the passed query.
+	 *
+	 * @param query see {@link SearchIndex}
+	 * @param limit maximum number of messages
+	 * @return the newest matching messages, oldest first, empty if there is no
+	 *         log
+	 * @throws IOException if the log can't be read
+	 */
+	public List<LogRecord> searchHistory(String query, int limit) throws IOException {
+		MessageLog log = messageLog;
+		if (log == null) {
+			return Collections.emptyList();
+		}
+		return log.search(query, limit);
+	}
+
+	/**
+	 * Returns the text of a logged message, decrypting it with the current key if
+	 * it was stored encrypted.
+	 *
+	 * @param record of the message
+	 * @return text of the message
+	 * @throws IllegalArgumentException if the message can't be decrypted
+	 */
+	public String readText(LogRecord record) {
+		if (record.getCipher() == null) {
+			return new String(record.getPayload(), StandardCharsets.UTF_8);
+		}
+		return decode(record.getPayload(), record.isCompressed(), key, Crypto.getProvider(record.getCipher()));
+	}
+
+	/**
+	 * Closes the current connection and listens to incoming connections.
+	 */
+	public void setServerMode() {
+		cancelReconnect();
+		socketController.setServerMode();
+	}
+
+	/**
+	 * Closes the current connection and stops listening to incoming connections.
+	 */
+	public void setClientMode() {
+		cancelReconnect();
+		socketController.setClientMode();
+	}
+
+	/**
+	 * Stops the engine and closes all of its sockets.
+	 */
+	public synchronized void shutdown() {
+		running = false;
+		cancelReconnect();
+		socketController.closeServerSocket();
+		socketController.closeCurrentSocket();
+		if (socketListenerThread != null) {
+			socketListenerThread.interrupt();
+		}
+		fileTransfers.disconnected();
+		// Interrupts a sender waiting for a full send queue
+		sender.shutdownNow();
+		compressor.close();
+		if (messageLog != null) {
+			messageLog.close();
+		}
+	}
+
+	/**
+	 * Blocks the current {@link Thread} until the engine has stopped.
+	 *
+	 * @throws InterruptedException if the {@link Thread} is interrupted while
+	 *                              waiting
+	 */
+	public void join() throws InterruptedException {
+		Thread thread;
+		synchronized (this) {
+			thread = socketListenerThread;
+		}
+		if (thread != null) {
+			thread.join();
+		}
+	}
+
+	/**
+	 * Picks the {@link CipherProvider} of the passed {@link Cipher} for the
+	 * following messages.
+	 *
+	 * @param cipher to be used
+	 */
+	public void setCipher(Cipher cipher) {
+		currentProvider = Crypto.getProvider(cipher);
+		currentCipher = cipher;
+	}
+
+	/**
+	 * Sets the log the following messages are written to. The log is closed by
+	 * {@link #shutdown()}.
+	 *
+	 * @param messageLog the log, null to stop persisting the messages
+	 */
+	public void setMessageLog(MessageLog messageLog) {
+		this.messageLog = messageLog;
+	}
+
+	/**
+	 * Sets the directory the files received from the peer are written to.
+	 *
+	 * @param downloadDirectory the directory, null to decline the files
+	 */
+	public void setDownloadDirectory(Path downloadDirectory) {
+		fileTransfers.setDownloadDirectory(downloadDirectory);
+	}
+
+	/**
+	 * Sets the maximum size of a file received from the peer.
+	 *
+	 * @param maxFileSize in bytes, larger files are declined
+	 */
+	public void setMaxFileSize(long maxFileSize) {
+		fileTransfers.setMaxFileSize(maxFileSize);
+	}
+
+	/**
+	 * Sets the minimum size of a compressed message.
+	 *
+	 * @param threshold in bytes, 0 disables compression
+	 */
+	public void setCompressionThreshold(int threshold) {
+		compressor.setThreshold(threshold);
+	}
+
+	/**
+	 * Sets the reconnection after the connection failed in client mode.
+	 *
+	 * @param reconnectPolicy the policy, null to switch to server mode instead
+	 */
+	public void setReconnectPolicy(ReconnectPolicy reconnectPolicy) {
+		this.reconnectPolicy = reconnectPolicy;
+	}
+
+	/**
+	 * Sets the guarantee of the following messages, see
+	 * {@link DeliveryGuarantee}.
+	 *
+	 * @param deliveryGuarantee of the messages
+	 */
+	public void setDeliveryGuarantee(DeliveryGuarantee deliveryGuarantee) {
+		if (deliveryGuarantee == null) {
+			throw new NullPointerException("deliveryGuarantee");
+		}
+		this.deliveryGuarantee = deliveryGuarantee;
+	}
+
+	/**
+	 * @return true while the engine waits to reconnect, the sent messages are
+	 *         queued meanwhile
+	 */
+	public boolean isReconnecting() {
+		return reconnecting;
+	}
+
+	/**
+	 * @param key used for encryption/decryption of the following messages
+	 */
+	public void setKey(String key) {
+		this.key = key == null ? "" : key;
+	}
+
+	/**
+	 * @return address of the connected peer, null if there is none
+	 */
+	public String getPartnerAddress() {
+		return socketController.getPartnerAddress();
+	}
+
+	/**
+	 * @return the {@link SocketStatus} of the {@link SocketController}
+	 */
+	public SocketStatus getSocketStatus() {
+		return socketController.getSocketStatus();
+	}
+}
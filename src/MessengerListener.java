@@ -0,0 +1,59 @@
+/**
+ *
+ * Receives the events of a {@link MessengerEngine}.
+ * <p>
+ * The methods are called on the {@link Thread} of the engine, a GUI has to
+ * pass them over to its own {@link Thread}. The events of file transfers may
+ * also come from the {@link Thread}s sending the files.
+ *
+ */
+public interface MessengerListener {
+	/**
+	 * Called once a peer has connected to the server.
+	 *
+	 * @param partnerAddress address of the peer
+	 */
+	void onConnected(String partnerAddress);
+
+	/**
+	 * Called for every received and decrypted message.
+	 *
+	 * @param partnerAddress address of the peer
+	 * @param message        the decrypted message
+	 */
+	void onMessage(String partnerAddress, String message);
+
+	/**
+	 * Called for every received message which could not be decrypted.
+	 *
+	 * @param partnerAddress address of the peer
+	 */
+	void onDecryptionFailed(String partnerAddress);
+
+	/**
+	 * Called once the connection to the peer has been closed by either side.
+	 *
+	 * @param partnerAddress address of the peer
+	 */
+	void onDisconnected(String partnerAddress);
+
+	/**
+	 * Called before every attempt to reconnect after the connection failed in
+	 * client mode, see {@link ReconnectPolicy}. Does nothing by default.
+	 *
+	 * @param address     the engine reconnects to, the first one if there are
+	 *                    several
+	 * @param attempt     number of the attempt, starting from 1
+	 * @param delayMillis time before the attempt in milliseconds
+	 */
+	default void onReconnecting(String address, int attempt, long delayMillis) {
+	}
+
+	/**
+	 * Called once a file transfer is offered, when it starts, periodically while
+	 * it runs and once it completes or fails.
+	 *
+	 * @param transfer the transfer, see {@link FileTransfer#getState()}
+	 */
+	void onFileTransfer(FileTransfer transfer);
+}
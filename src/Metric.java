@@ -0,0 +1,55 @@
+import java.util.Map;
+
+/**
+ *
+ * A named measurement of the messenger registered in {@link Metrics}.
+ *
+ */
+public abstract class Metric {
+	private final String name;
+	private final String help;
+
+	/**
+	 * @param name of the metric, lower case words separated by underscores
+	 * @param help description of the metric
+	 */
+	protected Metric(String name, String help) {
+		this.name = name;
+		this.help = help;
+	}
+
+	/**
+	 * Appends the current value in the Prometheus text format, without the
+	 * {@code HELP} and {@code TYPE} lines.
+	 *
+	 * @param out to append to
+	 */
+	abstract void format(StringBuilder out);
+
+	/**
+	 * Puts the current values in the passed map, keyed by the names of the JMX
+	 * attributes.
+	 *
+	 * @param attributes to put the values in
+	 */
+	abstract void collect(Map<String, Object> attributes);
+
+	/**
+	 * @return type of the metric in the Prometheus text format
+	 */
+	abstract String getType();
+
+	/**
+	 * @return name of the metric
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return description of the metric
+	 */
+	public String getHelp() {
+		return help;
+	}
+}
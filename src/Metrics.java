@@ -0,0 +1,139 @@
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ *
+ * Metrics of the networking and the encryption of the messenger.
+ * <p>
+ * The metrics are updated by the code they measure through the constants of
+ * this class and read by {@link MetricsMBean} over JMX and by
+ * {@link MetricsServer} in the Prometheus text format. Updating a metric
+ * doesn't lock, see {@link Counter} and {@link LatencyHistogram}.
+ *
+ */
+public final class Metrics {
+	/**
+	 * Name of the {@link MetricsMBean} registered by {@link #registerMBean()}.
+	 */
+	public final static String OBJECT_NAME = "SimpleMessenger:type=Metrics";
+
+	private final static List<Metric> metrics = new CopyOnWriteArrayList<Metric>();
+
+	public final static Counter BYTES_SENT = register(
+			new Counter("messenger_bytes_sent_total", "Bytes written to the connections"));
+	public final static Counter BYTES_RECEIVED = register(
+			new Counter("messenger_bytes_received_total", "Bytes read from the connections"));
+	public final static Counter MESSAGES_SENT = register(
+			new Counter("messenger_messages_sent_total", "Messages queued to be sent"));
+	public final static Counter MESSAGES_RECEIVED = register(
+			new Counter("messenger_messages_received_total", "Messages received"));
+	public final static Counter DECRYPTION_FAILURES = register(
+			new Counter("messenger_decryption_failures_total", "Received messages which could not be decrypted"));
+	public final static Counter CONNECTIONS = register(
+			new Counter("messenger_connections_total", "Connections established"));
+	public final static Counter RECONNECTS = register(new Counter("messenger_reconnects_total",
+			"Connections established after a previous connection of the same controller"));
+	public final static Counter RECONNECT_ATTEMPTS = register(new Counter("messenger_reconnect_attempts_total",
+			"Attempts to reconnect after a connection failed in client mode"));
+	public final static Counter MESSAGES_REPLAYED = register(new Counter("messenger_messages_replayed_total",
+			"Messages sent after a reconnection, queued meanwhile or not acknowledged before"));
+	public final static Counter HEARTBEATS_SENT = register(
+			new Counter("messenger_heartbeats_sent_total", "Pings sent to idle peers"));
+	public final static LatencyHistogram HEARTBEAT_RTT = register(new LatencyHistogram(
+			"messenger_heartbeat_rtt_seconds", "Time between sending a ping and receiving its pong"));
+	public final static Counter IDLE_TIMEOUTS = register(new Counter("messenger_idle_timeouts_total",
+			"Connections closed because nothing was received for the idle timeout"));
+	public final static Gauge IDLE_CHECKS = register(new Gauge("messenger_idle_checks",
+			"Heartbeat and idle checks pending in the timing wheel", IdleMonitor::getPendingCount));
+	public final static LatencyHistogram ENCRYPT_TIME = register(
+			new LatencyHistogram("messenger_encrypt_seconds", "Time to encrypt a message or a file chunk"));
+	public final static LatencyHistogram DECRYPT_TIME = register(
+			new LatencyHistogram("messenger_decrypt_seconds", "Time to decrypt a message or a file chunk"));
+	public final static Counter BUFFER_POOL_HITS = register(new Counter("messenger_buffer_pool_hits_total",
+			"Buffers acquired from a pool which had a released buffer of the size"));
+	public final static Counter BUFFER_POOL_MISSES = register(new Counter("messenger_buffer_pool_misses_total",
+			"Buffers allocated because a pool had no released buffer of the size"));
+	public final static Gauge BUFFER_POOL_BYTES = register(new Gauge("messenger_buffer_pool_bytes",
+			"Bytes of the released buffers kept by the pools", BufferPool::getPooledBytes));
+	public final static Counter BUFFER_LEAKS = register(new Counter("messenger_buffer_leaks_total",
+			"Pooled buffers collected without having been released, counted with the leak detection enabled"));
+	public final static Gauge WRITE_QUEUE_DEPTH = register(new Gauge("messenger_write_queue_depth",
+			"Frames, file regions and callbacks waiting for the socket writers", SocketWriter::getQueuedCount));
+	public final static Gauge SEND_QUEUE_BYTES = register(new Gauge("messenger_send_queue_bytes",
+			"Bytes of the messages waiting for the socket writers", SocketWriter::getQueuedBytes));
+	public final static LatencyHistogram SEND_BLOCKED_TIME = register(new LatencyHistogram(
+			"messenger_send_blocked_seconds", "Time a sender waited for a full send queue to drain"));
+	public final static Counter MESSAGES_DROPPED = register(new Counter("messenger_messages_dropped_total",
+			"Queued messages dropped to make room in a full send queue"));
+	public final static Counter MESSAGES_REJECTED = register(
+			new Counter("messenger_messages_rejected_total", "Messages rejected by a full send queue"));
+	public final static LatencyHistogram UI_DISPATCH_LAG = register(new LatencyHistogram(
+			"messenger_ui_dispatch_lag_seconds", "Time a line posted by the engine waits to be displayed"));
+	public final static Counter ROOM_BROADCASTS = register(
+			new Counter("messenger_room_broadcasts_total", "Messages broadcast to the members of a room"));
+	public final static Counter ROOM_DROPPED_MESSAGES = register(new Counter("messenger_room_dropped_messages_total",
+			"Broadcast messages not queued for a member whose queue was full"));
+	public final static Counter ROOM_EVICTED_MEMBERS = register(new Counter("messenger_room_evicted_members_total",
+			"Members disconnected because their queue was full"));
+
+	private Metrics() {
+	}
+
+	/**
+	 * Adds a metric to the ones exposed.
+	 *
+	 * @param metric to be added
+	 * @return the metric
+	 * @throws IllegalArgumentException if a metric of the same name exists
+	 */
+	public static <T extends Metric> T register(T metric) {
+		for (Metric registered : metrics) {
+			if (registered.getName().equals(metric.getName())) {
+				throw new IllegalArgumentException("Duplicate metric " + metric.getName());
+			}
+		}
+		metrics.add(metric);
+		return metric;
+	}
+
+	/**
+	 * @return the registered metrics
+	 */
+	public static List<Metric> getMetrics() {
+		return Collections.unmodifiableList(metrics);
+	}
+
+	/**
+	 * @return the current values of all the metrics in the Prometheus text
+	 *         format
+	 */
+	public static String format() {
+		StringBuilder out = new StringBuilder(4096);
+		for (Metric metric : metrics) {
+			out.append("# HELP ").append(metric.getName()).append(' ').append(metric.getHelp()).append('\n');
+			out.append("# TYPE ").append(metric.getName()).append(' ').append(metric.getType()).append('\n');
+			metric.format(out);
+		}
+		return out.toString();
+	}
+
+	/**
+	 * Registers the {@link MetricsMBean} with the platform MBean server under
+	 * {@link #OBJECT_NAME}, unless it already is.
+	 */
+	public static void registerMBean() {
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(new MetricsMBean(), new ObjectName(OBJECT_NAME));
+		} catch (InstanceAlreadyExistsException e) {
+			// Registered by another instance of the messenger in this process
+		} catch (JMException e) {
+			e.printStackTrace();
+		}
+	}
+}
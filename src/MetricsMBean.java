@@ -0,0 +1,96 @@
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.ReflectionException;
+
+/**
+ *
+ * Exposes the {@link Metrics} as read-only JMX attributes, e.g. to JConsole.
+ * <p>
+ * Counters and gauges are exposed under their names, every
+ * {@link LatencyHistogram} as several attributes: the count, mean, percentiles
+ * and maximum of its values in seconds.
+ *
+ */
+public class MetricsMBean implements DynamicMBean {
+	private final MBeanInfo info;
+
+	public MetricsMBean() {
+		Map<String, Object> attributes = new LinkedHashMap<String, Object>();
+		Map<String, String> descriptions = new LinkedHashMap<String, String>();
+		for (Metric metric : Metrics.getMetrics()) {
+			metric.collect(attributes);
+			for (String name : attributes.keySet()) {
+				descriptions.putIfAbsent(name, metric.getHelp());
+			}
+		}
+
+		MBeanAttributeInfo[] attributeInfos = new MBeanAttributeInfo[attributes.size()];
+		int i = 0;
+		for (Map.Entry<String, Object> attribute : attributes.entrySet()) {
+			attributeInfos[i++] = new MBeanAttributeInfo(attribute.getKey(), attribute.getValue().getClass().getName(),
+					descriptions.get(attribute.getKey()), true, false, false);
+		}
+		info = new MBeanInfo(getClass().getName(), "Metrics of the messenger", attributeInfos, null,
+				new MBeanOperationInfo[0], null);
+	}
+
+	/**
+	 * @return the current values of all the attributes
+	 */
+	private static Map<String, Object> collect() {
+		Map<String, Object> attributes = new LinkedHashMap<String, Object>();
+		for (Metric metric : Metrics.getMetrics()) {
+			metric.collect(attributes);
+		}
+		return attributes;
+	}
+
+	@Override
+	public Object getAttribute(String attribute) throws AttributeNotFoundException {
+		Object value = collect().get(attribute);
+		if (value == null) {
+			throw new AttributeNotFoundException(attribute);
+		}
+		return value;
+	}
+
+	@Override
+	public AttributeList getAttributes(String[] attributes) {
+		Map<String, Object> values = collect();
+		AttributeList list = new AttributeList();
+		for (String attribute : attributes) {
+			if (values.containsKey(attribute)) {
+				list.add(new Attribute(attribute, values.get(attribute)));
+			}
+		}
+		return list;
+	}
+
+	@Override
+	public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+		throw new AttributeNotFoundException("The metrics are read-only");
+	}
+
+	@Override
+	public AttributeList setAttributes(AttributeList attributes) {
+		return new AttributeList();
+	}
+
+	@Override
+	public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+		throw new ReflectionException(new NoSuchMethodException(actionName));
+	}
+
+	@Override
+	public MBeanInfo getMBeanInfo() {
+		return info;
+	}
+}
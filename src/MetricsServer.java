@@ -0,0 +1,88 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ *
+ * Plain HTTP endpoint serving the {@link Metrics} in the Prometheus text
+ * format on {@value #PATH}, for scraping the headless {@link MessengerDaemon}:
+ *
+ * <pre>
+ * curl http://localhost:9192/metrics
+ * </pre>
+ *
+ * The endpoint has no authentication, so it only listens on the loopback
+ * address unless another address is passed explicitly.
+ *
+ */
+public class MetricsServer {
+	/**
+	 * Path the metrics are served on.
+	 */
+	public final static String PATH = "/metrics";
+
+	private final HttpServer server;
+
+	/**
+	 * Creates the server listening on the loopback address, {@link #start()}
+	 * must be called to begin serving.
+	 *
+	 * @param port to listen on
+	 * @throws IOException if the port can't be bound
+	 */
+	public MetricsServer(int port) throws IOException {
+		this(null, port);
+	}
+
+	/**
+	 * Creates the server, {@link #start()} must be called to begin serving.
+	 *
+	 * @param bindAddress address to listen on, e.g. {@code 0.0.0.0} for all the
+	 *                    interfaces, null for the loopback address
+	 * @param port        to listen on
+	 * @throws IOException if the address can't be resolved or the port can't be
+	 *                     bound
+	 */
+	public MetricsServer(String bindAddress, int port) throws IOException {
+		InetAddress address = bindAddress == null ? InetAddress.getLoopbackAddress()
+				: InetAddress.getByName(bindAddress);
+		server = HttpServer.create(new InetSocketAddress(address, port), 0);
+		server.createContext(PATH, this::handle);
+	}
+
+	/**
+	 * Starts serving the metrics on a background {@link Thread}.
+	 */
+	public void start() {
+		server.start();
+	}
+
+	/**
+	 * Stops serving the metrics and closes the port.
+	 */
+	public void stop() {
+		server.stop(0);
+	}
+
+	private void handle(HttpExchange exchange) throws IOException {
+		try {
+			if (!exchange.getRequestMethod().equals("GET")) {
+				exchange.sendResponseHeaders(405, -1);
+				return;
+			}
+			byte[] body = Metrics.format().getBytes(StandardCharsets.UTF_8);
+			exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+			exchange.sendResponseHeaders(200, body.length);
+			try (OutputStream out = exchange.getResponseBody()) {
+				out.write(body);
+			}
+		} finally {
+			exchange.close();
+		}
+	}
+}
@@ -0,0 +1,189 @@
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ *
+ * Messages of a {@link MessengerEngine} waiting for a connection, and the sent
+ * messages the peer hasn't acknowledged yet.
+ * <p>
+ * Messages sent while the engine reconnects are queued and sent in order once
+ * it has reconnected. With {@link DeliveryGuarantee#AT_LEAST_ONCE} the sent
+ * messages are kept until a {@link Frame#TYPE_MESSAGE_ACK} frame covers them,
+ * the ones still kept when the next connection is established are queued
+ * again in front of the others.
+ *
+ */
+class Outbox {
+	private final Deque<PendingMessage> queued = new ArrayDeque<PendingMessage>();
+	private final Deque<PendingMessage> unacknowledged = new ArrayDeque<PendingMessage>();
+	/**
+	 * Number of messages sent on the current connection.
+	 */
+	private long sentCount;
+	/**
+	 * Number of connections established, identifies the connection the
+	 * sequence numbers of the messages belong to.
+	 */
+	private long connectionCount;
+
+	/**
+	 * Queues a message to be sent once connected.
+	 *
+	 * @param message   to be queued
+	 * @param maxQueued maximum number of queued messages
+	 * @return false if the queue is full
+	 */
+	synchronized boolean offer(PendingMessage message, int maxQueued) {
+		if (queued.size() >= maxQueued) {
+			return false;
+		}
+		queued.add(message);
+		return true;
+	}
+
+	/**
+	 * @return the oldest queued message, null if there is none
+	 */
+	synchronized PendingMessage poll() {
+		return queued.poll();
+	}
+
+	/**
+	 * Keeps a message sent on the current connection until the peer
+	 * acknowledges it. The oldest kept message is forgotten once more than the
+	 * passed number are kept, e.g. if the peer never acknowledges, and fails
+	 * unless it has been written.
+	 *
+	 * @param message           sent
+	 * @param maxUnacknowledged maximum number of kept messages
+	 */
+	synchronized void sent(PendingMessage message, int maxUnacknowledged) {
+		message.sequence = ++sentCount;
+		message.connection = connectionCount;
+		unacknowledged.add(message);
+		if (unacknowledged.size() > maxUnacknowledged) {
+			unacknowledged.poll().written.completeExceptionally(new IOException("Not acknowledged by the peer"));
+		}
+	}
+
+	/**
+	 * Forgets a sent message which won't be written, e.g. because the full send
+	 * queue rejected or dropped it. The peer doesn't count it, so its number is
+	 * given back and the messages sent after it move up by one.
+	 *
+	 * @param message to be forgotten
+	 */
+	synchronized void forget(PendingMessage message) {
+		unacknowledged.remove(message);
+		if (message.sequence == 0 || message.connection != connectionCount) {
+			return;
+		}
+		for (PendingMessage later : unacknowledged) {
+			if (later.sequence > message.sequence) {
+				later.sequence--;
+			}
+		}
+		sentCount--;
+		message.sequence = 0;
+	}
+
+	/**
+	 * Forgets the messages acknowledged by the peer.
+	 *
+	 * @param count number of messages the peer has received on the current
+	 *              connection
+	 */
+	synchronized void acknowledged(long count) {
+		while (!unacknowledged.isEmpty() && unacknowledged.peek().sequence <= count) {
+			unacknowledged.poll();
+		}
+	}
+
+	/**
+	 * Starts the accounting of a new connection.
+	 *
+	 * @param replay true to queue the messages the previous peer hasn't
+	 *               acknowledged, false to forget them
+	 * @return number of messages queued to be sent
+	 */
+	synchronized int connected(boolean replay) {
+		if (replay) {
+			Iterator<PendingMessage> iterator = unacknowledged.descendingIterator();
+			while (iterator.hasNext()) {
+				queued.addFirst(iterator.next());
+			}
+		}
+		unacknowledged.clear();
+		sentCount = 0;
+		connectionCount++;
+		return queued.size();
+	}
+
+	/**
+	 * Removes all the queued and kept messages.
+	 *
+	 * @return the removed messages which haven't been written yet
+	 */
+	synchronized List<PendingMessage> clear() {
+		List<PendingMessage> messages = new ArrayList<PendingMessage>(queued);
+		for (PendingMessage message : unacknowledged) {
+			if (!message.written.isDone()) {
+				messages.add(message);
+			}
+		}
+		queued.clear();
+		unacknowledged.clear();
+		return messages;
+	}
+
+	/**
+	 *
+	 * A text sent by the user.
+	 *
+	 */
+	static class PendingMessage {
+		final String text;
+		/**
+		 * Completed once the message has been handed to the socket or queued.
+		 */
+		final CompletableFuture<Void> accepted = new CompletableFuture<Void>();
+		/**
+		 * Completed once the message has been written to the socket.
+		 */
+		final CompletableFuture<Void> written = new CompletableFuture<Void>();
+		/**
+		 * Number of the message on the connection it was last sent on, 0 if it
+		 * hasn't been sent or has been forgotten, guarded by the {@link Outbox}.
+		 */
+		private long sequence;
+		/**
+		 * Connection the {@link #sequence} belongs to, guarded by the
+		 * {@link Outbox}.
+		 */
+		private long connection;
+		/**
+		 * Indicates that the message has been written to the {@link MessageLog},
+		 * only used by the sender {@link Thread}.
+		 */
+		boolean logged;
+
+		PendingMessage(String text) {
+			this.text = text;
+		}
+
+		/**
+		 * Fails the message unless it has already been written.
+		 *
+		 * @param e the failure
+		 */
+		void fail(Throwable e) {
+			accepted.completeExceptionally(e);
+			written.completeExceptionally(e);
+		}
+	}
+}
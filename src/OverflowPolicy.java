@@ -0,0 +1,17 @@
+/**
+ *
+ * What a {@link RoomHub} does with a member which can't keep up, i.e. whose
+ * queue of data waiting to be written exceeds the limit of the hub.
+ *
+ */
+public enum OverflowPolicy {
+	/**
+	 * The message is not queued for the member, who misses it.
+	 */
+	DROP,
+
+	/**
+	 * The member is disconnected and may join again.
+	 */
+	DISCONNECT
+}
@@ -0,0 +1,134 @@
+import java.io.IOException;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.DataFormatException;
+
+/**
+ *
+ * Peers of a server accepting any number of connections, a
+ * {@link SelectorServer} or a {@link ThreadPerConnectionServer}, sharing one
+ * key.
+ * <p>
+ * Received messages are decrypted and passed to a {@link MessengerListener}
+ * together with the connection events, {@link #send(String)} encrypts a text
+ * once and sends it to every connected peer. Unlike a {@link MessengerEngine}
+ * the group neither transfers files nor logs the messages.
+ *
+ */
+public class PeerGroup implements ConnectionListener {
+	private final MessengerListener listener;
+	private final CipherProvider provider;
+	private final String key;
+	private final Set<Connection> peers = ConcurrentHashMap.newKeySet();
+	/**
+	 * Compressor of every peer which sent a compressed message.
+	 */
+	private final Map<Connection, MessageCompressor> compressors =
+			new ConcurrentHashMap<Connection, MessageCompressor>();
+
+	/**
+	 * @param listener receiving the messages and events of the peers
+	 * @param cipher   used by the peers
+	 * @param key      shared by the peers
+	 */
+	public PeerGroup(MessengerListener listener, Cipher cipher, String key) {
+		if (listener == null) {
+			throw new NullPointerException("listener");
+		}
+		this.listener = listener;
+		this.provider = Crypto.getProvider(cipher);
+		this.key = key;
+	}
+
+	/**
+	 * Encrypts the passed text once and sends it to all the connected peers.
+	 * The connections of a {@link ThreadPerConnectionServer} are written one
+	 * after another, each blocking until its socket accepted the text.
+	 *
+	 * @param text to be sent
+	 * @return number of peers the text was sent to
+	 * @throws UnsupportedOperationException if the text can't be encrypted with
+	 *                                       the key
+	 */
+	public int send(String text) {
+		byte[] message = Crypto.encrypt(text, key, provider);
+		int count = 0;
+		for (Connection peer : peers) {
+			try {
+				peer.send(message);
+				count++;
+			} catch (IOException e) {
+				// Closed meanwhile or not keeping up, the other peers still get it
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * @return number of connected peers
+	 */
+	public int getPeerCount() {
+		return peers.size();
+	}
+
+	@Override
+	public void onConnected(Connection connection) {
+		peers.add(connection);
+		listener.onConnected(connection.getPartnerAddress());
+	}
+
+	@Override
+	public void onMessage(Connection connection, byte[] message) {
+		onMessage(connection, message, 0);
+	}
+
+	@Override
+	public void onMessage(Connection connection, byte[] message, int flags) {
+		byte[] data;
+		try {
+			data = Crypto.decryptBytes(message, key, provider);
+			if ((flags & Frame.FLAG_COMPRESSED) != 0) {
+				data = compressor(connection).decompress(data, connection.getMaxMessageSize());
+			}
+		} catch (IllegalArgumentException | DataFormatException e) {
+			Metrics.DECRYPTION_FAILURES.increment();
+			listener.onDecryptionFailed(connection.getPartnerAddress());
+			return;
+		}
+
+		int length = data.length;
+		// Without the zeros padding it
+		while (length > 0 && data[length - 1] == 0) {
+			length--;
+		}
+		listener.onMessage(connection.getPartnerAddress(), new String(data, 0, length, Crypto.getCharset()));
+	}
+
+	/**
+	 * @param connection the compressor of which is returned
+	 * @return compressor of the connection, created on first use
+	 */
+	private MessageCompressor compressor(Connection connection) {
+		MessageCompressor compressor = compressors.get(connection);
+		if (compressor == null) {
+			compressor = new MessageCompressor();
+			MessageCompressor previous = compressors.putIfAbsent(connection, compressor);
+			if (previous != null) {
+				compressor.close();
+				compressor = previous;
+			}
+		}
+		return compressor;
+	}
+
+	@Override
+	public void onDisconnected(Connection connection) {
+		peers.remove(connection);
+		MessageCompressor compressor = compressors.remove(connection);
+		if (compressor != null) {
+			compressor.close();
+		}
+		listener.onDisconnected(connection.getPartnerAddress());
+	}
+}
@@ -0,0 +1,104 @@
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ *
+ * A reference counted {@link ByteBuffer} of a {@link BufferPool}.
+ * <p>
+ * The buffer starts with a single reference held by the code which acquired
+ * it. Every {@link #retain()} adds a reference and every {@link #release()}
+ * removes one, the buffer goes back to its pool once the last reference has
+ * been released and must not be used afterwards.
+ *
+ * @see BufferPool#acquire(int)
+ */
+public class PooledBuffer {
+	private final BufferPool pool;
+	private final ByteBuffer buffer;
+	/**
+	 * Index of the size class of the {@link #pool}, -1 if the buffer is too
+	 * large to be pooled.
+	 */
+	final int sizeClass;
+	private final AtomicInteger references = new AtomicInteger(1);
+	/**
+	 * Allocation trace of the buffer if the leak detection is enabled, null
+	 * otherwise.
+	 */
+	BufferPool.LeakRecord leak;
+
+	/**
+	 * @param pool      the buffer belongs to
+	 * @param buffer    of the size of the size class
+	 * @param sizeClass index of the size class, -1 if not pooled
+	 */
+	PooledBuffer(BufferPool pool, ByteBuffer buffer, int sizeClass) {
+		this.pool = pool;
+		this.buffer = buffer;
+		this.sizeClass = sizeClass;
+	}
+
+	/**
+	 * @return the buffer, its position and limit are left to the user
+	 * @throws IllegalStateException if the buffer has been released
+	 */
+	public ByteBuffer buffer() {
+		if (references.get() <= 0) {
+			throw new IllegalStateException("The buffer has been released");
+		}
+		return buffer;
+	}
+
+	/**
+	 * Adds a reference to the buffer, e.g. before passing it to another
+	 * {@link Thread}.
+	 *
+	 * @return this buffer
+	 * @throws IllegalStateException if the buffer has been released
+	 */
+	public PooledBuffer retain() {
+		int count;
+		do {
+			count = references.get();
+			if (count <= 0) {
+				throw new IllegalStateException("The buffer has been released");
+			}
+		} while (!references.compareAndSet(count, count + 1));
+		return this;
+	}
+
+	/**
+	 * Removes a reference to the buffer, returning it to its pool once there is
+	 * none left.
+	 *
+	 * @return true if the buffer has been returned to its pool
+	 * @throws IllegalStateException if the buffer has already been released
+	 */
+	public boolean release() {
+		int count = references.decrementAndGet();
+		if (count > 0) {
+			return false;
+		}
+		if (count < 0) {
+			references.incrementAndGet();
+			throw new IllegalStateException("The buffer has already been released");
+		}
+		pool.recycle(this);
+		return true;
+	}
+
+	/**
+	 * @return number of references to the buffer, 0 once released
+	 */
+	public int getReferenceCount() {
+		return references.get();
+	}
+
+	/**
+	 * @return the buffer without checking the references, for the
+	 *         {@link BufferPool}
+	 */
+	ByteBuffer unwrap() {
+		return buffer;
+	}
+}
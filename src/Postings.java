@@ -0,0 +1,259 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ *
+ * Postings list of a term of the {@link SearchIndex}: the sequence numbers of
+ * the messages containing the term together with the positions of the term
+ * inside each message.
+ * <p>
+ * The list is a growing byte array of unsigned varints, per message:
+ *
+ * <pre>
+ * sequence number minus the previous one, number of positions,
+ * first position, each following position minus the previous one
+ * </pre>
+ *
+ * Messages have to be added in ascending order of their sequence numbers.
+ *
+ */
+class Postings {
+	private byte[] data = new byte[16];
+	private int size;
+	private long firstSequence = -1;
+	private long lastSequence = -1;
+	private int count;
+
+	/**
+	 * Adds a message to the list.
+	 *
+	 * @param sequence      of the message, greater than all the added ones
+	 * @param positions     of the term inside the message, ascending
+	 * @param positionCount number of valid elements of {@code positions}
+	 */
+	void add(long sequence, int[] positions, int positionCount) {
+		if (sequence <= lastSequence) {
+			throw new IllegalArgumentException("Sequence numbers must be ascending");
+		}
+
+		ensureCapacity(10 + 5 * (positionCount + 1));
+		writeVarint(lastSequence < 0 ? sequence : sequence - lastSequence);
+		writeVarint(positionCount);
+		int previous = 0;
+		for (int i = 0; i < positionCount; i++) {
+			writeVarint(positions[i] - previous);
+			previous = positions[i];
+		}
+
+		if (firstSequence < 0) {
+			firstSequence = sequence;
+		}
+		lastSequence = sequence;
+		count++;
+	}
+
+	private void ensureCapacity(int additional) {
+		if (size + additional > data.length) {
+			data = Arrays.copyOf(data, Math.max(data.length * 2, size + additional));
+		}
+	}
+
+	private void writeVarint(long value) {
+		while ((value & ~0x7FL) != 0) {
+			data[size++] = (byte) ((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		data[size++] = (byte) value;
+	}
+
+	/**
+	 * Returns a copy of the list without the messages preceding the passed
+	 * sequence number.
+	 *
+	 * @param sequence of the first kept message
+	 * @return the list, this instance if no message is removed
+	 */
+	Postings trim(long sequence) {
+		if (firstSequence >= sequence) {
+			return this;
+		}
+
+		Postings postings = new Postings();
+		Cursor cursor = cursor();
+		while (cursor.next()) {
+			if (cursor.getSequence() >= sequence) {
+				postings.add(cursor.getSequence(), cursor.getPositions(), cursor.getPositionCount());
+			}
+		}
+		return postings;
+	}
+
+	/**
+	 * Returns the messages added so far as a list which never changes. The
+	 * bytes are shared, the messages added to this list afterwards are written
+	 * past the end of the copy.
+	 *
+	 * @return the copy
+	 */
+	Postings snapshot() {
+		Postings postings = new Postings();
+		postings.data = data;
+		postings.size = size;
+		postings.firstSequence = firstSequence;
+		postings.lastSequence = lastSequence;
+		postings.count = count;
+		return postings;
+	}
+
+	/**
+	 * @return a new {@link Cursor} before the first message of the list
+	 */
+	Cursor cursor() {
+		return new Cursor();
+	}
+
+	/**
+	 * @return number of messages in the list
+	 */
+	int getCount() {
+		return count;
+	}
+
+	/**
+	 * @return sequence number of the first message, -1 if the list is empty
+	 */
+	long getFirstSequence() {
+		return firstSequence;
+	}
+
+	/**
+	 * Writes the list in the form read by {@link #read(DataInputStream)}.
+	 *
+	 * @param out stream to write to
+	 * @throws IOException if the stream fails
+	 */
+	void write(DataOutputStream out) throws IOException {
+		out.writeLong(firstSequence);
+		out.writeLong(lastSequence);
+		out.writeInt(count);
+		out.writeInt(size);
+		out.write(data, 0, size);
+	}
+
+	/**
+	 * Reads a list written by {@link #write(DataOutputStream)}.
+	 *
+	 * @param in stream to read from
+	 * @return the list
+	 * @throws IOException if the stream fails or the list is malformed
+	 */
+	static Postings read(DataInputStream in) throws IOException {
+		Postings postings = new Postings();
+		postings.firstSequence = in.readLong();
+		postings.lastSequence = in.readLong();
+		postings.count = in.readInt();
+		postings.size = in.readInt();
+		if (postings.size < 0 || postings.count < 0) {
+			throw new IOException("Malformed postings");
+		}
+		postings.data = new byte[postings.size];
+		in.readFully(postings.data);
+		return postings;
+	}
+
+	/**
+	 *
+	 * Iterates over the messages of a {@link Postings} list in ascending order.
+	 *
+	 */
+	class Cursor {
+		private final int end = size;
+		private int offset;
+		private long sequence = -1;
+		private int[] positions = new int[4];
+		private int positionCount;
+
+		/**
+		 * Moves to the next message.
+		 *
+		 * @return false if there is no more message
+		 */
+		boolean next() {
+			if (offset >= end) {
+				return false;
+			}
+
+			long delta = readVarint();
+			sequence = sequence < 0 ? delta : sequence + delta;
+			positionCount = (int) readVarint();
+			if (positions.length < positionCount) {
+				positions = new int[positionCount];
+			}
+			int position = 0;
+			for (int i = 0; i < positionCount; i++) {
+				position += (int) readVarint();
+				positions[i] = position;
+			}
+			return true;
+		}
+
+		/**
+		 * Moves to the first message with a sequence number not lower than the
+		 * passed one.
+		 *
+		 * @param target sequence number
+		 * @return false if there is no such message
+		 */
+		boolean advance(long target) {
+			while (sequence < target) {
+				if (!next()) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		private long readVarint() {
+			long value = 0;
+			for (int shift = 0;; shift += 7) {
+				byte b = data[offset++];
+				value |= (long) (b & 0x7F) << shift;
+				if (b >= 0) {
+					return value;
+				}
+			}
+		}
+
+		/**
+		 * @return sequence number of the current message
+		 */
+		long getSequence() {
+			return sequence;
+		}
+
+		/**
+		 * @return positions of the term inside the current message, only the
+		 *         first {@link #getPositionCount()} are valid
+		 */
+		int[] getPositions() {
+			return positions;
+		}
+
+		/**
+		 * @return number of positions of the term inside the current message
+		 */
+		int getPositionCount() {
+			return positionCount;
+		}
+
+		/**
+		 * @param position inside the current message
+		 * @return true if the term is at the passed position
+		 */
+		boolean hasPosition(int position) {
+			return Arrays.binarySearch(positions, 0, positionCount, position) >= 0;
+		}
+	}
+}
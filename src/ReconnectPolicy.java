@@ -0,0 +1,167 @@
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Function;
+
+/**
+ *
+ * Configurable reconnection of a {@link MessengerEngine} in client mode after
+ * its connection failed.
+ * <p>
+ * The delay before an attempt grows exponentially from the initial delay up
+ * to the maximum delay. The actual delay is picked at random between zero and
+ * that bound ("full jitter"), so clients disconnected together by the same
+ * network failure don't reconnect in lockstep.
+ *
+ * @see MessengerEngine#setReconnectPolicy(ReconnectPolicy)
+ */
+public class ReconnectPolicy {
+	/**
+	 * Bound of the delay before the first attempt in milliseconds.
+	 */
+	private long initialDelayMillis = 200;
+	/**
+	 * Maximum bound of the delay before an attempt in milliseconds.
+	 */
+	private long maxDelayMillis = 30000;
+	/**
+	 * Factor applied to the bound of the delay after every failed attempt.
+	 */
+	private double multiplier = 2;
+	/**
+	 * Number of attempts before giving up, zero for no limit.
+	 */
+	private int maxAttempts = 0;
+	/**
+	 * Maximum number of messages queued while reconnecting.
+	 */
+	private int maxQueuedMessages = 1000;
+
+	/**
+	 * Reads the policy from startup parameters named {@code reconnect}
+	 * ({@code true} enables reconnection), {@code reconnect-initial-delay} and
+	 * {@code reconnect-max-delay} (milliseconds) and {@code reconnect-attempts}.
+	 * Missing parameters keep the defaults.
+	 *
+	 * @param parameters returning the value of the named parameter, null if it
+	 *                   is missing
+	 * @return the policy, null if reconnection is not enabled
+	 * @throws IllegalArgumentException if a value is not valid
+	 */
+	public static ReconnectPolicy fromParameters(Function<String, String> parameters) {
+		if (!Boolean.parseBoolean(parameters.apply("reconnect"))) {
+			return null;
+		}
+
+		ReconnectPolicy policy = new ReconnectPolicy();
+		String value;
+		if ((value = parameters.apply("reconnect-initial-delay")) != null) {
+			policy.setInitialDelayMillis(Long.parseLong(value));
+		}
+		if ((value = parameters.apply("reconnect-max-delay")) != null) {
+			policy.setMaxDelayMillis(Long.parseLong(value));
+		}
+		if ((value = parameters.apply("reconnect-attempts")) != null) {
+			policy.setMaxAttempts(Integer.parseInt(value));
+		}
+		return policy;
+	}
+
+	/**
+	 * @param attempt number of the attempt, starting from 0
+	 * @return delay before the attempt in milliseconds
+	 */
+	public long getDelayMillis(int attempt) {
+		double bound = initialDelayMillis * Math.pow(multiplier, attempt);
+		long delay = (long) Math.min(bound, maxDelayMillis);
+		return ThreadLocalRandom.current().nextLong(delay + 1);
+	}
+
+	/**
+	 * @return bound of the delay before the first attempt in milliseconds
+	 */
+	public long getInitialDelayMillis() {
+		return initialDelayMillis;
+	}
+
+	/**
+	 * @param initialDelayMillis bound of the delay before the first attempt in
+	 *                           milliseconds
+	 */
+	public void setInitialDelayMillis(long initialDelayMillis) {
+		if (initialDelayMillis < 0) {
+			throw new IllegalArgumentException("initialDelayMillis");
+		}
+		this.initialDelayMillis = initialDelayMillis;
+	}
+
+	/**
+	 * @return maximum bound of the delay before an attempt in milliseconds
+	 */
+	public long getMaxDelayMillis() {
+		return maxDelayMillis;
+	}
+
+	/**
+	 * @param maxDelayMillis maximum bound of the delay before an attempt in
+	 *                       milliseconds
+	 */
+	public void setMaxDelayMillis(long maxDelayMillis) {
+		if (maxDelayMillis < 0) {
+			throw new IllegalArgumentException("maxDelayMillis");
+		}
+		this.maxDelayMillis = maxDelayMillis;
+	}
+
+	/**
+	 * @return factor applied to the bound of the delay after every failed
+	 *         attempt
+	 */
+	public double getMultiplier() {
+		return multiplier;
+	}
+
+	/**
+	 * @param multiplier factor applied to the bound of the delay after every
+	 *                   failed attempt, at least 1
+	 */
+	public void setMultiplier(double multiplier) {
+		if (!(multiplier >= 1)) {
+			throw new IllegalArgumentException("multiplier");
+		}
+		this.multiplier = multiplier;
+	}
+
+	/**
+	 * @return number of attempts before giving up, zero for no limit
+	 */
+	public int getMaxAttempts() {
+		return maxAttempts;
+	}
+
+	/**
+	 * @param maxAttempts number of attempts before giving up, zero for no limit
+	 */
+	public void setMaxAttempts(int maxAttempts) {
+		if (maxAttempts < 0) {
+			throw new IllegalArgumentException("maxAttempts");
+		}
+		this.maxAttempts = maxAttempts;
+	}
+
+	/**
+	 * @return maximum number of messages queued while reconnecting
+	 */
+	public int getMaxQueuedMessages() {
+		return maxQueuedMessages;
+	}
+
+	/**
+	 * @param maxQueuedMessages maximum number of messages queued while
+	 *                          reconnecting, further ones are rejected
+	 */
+	public void setMaxQueuedMessages(int maxQueuedMessages) {
+		if (maxQueuedMessages < 0) {
+			throw new IllegalArgumentException("maxQueuedMessages");
+		}
+		this.maxQueuedMessages = maxQueuedMessages;
+	}
+}
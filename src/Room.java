@@ -0,0 +1,71 @@
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ *
+ * A room of a {@link RoomHub}: a set of members sharing a key. Messages sent
+ * by a member are decrypted with the key of the room and broadcast to the
+ * other members.
+ *
+ */
+public class Room {
+	private final String name;
+	private final Cipher cipher;
+	private final CipherProvider provider;
+	private final String key;
+	private final Set<SelectorConnection> members = ConcurrentHashMap.newKeySet();
+
+	/**
+	 * @param name   of the room
+	 * @param cipher used by the members of the room
+	 * @param key    shared by the members of the room
+	 */
+	Room(String name, Cipher cipher, String key) {
+		this.name = name;
+		this.cipher = cipher;
+		this.provider = Crypto.getProvider(cipher);
+		this.key = key;
+	}
+
+	/**
+	 * @return name of the room
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return {@link Cipher} used by the members of the room
+	 */
+	public Cipher getCipher() {
+		return cipher;
+	}
+
+	/**
+	 * @return {@link CipherProvider} of the {@link #getCipher()}
+	 */
+	CipherProvider getProvider() {
+		return provider;
+	}
+
+	/**
+	 * @return key shared by the members of the room
+	 */
+	String getKey() {
+		return key;
+	}
+
+	/**
+	 * @return the connections of the members, a live view
+	 */
+	Set<SelectorConnection> getMembers() {
+		return members;
+	}
+
+	/**
+	 * @return current number of members
+	 */
+	public int getMemberCount() {
+		return members.size();
+	}
+}
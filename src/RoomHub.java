@@ -0,0 +1,394 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.DataFormatException;
+
+/**
+ *
+ * Server relaying the messages of its members to the other members of the same
+ * {@link Room}.
+ * <p>
+ * Peers are plain messenger clients. A peer joins a room by sending
+ * {@code /join <room>} encrypted with the key of the room and leaves it by
+ * sending {@code /leave}, or by disconnecting. Every other message of a member
+ * is decrypted with the key of its room and broadcast to the other members
+ * preceded by the address of the sender.
+ * <p>
+ * A broadcast message is encrypted once per room and encoded once into a
+ * {@link SharedMessage}, the same buffer is then queued for every member. The
+ * hub runs on a {@link SelectorServer}, so writing to a slow member never
+ * blocks the others: every member has its own queue bounded by
+ * {@link #getMaxQueuedBytes()} and a member exceeding it is handled according
+ * to the {@link OverflowPolicy}.
+ * <p>
+ * The messages of the members are decrypted in place in the pooled buffers
+ * they were received into.
+ *
+ */
+public class RoomHub implements ConnectionListener {
+	/**
+	 * Prefix of the message joining a room, followed by the name of the room.
+	 */
+	public final static String JOIN_COMMAND = "/join ";
+	/**
+	 * Message leaving the current room.
+	 */
+	public final static String LEAVE_COMMAND = "/leave";
+	/**
+	 * Default maximum number of bytes queued for a member.
+	 */
+	public final static long DEFAULT_MAX_QUEUED_BYTES = 1024 * 1024;
+
+	private final SelectorServer server;
+	private final Map<String, Room> rooms = new ConcurrentHashMap<String, Room>();
+	/**
+	 * Room of every member.
+	 */
+	private final Map<Connection, Room> memberships = new ConcurrentHashMap<Connection, Room>();
+	/**
+	 * Compressor of every connection which sent a compressed message, so the
+	 * connections never wait for each other to decompress.
+	 */
+	private final Map<Connection, MessageCompressor> compressors =
+			new ConcurrentHashMap<Connection, MessageCompressor>();
+
+	private volatile long maxQueuedBytes = DEFAULT_MAX_QUEUED_BYTES;
+	private volatile OverflowPolicy overflowPolicy = OverflowPolicy.DROP;
+
+	/**
+	 * @param eventLoopCount number of {@link EventLoop} threads of the
+	 *                       {@link SelectorServer}
+	 */
+	public RoomHub(int eventLoopCount) {
+		server = new SelectorServer(this, eventLoopCount);
+	}
+
+	/**
+	 * Starts listening to incoming connections on the passed port.
+	 *
+	 * @param port to listen on, 0 for any free port
+	 * @throws IOException if the port can't be bound
+	 */
+	public void start(int port) throws IOException {
+		server.start(port);
+	}
+
+	/**
+	 * Sets the options applied to the connections accepted after the call, e.g.
+	 * the heartbeat interval and the idle timeout of the members.
+	 *
+	 * @param connectionOptions to be applied
+	 */
+	public void setConnectionOptions(ConnectionOptions connectionOptions) {
+		server.setConnectionOptions(connectionOptions);
+	}
+
+	/**
+	 * Stops accepting connections and disconnects all the members.
+	 */
+	public void stop() {
+		server.stop();
+	}
+
+	/**
+	 * @return port the hub listens on
+	 * @throws IllegalStateException if the hub is not running
+	 */
+	public int getPort() {
+		return server.getPort();
+	}
+
+	/**
+	 * Creates a room.
+	 *
+	 * @param name   of the room
+	 * @param cipher used by the members of the room
+	 * @param key    shared by the members of the room
+	 * @return the room
+	 * @throws IllegalArgumentException if a room of the same name exists
+	 */
+	public Room createRoom(String name, Cipher cipher, String key) {
+		Room room = new Room(name, cipher, key);
+		if (rooms.putIfAbsent(name, room) != null) {
+			throw new IllegalArgumentException("Duplicate room " + name);
+		}
+		return room;
+	}
+
+	/**
+	 * @param name of the room
+	 * @return the room, null if there is no such room
+	 */
+	public Room getRoom(String name) {
+		return rooms.get(name);
+	}
+
+	/**
+	 * @return all the rooms
+	 */
+	public List<Room> getRooms() {
+		return new ArrayList<Room>(rooms.values());
+	}
+
+	/**
+	 * Moves a connection of the hub into a room, leaving its current room. The
+	 * members of the room are notified.
+	 *
+	 * @param connection to be moved
+	 * @param room       to be joined
+	 */
+	public void join(Connection connection, Room room) {
+		leave(connection);
+		memberships.put(connection, room);
+		room.getMembers().add((SelectorConnection) connection);
+		if (connection.getSocketStatus() == SocketStatus.DISCONNECTED) {
+			// Closed by another thread meanwhile, onDisconnected may have run already
+			leave(connection);
+			return;
+		}
+		broadcast(room, connection.getPartnerAddress() + " joined " + room.getName(), null);
+	}
+
+	/**
+	 * Removes a connection from its room. The remaining members of the room are
+	 * notified.
+	 *
+	 * @param connection to be removed
+	 */
+	public void leave(Connection connection) {
+		Room room = memberships.remove(connection);
+		if (room != null) {
+			room.getMembers().remove(connection);
+			broadcast(room, connection.getPartnerAddress() + " left " + room.getName(), null);
+		}
+	}
+
+	/**
+	 * Sends a text to the members of a room. The text is encrypted once, never
+	 * blocks.
+	 *
+	 * @param room   to broadcast to
+	 * @param text   to be sent
+	 * @param except member not receiving the text, null to send it to everyone
+	 * @throws UnsupportedOperationException if the key of the room is too large
+	 */
+	public void broadcast(Room room, String text, Connection except) {
+		SharedMessage message = new SharedMessage(Crypto.encrypt(text, room.getKey(), room.getProvider()), 0,
+				server.getMaxFrameSize());
+		Metrics.ROOM_BROADCASTS.increment();
+		for (SelectorConnection member : room.getMembers()) {
+			if (member != except && !member.offer(message, maxQueuedBytes)) {
+				if (overflowPolicy == OverflowPolicy.DISCONNECT) {
+					Metrics.ROOM_EVICTED_MEMBERS.increment();
+					member.close();
+				} else {
+					Metrics.ROOM_DROPPED_MESSAGES.increment();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Decrypts a message with the key of a room and decompresses it if needed.
+	 *
+	 * @param connection the message was received from
+	 * @param room       the key of which is used
+	 * @param message    to be decoded
+	 * @param compressed true if the message was compressed before encryption
+	 * @return text of the message without the padding, null if the message is
+	 *         malformed
+	 */
+	private String decode(Connection connection, Room room, byte[] message, boolean compressed) {
+		byte[] data;
+		try {
+			data = Crypto.decryptBytes(message, room.getKey(), room.getProvider());
+			if (compressed) {
+				data = compressor(connection).decompress(data, server.getMaxMessageSize());
+			}
+		} catch (IllegalArgumentException | DataFormatException e) {
+			return null;
+		}
+
+		return toText(data, 0, data.length);
+	}
+
+	/**
+	 * Decrypts a message in place with the key of a room, see
+	 * {@link #decode(Connection, Room, byte[], boolean)}.
+	 *
+	 * @param connection the message was received from
+	 * @param room       the key of which is used
+	 * @param message    to be decoded, overwritten by the decryption
+	 * @param compressed true if the message was compressed before encryption
+	 * @return text of the message without the padding, null if the message is
+	 *         malformed
+	 */
+	private String decode(Connection connection, Room room, ByteBuffer message, boolean compressed) {
+		ByteBuffer data;
+		try {
+			data = Crypto.decrypt(message, room.getKey(), room.getProvider());
+		} catch (IllegalArgumentException e) {
+			return null;
+		}
+		if (compressed || !data.hasArray()) {
+			byte[] array = new byte[data.remaining()];
+			data.get(array);
+			if (compressed) {
+				try {
+					array = compressor(connection).decompress(array, server.getMaxMessageSize());
+				} catch (DataFormatException e) {
+					return null;
+				}
+			}
+			return toText(array, 0, array.length);
+		}
+		return toText(data.array(), data.arrayOffset() + data.position(), data.remaining());
+	}
+
+	/**
+	 * @param connection the compressor of which is returned
+	 * @return compressor of the connection, created on first use
+	 */
+	private MessageCompressor compressor(Connection connection) {
+		MessageCompressor compressor = compressors.get(connection);
+		if (compressor == null) {
+			compressor = new MessageCompressor();
+			MessageCompressor previous = compressors.putIfAbsent(connection, compressor);
+			if (previous != null) {
+				compressor.close();
+				compressor = previous;
+			}
+		}
+		return compressor;
+	}
+
+	/**
+	 * Decodes a decrypted message without the zeros padding it.
+	 *
+	 * @param data   holding the message
+	 * @param offset of the message inside {@code data}
+	 * @param length of the message
+	 * @return text of the message
+	 */
+	private static String toText(byte[] data, int offset, int length) {
+		while (length > 0 && data[offset + length - 1] == 0) {
+			length--;
+		}
+		return new String(data, offset, length, Crypto.getCharset());
+	}
+
+	@Override
+	public void onConnected(Connection connection) {
+		// Connections only take part once they joined a room
+	}
+
+	@Override
+	public void onMessage(Connection connection, byte[] message) {
+		onMessage(connection, message, 0);
+	}
+
+	@Override
+	public void onMessage(Connection connection, byte[] message, int flags) {
+		boolean compressed = (flags & Frame.FLAG_COMPRESSED) != 0;
+		try {
+			Room room = memberships.get(connection);
+			if (room != null) {
+				onMemberMessage(connection, room, decode(connection, room, message, compressed));
+				return;
+			}
+
+			for (Room candidate : rooms.values()) {
+				if ((JOIN_COMMAND + candidate.getName()).equals(decode(connection, candidate, message, compressed))) {
+					join(connection, candidate);
+					return;
+				}
+			}
+		} catch (UnsupportedOperationException e) {
+			e.printStackTrace();
+		}
+	}
+
+	@Override
+	public void onMessage(Connection connection, ByteBuffer message, int flags) {
+		Room room = memberships.get(connection);
+		if (room == null) {
+			// Tried with the key of every room, which needs the message unchanged
+			ConnectionListener.super.onMessage(connection, message, flags);
+			return;
+		}
+		try {
+			onMemberMessage(connection, room, decode(connection, room, message, (flags & Frame.FLAG_COMPRESSED) != 0));
+		} catch (UnsupportedOperationException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Handles a decoded message of a member of a room.
+	 *
+	 * @param connection of the member
+	 * @param room       of the member
+	 * @param text       of the message, null if it is malformed
+	 */
+	private void onMemberMessage(Connection connection, Room room, String text) {
+		if (text == null) {
+			Metrics.DECRYPTION_FAILURES.increment();
+		} else if (text.equals(LEAVE_COMMAND)) {
+			leave(connection);
+		} else {
+			broadcast(room, connection.getPartnerAddress() + " : " + text, connection);
+		}
+	}
+
+	@Override
+	public void onDisconnected(Connection connection) {
+		leave(connection);
+		MessageCompressor compressor = compressors.remove(connection);
+		if (compressor != null) {
+			compressor.close();
+		}
+	}
+
+	/**
+	 * @return maximum number of bytes queued for a member
+	 */
+	public long getMaxQueuedBytes() {
+		return maxQueuedBytes;
+	}
+
+	/**
+	 * Sets the maximum number of bytes queued for a member. A broadcast message
+	 * finding more data queued for a member is handled according to the
+	 * {@link OverflowPolicy}.
+	 *
+	 * @param maxQueuedBytes in bytes
+	 */
+	public void setMaxQueuedBytes(long maxQueuedBytes) {
+		if (maxQueuedBytes < 0) {
+			throw new IllegalArgumentException("maxQueuedBytes");
+		}
+		this.maxQueuedBytes = maxQueuedBytes;
+	}
+
+	/**
+	 * @return what is done with a member exceeding the
+	 *         {@link #getMaxQueuedBytes()}
+	 */
+	public OverflowPolicy getOverflowPolicy() {
+		return overflowPolicy;
+	}
+
+	/**
+	 * @param overflowPolicy what is done with a member exceeding the
+	 *                       {@link #getMaxQueuedBytes()}
+	 */
+	public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+		if (overflowPolicy == null) {
+			throw new NullPointerException("overflowPolicy");
+		}
+		this.overflowPolicy = overflowPolicy;
+	}
+}
@@ -0,0 +1,425 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ *
+ * Inverted index of the text of the messages of a {@link MessageLog}.
+ * <p>
+ * The text is split into lower case terms of letters and digits. Every term
+ * maps to its {@link Postings}, which hold the sequence numbers of the
+ * messages containing it and the positions of the term inside them as delta
+ * encoded varints. The terms are sorted so prefix queries only visit the
+ * matching ones.
+ * <p>
+ * A query is a list of clauses, all of which have to match:
+ * <ul>
+ * <li>{@code word} - messages containing the term</li>
+ * <li>{@code word*} - messages containing a term starting with the
+ * prefix</li>
+ * <li>{@code "some words"} - messages containing the terms one after
+ * another</li>
+ * </ul>
+ * The index is saved to a single file and records which messages it covers,
+ * the ones appended to the log after the last save are indexed again when the
+ * log is opened. Saving writes a snapshot of the index, so messages can be
+ * added while it is written.
+ *
+ */
+class SearchIndex {
+	/**
+	 * Identifies an index file, "SMIX".
+	 */
+	private final static int MAGIC = 0x534D4958;
+	private final static int VERSION = 1;
+	/**
+	 * Longer terms are cut, they're hardly ever searched for.
+	 */
+	private final static int MAX_TERM_LENGTH = 64;
+
+	private final Path path;
+	/**
+	 * Held while saving, so two saves never write the same temporary file.
+	 */
+	private final Object saveLock = new Object();
+	private final TreeMap<String, Postings> terms = new TreeMap<String, Postings>();
+	/**
+	 * Sequence number of the next indexed message.
+	 */
+	private long nextSequence;
+
+	private SearchIndex(Path path) {
+		this.path = path;
+	}
+
+	/**
+	 * Loads the index from the passed file. A missing or damaged file results in
+	 * an empty index.
+	 *
+	 * @param path of the index file
+	 * @return the index
+	 */
+	static SearchIndex load(Path path) {
+		SearchIndex index = new SearchIndex(path);
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+				throw new IOException("Not a search index");
+			}
+			long nextSequence = in.readLong();
+			int count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				String term = in.readUTF();
+				index.terms.put(term, Postings.read(in));
+			}
+			index.nextSequence = nextSequence;
+		} catch (NoSuchFileException e) {
+			// Not created yet
+		} catch (IOException e) {
+			e.printStackTrace();
+			index.clear();
+		}
+		return index;
+	}
+
+	/**
+	 * Writes the index to its file, replacing the previous one at once. Messages
+	 * preceding the passed sequence number are dropped.
+	 *
+	 * @param firstSequence sequence number of the oldest kept message
+	 * @throws IOException if the file can't be written
+	 */
+	void save(long firstSequence) throws IOException {
+		synchronized (saveLock) {
+			// The lists of the index and the messages they hold right now
+			Map<String, Postings> lists;
+			TreeMap<String, Postings> snapshot;
+			long nextSequence;
+			synchronized (this) {
+				lists = new HashMap<String, Postings>(terms);
+				snapshot = new TreeMap<String, Postings>(terms);
+				snapshot.replaceAll((term, postings) -> postings.snapshot());
+				nextSequence = this.nextSequence;
+			}
+
+			// Counts of the trimmed lists before trimming
+			Map<String, Integer> trimmed = new HashMap<String, Integer>();
+			for (Map.Entry<String, Postings> entry : snapshot.entrySet()) {
+				Postings postings = entry.getValue().trim(firstSequence);
+				if (postings != entry.getValue()) {
+					trimmed.put(entry.getKey(), entry.getValue().getCount());
+					entry.setValue(postings);
+				}
+			}
+			snapshot.values().removeIf(postings -> postings.getCount() == 0);
+
+			Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+			try (DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream(Files.newOutputStream(temporary), 64 * 1024))) {
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				out.writeLong(nextSequence);
+				out.writeInt(snapshot.size());
+				for (Map.Entry<String, Postings> entry : snapshot.entrySet()) {
+					out.writeUTF(entry.getKey());
+					entry.getValue().write(out);
+				}
+			}
+			Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+			synchronized (this) {
+				for (Map.Entry<String, Integer> entry : trimmed.entrySet()) {
+					String term = entry.getKey();
+					Postings postings = terms.get(term);
+					// Lists which got messages meanwhile are trimmed by the next save
+					if (postings == lists.get(term) && postings.getCount() == entry.getValue()) {
+						Postings kept = snapshot.get(term);
+						if (kept == null) {
+							terms.remove(term);
+						} else {
+							terms.put(term, kept);
+						}
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Removes all the messages from the index.
+	 */
+	synchronized void clear() {
+		terms.clear();
+		nextSequence = 0;
+	}
+
+	/**
+	 * Adds the text of a message to the index.
+	 *
+	 * @param sequence of the message, not lower than {@link #getNextSequence()}
+	 * @param text     of the message, null if it can't be indexed
+	 */
+	synchronized void add(long sequence, String text) {
+		if (sequence < nextSequence) {
+			return;
+		}
+		nextSequence = sequence + 1;
+		if (text == null) {
+			return;
+		}
+
+		Map<String, int[]> positions = new HashMap<String, int[]>();
+		List<String> tokens = tokenize(text);
+		for (int i = 0; i < tokens.size(); i++) {
+			// The first element holds the number of positions
+			int[] termPositions = positions.get(tokens.get(i));
+			if (termPositions == null) {
+				termPositions = new int[2];
+			} else if (termPositions[0] + 1 == termPositions.length) {
+				termPositions = Arrays.copyOf(termPositions, termPositions.length * 2);
+			}
+			termPositions[++termPositions[0]] = i;
+			positions.put(tokens.get(i), termPositions);
+		}
+
+		for (Map.Entry<String, int[]> entry : positions.entrySet()) {
+			Postings postings = terms.get(entry.getKey());
+			if (postings == null) {
+				postings = new Postings();
+				terms.put(entry.getKey(), postings);
+			}
+			int[] termPositions = entry.getValue();
+			postings.add(sequence, Arrays.copyOfRange(termPositions, 1, termPositions[0] + 1), termPositions[0]);
+		}
+	}
+
+	/**
+	 * Finds the messages matching the passed query.
+	 *
+	 * @param query see {@link SearchIndex}
+	 * @param limit maximum number of returned messages
+	 * @return sequence numbers of the newest matching messages, oldest first
+	 */
+	synchronized long[] search(String query, int limit) {
+		long[] result = null;
+		for (String clause : parseQuery(query)) {
+			List<String> tokens = tokenize(clause);
+			if (tokens.isEmpty()) {
+				continue;
+			}
+			// Words made of several terms, like "e-mail", are searched as phrases
+			boolean prefix = clause.endsWith("*") && !clause.startsWith("\"") && tokens.size() == 1;
+			long[] matches = prefix ? searchPrefix(tokens.get(0)) : searchPhrase(tokens);
+			result = result == null ? matches : intersect(result, matches);
+			if (result.length == 0) {
+				break;
+			}
+		}
+		if (result == null) {
+			return new long[0];
+		}
+		return Arrays.copyOfRange(result, Math.max(0, result.length - limit), result.length);
+	}
+
+	/**
+	 * Splits a query into quoted phrases and words.
+	 */
+	private static List<String> parseQuery(String query) {
+		List<String> clauses = new ArrayList<String>();
+		int i = 0;
+		while (i < query.length()) {
+			char c = query.charAt(i);
+			if (Character.isWhitespace(c)) {
+				i++;
+			} else if (c == '"') {
+				int end = query.indexOf('"', i + 1);
+				if (end < 0) {
+					end = query.length();
+				}
+				clauses.add(query.substring(i, end));
+				i = end + 1;
+			} else {
+				int end = i;
+				while (end < query.length() && !Character.isWhitespace(query.charAt(end))) {
+					end++;
+				}
+				clauses.add(query.substring(i, end));
+				i = end;
+			}
+		}
+		return clauses;
+	}
+
+	/**
+	 * Splits a text into lower case terms of letters and digits.
+	 *
+	 * @param text to be split
+	 * @return the terms in the order they appear in the text
+	 */
+	static List<String> tokenize(String text) {
+		List<String> tokens = new ArrayList<String>();
+		String lowerCase = text.toLowerCase(Locale.ROOT);
+		int start = -1;
+		for (int i = 0; i <= lowerCase.length(); i++) {
+			if (i < lowerCase.length() && Character.isLetterOrDigit(lowerCase.charAt(i))) {
+				if (start < 0) {
+					start = i;
+				}
+			} else if (start >= 0) {
+				tokens.add(lowerCase.substring(start, Math.min(i, start + MAX_TERM_LENGTH)));
+				start = -1;
+			}
+		}
+		return tokens;
+	}
+
+	/**
+	 * @return ascending sequence numbers of the messages containing the terms
+	 *         one after another
+	 */
+	private long[] searchPhrase(List<String> phrase) {
+		Postings.Cursor[] cursors = new Postings.Cursor[phrase.size()];
+		for (int i = 0; i < cursors.length; i++) {
+			Postings postings = terms.get(phrase.get(i));
+			if (postings == null) {
+				return new long[0];
+			}
+			cursors[i] = postings.cursor();
+		}
+
+		LongList matches = new LongList();
+		long target = 0;
+		while (true) {
+			// Move all the cursors to the same message
+			boolean aligned = true;
+			for (Postings.Cursor cursor : cursors) {
+				if (!cursor.advance(target)) {
+					return matches.toArray();
+				}
+				if (cursor.getSequence() > target) {
+					target = cursor.getSequence();
+					aligned = false;
+				}
+			}
+			if (!aligned) {
+				continue;
+			}
+
+			if (isPhrase(cursors)) {
+				matches.add(target);
+			}
+			target++;
+		}
+	}
+
+	/**
+	 * @return true if the terms of the cursors follow one another inside the
+	 *         current message
+	 */
+	private static boolean isPhrase(Postings.Cursor[] cursors) {
+		Postings.Cursor first = cursors[0];
+		for (int i = 0; i < first.getPositionCount(); i++) {
+			int position = first.getPositions()[i];
+			boolean found = true;
+			for (int j = 1; j < cursors.length && found; j++) {
+				found = cursors[j].hasPosition(position + j);
+			}
+			if (found) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return ascending sequence numbers of the messages containing a term
+	 *         starting with the prefix
+	 */
+	private long[] searchPrefix(String prefix) {
+		SortedMap<String, Postings> matching = terms.subMap(prefix, prefix + Character.MAX_VALUE);
+		LongList matches = new LongList();
+		for (Postings postings : matching.values()) {
+			Postings.Cursor cursor = postings.cursor();
+			while (cursor.next()) {
+				matches.add(cursor.getSequence());
+			}
+		}
+		long[] sequences = matches.toArray();
+		Arrays.sort(sequences);
+		int count = 0;
+		for (int i = 0; i < sequences.length; i++) {
+			if (count == 0 || sequences[count - 1] != sequences[i]) {
+				sequences[count++] = sequences[i];
+			}
+		}
+		return Arrays.copyOf(sequences, count);
+	}
+
+	/**
+	 * @return the sequence numbers contained in both ascending arrays
+	 */
+	private static long[] intersect(long[] a, long[] b) {
+		long[] result = new long[Math.min(a.length, b.length)];
+		int count = 0;
+		for (int i = 0, j = 0; i < a.length && j < b.length;) {
+			if (a[i] < b[j]) {
+				i++;
+			} else if (a[i] > b[j]) {
+				j++;
+			} else {
+				result[count++] = a[i];
+				i++;
+				j++;
+			}
+		}
+		return Arrays.copyOf(result, count);
+	}
+
+	/**
+	 * @return sequence number of the next message to be indexed
+	 */
+	synchronized long getNextSequence() {
+		return nextSequence;
+	}
+
+	/**
+	 * @return number of distinct terms
+	 */
+	synchronized int getTermCount() {
+		return terms.size();
+	}
+
+	/**
+	 *
+	 * Growing array of unboxed sequence numbers.
+	 *
+	 */
+	private static class LongList {
+		private long[] values = new long[16];
+		private int size;
+
+		void add(long value) {
+			if (size == values.length) {
+				values = Arrays.copyOf(values, size * 2);
+			}
+			values[size++] = value;
+		}
+
+		long[] toArray() {
+			return Arrays.copyOf(values, size);
+		}
+	}
+}
@@ -0,0 +1,519 @@
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ *
+ * A non-blocking {@link Connection} to a single peer of a
+ * {@link SelectorServer}.
+ * <p>
+ * Every connection has its own {@link FrameDecoder} holding the partially
+ * received data and its own queue of data waiting to be written. All the I/O
+ * runs on the {@link EventLoop} the connection is registered with,
+ * {@link #send(byte[])} may be called from any {@link Thread}.
+ * <p>
+ * The messages sent before the peer announced the framed protocol are held
+ * back until it did, until it turned out to only support the original
+ * protocol or until {@value Frame#NEGOTIATION_TIMEOUT_MILLIS} milliseconds
+ * have passed, so that they aren't refused by mistake.
+ * <p>
+ * The messages of {@link #send(byte[])} are bounded by the watermarks of the
+ * {@link ConnectionOptions} like the ones of a {@link SocketWriter}: once the
+ * queued and held back messages exceed the high watermark the
+ * {@link BackpressurePolicy} applies until they have drained to the low
+ * watermark.
+ *
+ */
+class SelectorConnection extends Connection {
+	private final SelectorServer server;
+	private final SocketChannel channel;
+	private final EventLoop eventLoop;
+	private final FrameDecoder decoder;
+	private final long highWatermark;
+	private final long lowWatermark;
+	private final BackpressurePolicy backpressurePolicy;
+
+	/**
+	 * Data waiting to be written, guarded by itself.
+	 */
+	private final Deque<ByteBuffer> writeQueue = new ArrayDeque<ByteBuffer>();
+	/**
+	 * Number of bytes remaining in the {@link #writeQueue}, guarded by the
+	 * {@link #writeQueue}.
+	 */
+	private long queuedBytes;
+	/**
+	 * First buffer of every message of {@link #send(byte[])} in the
+	 * {@link #writeQueue} mapped to its number of buffers, so whole messages can
+	 * be dropped. Guarded by the {@link #writeQueue}.
+	 */
+	private final Map<ByteBuffer, Integer> messageStarts = new IdentityHashMap<ByteBuffer, Integer>();
+	/**
+	 * Indicates that the high watermark has been exceeded and the messages
+	 * haven't drained to the low watermark yet, guarded by the
+	 * {@link #writeQueue}.
+	 */
+	private boolean saturated;
+	/**
+	 * Indicates that a flush of the {@link #writeQueue} has been requested from
+	 * the {@link EventLoop}, guarded by the {@link #writeQueue}.
+	 */
+	private boolean flushScheduled;
+	/**
+	 * Indicates that the peer supports the framed protocol, guarded by the
+	 * {@link #writeQueue}.
+	 */
+	private boolean framing;
+	/**
+	 * Indicates that the protocol used with the peer is known, or has been
+	 * given up waiting for, guarded by the {@link #writeQueue}.
+	 */
+	private boolean negotiated;
+	/**
+	 * Messages sent before the protocol was {@link #negotiated}, either arrays
+	 * or {@link SharedMessage}s, guarded by the {@link #writeQueue}.
+	 */
+	private final List<Object> held = new ArrayList<Object>();
+	/**
+	 * Number of bytes of the {@link #held} messages, guarded by the
+	 * {@link #writeQueue}.
+	 */
+	private long heldBytes;
+	/**
+	 * Ends the negotiation if the peer doesn't announce the framed protocol,
+	 * guarded by the {@link #writeQueue}.
+	 */
+	private HashedWheelTimer.Timeout negotiationTimeout;
+	/**
+	 * Indicates that the connection has been closed, guarded by the
+	 * {@link #writeQueue}.
+	 */
+	private boolean closed;
+
+	private SelectionKey key;
+
+	/**
+	 * @param server    which accepted the connection
+	 * @param channel   of the connection, non-blocking
+	 * @param eventLoop handling the I/O of the connection
+	 */
+	SelectorConnection(SelectorServer server, SocketChannel channel, EventLoop eventLoop) {
+		super(String.valueOf(channel.socket().getInetAddress()), server.getListener(), server.getMaxMessageSize(),
+				server.getConnectionOptions(), true);
+		this.server = server;
+		this.channel = channel;
+		this.eventLoop = eventLoop;
+		this.decoder = new FrameDecoder(server.getMaxMessageSize(), this::startFraming, BufferPool.DEFAULT);
+		ConnectionOptions options = server.getConnectionOptions();
+		this.highWatermark = options.getHighWatermark();
+		this.lowWatermark = Math.min(options.getLowWatermark(), options.getHighWatermark());
+		this.backpressurePolicy = options.getBackpressurePolicy();
+	}
+
+	/**
+	 * Registers the connection with its {@link EventLoop} and announces support
+	 * of the framed protocol. Runs on the {@link EventLoop}.
+	 */
+	void register() {
+		synchronized (writeQueue) {
+			if (closed) {
+				return;
+			}
+			try {
+				key = channel.register(eventLoop.selector(), SelectionKey.OP_READ, this);
+			} catch (ClosedChannelException e) {
+				closed = true;
+				server.removeConnection(this);
+				return;
+			}
+			setSocketStatus(SocketStatus.SERVERMODE);
+			negotiationTimeout = IdleMonitor.newTimeout(() -> eventLoop.execute(this::negotiated),
+					Frame.NEGOTIATION_TIMEOUT_MILLIS);
+		}
+
+		getListener().onConnected(this);
+		enqueue(ByteBuffer.wrap(new byte[] { Frame.HELLO }));
+		idleMonitor.start();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * Only queues the message, the array must not be modified after the call.
+	 * A message held back until the protocol is known is discarded if it turns
+	 * out to be too long for the original protocol, see
+	 * {@link Metrics#MESSAGES_REJECTED}.
+	 * <p>
+	 * Above the high watermark {@link BackpressurePolicy#BLOCK} waits until the
+	 * messages have drained to the low watermark, except on the
+	 * {@link EventLoop} which would never drain them.
+	 * {@link BackpressurePolicy#DROP_OLDEST} drops the oldest messages not
+	 * written yet, see {@link Metrics#MESSAGES_DROPPED}, and
+	 * {@link BackpressurePolicy#REJECT} refuses the message.
+	 *
+	 * @throws IOException if the connection is closed, the message is rejected
+	 *                     by the full queue or the peer only supports the
+	 *                     original protocol and the message is longer than
+	 *                     {@value Frame#LEGACY_MAX_MESSAGE_SIZE} bytes
+	 */
+	@Override
+	public void send(byte[] message) throws IOException {
+		if (getSocketStatus() == SocketStatus.DISCONNECTED) {
+			throw new IOException("The connection is closed");
+		}
+
+		synchronized (writeQueue) {
+			if (closed) {
+				throw new IOException("The connection is closed");
+			}
+			long pendingBytes = queuedBytes + heldBytes;
+			if (saturated || pendingBytes > 0 && pendingBytes + message.length > highWatermark) {
+				saturated = true;
+				if (backpressurePolicy == BackpressurePolicy.REJECT) {
+					Metrics.MESSAGES_REJECTED.increment();
+					throw new IOException("The send queue is full");
+				} else if (backpressurePolicy == BackpressurePolicy.DROP_OLDEST) {
+					dropOldest();
+				} else if (!eventLoop.inEventLoop()) {
+					awaitDrained();
+				}
+			}
+			if (!negotiated) {
+				held.add(message);
+				heldBytes += message.length;
+				return;
+			}
+			if (!framing && message.length > Frame.LEGACY_MAX_MESSAGE_SIZE) {
+				throw new IOException("The peer doesn't support messages longer than "
+						+ Frame.LEGACY_MAX_MESSAGE_SIZE + " bytes");
+			}
+			enqueueMessage(message);
+		}
+	}
+
+	/**
+	 * Waits until the messages have drained to the low watermark. Called
+	 * holding the {@link #writeQueue}.
+	 *
+	 * @throws IOException if the connection is closed meanwhile or the
+	 *                     {@link Thread} is interrupted
+	 */
+	private void awaitDrained() throws IOException {
+		long start = System.nanoTime();
+		try {
+			while (saturated && !closed) {
+				writeQueue.wait();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while the send queue was full");
+		}
+		Metrics.SEND_BLOCKED_TIME.recordSince(start);
+		if (closed) {
+			throw new IOException("The connection is closed");
+		}
+	}
+
+	/**
+	 * Drops the oldest messages not written yet until the messages have drained
+	 * to the low watermark. Called holding the {@link #writeQueue}.
+	 */
+	private void dropOldest() {
+		Iterator<ByteBuffer> iterator = writeQueue.iterator();
+		while (queuedBytes + heldBytes > lowWatermark && iterator.hasNext()) {
+			ByteBuffer buffer = iterator.next();
+			Integer count = messageStarts.get(buffer);
+			// Other data, or a message the writing of which has started
+			if (count == null || buffer.position() > 0) {
+				continue;
+			}
+			messageStarts.remove(buffer);
+			iterator.remove();
+			queuedBytes -= buffer.remaining();
+			for (int i = 1; i < count; i++) {
+				queuedBytes -= iterator.next().remaining();
+				iterator.remove();
+			}
+			Metrics.MESSAGES_DROPPED.increment();
+		}
+		while (queuedBytes + heldBytes > lowWatermark && !held.isEmpty()) {
+			heldBytes -= sizeOf(held.remove(0));
+			Metrics.MESSAGES_DROPPED.increment();
+		}
+		if (queuedBytes + heldBytes <= lowWatermark) {
+			saturated = false;
+		}
+	}
+
+	/**
+	 * @param message held back, an array or a {@link SharedMessage}
+	 * @return number of bytes of the message
+	 */
+	private static int sizeOf(Object message) {
+		return message instanceof SharedMessage ? ((SharedMessage) message).getSize() : ((byte[]) message).length;
+	}
+
+	/**
+	 * Queues a message shared with other connections unless the data waiting to
+	 * be written exceeds the passed limit. Never blocks, messages offered to a
+	 * closed connection or too long for a peer only supporting the original
+	 * protocol are discarded.
+	 *
+	 * @param message        to be sent
+	 * @param maxQueuedBytes maximum number of bytes waiting to be written before
+	 *                       the message is queued
+	 * @return false if the message was refused because of the limit
+	 */
+	boolean offer(SharedMessage message, long maxQueuedBytes) {
+		synchronized (writeQueue) {
+			if (closed) {
+				return true;
+			}
+			if (queuedBytes + heldBytes > maxQueuedBytes) {
+				return false;
+			}
+			if (!negotiated) {
+				held.add(message);
+				heldBytes += message.getSize();
+				return true;
+			}
+			if (!framing && message.getSize() > Frame.LEGACY_MAX_MESSAGE_SIZE) {
+				Metrics.MESSAGES_REJECTED.increment();
+				return true;
+			}
+			enqueue(message.encoded(framing));
+			if (eventLoop.inEventLoop()) {
+				// Offered while the loop handles a read, the scheduled flush would
+				// only run after all the messages read have been broadcast
+				flush();
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * Switches the sent data to the framed protocol after the peer announced its
+	 * support.
+	 */
+	private void startFraming() {
+		synchronized (writeQueue) {
+			enqueue(ByteBuffer.wrap(new byte[] { Frame.HELLO, Frame.VERSION }));
+			framing = true;
+			negotiated();
+		}
+		idleMonitor.framed();
+	}
+
+	/**
+	 * Ends the negotiation of the protocol and queues the messages held back
+	 * meanwhile. Called once the peer announced the framed protocol, turned out
+	 * to only support the original one or didn't announce anything in time.
+	 */
+	private void negotiated() {
+		synchronized (writeQueue) {
+			if (negotiated || closed) {
+				return;
+			}
+			negotiated = true;
+			if (negotiationTimeout != null) {
+				negotiationTimeout.cancel();
+				negotiationTimeout = null;
+			}
+			for (Object message : held) {
+				if (!framing && sizeOf(message) > Frame.LEGACY_MAX_MESSAGE_SIZE) {
+					Metrics.MESSAGES_REJECTED.increment();
+				} else if (message instanceof SharedMessage) {
+					enqueue(((SharedMessage) message).encoded(framing));
+				} else {
+					enqueueMessage((byte[]) message);
+				}
+			}
+			held.clear();
+			heldBytes = 0;
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * Only queues the frame, never blocks.
+	 */
+	@Override
+	boolean sendHeartbeat(int type, byte[] payload) {
+		synchronized (writeQueue) {
+			if (closed || !framing) {
+				return false;
+			}
+			enqueue(Frame.header(type, 0, payload.length), ByteBuffer.wrap(payload));
+			return true;
+		}
+	}
+
+	@Override
+	void idle() {
+		eventLoop.execute(this::close);
+	}
+
+	/**
+	 * Encodes a message of {@link #send(byte[])} and queues it. Called holding
+	 * the {@link #writeQueue}.
+	 */
+	private void enqueueMessage(byte[] message) {
+		ByteBuffer[] data = Frame.encodeMessage(message, framing, server.getMaxFrameSize());
+		if (data.length > 0) {
+			messageStarts.put(data[0], data.length);
+		}
+		enqueue(data);
+	}
+
+	/**
+	 * Adds the passed data to the {@link #writeQueue} and makes sure the
+	 * {@link EventLoop} writes it.
+	 */
+	private void enqueue(ByteBuffer... data) {
+		synchronized (writeQueue) {
+			Collections.addAll(writeQueue, data);
+			for (ByteBuffer buffer : data) {
+				queuedBytes += buffer.remaining();
+			}
+			if (!flushScheduled) {
+				flushScheduled = true;
+				eventLoop.execute(this::flush);
+			}
+		}
+		idleMonitor.written();
+	}
+
+	/**
+	 * Writes as much of the {@link #writeQueue} as the socket accepts. Waits for
+	 * the socket to become writable if some data remains. Runs on the
+	 * {@link EventLoop}.
+	 */
+	void flush() {
+		ByteBuffer[] gather = eventLoop.gather;
+		try {
+			synchronized (writeQueue) {
+				flushScheduled = false;
+				// The key is cancelled once the channel is closed after the lock
+				if (closed) {
+					return;
+				}
+				while (!writeQueue.isEmpty()) {
+					int count = 0;
+					for (ByteBuffer buffer : writeQueue) {
+						if (count == gather.length) {
+							break;
+						}
+						gather[count++] = buffer;
+					}
+
+					long written = channel.write(gather, 0, count);
+					queuedBytes -= written;
+					while (!writeQueue.isEmpty() && !writeQueue.peekFirst().hasRemaining()) {
+						messageStarts.remove(writeQueue.pollFirst());
+					}
+					if (written == 0) {
+						break;
+					}
+				}
+				if (saturated && queuedBytes + heldBytes <= lowWatermark) {
+					saturated = false;
+					writeQueue.notifyAll();
+				}
+
+				if (key != null && key.isValid()) {
+					int ops = writeQueue.isEmpty() ? SelectionKey.OP_READ
+							: SelectionKey.OP_READ | SelectionKey.OP_WRITE;
+					key.interestOps(ops);
+				}
+			}
+		} catch (IOException e) {
+			close();
+		} finally {
+			Arrays.fill(gather, null);
+		}
+	}
+
+	/**
+	 * Reads the available data and passes the received messages to the
+	 * {@link ConnectionListener}. Runs on the {@link EventLoop}.
+	 */
+	void handleRead() {
+		ByteBuffer readBuffer = eventLoop.readBuffer;
+		readBuffer.clear();
+		try {
+			if (channel.read(readBuffer) < 0) {
+				close();
+				return;
+			}
+			idleMonitor.read();
+
+			readBuffer.flip();
+			Frame frame;
+			while ((frame = decoder.decode(readBuffer)) != null) {
+				receiveFrame(frame);
+			}
+			if (decoder.isLegacyPeer()) {
+				negotiated();
+			}
+		} catch (IOException e) {
+			close();
+		}
+	}
+
+	@Override
+	void releaseReceiveBuffers() {
+		decoder.release();
+		super.releaseReceiveBuffers();
+	}
+
+	@Override
+	public void close() {
+		boolean wasConnected;
+		synchronized (writeQueue) {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			idleMonitor.stop();
+			wasConnected = getSocketStatus() != SocketStatus.DISCONNECTED;
+			setSocketStatus(SocketStatus.DISCONNECTED);
+			writeQueue.clear();
+			queuedBytes = 0;
+			messageStarts.clear();
+			held.clear();
+			heldBytes = 0;
+			// Wakes up the senders waiting for the queue to drain
+			writeQueue.notifyAll();
+			if (negotiationTimeout != null) {
+				negotiationTimeout.cancel();
+				negotiationTimeout = null;
+			}
+		}
+
+		try {
+			channel.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		// After a read in progress, the decoder is only used by the event loop
+		eventLoop.execute(this::releaseReceiveBuffers);
+
+		server.removeConnection(this);
+		if (wasConnected) {
+			getListener().onDisconnected(this);
+		}
+	}
+}
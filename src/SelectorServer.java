@@ -0,0 +1,239 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ *
+ * Non-blocking server handling many peers at once.
+ * <p>
+ * Unlike {@link SocketController#startServer()}, which accepts a single peer,
+ * the server keeps accepting connections until it is stopped. The connections
+ * are spread over a small number of {@link EventLoop}s, each multiplexing its
+ * connections with a single {@link java.nio.channels.Selector}. Received
+ * messages and connection events are passed to the {@link ConnectionListener}.
+ *
+ */
+public class SelectorServer {
+	/**
+	 * Maximum number of pending connections.
+	 */
+	private final static int BACKLOG = 1024;
+
+	private final ConnectionListener listener;
+	private final int eventLoopCount;
+	private final Set<Connection> connections = ConcurrentHashMap.newKeySet();
+
+	private EventLoop[] eventLoops;
+	private ServerSocketChannel serverSocketChannel;
+	/**
+	 * Index of the {@link EventLoop} the next accepted connection is assigned to.
+	 */
+	private int nextEventLoop;
+
+	private volatile ConnectionOptions connectionOptions = new ConnectionOptions();
+	private volatile int maxFrameSize = 16 * 1024;
+	private volatile int maxMessageSize = 16 * 1024 * 1024;
+
+	/**
+	 * @param listener       receiving the events of all the connections
+	 * @param eventLoopCount number of {@link EventLoop} threads
+	 */
+	public SelectorServer(ConnectionListener listener, int eventLoopCount) {
+		if (listener == null) {
+			throw new NullPointerException("listener");
+		}
+		if (eventLoopCount <= 0) {
+			throw new IllegalArgumentException("eventLoopCount");
+		}
+		this.listener = listener;
+		this.eventLoopCount = eventLoopCount;
+	}
+
+	/**
+	 * Starts listening to incoming connections on the passed port.
+	 *
+	 * @param port to listen on, 0 for any free port
+	 * @throws IOException if the port can't be bound
+	 */
+	public synchronized void start(int port) throws IOException {
+		if (eventLoops != null) {
+			throw new IllegalStateException("The server is already running");
+		}
+
+		eventLoops = new EventLoop[eventLoopCount];
+		for (int i = 0; i < eventLoopCount; i++) {
+			eventLoops[i] = new EventLoop("EventLoop-" + i);
+		}
+
+		serverSocketChannel = ServerSocketChannel.open();
+		serverSocketChannel.configureBlocking(false);
+		if (connectionOptions.getReceiveBufferSize() > 0) {
+			serverSocketChannel.socket().setReceiveBufferSize(connectionOptions.getReceiveBufferSize());
+		}
+		serverSocketChannel.bind(new InetSocketAddress(port), BACKLOG);
+
+		EventLoop acceptLoop = eventLoops[0];
+		acceptLoop.execute(() -> {
+			try {
+				serverSocketChannel.register(acceptLoop.selector(), SelectionKey.OP_ACCEPT, this);
+			} catch (ClosedChannelException e) {
+				e.printStackTrace();
+			}
+		});
+	}
+
+	/**
+	 * Accepts all the pending connections. Runs on the first {@link EventLoop}.
+	 */
+	void accept() {
+		try {
+			SocketChannel socketChannel;
+			while ((socketChannel = serverSocketChannel.accept()) != null) {
+				try {
+					socketChannel.configureBlocking(false);
+					connectionOptions.applyTo(socketChannel.socket());
+				} catch (IOException e) {
+					e.printStackTrace();
+					socketChannel.close();
+					continue;
+				}
+
+				EventLoop eventLoop = eventLoops[nextEventLoop];
+				nextEventLoop = (nextEventLoop + 1) % eventLoops.length;
+				SelectorConnection connection = new SelectorConnection(this, socketChannel, eventLoop);
+				connections.add(connection);
+				eventLoop.execute(connection::register);
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Stops accepting connections and closes all the open ones.
+	 */
+	public synchronized void stop() {
+		if (eventLoops == null) {
+			return;
+		}
+
+		try {
+			serverSocketChannel.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		for (Connection connection : getConnections()) {
+			connection.close();
+		}
+		for (EventLoop eventLoop : eventLoops) {
+			eventLoop.stop();
+		}
+		eventLoops = null;
+	}
+
+	/**
+	 * Forgets a closed connection.
+	 *
+	 * @param connection which has been closed
+	 */
+	void removeConnection(Connection connection) {
+		connections.remove(connection);
+	}
+
+	/**
+	 * @return the port the server listens on
+	 */
+	public synchronized int getPort() {
+		if (serverSocketChannel == null) {
+			throw new IllegalStateException("The server is not running");
+		}
+		return serverSocketChannel.socket().getLocalPort();
+	}
+
+	/**
+	 * @return snapshot of the currently open connections
+	 */
+	public List<Connection> getConnections() {
+		return new ArrayList<Connection>(connections);
+	}
+
+	/**
+	 * @return number of the currently open connections
+	 */
+	public int getConnectionCount() {
+		return connections.size();
+	}
+
+	/**
+	 * @return the {@link ConnectionListener} of the server
+	 */
+	ConnectionListener getListener() {
+		return listener;
+	}
+
+	/**
+	 * @return the options applied to the new connections
+	 */
+	ConnectionOptions getConnectionOptions() {
+		return connectionOptions;
+	}
+
+	/**
+	 * Sets the options applied to the connections accepted after the call.
+	 *
+	 * @param connectionOptions to be applied
+	 */
+	public void setConnectionOptions(ConnectionOptions connectionOptions) {
+		if (connectionOptions == null) {
+			throw new NullPointerException("connectionOptions");
+		}
+		this.connectionOptions = connectionOptions;
+	}
+
+	/**
+	 * @return maximum size of a frame payload
+	 */
+	public int getMaxFrameSize() {
+		return maxFrameSize;
+	}
+
+	/**
+	 * Sets the maximum size of a frame payload. Longer messages are split into
+	 * several frames.
+	 *
+	 * @param maxFrameSize in bytes
+	 */
+	public void setMaxFrameSize(int maxFrameSize) {
+		if (maxFrameSize <= 0) {
+			throw new IllegalArgumentException("maxFrameSize");
+		}
+		this.maxFrameSize = maxFrameSize;
+	}
+
+	/**
+	 * @return maximum size of a received message
+	 */
+	public int getMaxMessageSize() {
+		return maxMessageSize;
+	}
+
+	/**
+	 * Sets the maximum size of a received message. A longer message closes the
+	 * connection.
+	 *
+	 * @param maxMessageSize in bytes
+	 */
+	public void setMaxMessageSize(int maxMessageSize) {
+		if (maxMessageSize <= 0) {
+			throw new IllegalArgumentException("maxMessageSize");
+		}
+		this.maxMessageSize = maxMessageSize;
+	}
+}
@@ -0,0 +1,79 @@
+import java.nio.ByteBuffer;
+
+/**
+ *
+ * A message encoded once and written to many connections, see
+ * {@link RoomHub}.
+ * <p>
+ * The frames of the message are laid out in a single read-only direct buffer,
+ * every connection writes a duplicate of it so the content is shared and only
+ * the position is per connection. The form for peers using the original
+ * protocol is only encoded if such a peer is met.
+ *
+ */
+public final class SharedMessage {
+	private final byte[] message;
+	private final int flags;
+	private final int maxFrameSize;
+
+	/**
+	 * The message as frames, encoded on first use.
+	 */
+	private volatile ByteBuffer framed;
+	/**
+	 * The message using the original protocol, encoded on first use.
+	 */
+	private volatile ByteBuffer legacy;
+
+	/**
+	 * @param message      the encrypted message, must not be modified after the
+	 *                     call
+	 * @param flags        of the message, see
+	 *                     {@link Frame#encodeMessage(byte[], int, boolean, int)}
+	 * @param maxFrameSize maximum size of the payload of a frame
+	 */
+	public SharedMessage(byte[] message, int flags, int maxFrameSize) {
+		this.message = message;
+		this.flags = flags;
+		this.maxFrameSize = maxFrameSize;
+	}
+
+	/**
+	 * @param framing true if the peer supports the framed protocol
+	 * @return a new view of the encoded message for a single connection
+	 */
+	ByteBuffer encoded(boolean framing) {
+		ByteBuffer buffer = framing ? framed : legacy;
+		if (buffer == null) {
+			// Encoding twice in a race is harmless, both results are equal
+			buffer = encode(framing);
+			if (framing) {
+				framed = buffer;
+			} else {
+				legacy = buffer;
+			}
+		}
+		return buffer.duplicate();
+	}
+
+	private ByteBuffer encode(boolean framing) {
+		ByteBuffer[] parts = Frame.encodeMessage(message, flags, framing, maxFrameSize);
+		int size = 0;
+		for (ByteBuffer part : parts) {
+			size += part.remaining();
+		}
+		ByteBuffer buffer = ByteBuffer.allocateDirect(size);
+		for (ByteBuffer part : parts) {
+			buffer.put(part);
+		}
+		buffer.flip();
+		return buffer.asReadOnlyBuffer();
+	}
+
+	/**
+	 * @return size of the encrypted message in bytes
+	 */
+	public int getSize() {
+		return message.length;
+	}
+}
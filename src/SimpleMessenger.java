@@ -1,3 +1,6 @@
+import java.io.IOException;
+import java.nio.file.Paths;
+
 import javafx.application.Application;
 import javafx.application.Platform;
 import javafx.fxml.FXMLLoader;
@@ -17,24 +20,101 @@ public class SimpleMessenger extends Application {
 	 */
 	private final String VERSION = "1.00";
 
+	/**
+	 * Name of the parameter selecting the {@link ExecutionMode}, e.g.
+	 * {@code --execution-mode=virtual}
+	 */
+	private final String EXECUTION_MODE_PARAMETER = "execution-mode";
+
+	/**
+	 * Name of the parameter selecting the directory of the {@link MessageLog},
+	 * an empty value disables the log
+	 */
+	private final String LOG_DIRECTORY_PARAMETER = "log-dir";
+
+	/**
+	 * Name of the parameter setting the minimum size in bytes of a compressed
+	 * message, 0 disables compression
+	 */
+	private final String COMPRESSION_THRESHOLD_PARAMETER = "compression-threshold";
+
+	/**
+	 * Name of the parameter selecting the directory the received files are
+	 * written to, they're declined unless it is set
+	 */
+	private final String DOWNLOAD_DIRECTORY_PARAMETER = "download-dir";
+
+	/**
+	 * Name of the parameter setting the maximum size in bytes of a received
+	 * file
+	 */
+	private final String MAX_FILE_SIZE_PARAMETER = "max-file-size";
+
+	/**
+	 * Name of the parameter selecting the port the {@link MetricsServer} serves
+	 * the {@link Metrics} on, they're only exposed over JMX by default
+	 */
+	private final String METRICS_PORT_PARAMETER = "metrics-port";
+
+	/**
+	 * Name of the parameter selecting the address the {@link MetricsServer}
+	 * listens on, the loopback address by default
+	 */
+	private final String METRICS_ADDRESS_PARAMETER = "metrics-address";
+
+	/**
+	 * Name of the parameter selecting the {@link DeliveryGuarantee} of the sent
+	 * messages, e.g. {@code --delivery=at_least_once}
+	 */
+	private final String DELIVERY_PARAMETER = "delivery";
+
 	/**
 	 * Initialize the program and construct the scene from the corresponding FXML
-	 * file.
+	 * file. The GUI is a client of a {@link MessengerEngine}, see
+	 * {@link MessengerDaemon} for running the engine without a display.
 	 */
 	@Override
 	public void start(Stage primaryStage) throws Exception {
 
-		SocketController socketController = new SocketController();
-
 		FXMLLoader loader = new FXMLLoader(getClass().getResource("Main.fxml"));
 		Pane root = (Pane) loader.load();
 		MainFXMLController mainFXMLController = loader.getController();
 
-		mainFXMLController.startServerSideThread(socketController);
+		SocketController socketController = new SocketController();
+		socketController.setConnectionOptions(ConnectionOptions.fromParameters(getParameters().getNamed()::get));
+		MessengerEngine engine = new MessengerEngine(socketController,
+				ExecutionMode.fromParameter(getParameters().getNamed().get(EXECUTION_MODE_PARAMETER)),
+				mainFXMLController);
+		engine.setReconnectPolicy(ReconnectPolicy.fromParameters(getParameters().getNamed()::get));
+		String delivery = getParameters().getNamed().get(DELIVERY_PARAMETER);
+		if (delivery != null) {
+			engine.setDeliveryGuarantee(DeliveryGuarantee.valueOf(delivery.toUpperCase()));
+		}
+		engine.setMessageLog(openMessageLog());
+		String downloadDirectory = getParameters().getNamed().get(DOWNLOAD_DIRECTORY_PARAMETER);
+		// Any peer could write to the directory, so the user has to opt in
+		if (downloadDirectory != null && !downloadDirectory.isEmpty()) {
+			engine.setDownloadDirectory(Paths.get(downloadDirectory));
+		}
+		String maxFileSize = getParameters().getNamed().get(MAX_FILE_SIZE_PARAMETER);
+		if (maxFileSize != null) {
+			engine.setMaxFileSize(Long.parseLong(maxFileSize));
+		}
+		String compressionThreshold = getParameters().getNamed().get(COMPRESSION_THRESHOLD_PARAMETER);
+		if (compressionThreshold != null) {
+			engine.setCompressionThreshold(Integer.parseInt(compressionThreshold));
+		}
+		Metrics.registerMBean();
+		String metricsPort = getParameters().getNamed().get(METRICS_PORT_PARAMETER);
+		if (metricsPort != null) {
+			new MetricsServer(getParameters().getNamed().get(METRICS_ADDRESS_PARAMETER), Integer.parseInt(metricsPort))
+					.start();
+		}
+		mainFXMLController.setEngine(engine);
+		engine.start();
 
 		primaryStage.setOnCloseRequest(event -> {
-			socketController.closeServerSocket();
-			socketController.closeCurrentSocket();
+			engine.shutdown();
 			Platform.exit();
 			System.exit(0);
 		});
@@ -47,6 +127,29 @@ public class SimpleMessenger extends Application {
 		primaryStage.show();
 	}
 
+	/**
+	 * Opens the {@link MessageLog} selected by the parameters of the program, by
+	 * default in the home directory of the user.
+	 * 
+	 * @return the log, null if it's disabled or can't be opened
+	 */
+	private MessageLog openMessageLog() {
+		String directory = getParameters().getNamed().get(LOG_DIRECTORY_PARAMETER);
+		if (directory == null) {
+			directory = Paths.get(System.getProperty("user.home"), ".simplemessenger", "log").toString();
+		} else if (directory.isEmpty()) {
+			return null;
+		}
+
+		try {
+			return MessageLog.open(Paths.get(directory),
+					MessageLogOptions.fromParameters(getParameters().getNamed()::get));
+		} catch (IOException | IllegalArgumentException e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+
 	public static void main(String[] args) {
 		launch(args);
 	}
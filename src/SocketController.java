@@ -1,20 +1,133 @@
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
+import java.io.InterruptedIOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
 
+/**
+ * 
+ * Handles the connection to a single peer.
+ * <p>
+ * Messages are sent using the framed protocol described in {@link Frame} if
+ * the peer supports it, otherwise using the original protocol limited to 255
+ * bytes per message. Messages sent right after connecting wait until the peer
+ * has announced the framed protocol, or until it turned out not to support
+ * it, so that they aren't refused by mistake. The data is written by a
+ * {@link SocketWriter}, the messages queued to it are bounded by the
+ * watermarks of the {@link ConnectionOptions}. An {@link IdleMonitor} pings an idle peer and
+ * closes the socket once nothing has been received for the idle timeout, which
+ * fails the pending receive like any other connection failure.
+ *
+ */
 public class SocketController {
-	private final int port = 1234;
+	/**
+	 * Port the messenger listens on and connects to.
+	 */
+	public final static int PORT = 1234;
+
+	private final int port = PORT;
 
 	private Socket socket;
 	private ServerSocket serverSocket;
+	/**
+	 * Current status, guarded by the {@link #statusLock}. Every change is
+	 * signalled to the threads waiting in
+	 * {@link #awaitSocketStatusChange(SocketStatus, long)}.
+	 */
 	private SocketStatus socketStatus;
+	private final ReentrantLock statusLock = new ReentrantLock();
+	private final Condition statusChanged = statusLock.newCondition();
+
+	/**
+	 * Stream of the data received from the current {@link Socket}.
+	 */
+	private InputStream inputStream;
+	/**
+	 * Writer stage of the current {@link Socket}.
+	 */
+	private SocketWriter socketWriter;
+	/**
+	 * Heartbeats and idle detection of the current {@link Socket}, guarded by the
+	 * {@link #writeLock}.
+	 */
+	private IdleMonitor idleMonitor;
+	/**
+	 * Guards the {@link #socketWriter} so that the frames of different messages
+	 * don't interleave. Like the {@link #statusLock} it's a lock rather than a
+	 * monitor, so the engine's virtual {@link Thread}s don't pin their carriers
+	 * while they wait.
+	 */
+	private final ReentrantLock writeLock = new ReentrantLock();
+	/**
+	 * Signalled once the protocol is {@link #negotiated}.
+	 */
+	private final Condition negotiation = writeLock.newCondition();
+	/**
+	 * Options applied to new connections.
+	 */
+	private volatile ConnectionOptions connectionOptions = new ConnectionOptions();
+	/**
+	 * Indicates that the peer supports the framed protocol and that the messages
+	 * are sent as frames.
+	 */
+	private volatile boolean framing;
+	/**
+	 * Indicates that the peer has announced support of the framed protocol.
+	 */
+	private volatile boolean peerHello;
+	/**
+	 * Indicates that all the data received from the peer is framed.
+	 */
+	private volatile boolean peerFraming;
+	/**
+	 * Indicates that the protocol used with the peer is known, or has been
+	 * given up waiting for. Guarded by the {@link #writeLock}, the
+	 * {@link #negotiation} is signalled once it is set.
+	 */
+	private boolean negotiated;
+	/**
+	 * Time the current connection was established, guarded by the
+	 * {@link #writeLock}.
+	 */
+	private long connectedNanos;
+	/**
+	 * Indicates that a connection has been established before the current one,
+	 * guarded by the {@link #writeLock}.
+	 */
+	private boolean connectedBefore;
+
+	/**
+	 * Receives the frames other than {@link Frame#TYPE_MESSAGE}, null to skip
+	 * them.
+	 */
+	private volatile Consumer<Frame> frameHandler;
+
+	/**
+	 * Maximum size of a frame payload, longer messages are split.
+	 */
+	private volatile int maxFrameSize = 16 * 1024;
+	/**
+	 * Maximum size of a received message.
+	 */
+	private volatile int maxMessageSize = 16 * 1024 * 1024;
 
 	public SocketController() {
-		socketStatus = SocketStatus.DISCONNECTED;
+		setSocketStatus(SocketStatus.DISCONNECTED);
 	}
 
 	/**
@@ -30,9 +143,12 @@ public class SocketController {
 			setClientMode();
 			inetAddress = InetAddress.getByName(address);
 			InetSocketAddress inetSocketAddress = new InetSocketAddress(inetAddress, port);
-			socket = new Socket();
-			socket.connect(inetSocketAddress, port);
-			socketStatus = SocketStatus.CLIENTMODE;
+			SocketChannel socketChannel = SocketChannel.open();
+			socket = socketChannel.socket();
+			connectionOptions.applyTo(socket);
+			socket.connect(inetSocketAddress, connectionOptions.getConnectTimeoutMillis());
+			initConnection(socketChannel);
+			setSocketStatus(SocketStatus.CLIENTMODE);
 			return true;
 		} catch (Exception e) {
 			e.printStackTrace();
@@ -41,48 +157,501 @@ public class SocketController {
 		return false;
 	}
 
+	/**
+	 * Prepares the input stream and the writer stage of the newly connected
+	 * {@link #socket} and announces support of the framed protocol to the peer.
+	 * 
+	 * @param socketChannel channel of the {@link #socket}
+	 * @throws IOException in case of socket errors
+	 */
+	private void initConnection(SocketChannel socketChannel) throws IOException {
+		writeLock.lock();
+		try {
+			if (idleMonitor != null) {
+				idleMonitor.stop();
+			}
+			Socket connected = socket;
+			idleMonitor = new IdleMonitor(connectionOptions, this::sendPing, () -> {
+				try {
+					// Fails the pending receive, so the usual disconnect path runs
+					connected.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			});
+			inputStream = new BufferedInputStream(new CountingInputStream(socket.getInputStream(), idleMonitor));
+			socketWriter = new SocketWriter(socketChannel, connectionOptions);
+			socketWriter.start();
+			framing = false;
+			peerHello = false;
+			peerFraming = false;
+			negotiated = false;
+			connectedNanos = System.nanoTime();
+			socketWriter.write(ByteBuffer.wrap(new byte[] { Frame.HELLO }));
+			idleMonitor.start();
+			Metrics.CONNECTIONS.increment();
+			if (connectedBefore) {
+				Metrics.RECONNECTS.increment();
+			}
+			connectedBefore = true;
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
 	/**
 	 * Tries to send the passed {@code message} through the current connection
 	 * <p>
 	 * Sends the message to the remote peer. Doesn't check if the message has been
-	 * actually received.
+	 * actually received. Messages longer than the maximum frame size are split
+	 * into several frames. Right after connecting the call waits for the peer
+	 * to announce the framed protocol. Messages longer than 255 bytes are
+	 * refused if the peer only supports the original protocol.
+	 * <p>
+	 * The message is only queued to the {@link SocketWriter}, the array must not
+	 * be modified after the call. See {@link #sendAsync(byte[], int)} for the
+	 * behavior once the queue is full.
 	 * 
 	 * @param message to be sent
-	 * @throws IOException in case of socket errors
+	 * @throws IOException in case of socket errors, if the message is rejected
+	 *                     by the full queue or too long for the original
+	 *                     protocol
 	 * 
 	 */
 	public void send(byte[] message) throws IOException {
-		int messageLength = message.length;
+		send(message, 0);
+	}
+
+	/**
+	 * Tries to send the passed {@code message} with the passed frame flags, see
+	 * {@link #send(byte[])}. The flags are lost if the peer doesn't support the
+	 * framed protocol.
+	 * 
+	 * @param message to be sent
+	 * @param flags   of the frames of the message, e.g.
+	 *                {@link Frame#FLAG_COMPRESSED}
+	 * @throws IOException in case of socket errors or if the message is rejected
+	 *                     by the full queue
+	 */
+	public void send(byte[] message, int flags) throws IOException {
+		try {
+			sendAsync(message, flags).getNow(null);
+		} catch (CompletionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException(e.getCause().getMessage(), e.getCause());
+		}
+	}
+
+	/**
+	 * Queues the passed {@code message} with the passed frame flags, see
+	 * {@link #send(byte[], int)}, and returns without waiting for the socket.
+	 * <p>
+	 * Once the queued messages exceed the high watermark of the
+	 * {@link ConnectionOptions} its {@link BackpressurePolicy} applies until they
+	 * have drained to the low watermark: {@link BackpressurePolicy#BLOCK} makes
+	 * this call wait, the other policies fail messages instead.
+	 * 
+	 * @param message to be sent
+	 * @param flags   of the frames of the message, e.g.
+	 *                {@link Frame#FLAG_COMPRESSED}
+	 * @return future completed once the message has been written to the socket.
+	 *         Fails with an {@link IOException} if there is no connection or it
+	 *         fails, and with the exception named by the
+	 *         {@link BackpressurePolicy} if the message is rejected or dropped.
+	 */
+	public CompletableFuture<Void> sendAsync(byte[] message, int flags) {
+		CompletableFuture<Void> future;
+		try {
+			SocketWriter writer;
+			writeLock.lock();
+			try {
+				writer = socketWriter;
+			} finally {
+				writeLock.unlock();
+			}
+			if (writer == null) {
+				throw new IOException("Not connected");
+			}
+			awaitNegotiation(writer);
+			// Closing the socket takes the lock, so don't wait holding it
+			writer.awaitWritable();
+			writeLock.lock();
+			try {
+				if (!framing && message.length > Frame.LEGACY_MAX_MESSAGE_SIZE) {
+					throw new IOException("The peer doesn't support messages longer than "
+							+ Frame.LEGACY_MAX_MESSAGE_SIZE + " bytes");
+				}
+				future = socketWriter.writeMessage(Frame.encodeMessage(message, flags, framing, maxFrameSize));
+				idleMonitor.written();
+			} finally {
+				writeLock.unlock();
+			}
+		} catch (IOException e) {
+			future = new CompletableFuture<Void>();
+			future.completeExceptionally(e);
+			return future;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			future = new CompletableFuture<Void>();
+			future.completeExceptionally(new InterruptedIOException("Interrupted while the send queue was full"));
+			return future;
+		}
+
+		if (!future.isCompletedExceptionally()) {
+			Metrics.MESSAGES_SENT.increment();
+		}
+		return future;
+	}
+
+	/**
+	 * Blocks until the protocol used with the peer of the passed writer is
+	 * known, at most {@value Frame#NEGOTIATION_TIMEOUT_MILLIS} milliseconds after
+	 * connecting. Returns early once the connection is closed.
+	 * 
+	 * @param writer of the connection
+	 * @throws InterruptedException if the {@link Thread} is interrupted
+	 */
+	private void awaitNegotiation(SocketWriter writer) throws InterruptedException {
+		writeLock.lock();
+		try {
+			long deadline = connectedNanos + TimeUnit.MILLISECONDS.toNanos(Frame.NEGOTIATION_TIMEOUT_MILLIS);
+			long remaining;
+			while (!negotiated && socketWriter == writer
+					&& (remaining = deadline - System.nanoTime()) > 0) {
+				negotiation.awaitNanos(remaining);
+			}
+			if (socketWriter == writer) {
+				// Later messages don't wait for a peer which never announces it
+				negotiated = true;
+			}
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	/**
+	 * Records that the protocol used with the peer is known and wakes up the
+	 * messages waiting for it. Called with the {@link #writeLock} held.
+	 */
+	private void negotiated() {
+		negotiated = true;
+		negotiation.signalAll();
+	}
+
+	/**
+	 * Sends a single frame made of the passed parts. Doesn't check if the frame
+	 * has been actually received.
+	 * 
+	 * @param type      of the frame
+	 * @param prefix    first part of the payload
+	 * @param payload   rest of the payload, null if there is none
+	 * @param onWritten run once the frame has been written, null if not needed
+	 * @throws IOException in case of socket errors or if the peer doesn't support
+	 *                     the framed protocol
+	 */
+	public void sendFrame(int type, byte[] prefix, byte[] payload, Runnable onWritten) throws IOException {
+		int length = prefix.length + (payload == null ? 0 : payload.length);
+		writeLock.lock();
+		try {
+			checkFraming();
+			if (payload == null) {
+				socketWriter.write(Frame.header(type, 0, length), ByteBuffer.wrap(prefix));
+			} else {
+				socketWriter.write(Frame.header(type, 0, length), ByteBuffer.wrap(prefix), ByteBuffer.wrap(payload));
+			}
+			idleMonitor.written();
+			if (onWritten != null) {
+				socketWriter.whenWritten(onWritten);
+			}
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	/**
+	 * Sends a single frame holding the passed prefix followed by a region of a
+	 * file. The region is written straight from the file, see
+	 * {@link SocketWriter#transfer(FileChannel, long, long)}.
+	 * 
+	 * @param type      of the frame
+	 * @param prefix    first part of the payload
+	 * @param file      holding the rest of the payload, must stay open until
+	 *                  the frame has been written
+	 * @param position  of the region inside the file
+	 * @param count     length of the region in bytes
+	 * @param onWritten run once the frame has been written, null if not needed
+	 * @throws IOException in case of socket errors or if the peer doesn't support
+	 *                     the framed protocol
+	 */
+	public void sendFrame(int type, byte[] prefix, FileChannel file, long position, int count, Runnable onWritten)
+			throws IOException {
+		writeLock.lock();
+		try {
+			checkFraming();
+			socketWriter.write(Frame.header(type, 0, prefix.length + count), ByteBuffer.wrap(prefix));
+			socketWriter.transfer(file, position, count);
+			idleMonitor.written();
+			if (onWritten != null) {
+				socketWriter.whenWritten(onWritten);
+			}
+		} finally {
+			writeLock.unlock();
+		}
+	}
 
-		if (messageLength > 255) {
-			messageLength = 255;
+	/**
+	 * @throws IOException if the peer doesn't support the framed protocol
+	 */
+	private void checkFraming() throws IOException {
+		if (!framing) {
+			throw new IOException("The peer doesn't support the framed protocol");
 		}
+	}
 
-		OutputStream os = socket.getOutputStream();
-		os.write(messageLength);
-		os.write(message, 0, messageLength);
+	/**
+	 * @return true if the messages are sent as frames, so that frame flags reach
+	 *         the peer
+	 */
+	public boolean isFraming() {
+		return framing;
+	}
+
+	/**
+	 * Switches the sent data to the framed protocol after the peer announced its
+	 * support.
+	 * 
+	 * @throws IOException in case of socket errors
+	 */
+	private void startFraming() throws IOException {
+		IdleMonitor monitor;
+		writeLock.lock();
+		try {
+			socketWriter.write(ByteBuffer.wrap(new byte[] { Frame.HELLO, Frame.VERSION }));
+			framing = true;
+			negotiated();
+			monitor = idleMonitor;
+		} finally {
+			writeLock.unlock();
+		}
+		monitor.framed();
+	}
+
+	/**
+	 * Sends a {@link Frame#TYPE_PING} frame for the {@link IdleMonitor}.
+	 * 
+	 * @param payload of the frame
+	 * @return false if the peer doesn't support the framed protocol or the
+	 *         connection has failed
+	 */
+	private boolean sendPing(byte[] payload) {
+		try {
+			sendFrame(Frame.TYPE_PING, payload, null, null);
+			return true;
+		} catch (IOException e) {
+			return false;
+		}
 	}
 
 	/**
 	 * Receives a message from the currently connected {@link Socket}.
 	 * <p>
-	 * Blocks the current {@link Thread} until a message is received or an
-	 * {@link Exception} occurs.
+	 * Blocks the current {@link Thread} until a whole message is received or an
+	 * {@link Exception} occurs. Frames other than {@link Frame#TYPE_MESSAGE} are
+	 * passed to the handler set by {@link #setFrameHandler(Consumer)} on the
+	 * current {@link Thread}, skipped if there is none.
 	 * 
-	 * @return {@code array of byte} message if the read operation succeeded, null
-	 *         otherwise.
-	 * @throws IOException in case of socket errors
+	 * @return {@code array of byte} message
+	 * @throws IOException in case of socket errors, if the connection has been
+	 *                     closed or the message is longer than the maximum
+	 *                     message size
 	 */
 	public byte[] receiveMessage() throws IOException {
-		InputStream is = socket.getInputStream();
+		return receiveMessageFrame().getPayload();
+	}
 
-		int messageLength = is.read();
-		if (messageLength > 0) {
-			byte[] b = new byte[messageLength];
-			is.read(b);
-			return b;
-		} else {
-			return null;
+	/**
+	 * @return true if received data is waiting to be read, so a following
+	 *         receive won't block
+	 * @throws IOException in case of socket errors
+	 */
+	public boolean hasPendingInput() throws IOException {
+		return inputStream.available() > 0;
+	}
+
+	/**
+	 * Receives a message from the currently connected {@link Socket} together
+	 * with its flags, see {@link #receiveMessage()}.
+	 * 
+	 * @return {@link Frame#TYPE_MESSAGE} frame holding the whole message and the
+	 *         flags of its last frame
+	 * @throws IOException in case of socket errors, if the connection has been
+	 *                     closed or the message is longer than the maximum
+	 *                     message size
+	 */
+	public Frame receiveMessageFrame() throws IOException {
+		Frame frame = receiveFrame(Frame.TYPE_MESSAGE, null);
+		if (!frame.hasMore()) {
+			Metrics.MESSAGES_RECEIVED.increment();
+			return frame;
+		}
+
+		ByteArrayOutputStream message = new ByteArrayOutputStream(2 * frame.getPayload().length);
+		message.write(frame.getPayload(), 0, frame.getPayload().length);
+		while (frame.hasMore()) {
+			frame = receiveFrame(Frame.TYPE_MESSAGE, null);
+			if (message.size() + frame.getPayload().length > maxMessageSize) {
+				throw new IOException("Message exceeds the limit of " + maxMessageSize + " bytes");
+			}
+			message.write(frame.getPayload(), 0, frame.getPayload().length);
+		}
+
+		Metrics.MESSAGES_RECEIVED.increment();
+		return new Frame(Frame.TYPE_MESSAGE, frame.getFlags(), message.toByteArray());
+	}
+
+	/**
+	 * Receives a message into a buffer of the passed pool, see
+	 * {@link #receiveMessageFrame()}. The payload of a single frame message is
+	 * read from the socket straight into the buffer, the parts of a split
+	 * message are appended to the buffer of the first one.
+	 * 
+	 * @param pool to acquire the buffer from
+	 * @return {@link Frame#TYPE_MESSAGE} frame holding the whole message and the
+	 *         flags of its last frame, to be released by the caller
+	 * @throws IOException in case of socket errors, if the connection has been
+	 *                     closed or the message is longer than the maximum
+	 *                     message size
+	 */
+	public Frame receiveMessageFrame(BufferPool pool) throws IOException {
+		Frame frame = receiveFrame(Frame.TYPE_MESSAGE, pool);
+		if (!frame.hasMore()) {
+			Metrics.MESSAGES_RECEIVED.increment();
+			return frame;
+		}
+
+		PooledBuffer message = pool.append(null, frame.getPayloadBuffer());
+		frame.release();
+		try {
+			while (frame.hasMore()) {
+				frame = receiveFrame(Frame.TYPE_MESSAGE, pool);
+				try {
+					if (message.buffer().position() + frame.getPayloadLength() > maxMessageSize) {
+						throw new IOException("Message exceeds the limit of " + maxMessageSize + " bytes");
+					}
+					message = pool.append(message, frame.getPayloadBuffer());
+				} finally {
+					frame.release();
+				}
+			}
+		} catch (IOException | RuntimeException e) {
+			message.release();
+			throw e;
+		}
+
+		Metrics.MESSAGES_RECEIVED.increment();
+		message.buffer().flip();
+		return new Frame(Frame.TYPE_MESSAGE, frame.getFlags(), message);
+	}
+
+	/**
+	 * Receives the next frame of the passed type, passing other frames to the
+	 * frame handler.
+	 * 
+	 * @param type of the frame
+	 * @param pool holding the payloads of the messages, null to use arrays
+	 * @return the frame
+	 * @throws IOException in case of socket errors
+	 */
+	private Frame receiveFrame(int type, BufferPool pool) throws IOException {
+		Frame frame;
+		while ((frame = receiveFrame(pool)).getType() != type) {
+			Consumer<Frame> handler = frameHandler;
+			if (handler != null) {
+				handler.accept(frame);
+			}
+		}
+
+		return frame;
+	}
+
+	/**
+	 * Receives a single frame from the currently connected {@link Socket}.
+	 * <p>
+	 * Lets the caller process long messages part by part as they arrive. A
+	 * message received using the original protocol is returned as a single
+	 * {@link Frame#TYPE_MESSAGE} frame. Heartbeat frames are answered and never
+	 * returned.
+	 * 
+	 * @return the received frame
+	 * @throws IOException in case of socket errors or if the connection has been
+	 *                     closed
+	 */
+	public Frame receiveFrame() throws IOException {
+		return receiveFrame(null);
+	}
+
+	/**
+	 * Receives a single frame, see {@link #receiveFrame()}.
+	 * 
+	 * @param pool holding the payloads of the messages, null to use arrays
+	 * @return the received frame, to be released by the caller if it is a
+	 *         message
+	 * @throws IOException in case of socket errors or if the connection has been
+	 *                     closed
+	 */
+	private Frame receiveFrame(BufferPool pool) throws IOException {
+		InputStream is = inputStream;
+		IdleMonitor monitor;
+		writeLock.lock();
+		try {
+			monitor = idleMonitor;
+		} finally {
+			writeLock.unlock();
+		}
+
+		while (!peerFraming) {
+			int messageLength = Frame.readByte(is);
+			if (messageLength != Frame.HELLO) {
+				if (!peerHello) {
+					// A peer supporting the framed protocol announces it first
+					writeLock.lock();
+					try {
+						negotiated();
+					} finally {
+						writeLock.unlock();
+					}
+				}
+				if (pool != null) {
+					return new Frame(Frame.TYPE_MESSAGE, 0, Frame.readPooled(is, messageLength, pool));
+				}
+				byte[] b = new byte[messageLength];
+				Frame.readFully(is, b, 0, messageLength);
+				return new Frame(Frame.TYPE_MESSAGE, 0, b);
+			}
+
+			if (!peerHello) {
+				peerHello = true;
+				startFraming();
+			} else {
+				int version = Frame.readByte(is);
+				if (version != Frame.VERSION) {
+					throw new IOException("Unsupported protocol version " + version);
+				}
+				peerFraming = true;
+			}
+		}
+
+		while (true) {
+			Frame frame = Frame.read(is, maxMessageSize, pool);
+			if (!frame.isHeartbeat()) {
+				return frame;
+			}
+			byte[] pong = monitor.heartbeatReceived(frame);
+			if (pong != null) {
+				sendFrame(Frame.TYPE_PONG, pong, null, null);
+			}
 		}
 	}
 
@@ -96,10 +665,17 @@ public class SocketController {
 	 *         {@link Exception}
 	 */
 	public boolean startServer() {
-		try (ServerSocket serverSocket = new ServerSocket(port)) {
-			this.serverSocket = serverSocket;
-			socket = serverSocket.accept();
-			socketStatus = SocketStatus.SERVERMODE;
+		try (ServerSocketChannel serverSocketChannel = ServerSocketChannel.open()) {
+			this.serverSocket = serverSocketChannel.socket();
+			if (connectionOptions.getReceiveBufferSize() > 0) {
+				serverSocket.setReceiveBufferSize(connectionOptions.getReceiveBufferSize());
+			}
+			serverSocket.bind(new InetSocketAddress(port));
+			SocketChannel socketChannel = serverSocketChannel.accept();
+			socket = socketChannel.socket();
+			connectionOptions.applyTo(socket);
+			initConnection(socketChannel);
+			setSocketStatus(SocketStatus.SERVERMODE);
 			return true;
 		} catch (Exception e) {
 			e.printStackTrace();
@@ -113,13 +689,14 @@ public class SocketController {
 	 * SERVERMODE
 	 */
 	public void setServerMode() {
+		SocketStatus socketStatus = getSocketStatus();
 		if (socketStatus == SocketStatus.CLIENTMODE) {
 			closeCurrentSocket();
 		} else if (socketStatus == SocketStatus.SERVERMODE) {
 			closeCurrentSocket();
 			closeServerSocket();
 		}
-		socketStatus = SocketStatus.STARTINGSERVER;
+		setSocketStatus(SocketStatus.STARTINGSERVER);
 	}
 
 	/**
@@ -127,6 +704,7 @@ public class SocketController {
 	 * CLIENTMODE
 	 */
 	public void setClientMode() {
+		SocketStatus socketStatus = getSocketStatus();
 		if (socketStatus == SocketStatus.SERVERMODE || socketStatus == SocketStatus.STARTINGSERVER) {
 			closeCurrentSocket();
 			closeServerSocket();
@@ -139,12 +717,25 @@ public class SocketController {
 	 * Closes the currently open {@link Socket}.
 	 */
 	public void closeCurrentSocket() {
-		socketStatus = SocketStatus.DISCONNECTED;
+		setSocketStatus(SocketStatus.DISCONNECTED);
 
 		if (socket == null) {
 			return;
 		}
 
+		writeLock.lock();
+		try {
+			if (socketWriter != null) {
+				socketWriter.close();
+			}
+			if (idleMonitor != null) {
+				idleMonitor.stop();
+			}
+			// The waiting messages fail on the closed writer
+			negotiated();
+		} finally {
+			writeLock.unlock();
+		}
 		try {
 			socket.close();
 		} catch (Exception e) {
@@ -179,10 +770,162 @@ public class SocketController {
 		return socket.getInetAddress().toString();
 	}
 
+	/**
+	 * Sets the options applied to the connections established after the call.
+	 * 
+	 * @param connectionOptions to be applied
+	 */
+	public void setConnectionOptions(ConnectionOptions connectionOptions) {
+		if (connectionOptions == null) {
+			throw new NullPointerException("connectionOptions");
+		}
+		this.connectionOptions = connectionOptions;
+	}
+
+	/**
+	 * Sets the handler of the received frames other than
+	 * {@link Frame#TYPE_MESSAGE}, see {@link #receiveMessage()}.
+	 * 
+	 * @param frameHandler the handler, null to skip the frames
+	 */
+	public void setFrameHandler(Consumer<Frame> frameHandler) {
+		this.frameHandler = frameHandler;
+	}
+
+	/**
+	 * Sets the maximum size of a frame payload. Longer messages are split into
+	 * several frames.
+	 * 
+	 * @param maxFrameSize in bytes
+	 */
+	public void setMaxFrameSize(int maxFrameSize) {
+		if (maxFrameSize <= 0) {
+			throw new IllegalArgumentException("maxFrameSize");
+		}
+		this.maxFrameSize = maxFrameSize;
+	}
+
+	/**
+	 * Sets the maximum size of a received message. A longer message fails the
+	 * connection.
+	 * 
+	 * @param maxMessageSize in bytes
+	 */
+	public void setMaxMessageSize(int maxMessageSize) {
+		if (maxMessageSize <= 0) {
+			throw new IllegalArgumentException("maxMessageSize");
+		}
+		this.maxMessageSize = maxMessageSize;
+	}
+
+	/**
+	 * @return maximum size of a received message in bytes
+	 */
+	public int getMaxMessageSize() {
+		return maxMessageSize;
+	}
+
 	/**
 	 * @return the {@link SocketStatus} of the current {@link Socket}
 	 */
 	public SocketStatus getSocketStatus() {
-		return socketStatus;
+		statusLock.lock();
+		try {
+			return socketStatus;
+		} finally {
+			statusLock.unlock();
+		}
+	}
+
+	/**
+	 * Blocks the current {@link Thread} until the {@link SocketStatus} differs
+	 * from the passed one.
+	 * 
+	 * @param status  the status to wait to be left
+	 * @param timeout maximum time to wait in milliseconds, 0 to wait forever
+	 * @return the current {@link SocketStatus}, still equal to the passed one if
+	 *         the timeout elapsed
+	 * @throws InterruptedException if the {@link Thread} is interrupted while
+	 *                              waiting
+	 */
+	public SocketStatus awaitSocketStatusChange(SocketStatus status, long timeout) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeout;
+		statusLock.lock();
+		try {
+			while (socketStatus == status) {
+				if (timeout == 0) {
+					statusChanged.await();
+				} else {
+					long remaining = deadline - System.currentTimeMillis();
+					if (remaining <= 0) {
+						break;
+					}
+					statusChanged.await(remaining, TimeUnit.MILLISECONDS);
+				}
+			}
+			return socketStatus;
+		} finally {
+			statusLock.unlock();
+		}
+	}
+
+	/**
+	 * Changes the {@link SocketStatus} and wakes up the threads waiting for the
+	 * change.
+	 * 
+	 * @param socketStatus the new status
+	 */
+	private void setSocketStatus(SocketStatus socketStatus) {
+		statusLock.lock();
+		try {
+			this.socketStatus = socketStatus;
+			statusChanged.signalAll();
+		} finally {
+			statusLock.unlock();
+		}
+	}
+
+	/**
+	 *
+	 * Counts the bytes read from a socket in {@link Metrics#BYTES_RECEIVED} and
+	 * records the reads in the {@link IdleMonitor}. Wraps the stream of the
+	 * socket below its buffer, so the count is updated once per read from the
+	 * socket.
+	 *
+	 */
+	private static class CountingInputStream extends FilterInputStream {
+		private final IdleMonitor monitor;
+
+		CountingInputStream(InputStream in, IdleMonitor monitor) {
+			super(in);
+			this.monitor = monitor;
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if (b >= 0) {
+				Metrics.BYTES_RECEIVED.increment();
+				monitor.read();
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int count = super.read(b, off, len);
+			if (count > 0) {
+				Metrics.BYTES_RECEIVED.add(count);
+				monitor.read();
+			}
+			return count;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			long count = super.skip(n);
+			Metrics.BYTES_RECEIVED.add(count);
+			return count;
+		}
 	}
 }
@@ -0,0 +1,527 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ *
+ * Writer stage of a connection.
+ * <p>
+ * Data passed to {@link #write(ByteBuffer...)} is queued and written to the
+ * channel by a dedicated {@link Thread}. The thread copies as much of the
+ * queued data as possible into a reusable direct buffer and writes it with a
+ * single call, so that a frame header and its payload, or several small
+ * frames, don't cost a system call each. The buffer is written once it is
+ * full or once there is nothing more to send. Data larger than the buffer is
+ * written together with the buffer by a gathering write without being copied.
+ * <p>
+ * Regions of files queued by {@link #transfer(FileChannel, long, long)} are
+ * sent with {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)},
+ * so their content doesn't pass through the heap. Callbacks queued by
+ * {@link #whenWritten(Runnable)} let the producers of large data pace
+ * themselves.
+ * <p>
+ * Messages queued by {@link #writeMessage(ByteBuffer...)} are bounded by the
+ * watermarks of the {@link ConnectionOptions}: once the queued messages exceed
+ * the high watermark the {@link BackpressurePolicy} applies until they have
+ * drained to the low watermark. Every message has a future completed once it
+ * has been written to the channel.
+ *
+ */
+public class SocketWriter {
+	/**
+	 * Marker queued by {@link #close()}.
+	 */
+	private final static ByteBuffer CLOSE = ByteBuffer.allocate(0);
+	/**
+	 * Running stages, see {@link #getQueuedCount()}.
+	 */
+	private final static Set<SocketWriter> running = Collections
+			.newSetFromMap(new ConcurrentHashMap<SocketWriter, Boolean>());
+
+	/**
+	 * Channel the data is written to.
+	 */
+	private final GatheringByteChannel channel;
+	/**
+	 * Buffer collecting the queued data.
+	 */
+	private final ByteBuffer buffer;
+	/**
+	 * Buffers passed to the gathering write.
+	 */
+	private final ByteBuffer[] gather = new ByteBuffer[2];
+	/**
+	 * Data waiting to be written: {@link Message}s, {@link ByteBuffer}s,
+	 * {@link FileRegion}s and callbacks.
+	 */
+	private final BlockingQueue<Object> queue = new LinkedBlockingQueue<Object>();
+	/**
+	 * Time to wait for more data before writing a partially filled buffer.
+	 */
+	private final long flushDelayNanos;
+	/**
+	 * The {@link Thread} of the stage.
+	 */
+	private final Thread thread;
+	/**
+	 * Error which stopped the stage, null while it's running.
+	 */
+	private volatile IOException failure;
+
+	private final long highWatermark;
+	private final long lowWatermark;
+	private final BackpressurePolicy backpressurePolicy;
+	/**
+	 * Guards the accounting of the queued messages. A lock rather than a
+	 * monitor, so a virtual {@link Thread} waiting for the queue to drain
+	 * doesn't pin its carrier.
+	 */
+	private final ReentrantLock watermarkLock = new ReentrantLock();
+	/**
+	 * Signalled once the queue has drained to the low watermark or the stage
+	 * has stopped.
+	 */
+	private final Condition drained = watermarkLock.newCondition();
+	/**
+	 * Number of bytes of the queued messages, guarded by the
+	 * {@link #watermarkLock}.
+	 */
+	private volatile long queuedBytes;
+	/**
+	 * Indicates that the high watermark has been exceeded and the queue hasn't
+	 * drained to the low watermark yet, guarded by the {@link #watermarkLock}.
+	 */
+	private boolean saturated;
+	/**
+	 * Indicates that the {@link Thread} has stopped, guarded by the
+	 * {@link #watermarkLock}.
+	 */
+	private boolean stopped;
+	/**
+	 * Futures of the messages copied to the {@link #buffer} but not written
+	 * yet, only used by the writer {@link Thread}.
+	 */
+	private final List<CompletableFuture<Void>> unflushed = new ArrayList<CompletableFuture<Void>>();
+
+	/**
+	 * Creates the stage, {@link #start()} must be called to begin writing.
+	 *
+	 * @param channel to write to
+	 * @param options of the connection
+	 */
+	public SocketWriter(GatheringByteChannel channel, ConnectionOptions options) {
+		this.channel = channel;
+		this.buffer = ByteBuffer.allocateDirect(options.getWriteBufferSize());
+		this.flushDelayNanos = TimeUnit.MICROSECONDS.toNanos(options.getFlushDelayMicros());
+		this.highWatermark = options.getHighWatermark();
+		this.lowWatermark = Math.min(options.getLowWatermark(), options.getHighWatermark());
+		this.backpressurePolicy = options.getBackpressurePolicy();
+		this.thread = new Thread(this::run, "SocketWriter");
+		thread.setDaemon(true);
+	}
+
+	/**
+	 * Starts the {@link Thread} of the stage.
+	 */
+	public void start() {
+		running.add(this);
+		thread.start();
+	}
+
+	/**
+	 * @return number of buffers, file regions and callbacks queued to all the
+	 *         running stages, see {@link Metrics#WRITE_QUEUE_DEPTH}
+	 */
+	static long getQueuedCount() {
+		long count = 0;
+		for (SocketWriter writer : running) {
+			count += writer.queue.size();
+		}
+		return count;
+	}
+
+	/**
+	 * @return number of bytes of the messages queued to all the running stages,
+	 *         see {@link Metrics#SEND_QUEUE_BYTES}
+	 */
+	static long getQueuedBytes() {
+		long bytes = 0;
+		for (SocketWriter writer : running) {
+			bytes += writer.queuedBytes;
+		}
+		return bytes;
+	}
+
+	/**
+	 * Waits until the queued messages have drained to the low watermark if the
+	 * high watermark has been exceeded and the {@link BackpressurePolicy} is
+	 * {@link BackpressurePolicy#BLOCK}, returns immediately otherwise.
+	 *
+	 * @throws IOException          if the stage has stopped meanwhile
+	 * @throws InterruptedException if the {@link Thread} is interrupted while
+	 *                              waiting
+	 */
+	public void awaitWritable() throws IOException, InterruptedException {
+		if (backpressurePolicy != BackpressurePolicy.BLOCK) {
+			return;
+		}
+
+		watermarkLock.lock();
+		try {
+			if (!saturated) {
+				return;
+			}
+			long start = System.nanoTime();
+			while (saturated && !stopped) {
+				drained.await();
+			}
+			Metrics.SEND_BLOCKED_TIME.recordSince(start);
+			if (stopped) {
+				throw new IOException("The connection has been closed");
+			}
+		} finally {
+			watermarkLock.unlock();
+		}
+	}
+
+	/**
+	 * Queues the frames of a message to be written in the given order.
+	 * <p>
+	 * Above the high watermark {@link BackpressurePolicy#REJECT} fails the
+	 * message and {@link BackpressurePolicy#DROP_OLDEST} drops the oldest queued
+	 * messages. Never blocks: {@link BackpressurePolicy#BLOCK} relies on the
+	 * caller having waited in {@link #awaitWritable()}, so the high watermark may
+	 * be exceeded by the messages of concurrent callers. A single message larger
+	 * than the high watermark is accepted when the queue is empty.
+	 * <p>
+	 * The buffers are read by the writer {@link Thread} later, their content must
+	 * not be modified after the call.
+	 *
+	 * @param data frames of the message
+	 * @return future completed once the message has been written to the channel,
+	 *         or failed if the message is rejected, dropped or the connection
+	 *         fails
+	 */
+	public CompletableFuture<Void> writeMessage(ByteBuffer... data) {
+		Message message = new Message(data);
+		watermarkLock.lock();
+		try {
+			if (stopped || failure != null) {
+				message.future.completeExceptionally(new IOException("The connection has failed", failure));
+				return message.future;
+			}
+
+			if (saturated || queuedBytes > 0 && queuedBytes + message.size > highWatermark) {
+				saturated = true;
+				if (backpressurePolicy == BackpressurePolicy.REJECT) {
+					Metrics.MESSAGES_REJECTED.increment();
+					message.future.completeExceptionally(new RejectedExecutionException("The send queue is full"));
+					return message.future;
+				} else if (backpressurePolicy == BackpressurePolicy.DROP_OLDEST) {
+					dropOldest();
+				}
+			}
+
+			queuedBytes += message.size;
+			queue.add(message);
+		} finally {
+			watermarkLock.unlock();
+		}
+		return message.future;
+	}
+
+	/**
+	 * Drops the oldest queued messages until the queue has drained to the low
+	 * watermark. Called holding the {@link #watermarkLock}.
+	 */
+	private void dropOldest() {
+		Iterator<Object> iterator = queue.iterator();
+		while (queuedBytes > lowWatermark && iterator.hasNext()) {
+			Object data = iterator.next();
+			if (data instanceof Message) {
+				// Only messages not taken by the writer Thread yet are still queued
+				iterator.remove();
+				Message message = (Message) data;
+				queuedBytes -= message.size;
+				Metrics.MESSAGES_DROPPED.increment();
+				message.future.completeExceptionally(new CancellationException("Dropped from the full send queue"));
+			}
+		}
+		if (queuedBytes <= lowWatermark) {
+			saturated = false;
+		}
+	}
+
+	/**
+	 * Removes a message taken by the writer {@link Thread} from the accounting
+	 * and wakes the blocked senders up once the queue has drained to the low
+	 * watermark.
+	 *
+	 * @param message taken from the queue
+	 */
+	private void dequeued(Message message) {
+		watermarkLock.lock();
+		try {
+			queuedBytes -= message.size;
+			if (saturated && queuedBytes <= lowWatermark) {
+				saturated = false;
+				drained.signalAll();
+			}
+		} finally {
+			watermarkLock.unlock();
+		}
+	}
+
+	/**
+	 * Queues the passed data to be written in the given order.
+	 * <p>
+	 * The buffers are read by the writer {@link Thread} later, their content must
+	 * not be modified after the call.
+	 *
+	 * @param data to be written
+	 * @throws IOException if a previous write failed
+	 */
+	public void write(ByteBuffer... data) throws IOException {
+		IOException e = failure;
+		if (e != null) {
+			throw new IOException("The connection has failed", e);
+		}
+
+		for (ByteBuffer part : data) {
+			queue.add(part);
+		}
+	}
+
+	/**
+	 * Queues a region of a file to be written after the previously queued data.
+	 * The file must stay open until the region has been written.
+	 *
+	 * @param file     to be read
+	 * @param position of the region inside the file
+	 * @param count    length of the region in bytes
+	 * @throws IOException if a previous write failed
+	 */
+	public void transfer(FileChannel file, long position, long count) throws IOException {
+		IOException e = failure;
+		if (e != null) {
+			throw new IOException("The connection has failed", e);
+		}
+
+		queue.add(new FileRegion(file, position, count));
+	}
+
+	/**
+	 * Queues a callback run by the writer {@link Thread} once the previously
+	 * queued data has been written or copied, so that its buffers and files may
+	 * be reused. The callback isn't run if the connection fails.
+	 *
+	 * @param callback to be run
+	 */
+	public void whenWritten(Runnable callback) {
+		queue.add(callback);
+	}
+
+	/**
+	 * Stops the stage once the already queued data has been written.
+	 */
+	public void close() {
+		queue.add(CLOSE);
+	}
+
+	/**
+	 * The loop of the writer {@link Thread}.
+	 */
+	private void run() {
+		try {
+			while (true) {
+				Object data = queue.take();
+				while (data != null) {
+					if (data == CLOSE) {
+						flush();
+						return;
+					}
+
+					if (data instanceof Message) {
+						Message message = (Message) data;
+						dequeued(message);
+						for (ByteBuffer part : message.data) {
+							append(part);
+						}
+						unflushed.add(message.future);
+					} else if (data instanceof ByteBuffer) {
+						append((ByteBuffer) data);
+					} else if (data instanceof FileRegion) {
+						flush();
+						((FileRegion) data).transferTo(channel);
+					} else {
+						((Runnable) data).run();
+					}
+					data = queue.poll();
+					if (data == null && flushDelayNanos > 0 && buffer.position() > 0) {
+						data = queue.poll(flushDelayNanos, TimeUnit.NANOSECONDS);
+					}
+				}
+				flush();
+			}
+		} catch (IOException e) {
+			failure = e;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			running.remove(this);
+			stop();
+		}
+	}
+
+	/**
+	 * Fails the futures of the messages which won't be written and wakes the
+	 * blocked senders up. Runs on the writer {@link Thread} once it stops.
+	 */
+	private void stop() {
+		IOException e = new IOException("The connection has failed", failure);
+		for (CompletableFuture<Void> future : unflushed) {
+			future.completeExceptionally(e);
+		}
+		unflushed.clear();
+
+		watermarkLock.lock();
+		try {
+			stopped = true;
+			queuedBytes = 0;
+			Object data;
+			while ((data = queue.poll()) != null) {
+				if (data instanceof Message) {
+					((Message) data).future.completeExceptionally(e);
+				}
+			}
+			drained.signalAll();
+		} finally {
+			watermarkLock.unlock();
+		}
+	}
+
+	/**
+	 * Completes the futures of the messages written so far.
+	 */
+	private void completeUnflushed() {
+		for (CompletableFuture<Void> future : unflushed) {
+			future.complete(null);
+		}
+		unflushed.clear();
+	}
+
+	/**
+	 * Adds the passed data to the {@link #buffer}, writing the buffer when it
+	 * becomes full.
+	 *
+	 * @param data to be written
+	 * @throws IOException in case of channel errors
+	 */
+	private void append(ByteBuffer data) throws IOException {
+		if (data.remaining() >= buffer.capacity()) {
+			buffer.flip();
+			gather[0] = buffer;
+			gather[1] = data;
+			while (data.hasRemaining()) {
+				Metrics.BYTES_SENT.add(channel.write(gather));
+			}
+			gather[1] = null;
+			buffer.clear();
+			completeUnflushed();
+			return;
+		}
+
+		while (data.remaining() > buffer.remaining()) {
+			int limit = data.limit();
+			data.limit(data.position() + buffer.remaining());
+			buffer.put(data);
+			data.limit(limit);
+			flush();
+		}
+		buffer.put(data);
+	}
+
+	/**
+	 * Writes the content of the {@link #buffer} to the channel.
+	 *
+	 * @throws IOException in case of channel errors
+	 */
+	private void flush() throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining()) {
+			Metrics.BYTES_SENT.add(channel.write(buffer));
+		}
+		buffer.clear();
+		completeUnflushed();
+	}
+
+	/**
+	 *
+	 * The frames of a message queued to be written.
+	 *
+	 */
+	private static class Message {
+		private final ByteBuffer[] data;
+		private final long size;
+		private final CompletableFuture<Void> future = new CompletableFuture<Void>();
+
+		Message(ByteBuffer[] data) {
+			this.data = data;
+			long size = 0;
+			for (ByteBuffer part : data) {
+				size += part.remaining();
+			}
+			this.size = size;
+		}
+	}
+
+	/**
+	 *
+	 * A region of a file queued to be written.
+	 *
+	 */
+	private static class FileRegion {
+		private final FileChannel file;
+		private long position;
+		private long count;
+
+		FileRegion(FileChannel file, long position, long count) {
+			this.file = file;
+			this.position = position;
+			this.count = count;
+		}
+
+		/**
+		 * Writes the whole region to the passed channel.
+		 *
+		 * @param channel to write to
+		 * @throws IOException in case of channel or file errors
+		 */
+		void transferTo(GatheringByteChannel channel) throws IOException {
+			while (count > 0) {
+				long written = file.transferTo(position, count, channel);
+				if (written <= 0 && position >= file.size()) {
+					throw new IOException("The file has been truncated");
+				}
+				position += written;
+				count -= written;
+				Metrics.BYTES_SENT.add(written);
+			}
+		}
+	}
+}
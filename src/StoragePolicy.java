@@ -0,0 +1,16 @@
+/**
+ *
+ * Form in which the messages are written to the {@link MessageLog}.
+ *
+ */
+public enum StoragePolicy {
+	/**
+	 * The messages are stored as sent over the network, still encrypted with the
+	 * {@link Cipher} they were sent with. Reading them back requires the key.
+	 */
+	CIPHERTEXT,
+	/**
+	 * The messages are stored decrypted.
+	 */
+	PLAINTEXT;
+}
@@ -0,0 +1,253 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ *
+ * Blocking server handling many peers at once, every connection is run by its
+ * own {@link Thread}.
+ * <p>
+ * Alternative to the {@link SelectorServer} keeping the plain blocking I/O of
+ * {@link SocketController}. With {@link ExecutionMode#VIRTUAL} the threads are
+ * virtual, so a blocked connection holds no OS thread and the server scales to
+ * tens of thousands of idle connections. Besides the accepted connections the
+ * server can open outbound ones with {@link #connect(String, int)}, both are
+ * passed to the same {@link ConnectionListener}.
+ *
+ */
+public class ThreadPerConnectionServer {
+	/**
+	 * Maximum number of pending connections.
+	 */
+	private final static int BACKLOG = 1024;
+
+	private final ConnectionListener listener;
+	private final ExecutionMode executionMode;
+	private final ThreadFactory threadFactory;
+	private final Set<Connection> connections = ConcurrentHashMap.newKeySet();
+
+	private ServerSocket serverSocket;
+
+	private volatile ConnectionOptions connectionOptions = new ConnectionOptions();
+	private volatile int maxFrameSize = 16 * 1024;
+	private volatile int maxMessageSize = 16 * 1024 * 1024;
+
+	/**
+	 * @param listener      receiving the events of all the connections
+	 * @param executionMode kind of the {@link Thread}s running the connections
+	 * @throws UnsupportedOperationException if the mode is not supported by the
+	 *                                       running Java version
+	 */
+	public ThreadPerConnectionServer(ConnectionListener listener, ExecutionMode executionMode) {
+		if (listener == null) {
+			throw new NullPointerException("listener");
+		}
+		this.listener = listener;
+		this.executionMode = executionMode;
+		this.threadFactory = executionMode.threadFactory("Connection");
+	}
+
+	/**
+	 * Starts listening to incoming connections on the passed port.
+	 *
+	 * @param port to listen on, 0 for any free port
+	 * @throws IOException if the port can't be bound
+	 */
+	public synchronized void start(int port) throws IOException {
+		if (serverSocket != null) {
+			throw new IllegalStateException("The server is already running");
+		}
+
+		ServerSocket serverSocket = new ServerSocket();
+		if (connectionOptions.getReceiveBufferSize() > 0) {
+			serverSocket.setReceiveBufferSize(connectionOptions.getReceiveBufferSize());
+		}
+		serverSocket.bind(new InetSocketAddress(port), BACKLOG);
+		this.serverSocket = serverSocket;
+
+		threadFactory.newThread(() -> accept(serverSocket)).start();
+	}
+
+	/**
+	 * Accepts connections until the passed {@link ServerSocket} is closed.
+	 */
+	private void accept(ServerSocket serverSocket) {
+		while (!serverSocket.isClosed()) {
+			try {
+				Socket socket = serverSocket.accept();
+				try {
+					connectionOptions.applyTo(socket);
+					open(socket);
+				} catch (IOException e) {
+					e.printStackTrace();
+					socket.close();
+				}
+			} catch (IOException e) {
+				if (!serverSocket.isClosed()) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Opens an outbound connection to the passed address.
+	 *
+	 * @param address to be connected to
+	 * @param port    to be connected to
+	 * @return the established {@link Connection}
+	 * @throws IOException if the connection can't be established
+	 */
+	public Connection connect(String address, int port) throws IOException {
+		Socket socket = new Socket();
+		try {
+			connectionOptions.applyTo(socket);
+			socket.connect(new InetSocketAddress(address, port));
+			return open(socket);
+		} catch (IOException e) {
+			socket.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Starts the {@link Thread} of a newly connected socket.
+	 */
+	private Connection open(Socket socket) throws IOException {
+		BlockingConnection connection = new BlockingConnection(this, socket);
+		connections.add(connection);
+		threadFactory.newThread(connection).start();
+		return connection;
+	}
+
+	/**
+	 * Stops accepting connections and closes all the open ones.
+	 */
+	public synchronized void stop() {
+		if (serverSocket == null) {
+			return;
+		}
+
+		try {
+			serverSocket.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		for (Connection connection : getConnections()) {
+			connection.close();
+		}
+		serverSocket = null;
+	}
+
+	/**
+	 * Forgets a closed connection.
+	 *
+	 * @param connection which has been closed
+	 */
+	void removeConnection(Connection connection) {
+		connections.remove(connection);
+	}
+
+	/**
+	 * @return the port the server listens on
+	 */
+	public synchronized int getPort() {
+		if (serverSocket == null) {
+			throw new IllegalStateException("The server is not running");
+		}
+		return serverSocket.getLocalPort();
+	}
+
+	/**
+	 * @return snapshot of the currently open connections
+	 */
+	public List<Connection> getConnections() {
+		return new ArrayList<Connection>(connections);
+	}
+
+	/**
+	 * @return number of the currently open connections
+	 */
+	public int getConnectionCount() {
+		return connections.size();
+	}
+
+	/**
+	 * @return the {@link ExecutionMode} of the server
+	 */
+	public ExecutionMode getExecutionMode() {
+		return executionMode;
+	}
+
+	/**
+	 * @return the {@link ConnectionListener} of the server
+	 */
+	ConnectionListener getListener() {
+		return listener;
+	}
+
+	/**
+	 * @return the options applied to the new connections
+	 */
+	ConnectionOptions getConnectionOptions() {
+		return connectionOptions;
+	}
+
+	/**
+	 * Sets the options applied to the connections established after the call.
+	 *
+	 * @param connectionOptions to be applied
+	 */
+	public void setConnectionOptions(ConnectionOptions connectionOptions) {
+		if (connectionOptions == null) {
+			throw new NullPointerException("connectionOptions");
+		}
+		this.connectionOptions = connectionOptions;
+	}
+
+	/**
+	 * @return maximum size of a frame payload
+	 */
+	public int getMaxFrameSize() {
+		return maxFrameSize;
+	}
+
+	/**
+	 * Sets the maximum size of a frame payload. Longer messages are split into
+	 * several frames.
+	 *
+	 * @param maxFrameSize in bytes
+	 */
+	public void setMaxFrameSize(int maxFrameSize) {
+		if (maxFrameSize <= 0) {
+			throw new IllegalArgumentException("maxFrameSize");
+		}
+		this.maxFrameSize = maxFrameSize;
+	}
+
+	/**
+	 * @return maximum size of a received message
+	 */
+	public int getMaxMessageSize() {
+		return maxMessageSize;
+	}
+
+	/**
+	 * Sets the maximum size of a received message. A longer message closes the
+	 * connection.
+	 *
+	 * @param maxMessageSize in bytes
+	 */
+	public void setMaxMessageSize(int maxMessageSize) {
+		if (maxMessageSize <= 0) {
+			throw new IllegalArgumentException("maxMessageSize");
+		}
+		this.maxMessageSize = maxMessageSize;
+	}
+}
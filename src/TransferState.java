@@ -0,0 +1,29 @@
+/**
+ * 
+ * Reflects the state of a {@link FileTransfer}.
+ *
+ */
+public enum TransferState {
+	/**
+	 * Indicates that the file has been offered and the receiver hasn't answered
+	 * yet.
+	 */
+	WAITING,
+
+	/**
+	 * Indicates that the chunks of the file are being sent.
+	 */
+	RUNNING,
+
+	/**
+	 * Indicates that the whole file has been sent or received.
+	 */
+	COMPLETED,
+
+	/**
+	 * Indicates that the transfer has been declined, cancelled or interrupted.
+	 * A received file keeps its partial content and resumes once it's offered
+	 * again.
+	 */
+	FAILED;
+}
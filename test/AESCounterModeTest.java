@@ -0,0 +1,85 @@
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.junit.Test;
+
+/**
+ *
+ * Tests of {@link AESCounterMode} against the CTR mode of the JCA, serially
+ * and in parallel.
+ *
+ */
+public class AESCounterModeTest {
+	private final static byte[] KEY = AESTest.hex("2b7e151628aed2a6abf7158809cf4f3c");
+
+	@Test
+	public void matchesJca() throws Exception {
+		for (int length : new int[] { 0, 1, 15, 16, 17, 1000 }) {
+			byte[] data = random(length, length);
+			byte[] encrypted = new AESCounterMode().encrypt(data, KEY);
+			assertEquals(AESCounterMode.NONCE_SIZE + length, encrypted.length);
+			assertArrayEquals(jcaEncrypt(data, Arrays.copyOf(encrypted, AESCounterMode.NONCE_SIZE)),
+					Arrays.copyOfRange(encrypted, AESCounterMode.NONCE_SIZE, encrypted.length));
+			assertArrayEquals(data, new AESCounterMode().decrypt(encrypted, KEY));
+		}
+	}
+
+	@Test
+	public void encryptsInParallel() throws Exception {
+		int threshold = AESCounterMode.getParallelThreshold();
+		AESCounterMode.setParallelThreshold(1024);
+		try {
+			// Several chunks, the last one partial
+			byte[] data = random(5 * 64 * 1024 + 7, 4);
+			byte[] encrypted = new AESCounterMode().encrypt(data, KEY);
+			assertArrayEquals(jcaEncrypt(data, Arrays.copyOf(encrypted, AESCounterMode.NONCE_SIZE)),
+					Arrays.copyOfRange(encrypted, AESCounterMode.NONCE_SIZE, encrypted.length));
+			assertArrayEquals(data, new AESCounterMode().decrypt(encrypted, KEY));
+		} finally {
+			AESCounterMode.setParallelThreshold(threshold);
+		}
+	}
+
+	@Test
+	public void decryptsBuffersInPlace() {
+		byte[] data = random(100, 5);
+		ByteBuffer buffer = ByteBuffer.wrap(new AESCounterMode().encrypt(data, KEY));
+		ByteBuffer decrypted = new AESCounterMode().decrypt(buffer, KEY);
+		assertEquals(buffer.limit(), buffer.position());
+		byte[] actual = new byte[decrypted.remaining()];
+		decrypted.get(actual);
+		assertArrayEquals(data, actual);
+	}
+
+	@Test
+	public void usesFreshNonces() {
+		byte[] data = random(32, 6);
+		AESCounterMode ctr = new AESCounterMode();
+		assertFalse(Arrays.equals(ctr.encrypt(data, KEY), ctr.encrypt(data, KEY)));
+	}
+
+	/**
+	 * Encrypts with the JCA, the counter block being the nonce followed by a 4
+	 * bytes counter starting from zero.
+	 */
+	private static byte[] jcaEncrypt(byte[] data, byte[] nonce) throws Exception {
+		javax.crypto.Cipher cipher = javax.crypto.Cipher.getInstance("AES/CTR/NoPadding");
+		cipher.init(javax.crypto.Cipher.ENCRYPT_MODE, new SecretKeySpec(KEY, "AES"),
+				new IvParameterSpec(Arrays.copyOf(nonce, AES.BLOCK_SIZE)));
+		return cipher.doFinal(data);
+	}
+
+	private static byte[] random(int length, long seed) {
+		byte[] data = new byte[length];
+		new Random(seed).nextBytes(data);
+		return data;
+	}
+}
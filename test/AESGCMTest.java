@@ -0,0 +1,55 @@
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ *
+ * Round trips of {@link AESGCM} and the rejection of modified messages.
+ *
+ */
+public class AESGCMTest {
+	private final static byte[] KEY = AESTest.hex("000102030405060708090a0b0c0d0e0f");
+
+	@Test
+	public void roundTrips() {
+		AESGCM gcm = new AESGCM();
+		for (int length : new int[] { 0, 1, 16, 1000 }) {
+			byte[] data = new byte[length];
+			new Random(length).nextBytes(data);
+			byte[] encrypted = gcm.encrypt(data, KEY);
+			assertEquals(AESGCM.NONCE_SIZE + length + AESGCM.TAG_SIZE, encrypted.length);
+			assertArrayEquals(data, gcm.decrypt(encrypted, KEY));
+		}
+	}
+
+	@Test
+	public void decryptsBuffersInPlace() {
+		AESGCM gcm = new AESGCM();
+		byte[] data = "in place".getBytes(Crypto.getCharset());
+		ByteBuffer buffer = ByteBuffer.wrap(gcm.encrypt(data, KEY));
+		ByteBuffer decrypted = gcm.decrypt(buffer, KEY);
+		assertEquals(buffer.limit(), buffer.position());
+		byte[] actual = new byte[decrypted.remaining()];
+		decrypted.get(actual);
+		assertArrayEquals(data, actual);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsModifiedMessages() {
+		AESGCM gcm = new AESGCM();
+		byte[] encrypted = gcm.encrypt("authenticated".getBytes(Crypto.getCharset()), KEY);
+		encrypted[AESGCM.NONCE_SIZE] ^= 1;
+		gcm.decrypt(encrypted, KEY);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsOtherKeys() {
+		AESGCM gcm = new AESGCM();
+		byte[] encrypted = gcm.encrypt("authenticated".getBytes(Crypto.getCharset()), KEY);
+		gcm.decrypt(encrypted, AESTest.hex("2b7e151628aed2a6abf7158809cf4f3c"));
+	}
+}
@@ -0,0 +1,110 @@
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ *
+ * Known-answer tests of the {@link AES} core from FIPS-197 and round trips of
+ * its array and buffer APIs.
+ *
+ */
+public class AESTest {
+	/**
+	 * Cipher example of FIPS-197 appendix B.
+	 */
+	@Test
+	public void encryptsAppendixB() {
+		byte[] key = hex("2b7e151628aed2a6abf7158809cf4f3c");
+		byte[] plaintext = hex("3243f6a8885a308d313198a2e0370734");
+		byte[] ciphertext = hex("3925841d02dc09fbdc118597196a0b32");
+
+		assertArrayEquals(ciphertext, new AES().encrypt(plaintext, key));
+		assertArrayEquals(plaintext, new AES().decrypt(ciphertext, key));
+	}
+
+	/**
+	 * AES-128 example vector of FIPS-197 appendix C.1.
+	 */
+	@Test
+	public void encryptsAppendixC1() {
+		byte[] key = hex("000102030405060708090a0b0c0d0e0f");
+		byte[] plaintext = hex("00112233445566778899aabbccddeeff");
+		byte[] ciphertext = hex("69c4e0d86a7b0430d8cdb78070b4c55a");
+
+		AES aes = new AES(key);
+		byte[] result = new byte[AES.BLOCK_SIZE];
+		assertEquals(AES.BLOCK_SIZE, aes.encrypt(plaintext, 0, plaintext.length, result, 0));
+		assertArrayEquals(ciphertext, result);
+		assertEquals(AES.BLOCK_SIZE, aes.decrypt(ciphertext, 0, ciphertext.length, result, 0));
+		assertArrayEquals(plaintext, result);
+	}
+
+	@Test
+	public void padsWithZeros() {
+		byte[] key = hex("000102030405060708090a0b0c0d0e0f");
+		byte[] data = new byte[37];
+		new Random(1).nextBytes(data);
+
+		AES aes = new AES();
+		byte[] encrypted = aes.encrypt(data, key);
+		assertEquals(48, encrypted.length);
+		byte[] decrypted = aes.decrypt(encrypted, key);
+		assertArrayEquals(data, Arrays.copyOf(decrypted, data.length));
+		assertArrayEquals(new byte[48 - 37], Arrays.copyOfRange(decrypted, data.length, 48));
+	}
+
+	@Test
+	public void encryptsDirectBuffers() {
+		byte[] key = hex("2b7e151628aed2a6abf7158809cf4f3c");
+		byte[] data = new byte[1000];
+		new Random(2).nextBytes(data);
+
+		AES aes = new AES(key);
+		ByteBuffer src = ByteBuffer.allocateDirect(data.length);
+		src.put(data).flip();
+		ByteBuffer encrypted = ByteBuffer.allocateDirect(AES.paddedLength(data.length));
+		aes.encrypt(src, encrypted);
+		encrypted.flip();
+
+		byte[] expected = new AES().encrypt(data, key);
+		byte[] actual = new byte[encrypted.remaining()];
+		encrypted.duplicate().get(actual);
+		assertArrayEquals(expected, actual);
+
+		ByteBuffer decrypted = ByteBuffer.allocate(encrypted.remaining());
+		aes.decrypt(encrypted, decrypted);
+		assertArrayEquals(data, Arrays.copyOf(decrypted.array(), data.length));
+	}
+
+	@Test
+	public void decryptsBuffersInPlace() {
+		byte[] key = hex("000102030405060708090a0b0c0d0e0f");
+		byte[] data = new byte[64];
+		new Random(3).nextBytes(data);
+
+		AES aes = new AES();
+		ByteBuffer buffer = ByteBuffer.wrap(aes.encrypt(data, key));
+		ByteBuffer decrypted = aes.decrypt(buffer, key);
+		assertEquals(buffer.limit(), buffer.position());
+		byte[] actual = new byte[decrypted.remaining()];
+		decrypted.get(actual);
+		assertArrayEquals(data, actual);
+	}
+
+	/**
+	 * @param hex string of an even number of hexadecimal digits
+	 * @return the bytes of the string
+	 */
+	static byte[] hex(String hex) {
+		byte[] bytes = new byte[hex.length() / 2];
+		for (int i = 0; i < bytes.length; i++) {
+			bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+		}
+		return bytes;
+	}
+}
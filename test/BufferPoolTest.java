@@ -0,0 +1,129 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+/**
+ *
+ * Size classes, reuse and reference counting of the buffers of a
+ * {@link BufferPool}.
+ *
+ */
+public class BufferPoolTest {
+	private final BufferPool pool = new BufferPool(false);
+
+	@Test
+	public void roundsUpToTheSizeClasses() {
+		assertEquals(BufferPool.MIN_BUFFER_SIZE, capacityOf(0));
+		assertEquals(BufferPool.MIN_BUFFER_SIZE, capacityOf(1));
+		assertEquals(512, capacityOf(257));
+		assertEquals(4096, capacityOf(4096));
+		assertEquals(BufferPool.MAX_BUFFER_SIZE, capacityOf(BufferPool.MAX_BUFFER_SIZE));
+		// Too large to be pooled, allocated at the requested size
+		assertEquals(BufferPool.MAX_BUFFER_SIZE + 1, capacityOf(BufferPool.MAX_BUFFER_SIZE + 1));
+
+		PooledBuffer pooled = pool.acquire(300);
+		assertEquals(0, pooled.buffer().position());
+		assertEquals(300, pooled.buffer().limit());
+		assertFalse(pooled.buffer().isDirect());
+		assertTrue(new BufferPool(true).acquire(300).buffer().isDirect());
+	}
+
+	private int capacityOf(int capacity) {
+		PooledBuffer pooled = pool.acquire(capacity);
+		int result = pooled.buffer().capacity();
+		pooled.release();
+		return result;
+	}
+
+	@Test
+	public void reusesTheLastReleasedBuffer() {
+		PooledBuffer first = pool.acquire(1000);
+		PooledBuffer second = pool.acquire(1000);
+		ByteBuffer buffer = second.buffer();
+		first.release();
+		second.release();
+
+		PooledBuffer reused = pool.acquire(600);
+		assertSame(buffer, reused.buffer());
+		assertEquals(0, reused.buffer().position());
+		assertEquals(600, reused.buffer().limit());
+		assertNotSame(buffer, pool.acquire(2000).buffer());
+	}
+
+	@Test
+	public void keepsALimitedNumberOfBuffersPerSizeClass() {
+		// The largest size class keeps two buffers
+		PooledBuffer[] acquired = new PooledBuffer[3];
+		for (int i = 0; i < acquired.length; i++) {
+			acquired[i] = pool.acquire(BufferPool.MAX_BUFFER_SIZE);
+		}
+		for (PooledBuffer pooled : acquired) {
+			pooled.release();
+		}
+
+		assertSame(acquired[1].unwrap(), pool.acquire(BufferPool.MAX_BUFFER_SIZE).buffer());
+		assertSame(acquired[0].unwrap(), pool.acquire(BufferPool.MAX_BUFFER_SIZE).buffer());
+		assertNotSame(acquired[2].unwrap(), pool.acquire(BufferPool.MAX_BUFFER_SIZE).buffer());
+	}
+
+	@Test
+	public void recyclesOnceTheLastReferenceIsReleased() {
+		PooledBuffer pooled = pool.acquire(100);
+		ByteBuffer buffer = pooled.buffer();
+		assertSame(pooled, pooled.retain());
+		assertEquals(2, pooled.getReferenceCount());
+
+		assertFalse(pooled.release());
+		assertNotSame(buffer, pool.acquire(100).buffer());
+		assertTrue(pooled.release());
+		assertEquals(0, pooled.getReferenceCount());
+		assertSame(buffer, pool.acquire(100).buffer());
+	}
+
+	@Test
+	public void refusesReleasedBuffers() {
+		PooledBuffer pooled = pool.acquire(100);
+		pooled.release();
+		try {
+			pooled.buffer();
+			fail("A released buffer is still usable");
+		} catch (IllegalStateException e) {
+			// Expected
+		}
+		try {
+			pooled.retain();
+			fail("A released buffer has been retained");
+		} catch (IllegalStateException e) {
+			// Expected
+		}
+		try {
+			pooled.release();
+			fail("A buffer has been released twice");
+		} catch (IllegalStateException e) {
+			// Expected
+		}
+		assertEquals(0, pooled.getReferenceCount());
+	}
+
+	@Test
+	public void appendGrowsTheBuffer() {
+		PooledBuffer pooled = pool.append(null, ByteBuffer.wrap(new byte[] { 1, 2, 3 }));
+		assertEquals(BufferPool.MIN_BUFFER_SIZE, pooled.buffer().capacity());
+
+		byte[] data = new byte[BufferPool.MIN_BUFFER_SIZE];
+		data[data.length - 1] = 4;
+		PooledBuffer grown = pool.append(pooled, ByteBuffer.wrap(data));
+		assertNotSame(pooled, grown);
+		assertEquals(0, pooled.getReferenceCount());
+		assertEquals(3 + data.length, grown.buffer().position());
+		assertEquals(3, grown.buffer().get(2));
+		assertEquals(4, grown.buffer().get(2 + data.length));
+	}
+}
@@ -0,0 +1,48 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+/**
+ *
+ * Tests of {@link ConnectionOptions#fromParameters(java.util.function.Function)}.
+ *
+ */
+public class ConnectionOptionsTest {
+	@Test
+	public void keepsTheDefaults() {
+		ConnectionOptions options = ConnectionOptions.fromParameters(name -> null);
+		ConnectionOptions defaults = new ConnectionOptions();
+		assertTrue(options.isTcpNoDelay());
+		assertEquals(defaults.getWriteBufferSize(), options.getWriteBufferSize());
+		assertEquals(defaults.getHighWatermark(), options.getHighWatermark());
+	}
+
+	@Test
+	public void readsTheSocketOptions() {
+		Map<String, String> parameters = new HashMap<String, String>();
+		parameters.put("tcp-nodelay", "false");
+		parameters.put("send-buffer", "131072");
+		parameters.put("receive-buffer", "65536");
+		parameters.put("write-buffer", "8192");
+		parameters.put("flush-delay", "50");
+		ConnectionOptions options = ConnectionOptions.fromParameters(parameters::get);
+
+		assertFalse(options.isTcpNoDelay());
+		assertEquals(131072, options.getSendBufferSize());
+		assertEquals(65536, options.getReceiveBufferSize());
+		assertEquals(8192, options.getWriteBufferSize());
+		assertEquals(50, options.getFlushDelayMicros());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsInvalidSizes() {
+		Map<String, String> parameters = new HashMap<String, String>();
+		parameters.put("write-buffer", "0");
+		ConnectionOptions.fromParameters(parameters::get);
+	}
+}
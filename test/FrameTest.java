@@ -0,0 +1,167 @@
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+/**
+ *
+ * Round trips of the messages encoded by {@link Frame} through
+ * {@link Frame#read(java.io.InputStream, int)} and the {@link FrameDecoder}.
+ *
+ */
+public class FrameTest {
+	private final static int MAX_FRAME_SIZE = 256;
+
+	@Test
+	public void roundTripsVarints() throws IOException {
+		byte[] array = new byte[5];
+		for (int value : new int[] { 0, 1, 127, 128, 16383, 16384, Integer.MAX_VALUE }) {
+			int length = Frame.writeVarint(array, 0, value);
+			assertEquals(value, Frame.readVarint(new ByteArrayInputStream(array, 0, length)));
+		}
+	}
+
+	@Test
+	public void splitsLongMessages() throws IOException {
+		byte[] message = random(1000);
+		ByteArrayInputStream in = new ByteArrayInputStream(
+				concat(Frame.encodeMessage(message, Frame.FLAG_COMPRESSED, true, MAX_FRAME_SIZE)));
+
+		ByteArrayOutputStream payload = new ByteArrayOutputStream();
+		List<Frame> frames = new ArrayList<Frame>();
+		while (in.available() > 0) {
+			Frame frame = Frame.read(in, MAX_FRAME_SIZE);
+			frames.add(frame);
+			payload.write(frame.getPayload());
+		}
+		assertEquals(4, frames.size());
+		for (int i = 0; i < frames.size(); i++) {
+			assertEquals(Frame.TYPE_MESSAGE, frames.get(i).getType());
+			assertTrue(frames.get(i).isCompressed());
+			assertEquals(i < frames.size() - 1, frames.get(i).hasMore());
+		}
+		assertArrayEquals(message, payload.toByteArray());
+	}
+
+	@Test
+	public void encodesLegacyMessages() {
+		byte[] encoded = concat(Frame.encodeMessage("abc".getBytes(Crypto.getCharset()), false, MAX_FRAME_SIZE));
+		assertArrayEquals(new byte[] { 3, 'a', 'b', 'c' }, encoded);
+		// An empty message would be taken for a HELLO
+		assertEquals(0, Frame.encodeMessage(new byte[0], false, MAX_FRAME_SIZE).length);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void refusesLongLegacyMessages() {
+		Frame.encodeMessage(new byte[Frame.LEGACY_MAX_MESSAGE_SIZE + 1], false, MAX_FRAME_SIZE);
+	}
+
+	@Test
+	public void detectsLegacyPeers() throws IOException {
+		FrameDecoder decoder = new FrameDecoder(MAX_FRAME_SIZE, () -> {
+		});
+		assertNull(decoder.decode(ByteBuffer.wrap(new byte[] { 3, 'a', 'b' })));
+		assertTrue(decoder.isLegacyPeer());
+
+		FrameDecoder framed = new FrameDecoder(MAX_FRAME_SIZE, () -> {
+		});
+		framed.decode(ByteBuffer.wrap(new byte[] { Frame.HELLO, 3, 'a', 'b', 'c' }));
+		assertFalse(framed.isLegacyPeer());
+	}
+
+	@Test
+	public void decodesIncrementally() throws IOException {
+		byte[] message = random(700);
+		ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		stream.write(new byte[] { 3, 'a', 'b', 'c' });
+		stream.write(new byte[] { Frame.HELLO, Frame.HELLO, Frame.VERSION });
+		stream.write(concat(Frame.encodeMessage(message, true, MAX_FRAME_SIZE)));
+		byte[] ping = { 1, 2, 3, 4, 5, 6, 7, 8 };
+		stream.write(concat(new ByteBuffer[] { Frame.header(Frame.TYPE_PING, 0, ping.length), ByteBuffer.wrap(ping) }));
+
+		AtomicInteger hellos = new AtomicInteger();
+		FrameDecoder decoder = new FrameDecoder(MAX_FRAME_SIZE, hellos::incrementAndGet);
+		List<Frame> frames = new ArrayList<Frame>();
+		// The data arrives one byte at a time
+		for (byte b : stream.toByteArray()) {
+			Frame frame = decoder.decode(ByteBuffer.wrap(new byte[] { b }));
+			if (frame != null) {
+				frames.add(frame);
+			}
+		}
+
+		assertEquals(1, hellos.get());
+		assertEquals(5, frames.size());
+		assertArrayEquals("abc".getBytes(Crypto.getCharset()), frames.get(0).getPayload());
+		ByteArrayOutputStream payload = new ByteArrayOutputStream();
+		for (Frame frame : frames.subList(1, 4)) {
+			assertEquals(Frame.TYPE_MESSAGE, frame.getType());
+			payload.write(frame.getPayload());
+		}
+		assertArrayEquals(message, payload.toByteArray());
+		assertFalse(frames.get(3).hasMore());
+		assertTrue(frames.get(4).isHeartbeat());
+		assertArrayEquals(ping, frames.get(4).getPayload());
+	}
+
+	@Test
+	public void decodesIntoPooledBuffers() throws IOException {
+		byte[] message = random(200);
+		ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		stream.write(new byte[] { Frame.HELLO, Frame.HELLO, Frame.VERSION });
+		stream.write(concat(Frame.encodeMessage(message, true, MAX_FRAME_SIZE)));
+
+		FrameDecoder decoder = new FrameDecoder(MAX_FRAME_SIZE, () -> {
+		}, new BufferPool(false));
+		ByteBuffer in = ByteBuffer.wrap(stream.toByteArray());
+		Frame frame = decoder.decode(in);
+		assertFalse(in.hasRemaining());
+
+		ByteBuffer payload = frame.getPayloadBuffer();
+		byte[] actual = new byte[payload.remaining()];
+		payload.get(actual);
+		assertArrayEquals(message, actual);
+		frame.release();
+		assertNull(decoder.decode(ByteBuffer.allocate(0)));
+	}
+
+	@Test(expected = IOException.class)
+	public void rejectsOversizedFrames() throws IOException {
+		FrameDecoder decoder = new FrameDecoder(MAX_FRAME_SIZE, () -> {
+		});
+		decoder.decode(ByteBuffer.wrap(new byte[] { Frame.HELLO, Frame.HELLO, Frame.VERSION }));
+		decoder.decode(Frame.header(Frame.TYPE_MESSAGE, 0, MAX_FRAME_SIZE + 1));
+	}
+
+	/**
+	 * @param buffers to be concatenated
+	 * @return the remaining bytes of all the buffers
+	 */
+	private static byte[] concat(ByteBuffer[] buffers) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		for (ByteBuffer buffer : buffers) {
+			byte[] bytes = new byte[buffer.remaining()];
+			buffer.duplicate().get(bytes);
+			out.write(bytes, 0, bytes.length);
+		}
+		return out.toByteArray();
+	}
+
+	private static byte[] random(int length) {
+		byte[] data = new byte[length];
+		new Random(length).nextBytes(data);
+		return data;
+	}
+}
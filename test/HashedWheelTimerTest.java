@@ -0,0 +1,103 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ *
+ * Expiry and cancellation of the timeouts of a {@link HashedWheelTimer}.
+ *
+ */
+public class HashedWheelTimerTest {
+	private final static long TICK_MILLIS = 10;
+
+	private final HashedWheelTimer timer = new HashedWheelTimer("TestTimer", TICK_MILLIS, 4);
+
+	@After
+	public void stop() {
+		timer.stop();
+	}
+
+	@Test
+	public void expiresInTheOrderOfTheDelays() throws InterruptedException {
+		List<Integer> expired = Collections.synchronizedList(new ArrayList<Integer>());
+		CountDownLatch done = new CountDownLatch(3);
+		timer.newTimeout(() -> {
+			expired.add(3);
+			done.countDown();
+		}, 150);
+		timer.newTimeout(() -> {
+			expired.add(1);
+			done.countDown();
+		}, 0);
+		timer.newTimeout(() -> {
+			expired.add(2);
+			done.countDown();
+		}, 60);
+
+		assertTrue(done.await(5, TimeUnit.SECONDS));
+		assertEquals(Arrays.asList(1, 2, 3), expired);
+		assertEquals(0, timer.getPendingCount());
+	}
+
+	@Test
+	public void waitsForTheRoundsOfTheWheel() throws InterruptedException {
+		CountDownLatch done = new CountDownLatch(1);
+		long start = System.nanoTime();
+		// Ten turns of a wheel of four buckets
+		HashedWheelTimer.Timeout timeout = timer.newTimeout(done::countDown, 40 * TICK_MILLIS);
+
+		assertTrue(done.await(5, TimeUnit.SECONDS));
+		assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 40 * TICK_MILLIS);
+		assertTrue(timeout.isExpired());
+		assertFalse(timeout.cancel());
+	}
+
+	@Test
+	public void cancelledTimeoutsNeverRun() throws InterruptedException {
+		CountDownLatch cancelledRun = new CountDownLatch(1);
+		CountDownLatch done = new CountDownLatch(1);
+		HashedWheelTimer.Timeout cancelled = timer.newTimeout(cancelledRun::countDown, 50);
+		timer.newTimeout(done::countDown, 100);
+		assertEquals(2, timer.getPendingCount());
+
+		assertTrue(cancelled.cancel());
+		assertFalse(cancelled.cancel());
+		assertEquals(1, timer.getPendingCount());
+
+		assertTrue(done.await(5, TimeUnit.SECONDS));
+		assertEquals(1, cancelledRun.getCount());
+		assertFalse(cancelled.isExpired());
+	}
+
+	@Test
+	public void survivesFailingTasks() throws InterruptedException {
+		CountDownLatch done = new CountDownLatch(1);
+		timer.newTimeout(() -> {
+			throw new IllegalStateException("Expected by the test");
+		}, 0);
+		timer.newTimeout(done::countDown, 20);
+		assertTrue(done.await(5, TimeUnit.SECONDS));
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void refusesTimeoutsOnceStopped() {
+		timer.stop();
+		timer.newTimeout(() -> {
+		}, 0);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void refusesAnEmptyWheel() {
+		new HashedWheelTimer("TestTimer", TICK_MILLIS, 0);
+	}
+}
@@ -0,0 +1,93 @@
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ *
+ * Heartbeats and idle timeouts of an {@link IdleMonitor}.
+ *
+ */
+public class IdleMonitorTest {
+	private final CountDownLatch pinged = new CountDownLatch(1);
+	private final CountDownLatch timedOut = new CountDownLatch(1);
+	private IdleMonitor monitor;
+
+	@After
+	public void stop() {
+		if (monitor != null) {
+			monitor.stop();
+		}
+	}
+
+	private IdleMonitor start(long heartbeatIntervalMillis, long idleTimeoutMillis, boolean pings) {
+		ConnectionOptions options = new ConnectionOptions();
+		options.setHeartbeatIntervalMillis(heartbeatIntervalMillis);
+		options.setIdleTimeoutMillis(idleTimeoutMillis);
+		monitor = new IdleMonitor(options, pings ? payload -> {
+			pinged.countDown();
+			return true;
+		} : null, timedOut::countDown);
+		monitor.start();
+		return monitor;
+	}
+
+	private static Frame heartbeat(int type, byte[] payload) {
+		return new Frame(type, 0, payload);
+	}
+
+	@Test
+	public void pingsAfterTheHeartbeatInterval() throws InterruptedException {
+		start(200, 0, true);
+		assertFalse(pinged.await(100, TimeUnit.MILLISECONDS));
+		assertTrue(pinged.await(5, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void timesOutOncePeerHeartbeatsStop() throws InterruptedException {
+		start(0, 300, false);
+		monitor.heartbeatReceived(heartbeat(Frame.TYPE_PING, new byte[0]));
+		assertFalse(timedOut.await(100, TimeUnit.MILLISECONDS));
+		assertTrue(timedOut.await(5, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void readsPostponeTheTimeout() throws InterruptedException {
+		start(0, 300, false);
+		monitor.heartbeatReceived(heartbeat(Frame.TYPE_PING, new byte[0]));
+		for (int i = 0; i < 8; i++) {
+			Thread.sleep(100);
+			monitor.read();
+		}
+		assertFalse(timedOut.await(0, TimeUnit.MILLISECONDS));
+		assertTrue(timedOut.await(5, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void ignoresSilentPeersWhichNeverSentAHeartbeat() throws InterruptedException {
+		start(0, 100, false);
+		assertFalse(timedOut.await(500, TimeUnit.MILLISECONDS));
+	}
+
+	@Test
+	public void neverTimesOutOnceStopped() throws InterruptedException {
+		start(0, 100, false);
+		monitor.heartbeatReceived(heartbeat(Frame.TYPE_PING, new byte[0]));
+		monitor.stop();
+		assertFalse(timedOut.await(500, TimeUnit.MILLISECONDS));
+	}
+
+	@Test
+	public void answersPingsWithTheirPayload() {
+		start(0, 0, false);
+		byte[] payload = { 1, 2, 3 };
+		assertArrayEquals(payload, monitor.heartbeatReceived(heartbeat(Frame.TYPE_PING, payload)));
+		assertNull(monitor.heartbeatReceived(heartbeat(Frame.TYPE_PONG, new byte[8])));
+	}
+}
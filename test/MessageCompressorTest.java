@@ -0,0 +1,65 @@
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+import java.util.zip.DataFormatException;
+
+import org.junit.Test;
+
+/**
+ *
+ * Round trips of the {@link MessageCompressor} and its limits.
+ *
+ */
+public class MessageCompressorTest {
+	private final static byte[] LOG_LINE = ("2026-01-01T00:00:00.000Z [main] [ERROR] failed to connect to localhost, "
+			+ "Caused by: java.io.IOException: timeout, retry 3 of 5 {\"status\":\"ok\",\"code\":200}")
+					.getBytes(Crypto.getCharset());
+
+	@Test
+	public void roundTrips() throws DataFormatException {
+		MessageCompressor compressor = new MessageCompressor();
+		byte[] compressed = compressor.compress(LOG_LINE);
+		assertNotNull(compressed);
+		assertTrue(compressed.length < LOG_LINE.length);
+		assertArrayEquals(LOG_LINE, compressor.decompress(compressed, LOG_LINE.length));
+	}
+
+	@Test
+	public void skipsShortAndRandomMessages() {
+		MessageCompressor compressor = new MessageCompressor();
+		assertNull(compressor.compress("short".getBytes(Crypto.getCharset())));
+
+		byte[] random = new byte[1000];
+		new Random(1).nextBytes(random);
+		assertNull(compressor.compress(random));
+
+		assertNull(new MessageCompressor(0).compress(LOG_LINE));
+	}
+
+	@Test(expected = DataFormatException.class)
+	public void limitsTheDecompressedSize() throws DataFormatException {
+		MessageCompressor compressor = new MessageCompressor();
+		compressor.decompress(compressor.compress(LOG_LINE), LOG_LINE.length - 1);
+	}
+
+	@Test(expected = DataFormatException.class)
+	public void rejectsTruncatedMessages() throws DataFormatException {
+		MessageCompressor compressor = new MessageCompressor();
+		byte[] compressed = compressor.compress(LOG_LINE);
+		byte[] truncated = new byte[compressed.length / 2];
+		System.arraycopy(compressed, 0, truncated, 0, truncated.length);
+		compressor.decompress(truncated, LOG_LINE.length);
+	}
+
+	@Test(expected = DataFormatException.class)
+	public void stopsOnceClosed() throws DataFormatException {
+		MessageCompressor compressor = new MessageCompressor();
+		byte[] compressed = compressor.compress(LOG_LINE);
+		compressor.close();
+		assertNull(compressor.compress(LOG_LINE));
+		compressor.decompress(compressed, LOG_LINE.length);
+	}
+}
@@ -0,0 +1,142 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.stream.Stream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ *
+ * Appending, reading and recovering the {@link LogSegment}s of a
+ * {@link MessageLog} after it was closed or crashed.
+ *
+ */
+public class MessageLogTest {
+	/**
+	 * Size of a record of {@link #record(int)}: header, fixed body, peer and
+	 * payload.
+	 */
+	private final static int RECORD_SIZE = 8 + 12 + 4 + 11;
+	private final static int SEGMENT_SIZE = 4096;
+	private final static String FIRST_SEGMENT = String.format("%020d", 0);
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private MessageLog open(int maxSegments) throws IOException {
+		MessageLogOptions options = new MessageLogOptions();
+		options.setSegmentSize(SEGMENT_SIZE);
+		options.setMaxSegments(maxSegments);
+		return MessageLog.open(folder.getRoot().toPath(), options);
+	}
+
+	private static LogRecord record(int number) {
+		return LogRecord.plaintext(number, "peer", Style.USER, String.format("message %03d", number));
+	}
+
+	private static String textOf(LogRecord record) {
+		return new String(record.getPayload(), StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Appends the passed number of records, waits until they are on the disk and
+	 * closes the log.
+	 */
+	private void fill(int count) throws IOException, InterruptedException {
+		try (MessageLog log = open(0)) {
+			long sequence = -1;
+			for (int i = 0; i < count; i++) {
+				sequence = log.append(record(i));
+			}
+			log.awaitCommit(sequence);
+		}
+	}
+
+	private Path segmentFile(String suffix) {
+		return folder.getRoot().toPath().resolve(FIRST_SEGMENT + suffix);
+	}
+
+	@Test
+	public void readsTheRecordsBackAfterReopening() throws IOException, InterruptedException {
+		// Three segments of 116 records
+		fill(300);
+		try (MessageLog log = open(0)) {
+			assertEquals(0, log.getFirstSequence());
+			assertEquals(300, log.getNextSequence());
+
+			List<LogRecord> last = log.readLast(3);
+			assertEquals(3, last.size());
+			assertEquals("message 297", textOf(last.get(0)));
+			assertEquals("message 299", textOf(last.get(2)));
+			assertEquals(Style.USER, last.get(2).getStyle());
+			assertEquals("peer", last.get(2).getPeer());
+			assertEquals(299, last.get(2).getTimestamp());
+
+			// Crosses the end of the first segment
+			List<LogRecord> records = log.read(110, 10);
+			for (int i = 0; i < records.size(); i++) {
+				assertEquals(String.format("message %03d", 110 + i), textOf(records.get(i)));
+			}
+			assertEquals(10, records.size());
+			assertEquals(300, log.append(record(300)));
+		}
+	}
+
+	@Test
+	public void dropsATornRecord() throws IOException, InterruptedException {
+		fill(100);
+		try (FileChannel channel = FileChannel.open(segmentFile(".log"), StandardOpenOption.WRITE)) {
+			// Damages the payload of the last record, as if the crash came mid-write
+			channel.write(ByteBuffer.wrap(new byte[] { '?' }), 8 + 99 * RECORD_SIZE + RECORD_SIZE - 1);
+		}
+
+		try (MessageLog log = open(0)) {
+			assertEquals(99, log.getNextSequence());
+			assertEquals("message 098", textOf(log.readLast(1).get(0)));
+			assertEquals(99, log.append(record(500)));
+			assertEquals("message 500", textOf(log.readLast(1).get(0)));
+		}
+	}
+
+	@Test
+	public void restoresLostIndexEntries() throws IOException, InterruptedException {
+		fill(100);
+		try (FileChannel index = FileChannel.open(segmentFile(".idx"), StandardOpenOption.WRITE)) {
+			index.truncate(0);
+		}
+
+		try (MessageLog log = open(0)) {
+			assertEquals(100, log.getNextSequence());
+			// Found through the second index entry
+			assertEquals("message 070", textOf(log.read(70, 1).get(0)));
+		}
+		assertEquals(2 * 4, Files.size(segmentFile(".idx")));
+	}
+
+	@Test
+	public void keepsTheMaximumNumberOfSegments() throws IOException {
+		try (MessageLog log = open(2)) {
+			for (int i = 0; i < 500; i++) {
+				log.append(record(i));
+			}
+			assertTrue(log.getFirstSequence() > 0);
+			assertEquals(String.format("message %03d", log.getFirstSequence()),
+					textOf(log.read(0, 1).get(0)));
+			assertEquals("message 499", textOf(log.readLast(1).get(0)));
+		}
+
+		try (Stream<Path> files = Files.list(folder.getRoot().toPath())) {
+			assertEquals(2, files.filter(path -> path.toString().endsWith(".log")).count());
+		}
+	}
+}
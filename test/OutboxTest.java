@@ -0,0 +1,92 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ *
+ * Numbering, acknowledgement and replay of the messages of an {@link Outbox}.
+ *
+ */
+public class OutboxTest {
+	@Test
+	public void queuesInOrderUpToTheLimit() {
+		Outbox outbox = new Outbox();
+		Outbox.PendingMessage first = new Outbox.PendingMessage("first");
+		Outbox.PendingMessage second = new Outbox.PendingMessage("second");
+		assertTrue(outbox.offer(first, 2));
+		assertTrue(outbox.offer(second, 2));
+		assertFalse(outbox.offer(new Outbox.PendingMessage("third"), 2));
+
+		assertSame(first, outbox.poll());
+		assertSame(second, outbox.poll());
+		assertNull(outbox.poll());
+	}
+
+	@Test
+	public void forgottenMessagesGiveBackTheirNumber() {
+		Outbox outbox = new Outbox();
+		outbox.connected(true);
+		Outbox.PendingMessage first = new Outbox.PendingMessage("first");
+		Outbox.PendingMessage dropped = new Outbox.PendingMessage("dropped");
+		Outbox.PendingMessage third = new Outbox.PendingMessage("third");
+		outbox.sent(first, 10);
+		outbox.sent(dropped, 10);
+		outbox.sent(third, 10);
+		outbox.forget(dropped);
+
+		// The peer received two messages, which are the first and the third
+		outbox.acknowledged(2);
+		assertEquals(0, outbox.connected(true));
+	}
+
+	@Test
+	public void replaysTheUnacknowledgedMessagesFirst() {
+		Outbox outbox = new Outbox();
+		outbox.connected(true);
+		Outbox.PendingMessage acknowledged = new Outbox.PendingMessage("acknowledged");
+		Outbox.PendingMessage lost = new Outbox.PendingMessage("lost");
+		Outbox.PendingMessage queued = new Outbox.PendingMessage("queued");
+		outbox.sent(acknowledged, 10);
+		outbox.sent(lost, 10);
+		outbox.acknowledged(1);
+		outbox.offer(queued, 10);
+
+		assertEquals(2, outbox.connected(true));
+		assertSame(lost, outbox.poll());
+		assertSame(queued, outbox.poll());
+	}
+
+	@Test
+	public void forgetsTheMessagesOfThePreviousConnection() {
+		Outbox outbox = new Outbox();
+		outbox.connected(false);
+		Outbox.PendingMessage old = new Outbox.PendingMessage("old");
+		outbox.sent(old, 10);
+		outbox.connected(false);
+
+		Outbox.PendingMessage current = new Outbox.PendingMessage("current");
+		outbox.sent(current, 10);
+		// Numbered on another connection, doesn't renumber the current one
+		outbox.forget(old);
+		outbox.acknowledged(1);
+		assertEquals(0, outbox.connected(true));
+	}
+
+	@Test
+	public void evictsTheOldestUnacknowledgedMessage() {
+		Outbox outbox = new Outbox();
+		outbox.connected(true);
+		Outbox.PendingMessage first = new Outbox.PendingMessage("first");
+		Outbox.PendingMessage second = new Outbox.PendingMessage("second");
+		outbox.sent(first, 1);
+		outbox.sent(second, 1);
+
+		assertTrue(first.written.isCompletedExceptionally());
+		assertFalse(second.written.isDone());
+		assertEquals(1, outbox.clear().size());
+	}
+}
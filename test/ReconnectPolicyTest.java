@@ -0,0 +1,53 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+/**
+ *
+ * Delays of a {@link ReconnectPolicy} and its startup parameters.
+ *
+ */
+public class ReconnectPolicyTest {
+	@Test
+	public void boundsTheDelays() {
+		ReconnectPolicy policy = new ReconnectPolicy();
+		policy.setInitialDelayMillis(100);
+		policy.setMaxDelayMillis(1000);
+		for (int attempt = 0; attempt < 20; attempt++) {
+			long bound = Math.min(1000, 100L << attempt);
+			for (int i = 0; i < 100; i++) {
+				long delay = policy.getDelayMillis(attempt);
+				assertTrue(delay >= 0 && delay <= bound);
+			}
+		}
+	}
+
+	@Test
+	public void isDisabledByDefault() {
+		assertNull(ReconnectPolicy.fromParameters(name -> null));
+	}
+
+	@Test
+	public void readsTheParameters() {
+		Map<String, String> parameters = new HashMap<String, String>();
+		parameters.put("reconnect", "true");
+		parameters.put("reconnect-initial-delay", "50");
+		parameters.put("reconnect-max-delay", "5000");
+		parameters.put("reconnect-attempts", "3");
+		ReconnectPolicy policy = ReconnectPolicy.fromParameters(parameters::get);
+
+		assertEquals(50, policy.getInitialDelayMillis());
+		assertEquals(5000, policy.getMaxDelayMillis());
+		assertEquals(3, policy.getMaxAttempts());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsNegativeDelays() {
+		new ReconnectPolicy().setInitialDelayMillis(-1);
+	}
+}
@@ -0,0 +1,211 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *
+ * Rooms of a {@link RoomHub} joined by peers speaking the framed protocol.
+ *
+ */
+public class RoomHubTest {
+	private final static int MAX_FRAME_SIZE = 16 * 1024;
+
+	private final List<Member> members = new ArrayList<Member>();
+	private RoomHub hub;
+	private Room alpha;
+	private Room beta;
+
+	@Before
+	public void start() throws IOException {
+		hub = new RoomHub(1);
+		alpha = hub.createRoom("alpha", Cipher.AES128, "alpha key");
+		beta = hub.createRoom("beta", Cipher.AES128_GCM, "beta key");
+		hub.start(0);
+	}
+
+	@After
+	public void stop() throws IOException {
+		for (Member member : members) {
+			member.socket.close();
+		}
+		hub.stop();
+	}
+
+	/**
+	 * Connects a member and joins a room.
+	 *
+	 * @param room to be joined
+	 * @return the member, once it has been notified of joining
+	 */
+	private Member join(Room room) throws IOException, InterruptedException {
+		Member member = new Member(room, 0);
+		int count = room.getMemberCount();
+		member.send(RoomHub.JOIN_COMMAND + room.getName());
+		awaitMemberCount(room, count + 1);
+		// The members are notified of their own joining too
+		assertTrue(member.receive().endsWith(" joined " + room.getName()));
+		return member;
+	}
+
+	private static void awaitMemberCount(Room room, int count) throws InterruptedException {
+		for (int i = 0; i < 500 && room.getMemberCount() != count; i++) {
+			Thread.sleep(10);
+		}
+		assertEquals(count, room.getMemberCount());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void refusesDuplicateRooms() {
+		hub.createRoom("alpha", Cipher.AES128, "other key");
+	}
+
+	@Test
+	public void relaysToTheOtherMembersOfTheRoom() throws IOException, InterruptedException {
+		Member first = join(alpha);
+		Member second = join(alpha);
+		Member other = join(beta);
+		assertTrue(first.receive().endsWith(" joined alpha"));
+
+		first.send("hello");
+		assertTrue(second.receive().endsWith(" : hello"));
+		second.send("hi");
+		assertTrue(first.receive().endsWith(" : hi"));
+
+		// Neither an echo nor a message of another room
+		assertNull(first.poll());
+		assertNull(other.poll());
+	}
+
+	@Test
+	public void ignoresJoinsWithTheWrongKey() throws IOException, InterruptedException {
+		Member member = new Member(new Room("alpha", Cipher.AES128, "wrong key"), 0);
+		member.send(RoomHub.JOIN_COMMAND + "alpha");
+		Thread.sleep(200);
+		assertEquals(0, alpha.getMemberCount());
+	}
+
+	@Test
+	public void notifiesTheMembersLeaving() throws IOException, InterruptedException {
+		Member first = join(alpha);
+		Member second = join(alpha);
+		first.receive();
+
+		second.send(RoomHub.LEAVE_COMMAND);
+		awaitMemberCount(alpha, 1);
+		assertTrue(first.receive().endsWith(" left alpha"));
+
+		join(alpha).socket.close();
+		assertTrue(first.receive().endsWith(" joined alpha"));
+		awaitMemberCount(alpha, 1);
+		assertTrue(first.receive().endsWith(" left alpha"));
+	}
+
+	@Test
+	public void disconnectsMembersWhichCantKeepUp() throws IOException, InterruptedException {
+		hub.setMaxQueuedBytes(16 * 1024);
+		hub.setOverflowPolicy(OverflowPolicy.DISCONNECT);
+		Member stalled = new Member(alpha, 4096);
+		stalled.send(RoomHub.JOIN_COMMAND + "alpha");
+		awaitMemberCount(alpha, 1);
+
+		long evicted = Metrics.ROOM_EVICTED_MEMBERS.get();
+		char[] text = new char[1000];
+		Arrays.fill(text, 'x');
+		for (int i = 0; i < 1000 && alpha.getMemberCount() > 0; i++) {
+			hub.broadcast(alpha, new String(text), null);
+		}
+		awaitMemberCount(alpha, 0);
+		assertEquals(1, Metrics.ROOM_EVICTED_MEMBERS.get() - evicted);
+	}
+
+	/**
+	 *
+	 * A peer of the hub using the key of a room.
+	 *
+	 */
+	private class Member {
+		private final Socket socket = new Socket();
+		private final InputStream in;
+		private final OutputStream out;
+		private final Room room;
+
+		/**
+		 * Connects to the hub and negotiates the framed protocol.
+		 *
+		 * @param room              the key of which is used
+		 * @param receiveBufferSize of the socket, 0 for the default
+		 */
+		Member(Room room, int receiveBufferSize) throws IOException {
+			this.room = room;
+			members.add(this);
+			if (receiveBufferSize > 0) {
+				socket.setReceiveBufferSize(receiveBufferSize);
+			}
+			socket.connect(new InetSocketAddress("localhost", hub.getPort()));
+			socket.setSoTimeout(5000);
+			in = new BufferedInputStream(socket.getInputStream());
+			out = socket.getOutputStream();
+			// A hello, then the announcement answering the hello of the hub
+			out.write(new byte[] { Frame.HELLO, Frame.HELLO, Frame.VERSION });
+			assertEquals(Frame.HELLO, in.read());
+			assertEquals(Frame.HELLO, in.read());
+			assertEquals(Frame.VERSION, in.read());
+		}
+
+		void send(String text) throws IOException {
+			for (ByteBuffer part : Frame.encodeMessage(Crypto.encrypt(text, room.getKey(), room.getCipher()), true,
+					MAX_FRAME_SIZE)) {
+				out.write(part.array(), part.arrayOffset() + part.position(), part.remaining());
+			}
+			out.flush();
+		}
+
+		/**
+		 * @return text of the next message, without the padding
+		 */
+		String receive() throws IOException {
+			Frame frame;
+			do {
+				frame = Frame.read(in, MAX_FRAME_SIZE);
+			} while (frame.isHeartbeat());
+			assertEquals(Frame.TYPE_MESSAGE, frame.getType());
+			String text = Crypto.decrypt(frame.getPayload(), room.getKey(), room.getCipher());
+			int length = text.length();
+			while (length > 0 && text.charAt(length - 1) == 0) {
+				length--;
+			}
+			return text.substring(0, length);
+		}
+
+		/**
+		 * @return text of the message received within 200 milliseconds, null if
+		 *         there is none
+		 */
+		String poll() throws IOException {
+			socket.setSoTimeout(200);
+			try {
+				return receive();
+			} catch (SocketTimeoutException e) {
+				return null;
+			} finally {
+				socket.setSoTimeout(5000);
+			}
+		}
+	}
+}
@@ -0,0 +1,86 @@
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ *
+ * Queries of a {@link SearchIndex} and its {@link Postings}, before and after
+ * saving it.
+ *
+ */
+public class SearchIndexTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private SearchIndex newIndex() throws IOException {
+		SearchIndex index = SearchIndex.load(folder.getRoot().toPath().resolve("search.idx"));
+		index.add(0, "The server failed to connect");
+		index.add(1, "Connection refused by the server");
+		index.add(2, null);
+		index.add(3, "failed again, the server is down");
+		return index;
+	}
+
+	@Test
+	public void findsTermsPrefixesAndPhrases() throws IOException {
+		SearchIndex index = newIndex();
+		assertArrayEquals(new long[] { 0, 1, 3 }, index.search("SERVER", 10));
+		assertArrayEquals(new long[] { 0, 1 }, index.search("conn*", 10));
+		assertArrayEquals(new long[] { 0, 3 }, index.search("failed server", 10));
+		assertArrayEquals(new long[] { 1 }, index.search("\"refused by the\"", 10));
+		assertArrayEquals(new long[0], index.search("\"server failed again\"", 10));
+		assertArrayEquals(new long[] { 3 }, index.search("server", 1));
+		assertEquals(4, index.getNextSequence());
+	}
+
+	@Test
+	public void savesWithoutTheDeletedMessages() throws IOException {
+		SearchIndex index = newIndex();
+		index.save(1);
+		// Added after the save, found until the index is loaded again
+		index.add(4, "server restarted");
+		assertArrayEquals(new long[] { 1, 3, 4 }, index.search("server", 10));
+		assertArrayEquals(new long[0], index.search("connect", 10));
+
+		SearchIndex loaded = SearchIndex.load(folder.getRoot().toPath().resolve("search.idx"));
+		assertArrayEquals(new long[] { 1, 3 }, loaded.search("server", 10));
+		assertArrayEquals(new long[] { 1 }, loaded.search("conn*", 10));
+		assertEquals(4, loaded.getNextSequence());
+	}
+
+	@Test
+	public void ignoresDamagedFiles() throws IOException {
+		Path path = folder.newFile("search.idx").toPath();
+		Files.write(path, new byte[] { 1, 2, 3 });
+		assertEquals(0, SearchIndex.load(path).getTermCount());
+	}
+
+	@Test
+	public void snapshotsKeepTheirMessages() {
+		Postings postings = new Postings();
+		postings.add(5, new int[] { 0, 3 }, 2);
+		Postings snapshot = postings.snapshot();
+		postings.add(9, new int[] { 1 }, 1);
+
+		Postings.Cursor cursor = snapshot.cursor();
+		assertTrue(cursor.next());
+		assertEquals(5, cursor.getSequence());
+		assertEquals(2, cursor.getPositionCount());
+		assertTrue(cursor.hasPosition(3));
+		assertFalse(cursor.next());
+
+		assertEquals(2, postings.getCount());
+		Postings trimmed = postings.trim(6);
+		assertEquals(9, trimmed.getFirstSequence());
+		assertEquals(1, trimmed.getCount());
+	}
+}
@@ -0,0 +1,104 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ *
+ * Watermarks of the connections of a {@link SelectorServer} with a peer which
+ * doesn't read.
+ *
+ */
+public class SelectorServerTest {
+	private final static int MESSAGE_SIZE = 1000;
+	private final static int MESSAGE_COUNT = 1000;
+
+	private final BlockingQueue<Connection> connections = new ArrayBlockingQueue<Connection>(1);
+	private SelectorServer server;
+	private Socket peer;
+
+	@After
+	public void stop() throws IOException {
+		if (peer != null) {
+			peer.close();
+		}
+		if (server != null) {
+			server.stop();
+		}
+	}
+
+	/**
+	 * Connects a peer announcing the framed protocol which never reads.
+	 *
+	 * @param policy applied to the messages sent to the peer
+	 * @return the connection of the peer on the server side
+	 */
+	private Connection connectStalledPeer(BackpressurePolicy policy) throws IOException, InterruptedException {
+		ConnectionOptions options = new ConnectionOptions();
+		options.setHighWatermark(64 * 1024);
+		options.setLowWatermark(16 * 1024);
+		options.setBackpressurePolicy(policy);
+		options.setSendBufferSize(4096);
+		server = new SelectorServer(new ConnectionListener() {
+			@Override
+			public void onConnected(Connection connection) {
+				connections.add(connection);
+			}
+
+			@Override
+			public void onMessage(Connection connection, byte[] message) {
+			}
+
+			@Override
+			public void onDisconnected(Connection connection) {
+			}
+		}, 1);
+		server.setConnectionOptions(options);
+		server.start(0);
+
+		peer = new Socket();
+		peer.setReceiveBufferSize(4096);
+		peer.connect(new InetSocketAddress("localhost", server.getPort()));
+		// A hello, then the announcement answering the hello of the server
+		peer.getOutputStream().write(new byte[] { Frame.HELLO, Frame.HELLO, Frame.VERSION });
+		Connection connection = connections.poll(5, TimeUnit.SECONDS);
+		// Lets the server read the announcement
+		Thread.sleep(200);
+		return connection;
+	}
+
+	@Test
+	public void rejectsAboveTheHighWatermark() throws IOException, InterruptedException {
+		Connection connection = connectStalledPeer(BackpressurePolicy.REJECT);
+		long rejected = Metrics.MESSAGES_REJECTED.get();
+		int sent = 0;
+		for (int i = 0; i < MESSAGE_COUNT; i++) {
+			try {
+				connection.send(new byte[MESSAGE_SIZE]);
+				sent++;
+			} catch (IOException e) {
+				// Refused by the full queue
+			}
+		}
+		assertTrue(sent < MESSAGE_COUNT);
+		assertEquals(MESSAGE_COUNT - sent, Metrics.MESSAGES_REJECTED.get() - rejected);
+	}
+
+	@Test
+	public void dropsTheOldestMessages() throws IOException, InterruptedException {
+		Connection connection = connectStalledPeer(BackpressurePolicy.DROP_OLDEST);
+		long dropped = Metrics.MESSAGES_DROPPED.get();
+		for (int i = 0; i < MESSAGE_COUNT; i++) {
+			connection.send(new byte[MESSAGE_SIZE]);
+		}
+		assertTrue(Metrics.MESSAGES_DROPPED.get() - dropped > 0);
+	}
+}
@@ -0,0 +1,245 @@
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ *
+ * Ordering and watermarks of a {@link SocketWriter} writing to a channel which
+ * is held until released.
+ *
+ */
+public class SocketWriterTest {
+	private final static int MESSAGE_SIZE = 40;
+
+	private final GatedChannel channel = new GatedChannel();
+	private SocketWriter writer;
+
+	@After
+	public void stop() {
+		channel.release();
+		if (writer != null) {
+			writer.close();
+		}
+	}
+
+	/**
+	 * Starts a writer with a high watermark of 100 bytes and a low watermark of
+	 * 50 bytes, sends a first message and waits until the writer is held writing
+	 * it, so that the following messages stay queued.
+	 *
+	 * @param policy applied above the high watermark
+	 * @return future of the first message
+	 */
+	private CompletableFuture<Void> startHeld(BackpressurePolicy policy) throws InterruptedException {
+		ConnectionOptions options = new ConnectionOptions();
+		options.setHighWatermark(100);
+		options.setLowWatermark(50);
+		options.setBackpressurePolicy(policy);
+		writer = new SocketWriter(channel, options);
+		writer.start();
+		CompletableFuture<Void> first = writer.writeMessage(message(1));
+		assertTrue(channel.writing.await(5, TimeUnit.SECONDS));
+		return first;
+	}
+
+	private static ByteBuffer message(int value) {
+		byte[] data = new byte[MESSAGE_SIZE];
+		data[0] = (byte) value;
+		return ByteBuffer.wrap(data);
+	}
+
+	/**
+	 * @return first byte of every message written, in the order written
+	 */
+	private byte[] writtenMessages() {
+		byte[] written = channel.getWritten();
+		byte[] values = new byte[written.length / MESSAGE_SIZE];
+		for (int i = 0; i < values.length; i++) {
+			values[i] = written[i * MESSAGE_SIZE];
+		}
+		return values;
+	}
+
+	private static Throwable failure(CompletableFuture<Void> future) throws InterruptedException {
+		try {
+			future.get(5, TimeUnit.SECONDS);
+			fail("The message has been written");
+			return null;
+		} catch (ExecutionException e) {
+			return e.getCause();
+		} catch (CancellationException e) {
+			return e;
+		} catch (TimeoutException e) {
+			throw new AssertionError("The message is still queued", e);
+		}
+	}
+
+	@Test
+	public void writesFramesInOrder() throws Exception {
+		writer = new SocketWriter(channel, new ConnectionOptions());
+		channel.release();
+		// Queued before the start, so that the writer coalesces them into one write
+		writer.write(ByteBuffer.wrap(new byte[] { 1, 2 }));
+		CompletableFuture<Void> future = writer.writeMessage(ByteBuffer.wrap(new byte[] { 3 }),
+				ByteBuffer.wrap(new byte[] { 4, 5 }));
+		writer.start();
+		future.get(5, TimeUnit.SECONDS);
+		assertArrayEquals(new byte[] { 1, 2, 3, 4, 5 }, channel.getWritten());
+		assertEquals(1, channel.getWriteCount());
+	}
+
+	@Test
+	public void rejectsAboveTheHighWatermark() throws Exception {
+		CompletableFuture<Void> first = startHeld(BackpressurePolicy.REJECT);
+		CompletableFuture<Void> second = writer.writeMessage(message(2));
+		CompletableFuture<Void> third = writer.writeMessage(message(3));
+		CompletableFuture<Void> rejected = writer.writeMessage(message(4));
+		assertTrue(failure(rejected) instanceof RejectedExecutionException);
+
+		channel.release();
+		CompletableFuture.allOf(first, second, third).get(5, TimeUnit.SECONDS);
+		assertArrayEquals(new byte[] { 1, 2, 3 }, writtenMessages());
+	}
+
+	@Test
+	public void dropsTheOldestAboveTheHighWatermark() throws Exception {
+		CompletableFuture<Void> first = startHeld(BackpressurePolicy.DROP_OLDEST);
+		CompletableFuture<Void> dropped = writer.writeMessage(message(2));
+		CompletableFuture<Void> third = writer.writeMessage(message(3));
+		CompletableFuture<Void> fourth = writer.writeMessage(message(4));
+		assertTrue(failure(dropped) instanceof CancellationException);
+
+		channel.release();
+		CompletableFuture.allOf(first, third, fourth).get(5, TimeUnit.SECONDS);
+		assertArrayEquals(new byte[] { 1, 3, 4 }, writtenMessages());
+	}
+
+	@Test
+	public void blocksUntilDrainedToTheLowWatermark() throws Exception {
+		startHeld(BackpressurePolicy.BLOCK);
+		writer.writeMessage(message(2));
+		writer.writeMessage(message(3));
+		writer.writeMessage(message(4));
+
+		CountDownLatch writable = new CountDownLatch(1);
+		Thread sender = new Thread(() -> {
+			try {
+				writer.awaitWritable();
+				writable.countDown();
+			} catch (IOException | InterruptedException e) {
+				e.printStackTrace();
+			}
+		});
+		sender.start();
+		assertFalse(writable.await(200, TimeUnit.MILLISECONDS));
+
+		channel.release();
+		assertTrue(writable.await(5, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void failsTheQueuedMessagesWhenTheChannelFails() throws Exception {
+		CompletableFuture<Void> first = startHeld(BackpressurePolicy.BLOCK);
+		CompletableFuture<Void> second = writer.writeMessage(message(2));
+		channel.fail();
+		assertTrue(failure(first) instanceof IOException);
+		assertTrue(failure(second) instanceof IOException);
+		try {
+			writer.write(message(3));
+			fail("The failed writer accepted data");
+		} catch (IOException e) {
+			// Expected
+		}
+	}
+
+	/**
+	 *
+	 * Channel whose writes wait until {@link #release()} or {@link #fail()}.
+	 *
+	 */
+	private static class GatedChannel implements GatheringByteChannel {
+		private final CountDownLatch writing = new CountDownLatch(1);
+		private final CountDownLatch gate = new CountDownLatch(1);
+		private final ByteArrayOutputStream written = new ByteArrayOutputStream();
+		private volatile boolean failed;
+		private int writeCount;
+
+		void release() {
+			gate.countDown();
+		}
+
+		void fail() {
+			failed = true;
+			gate.countDown();
+		}
+
+		synchronized byte[] getWritten() {
+			return written.toByteArray();
+		}
+
+		synchronized int getWriteCount() {
+			return writeCount;
+		}
+
+		@Override
+		public long write(ByteBuffer[] sources, int offset, int length) throws IOException {
+			writing.countDown();
+			try {
+				gate.await();
+			} catch (InterruptedException e) {
+				throw new IOException(e);
+			}
+			if (failed) {
+				throw new IOException("The channel has failed");
+			}
+
+			synchronized (this) {
+				writeCount++;
+				long count = 0;
+				for (int i = offset; i < offset + length; i++) {
+					while (sources[i].hasRemaining()) {
+						written.write(sources[i].get());
+						count++;
+					}
+				}
+				return count;
+			}
+		}
+
+		@Override
+		public long write(ByteBuffer[] sources) throws IOException {
+			return write(sources, 0, sources.length);
+		}
+
+		@Override
+		public int write(ByteBuffer source) throws IOException {
+			return (int) write(new ByteBuffer[] { source });
+		}
+
+		@Override
+		public boolean isOpen() {
+			return !failed;
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+}